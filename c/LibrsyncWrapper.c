@@ -38,6 +38,14 @@
 typedef struct wrapper_copy_arg {
     jobject     *patchBaseFileSeeker;
     JNIEnv      *env;
+
+    // Set if the base file is memory mapped (see MappedFileInputSeeker).  COPY commands are then
+    // served straight from the mapped windows, without calling the patchBaseFileSeeker.
+    int         mapped;
+    char        **mappedWindows;
+    jint        mappedWindowCount;
+    jlong       mappedWindowSize;
+    jlong       mappedLength;
 } wrapper_copy_arg_t;
 
 typedef struct job_result {
@@ -45,6 +53,34 @@ typedef struct job_result {
     void           *arg;
 } job_result_t;
 
+//
+// iterateJob() packs its result into a single jlong, so that the Java side can update the
+// ByteBuffer positions itself without any upcalls from here:
+//   bits  0-30: number of input bytes consumed
+//   bits 31-61: number of output bytes produced
+//   bit     62: set if the job returned RS_DONE, clear if it returned RS_BLOCKED
+// Any other rs_result is returned negated.  This must match the constants in LibrsyncWrapper.java
+//
+#define ITERATE_COUNT_BITS  31
+#define ITERATE_COUNT_MASK  ((jlong) 0x7fffffff)
+#define ITERATE_DONE_FLAG   (((jlong) 1) << 62)
+
+//
+// Classes and method IDs used by this file.  They are looked up once in JNI_OnLoad(), and the
+// classes are held as global references so the method IDs remain valid.
+//
+static jclass    seekerClass;
+static jmethodID seekMethod;
+static jclass    bufferClass;
+static jmethodID bufferPositionMethod;
+static jmethodID bufferLimitMethod;
+static jclass    loadSignatureResultClass;
+static jmethodID loadSignatureSetJobMethod;
+static jmethodID loadSignatureSetSignatureMethod;
+static jclass    patchBeginResultClass;
+static jmethodID patchBeginSetJobMethod;
+static jmethodID patchBeginSetArgMethod;
+
 
 void logMessage(char *s)
 {
@@ -54,18 +90,172 @@ void logMessage(char *s)
 }
 
 /**
- * Begin signature creation on a file.  Calls librsync's rs_sig_begin().
+ * Looks up a class by name and returns a global reference to it, or NULL if it can't be found.
+ */
+static jclass findGlobalClass(JNIEnv *env, const char *name)
+{
+    jclass cls = (*env)->FindClass(env, name);
+    if (cls == NULL) {
+        return NULL;
+    }
+    jclass globalCls = (jclass) (*env)->NewGlobalRef(env, cls);
+    (*env)->DeleteLocalRef(env, cls);
+    return globalCls;
+}
+
+/**
+ * Called by the JVM when this library is loaded.  Resolves all of the classes and method IDs
+ * needed by this file, so they don't have to be looked up by name on every call.
+ */
+JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved)
+{
+    JNIEnv *env;
+    if ((*vm)->GetEnv(vm, (void **) &env, JNI_VERSION_1_6) != JNI_OK) {
+        return JNI_ERR;
+    }
+
+    seekerClass = findGlobalClass(env, "com/hds/aw/commons/librsync/RsyncInputSeeker");
+    bufferClass = findGlobalClass(env, "java/nio/Buffer");
+    loadSignatureResultClass =
+        findGlobalClass(env, "com/hds/aw/commons/librsync/LibrsyncWrapper$LoadSignatureResult");
+    patchBeginResultClass =
+        findGlobalClass(env, "com/hds/aw/commons/librsync/LibrsyncWrapper$PatchBeginResult");
+    if (seekerClass == NULL || bufferClass == NULL || loadSignatureResultClass == NULL
+            || patchBeginResultClass == NULL) {
+        logMessage("JNI_OnLoad: Failed to find required classes");
+        return JNI_ERR;
+    }
+
+    seekMethod = (*env)->GetMethodID(env, seekerClass, "seek", "(JI)Ljava/nio/ByteBuffer;");
+    bufferPositionMethod = (*env)->GetMethodID(env, bufferClass, "position", "()I");
+    bufferLimitMethod = (*env)->GetMethodID(env, bufferClass, "limit", "()I");
+    loadSignatureSetJobMethod = (*env)->GetMethodID(env, loadSignatureResultClass, "setJob", "(J)V");
+    loadSignatureSetSignatureMethod =
+        (*env)->GetMethodID(env, loadSignatureResultClass, "setSignature", "(J)V");
+    patchBeginSetJobMethod = (*env)->GetMethodID(env, patchBeginResultClass, "setJob", "(J)V");
+    patchBeginSetArgMethod = (*env)->GetMethodID(env, patchBeginResultClass, "setArg", "(J)V");
+    if (seekMethod == NULL || bufferPositionMethod == NULL || bufferLimitMethod == NULL
+            || loadSignatureSetJobMethod == NULL || loadSignatureSetSignatureMethod == NULL
+            || patchBeginSetJobMethod == NULL || patchBeginSetArgMethod == NULL) {
+        logMessage("JNI_OnLoad: Failed to find required methods");
+        return JNI_ERR;
+    }
+
+    return JNI_VERSION_1_6;
+}
+
+/**
+ * Called by the JVM when this library is unloaded.  Releases the global class references.
+ */
+JNIEXPORT void JNICALL JNI_OnUnload(JavaVM *vm, void *reserved)
+{
+    JNIEnv *env;
+    if ((*vm)->GetEnv(vm, (void **) &env, JNI_VERSION_1_6) != JNI_OK) {
+        return;
+    }
+
+    (*env)->DeleteGlobalRef(env, seekerClass);
+    (*env)->DeleteGlobalRef(env, bufferClass);
+    (*env)->DeleteGlobalRef(env, loadSignatureResultClass);
+    (*env)->DeleteGlobalRef(env, patchBeginResultClass);
+}
+
+/**
+ * Begin signature creation on a file.  Calls librsync's rs_sig_begin(), with the signature type
+ * given by magic, and strong sums truncated to strongLength bytes.
  *
  * @return a long, which is a pointer to the rs_job_t
  */
 JNIEXPORT jlong JNICALL Java_com_hds_aw_commons_librsync_LibrsyncWrapper_signatureBegin
-  (JNIEnv *env, jclass cls, jint blockSize)
+  (JNIEnv *env, jclass cls, jint blockSize, jint strongLength, jint magic)
 {
-    rs_job_t *job = rs_sig_begin((size_t) blockSize, RS_MD4_LENGTH);
+    rs_job_t *job = rs_sig_begin((size_t) blockSize, (size_t) strongLength, (rs_magic_number) magic);
     return (jlong) job;
 }
 
 
+/**
+ * Generate the signatures of a batch of inputs in one call.  Runs an rs_sig_begin() job over each
+ * input in turn, writing its signature into the outLengths[i] bytes at outOffsets[i] in outBuffer.
+ * The Java side sizes each signature exactly, so a job that blocks without making progress, or
+ * that finishes without filling its room, fails with RS_INTERNAL_ERROR.
+ *
+ * @return RS_DONE, or the rs_result of the first input that failed in the low 32 bits and the
+ *         index of that input in the high 32 bits
+ */
+JNIEXPORT jlong JNICALL Java_com_hds_aw_commons_librsync_LibrsyncWrapper_signatureBatch
+  (JNIEnv *env, jclass cls, jobject inputs, jintArray offsets, jintArray lengths, jint count,
+   jobject outBuffer, jintArray outOffsets, jintArray outLengths, jint blockSize, jint strongLength, jint magic)
+{
+    char *in = (char *)(*env)->GetDirectBufferAddress(env, inputs);
+    char *out = (char *)(*env)->GetDirectBufferAddress(env, outBuffer);
+    if (in == NULL || out == NULL) {
+        return RS_PARAM_ERROR;
+    }
+
+    jint *inOff = (*env)->GetIntArrayElements(env, offsets, NULL);
+    jint *inLen = (*env)->GetIntArrayElements(env, lengths, NULL);
+    jint *outOff = (*env)->GetIntArrayElements(env, outOffsets, NULL);
+    jint *outLen = (*env)->GetIntArrayElements(env, outLengths, NULL);
+    jlong packed = RS_DONE;
+    if (inOff == NULL || inLen == NULL || outOff == NULL || outLen == NULL) {
+        packed = RS_MEM_ERROR;
+        goto done;
+    }
+
+    jint i;
+    for (i = 0; i < count; i++) {
+        rs_job_t *job = rs_sig_begin((size_t) blockSize, (size_t) strongLength, (rs_magic_number) magic);
+        if (job == NULL) {
+            packed = (((jlong) i) << 32) | RS_MEM_ERROR;
+            break;
+        }
+
+        rs_buffers_t buffersInfo;
+        buffersInfo.next_in = in + inOff[i];
+        buffersInfo.avail_in = (size_t) inLen[i];
+        buffersInfo.eof_in = 1;
+        buffersInfo.next_out = out + outOff[i];
+        buffersInfo.avail_out = (size_t) outLen[i];
+
+        rs_result result;
+        do {
+            size_t avail_in = buffersInfo.avail_in;
+            size_t avail_out = buffersInfo.avail_out;
+            result = rs_job_iter(job, &buffersInfo);
+            if (result == RS_BLOCKED && buffersInfo.avail_in == avail_in
+                    && buffersInfo.avail_out == avail_out) {
+                result = RS_INTERNAL_ERROR;
+            }
+        } while (result == RS_BLOCKED);
+        rs_job_free(job);
+        if (result == RS_DONE && (buffersInfo.avail_in != 0 || buffersInfo.avail_out != 0)) {
+            result = RS_INTERNAL_ERROR;
+        }
+
+        if (result != RS_DONE) {
+            packed = (((jlong) i) << 32) | (jlong) result;
+            break;
+        }
+    }
+
+done:
+    if (inOff != NULL) {
+        (*env)->ReleaseIntArrayElements(env, offsets, inOff, JNI_ABORT);
+    }
+    if (inLen != NULL) {
+        (*env)->ReleaseIntArrayElements(env, lengths, inLen, JNI_ABORT);
+    }
+    if (outOff != NULL) {
+        (*env)->ReleaseIntArrayElements(env, outOffsets, outOff, JNI_ABORT);
+    }
+    if (outLen != NULL) {
+        (*env)->ReleaseIntArrayElements(env, outLengths, outLen, JNI_ABORT);
+    }
+    return packed;
+}
+
+
 /**
  * Begin loading a signature.  Calls librsync's rs_loadsig_begin()
  *
@@ -77,19 +267,8 @@ JNIEXPORT jlong JNICALL Java_com_hds_aw_commons_librsync_LibrsyncWrapper_loadSig
     rs_signature_t *signature;
     rs_job_t *job = rs_loadsig_begin(&signature);
 
-    jclass resultClass = (*env)->GetObjectClass(env, result);
-    jmethodID jobMethod = (*env)->GetMethodID(env, resultClass, "setJob", "(J)V");
-    if (jobMethod == NULL) {
-        return RS_INTERNAL_ERROR;
-    }
-
-    jmethodID signatureMethod = (*env)->GetMethodID(env, resultClass, "setSignature", "(J)V");
-    if (signatureMethod == NULL) {
-        return RS_INTERNAL_ERROR;
-    }
-
-    (*env)->CallObjectMethod(env, result, jobMethod, job);
-    (*env)->CallObjectMethod(env, result, signatureMethod, signature);
+    (*env)->CallVoidMethod(env, result, loadSignatureSetJobMethod, (jlong) job);
+    (*env)->CallVoidMethod(env, result, loadSignatureSetSignatureMethod, (jlong) signature);
 
     return RS_DONE;
 }
@@ -120,6 +299,34 @@ JNIEXPORT jlong JNICALL Java_com_hds_aw_commons_librsync_LibrsyncWrapper_deltaBe
 }
 
 
+/**
+ * Called by wrapper_file_copy_cb() when the base file is memory mapped.  Points buf directly at
+ * the mapped base file, so no Java call and no copy is needed.  If the requested range crosses the
+ * end of a mapped window, only the bytes up to the end of the window are returned, and librsync
+ * will ask again for the rest.
+ */
+static rs_result wrapper_mapped_copy(wrapper_copy_arg_t *copy_arg, rs_long_t pos, size_t *len, void **buf)
+{
+    if (pos < 0 || pos >= copy_arg->mappedLength) {
+        logMessage("wrapper_mapped_copy: Requested position is outside of the mapped base file");
+        return RS_INTERNAL_ERROR;
+    }
+
+    jlong window = pos / copy_arg->mappedWindowSize;
+    jlong offset = pos % copy_arg->mappedWindowSize;
+    jlong windowLen = copy_arg->mappedLength - window * copy_arg->mappedWindowSize;
+    if (windowLen > copy_arg->mappedWindowSize) {
+        windowLen = copy_arg->mappedWindowSize;
+    }
+
+    if ((size_t) (windowLen - offset) < *len) {
+        *len = (size_t) (windowLen - offset);
+    }
+    *buf = copy_arg->mappedWindows[window] + offset;
+
+    return RS_DONE;
+}
+
 /**
  * Called by a patch job, to copy a portion of the base file into buf.
  * Calls the Java RsyncInputSeeker to get the portion of the base file.
@@ -129,59 +336,58 @@ rs_result wrapper_file_copy_cb(void *arg, rs_long_t pos, size_t *len, void **buf
     wrapper_copy_arg_t *copy_arg = (wrapper_copy_arg_t *)arg;
     JNIEnv      *env = copy_arg->env;
 
-    jclass cls = (*env)->GetObjectClass(env, *copy_arg->patchBaseFileSeeker);
-    if (cls == NULL) {
-        logMessage("wrapper_file_copy_cb: Failed to find patchBaseFileSeeker class");
-        return RS_INTERNAL_ERROR;
-    }
-    jmethodID seekMethod = (*env)->GetMethodID(env, cls, "seek", "(JI)Ljava/nio/ByteBuffer;");
-    if (seekMethod == NULL) {
-        logMessage("wrapper_file_copy_cb: Failed to find seek method of RsyncInputSeeker");
-        return RS_INTERNAL_ERROR;
+    if (copy_arg->mapped) {
+        return wrapper_mapped_copy(copy_arg, pos, len, buf);
     }
 
     jobject byteBuf = (*env)->CallObjectMethod(env, *copy_arg->patchBaseFileSeeker, seekMethod, (jlong)pos, (jint)*len);
-    if (byteBuf == NULL) {
-        logMessage("wrapper_file_copy_cb: seek() returned null ByteBuffer");
-        return RS_INTERNAL_ERROR;
-    }
-    jclass bufferClass = (*env)->GetObjectClass(env, byteBuf);
-    if (bufferClass == NULL) {
-        logMessage("wrapper_file_copy_cb: No class found for returned ByteBuffer");
+    if ((*env)->ExceptionCheck(env)) {
+        (*env)->ExceptionClear(env);
+        logMessage("wrapper_file_copy_cb: seek() threw an exception");
         return RS_INTERNAL_ERROR;
     }
-
-    jmethodID positionMethod = (*env)->GetMethodID(env, bufferClass, "position", "()I");
-    if (positionMethod == NULL) {
-        logMessage("wrapper_file_copy_cb: No position() method found in ByteBuffer");
-        return RS_INTERNAL_ERROR;
-    }
-    jint position = (*env)->CallIntMethod(env, byteBuf, positionMethod);
-
-    jmethodID limitMethod = (*env)->GetMethodID(env, bufferClass, "limit", "()I");
-    if (limitMethod == NULL) {
-        logMessage("wrapper_file_copy_cb: No limit() method found in ByteBuffer");
+    if (byteBuf == NULL) {
+        logMessage("wrapper_file_copy_cb: seek() returned null ByteBuffer");
         return RS_INTERNAL_ERROR;
     }
-    jint limit = (*env)->CallIntMethod(env, byteBuf, limitMethod);
 
-    if (limit < 0 || position < 0) {
+    jint position = (*env)->CallIntMethod(env, byteBuf, bufferPositionMethod);
+    jint limit = (*env)->CallIntMethod(env, byteBuf, bufferLimitMethod);
+    if (limit <= position || position < 0) {
         logMessage("wrapper_file_copy_cb: Did not read expected number of bytes from RsyncInputSeeker");
         return RS_INTERNAL_ERROR;
     }
 
+    // librsync accepts fewer bytes than requested, and will ask again for the rest
+    if ((size_t) (limit - position) < *len) {
+        *len = (size_t) (limit - position);
+    }
     *buf = (void *)(*env)->GetDirectBufferAddress(env, byteBuf) + position;
+    (*env)->DeleteLocalRef(env, byteBuf);
 
     return RS_DONE;
 }
 
 
+/**
+ * Free a wrapper_copy_arg_t allocated by patchBegin()
+ */
+static void free_copy_arg(wrapper_copy_arg_t *copy_arg)
+{
+    free(copy_arg->mappedWindows);
+    free(copy_arg);
+}
+
 /**
  * Start applying a delta to a basis to recreate the new file.  Calls librsync's rs_patch_begin()
  *
+ * If mappedWindows is non-null, it holds the direct ByteBuffers that map the whole base file, each
+ * of which (except the last) is mappedWindowSize bytes long.  The caller must keep them reachable
+ * until the job is freed.
  */
 JNIEXPORT jlong JNICALL Java_com_hds_aw_commons_librsync_LibrsyncWrapper_patchBegin
-  (JNIEnv *env, jclass cls, jobject baseFileSeeker, jobject result)
+  (JNIEnv *env, jclass cls, jobject baseFileSeeker, jobjectArray mappedWindows, jlong mappedWindowSize,
+   jobject result)
 {
     wrapper_copy_arg_t *copy_arg = (wrapper_copy_arg_t *) calloc(1, sizeof(wrapper_copy_arg_t));
     if (!copy_arg) {
@@ -192,23 +398,35 @@ JNIEXPORT jlong JNICALL Java_com_hds_aw_commons_librsync_LibrsyncWrapper_patchBe
     copy_arg->patchBaseFileSeeker = &baseFileSeeker;
     copy_arg->env = env;
 
-    rs_job_t *job = rs_patch_begin((rs_copy_cb *) wrapper_file_copy_cb, copy_arg);
-
-    jclass resultClass = (*env)->GetObjectClass(env, result);
-    jmethodID jobMethod = (*env)->GetMethodID(env, resultClass, "setJob", "(J)V");
-    if (jobMethod == NULL) {
-        logMessage("patchBegin: Null jobMethod in patchBegin");
-        return RS_INTERNAL_ERROR;
+    if (mappedWindows != NULL) {
+        jint count = (*env)->GetArrayLength(env, mappedWindows);
+        copy_arg->mapped = 1;
+        copy_arg->mappedWindowCount = count;
+        copy_arg->mappedWindowSize = mappedWindowSize;
+        copy_arg->mappedWindows = (char **) calloc(count > 0 ? count : 1, sizeof(char *));
+        if (!copy_arg->mappedWindows) {
+            logMessage("patchBegin: couldn't allocate mapped window table");
+            free_copy_arg(copy_arg);
+            return RS_INTERNAL_ERROR;
+        }
+        jint i;
+        for (i = 0; i < count; i++) {
+            jobject window = (*env)->GetObjectArrayElement(env, mappedWindows, i);
+            copy_arg->mappedWindows[i] = (char *) (*env)->GetDirectBufferAddress(env, window);
+            copy_arg->mappedLength += (*env)->GetDirectBufferCapacity(env, window);
+            (*env)->DeleteLocalRef(env, window);
+            if (copy_arg->mappedWindows[i] == NULL) {
+                logMessage("patchBegin: mapped window is not a direct ByteBuffer");
+                free_copy_arg(copy_arg);
+                return RS_INTERNAL_ERROR;
+            }
+        }
     }
 
-    jmethodID argMethod = (*env)->GetMethodID(env, resultClass, "setArg", "(J)V");
-    if (argMethod == NULL) {
-        logMessage("patchBegin: Null argMethod in patchBegin");
-        return RS_INTERNAL_ERROR;
-    }
+    rs_job_t *job = rs_patch_begin((rs_copy_cb *) wrapper_file_copy_cb, copy_arg);
 
-    (*env)->CallObjectMethod(env, result, jobMethod, job);
-    (*env)->CallObjectMethod(env, result, argMethod, copy_arg);
+    (*env)->CallVoidMethod(env, result, patchBeginSetJobMethod, (jlong) job);
+    (*env)->CallVoidMethod(env, result, patchBeginSetArgMethod, (jlong) copy_arg);
 
     return RS_DONE;
 }
@@ -218,6 +436,10 @@ JNIEXPORT jlong JNICALL Java_com_hds_aw_commons_librsync_LibrsyncWrapper_patchBe
 /**
  * Iterate (once) over a job.  Calls librsync's rs_job_iter().
  * This should be called repeatedly until the job is done.
+ *
+ * @return the number of input bytes consumed, the number of output bytes produced and whether the
+ *         job is done, packed as described at ITERATE_COUNT_BITS; or the negated rs_result if the
+ *         job failed
  */
 JNIEXPORT jlong JNICALL Java_com_hds_aw_commons_librsync_LibrsyncWrapper_iterateJob
   (JNIEnv *env, jclass cls, jlong jobPointer, jobject inBuffer, jint inPosition, jint inLimit, jboolean lastInput,
@@ -226,7 +448,7 @@ JNIEXPORT jlong JNICALL Java_com_hds_aw_commons_librsync_LibrsyncWrapper_iterate
     rs_job_t *job = (rs_job_t *) jobPointer;
 
     // If provided (and if this is a patch job), save the patchBaseFileSeeker and the JNIEnv in the job
-    wrapper_copy_arg_t *wrapper_arg;
+    wrapper_copy_arg_t *wrapper_arg = NULL;
     if (patchArg != 0) {
         wrapper_arg = (wrapper_copy_arg_t *)patchArg;
     }
@@ -235,9 +457,6 @@ JNIEXPORT jlong JNICALL Java_com_hds_aw_commons_librsync_LibrsyncWrapper_iterate
         wrapper_arg->env = env;
     }
 
-    jclass bufferClass = (*env)->GetObjectClass(env, inBuffer);
-    jmethodID positionMethod = (*env)->GetMethodID(env, bufferClass, "position", "(I)Ljava/nio/Buffer;");
-
     char *inBuf = (char*)(*env)->GetDirectBufferAddress(env, inBuffer);
 
     size_t avail_in = inLimit - inPosition;
@@ -248,23 +467,117 @@ JNIEXPORT jlong JNICALL Java_com_hds_aw_commons_librsync_LibrsyncWrapper_iterate
     buffersInfo.next_in = inBegin;
     buffersInfo.avail_in = avail_in;
     buffersInfo.eof_in = lastInput;
+    buffersInfo.next_out = NULL;
+    buffersInfo.avail_out = 0;
     if (outBuffer != NULL) {
         buffersInfo.next_out = (char*)(*env)->GetDirectBufferAddress(env, outBuffer) + outPosition;
         buffersInfo.avail_out = avail_out;
     }
 
     rs_result result = rs_job_iter(job, &buffersInfo);
-    if (result == RS_DONE || result == RS_BLOCKED) {
-        int readCnt = avail_in - buffersInfo.avail_in;
-        (*env)->CallObjectMethod(env, inBuffer, positionMethod, inPosition + readCnt);
+    if (result != RS_DONE && result != RS_BLOCKED) {
+        return -((jlong) result);
+    }
 
-        if (outBuffer != NULL) {
-            int writeCnt = avail_out - buffersInfo.avail_out;
-            (*env)->CallObjectMethod(env, outBuffer, positionMethod, outPosition + writeCnt);
+    jlong readCnt = (jlong) (avail_in - buffersInfo.avail_in);
+    jlong writeCnt = (outBuffer == NULL ? 0 : (jlong) (avail_out - buffersInfo.avail_out));
+    jlong packed = (readCnt & ITERATE_COUNT_MASK) | ((writeCnt & ITERATE_COUNT_MASK) << ITERATE_COUNT_BITS);
+    if (result == RS_DONE) {
+        packed |= ITERATE_DONE_FLAG;
+    }
+    return packed;
+}
+
+
+/**
+ * Iterate (once) over a job, reading and writing Java byte arrays.  The arrays are accessed
+ * directly with GetPrimitiveArrayCritical(), so no JNI calls may be made until they are released:
+ * a patch job must therefore read its base file from the patchBaseLength bytes at
+ * patchBaseOffset in patchBase, which are served like a single mapped window for the duration of
+ * this call, rather than from an RsyncInputSeeker.  The arrays stay pinned for the whole
+ * rs_job_iter() call, which may fill all of the output space offered (a long COPY command is
+ * written in one call), so callers must bound the output space as well as the input.
+ *
+ * @return the same as iterateJob()
+ */
+JNIEXPORT jlong JNICALL Java_com_hds_aw_commons_librsync_LibrsyncWrapper_iterateJobArray
+  (JNIEnv *env, jclass cls, jlong jobPointer, jbyteArray inArray, jint inPosition, jint inLimit, jboolean lastInput,
+   jbyteArray outArray, jint outPosition, jint outLimit, jbyteArray patchBase, jint patchBaseOffset,
+   jint patchBaseLength, jlong patchArg)
+{
+    rs_job_t *job = (rs_job_t *) jobPointer;
+    wrapper_copy_arg_t *wrapper_arg = (wrapper_copy_arg_t *) patchArg;
+
+    if (patchBase != NULL && wrapper_arg != NULL && wrapper_arg->mappedWindows == NULL) {
+        wrapper_arg->mappedWindows = (char **) calloc(1, sizeof(char *));
+        if (!wrapper_arg->mappedWindows) {
+            logMessage("iterateJobArray: couldn't allocate mapped window table");
+            return -((jlong) RS_MEM_ERROR);
         }
+        wrapper_arg->mapped = 1;
+        wrapper_arg->mappedWindowCount = 1;
+        wrapper_arg->mappedLength = patchBaseLength;
+        wrapper_arg->mappedWindowSize = (patchBaseLength > 0 ? patchBaseLength : 1);
     }
 
-    return result;
+    // librsync only uses the pointer a copy callback returns until the callback's data has been
+    // written, within this rs_job_iter() call
+    char *base = NULL;
+    if (patchBase != NULL) {
+        base = (char *)(*env)->GetPrimitiveArrayCritical(env, patchBase, NULL);
+        if (base == NULL) {
+            return -((jlong) RS_MEM_ERROR);
+        }
+    }
+    char *in = (char *)(*env)->GetPrimitiveArrayCritical(env, inArray, NULL);
+    char *out = NULL;
+    if (in != NULL && outArray != NULL) {
+        out = (char *)(*env)->GetPrimitiveArrayCritical(env, outArray, NULL);
+    }
+
+    rs_result result = RS_MEM_ERROR;
+    size_t avail_in = inLimit - inPosition;
+    size_t avail_out = outLimit - outPosition;
+    rs_buffers_t buffersInfo;
+    if (in != NULL && (out != NULL || outArray == NULL)) {
+        if (base != NULL && wrapper_arg != NULL) {
+            wrapper_arg->mappedWindows[0] = base + patchBaseOffset;
+        }
+
+        buffersInfo.next_in = in + inPosition;
+        buffersInfo.avail_in = avail_in;
+        buffersInfo.eof_in = lastInput;
+        buffersInfo.next_out = (out == NULL ? NULL : out + outPosition);
+        buffersInfo.avail_out = (out == NULL ? 0 : avail_out);
+
+        result = rs_job_iter(job, &buffersInfo);
+
+        if (base != NULL && wrapper_arg != NULL) {
+            wrapper_arg->mappedWindows[0] = NULL;
+        }
+    }
+
+    if (out != NULL) {
+        (*env)->ReleasePrimitiveArrayCritical(env, outArray, out, 0);
+    }
+    if (in != NULL) {
+        (*env)->ReleasePrimitiveArrayCritical(env, inArray, in, JNI_ABORT);
+    }
+    if (base != NULL) {
+        (*env)->ReleasePrimitiveArrayCritical(env, patchBase, base, JNI_ABORT);
+    }
+
+    if (result != RS_DONE && result != RS_BLOCKED) {
+        return -((jlong) result);
+    }
+
+    jlong readCnt = (jlong) (avail_in - buffersInfo.avail_in);
+    jlong writeCnt = (outArray == NULL ? 0 : (jlong) (avail_out - buffersInfo.avail_out));
+    jlong packed = (readCnt & ITERATE_COUNT_MASK) | ((writeCnt & ITERATE_COUNT_MASK) << ITERATE_COUNT_BITS);
+    if (result == RS_DONE) {
+        packed |= ITERATE_DONE_FLAG;
+    }
+    return packed;
 }
 
 
@@ -274,10 +587,8 @@ JNIEXPORT jlong JNICALL Java_com_hds_aw_commons_librsync_LibrsyncWrapper_iterate
 JNIEXPORT jlong JNICALL Java_com_hds_aw_commons_librsync_LibrsyncWrapper_freeJob
   (JNIEnv *env, jclass cls, jlong jobPointer, jlong patchArg)
 {
-    rs_job_t *job = (rs_job_t *) jobPointer;
-
     if (patchArg != 0) {
-        free((wrapper_copy_arg_t *)patchArg);
+        free_copy_arg((wrapper_copy_arg_t *)patchArg);
     }
 
     return (jlong) rs_job_free((rs_job_t *)jobPointer);
@@ -35,6 +35,7 @@ import java.util.logging.Logger;
  */
 public abstract class AbstractRsyncInputSeeker implements RsyncInputSeeker {
     private final static Logger LOGGER = Logger.getLogger(LibrsyncWrapper.class.getName());
+    private final static RsyncMetrics METRICS = RsyncMetrics.getDefault();
 
     RsyncStatistics stats;
 
@@ -50,7 +51,8 @@ public abstract class AbstractRsyncInputSeeker implements RsyncInputSeeker {
     }
 
     /**
-     * Records statistics about the seek operation, and then delegates to doSeek()
+     * Records statistics about the seek operation, and then delegates to doSeek(). The time spent
+     * in doSeek() is recorded as RsyncMetrics.Phase.SEEK
      */
     @Override
     public ByteBuffer seek(long position, int len) {
@@ -60,11 +62,19 @@ public abstract class AbstractRsyncInputSeeker implements RsyncInputSeeker {
             stats.maxSeekLen = Math.max(stats.maxSeekLen, len);
             stats.minSeekLen = Math.min(stats.minSeekLen, len);
 
-            LOGGER.log(Level.FINE, "Rsync job seeking {0} bytes from base file at position {1}",
-                       new Object[] { len, position });
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.log(Level.FINE,
+                           "Rsync job seeking {0} bytes from base file at position {1}",
+                           new Object[] { len, position });
+            }
         }
 
-        return doSeek(position, len);
+        long startNanos = System.nanoTime();
+        try {
+            return doSeek(position, len);
+        } finally {
+            METRICS.recordLatency(RsyncMetrics.Phase.SEEK, startNanos);
+        }
     }
 
     /**
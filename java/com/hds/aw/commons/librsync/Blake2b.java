@@ -0,0 +1,155 @@
+//
+// The MIT License (MIT)
+//
+// Copyright (c) 2015 Hitachi Data Systems
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+
+package com.hds.aw.commons.librsync;
+
+/**
+ * Unkeyed BLAKE2b message digest (RFC 7693) with a 32 byte output, as used by librsync for BLAKE2
+ * strong sums. The JDK does not provide BLAKE2, so it is implemented here. An instance can be
+ * reused after digest(), and does not allocate.
+ *
+ * @author Hitachi Data Systems
+ */
+final class Blake2b {
+
+    /**
+     * Length of the digest librsync uses, in bytes
+     */
+    static final int DIGEST_LENGTH = 32;
+
+    private static final long[] IV = { 0x6a09e667f3bcc908L, 0xbb67ae8584caa73bL,
+            0x3c6ef372fe94f82bL, 0xa54ff53a5f1d36f1L, 0x510e527fade682d1L, 0x9b05688c2b3e6c1fL,
+            0x1f83d9abfb41bd6bL, 0x5be0cd19137e2179L };
+
+    private static final byte[][] SIGMA = {
+            { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15 },
+            { 14, 10, 4, 8, 9, 15, 13, 6, 1, 12, 0, 2, 11, 7, 5, 3 },
+            { 11, 8, 12, 0, 5, 2, 15, 13, 10, 14, 3, 6, 7, 1, 9, 4 },
+            { 7, 9, 3, 1, 13, 12, 11, 14, 2, 6, 5, 10, 4, 0, 15, 8 },
+            { 9, 0, 5, 7, 2, 4, 10, 15, 14, 1, 11, 12, 6, 8, 3, 13 },
+            { 2, 12, 6, 10, 0, 11, 8, 3, 4, 13, 7, 5, 15, 14, 1, 9 },
+            { 12, 5, 1, 15, 14, 13, 4, 10, 0, 7, 6, 3, 9, 2, 8, 11 },
+            { 13, 11, 7, 14, 12, 1, 3, 9, 5, 0, 15, 4, 8, 6, 2, 10 },
+            { 6, 15, 14, 9, 11, 3, 0, 8, 12, 2, 13, 7, 1, 4, 10, 5 },
+            { 10, 2, 8, 4, 7, 6, 1, 5, 15, 11, 9, 14, 3, 12, 13, 0 } };
+
+    private final long[] h = new long[8];
+    private final long[] v = new long[16];
+    private final long[] m = new long[16];
+    private final byte[] buffer = new byte[128];
+    private int bufferLength;
+    private long counter;
+
+    Blake2b() {
+        reset();
+    }
+
+    void reset() {
+        System.arraycopy(IV, 0, h, 0, 8);
+        // parameter block: digest length, no key, fanout 1, depth 1
+        h[0] ^= 0x01010000L | DIGEST_LENGTH;
+        bufferLength = 0;
+        counter = 0;
+    }
+
+    void update(byte[] b, int off, int len) {
+        while (len > 0) {
+            // the last block is compressed in digest(), so a full buffer is only compressed once
+            // more data arrives
+            if (bufferLength == 128) {
+                counter += 128;
+                compress(buffer, 0, false);
+                bufferLength = 0;
+            }
+            if (bufferLength == 0 && len > 128) {
+                counter += 128;
+                compress(b, off, false);
+                off += 128;
+                len -= 128;
+                continue;
+            }
+            int n = Math.min(len, 128 - bufferLength);
+            System.arraycopy(b, off, buffer, bufferLength, n);
+            bufferLength += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Writes the digest of the data passed to update() since the last reset() to out, and resets
+     */
+    void digest(byte[] out, int off) {
+        counter += bufferLength;
+        for (int i = bufferLength; i < 128; i++) {
+            buffer[i] = 0;
+        }
+        compress(buffer, 0, true);
+        for (int i = 0; i < DIGEST_LENGTH; i++) {
+            out[off + i] = (byte) (h[i >> 3] >>> (8 * (i & 7)));
+        }
+        reset();
+    }
+
+    private void compress(byte[] b, int off, boolean last) {
+        for (int i = 0; i < 16; i++) {
+            int p = off + 8 * i;
+            m[i] = (b[p] & 0xffL) | ((b[p + 1] & 0xffL) << 8) | ((b[p + 2] & 0xffL) << 16)
+                    | ((b[p + 3] & 0xffL) << 24) | ((b[p + 4] & 0xffL) << 32)
+                    | ((b[p + 5] & 0xffL) << 40) | ((b[p + 6] & 0xffL) << 48)
+                    | ((b[p + 7] & 0xffL) << 56);
+        }
+        System.arraycopy(h, 0, v, 0, 8);
+        System.arraycopy(IV, 0, v, 8, 8);
+        v[12] ^= counter;
+        if (last) {
+            v[14] = ~v[14];
+        }
+        for (int r = 0; r < 12; r++) {
+            byte[] s = SIGMA[r % 10];
+            g(0, 4, 8, 12, m[s[0]], m[s[1]]);
+            g(1, 5, 9, 13, m[s[2]], m[s[3]]);
+            g(2, 6, 10, 14, m[s[4]], m[s[5]]);
+            g(3, 7, 11, 15, m[s[6]], m[s[7]]);
+            g(0, 5, 10, 15, m[s[8]], m[s[9]]);
+            g(1, 6, 11, 12, m[s[10]], m[s[11]]);
+            g(2, 7, 8, 13, m[s[12]], m[s[13]]);
+            g(3, 4, 9, 14, m[s[14]], m[s[15]]);
+        }
+        for (int i = 0; i < 8; i++) {
+            h[i] ^= v[i] ^ v[i + 8];
+        }
+    }
+
+    private void g(int a, int b, int c, int d, long x, long y) {
+        v[a] = v[a] + v[b] + x;
+        v[d] = Long.rotateRight(v[d] ^ v[a], 32);
+        v[c] = v[c] + v[d];
+        v[b] = Long.rotateRight(v[b] ^ v[c], 24);
+        v[a] = v[a] + v[b] + y;
+        v[d] = Long.rotateRight(v[d] ^ v[a], 16);
+        v[c] = v[c] + v[d];
+        v[b] = Long.rotateRight(v[b] ^ v[c], 63);
+    }
+}
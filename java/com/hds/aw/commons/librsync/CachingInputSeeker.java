@@ -0,0 +1,247 @@
+//
+// The MIT License (MIT)
+//
+// Copyright (c) 2015 Hitachi Data Systems
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+
+package com.hds.aw.commons.librsync;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * RsyncInputSeeker that caches pages of the base file in front of another RsyncInputSeeker.
+ * 
+ * The base file is divided into fixed size pages, aligned to multiples of the page size. A page
+ * is read from the underlying seeker the first time any part of it is requested, and is kept in
+ * off-heap memory until it is evicted by a more recently used page. Seeks that fall within one
+ * cached page are served without copying. Seeks that span pages are assembled into a scratch
+ * buffer. Deltas of data that has been moved around rather than rewritten tend to copy the same
+ * regions of the base file more than once, which makes this worthwhile when each read of the base
+ * file is expensive, for example on network storage.
+ * 
+ * Page hits and misses are counted in the RsyncStatistics given to the constructor. Page buffers
+ * are acquired from a DirectBufferPool. Call close() when done with the seeker to return them to
+ * the pool. Like the other seekers, a CachingInputSeeker is used by a single patch job, and is not
+ * thread safe.
+ *
+ * @author Hitachi Data Systems
+ */
+public class CachingInputSeeker extends AbstractRsyncInputSeeker implements Closeable {
+
+    private static Logger LOGGER = Logger.getLogger(CachingInputSeeker.class.getName());
+
+    /**
+     * Default page size, 64 KB. This is a multiple of every power of two signature block length up
+     * to 64 KB, including the default of 2 KB, so pages are block aligned.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 64 * 1024;
+
+    /**
+     * Default number of cached pages. With the default page size, this caches 64 MB of the base
+     * file.
+     */
+    public static final int DEFAULT_MAX_PAGES = 1024;
+
+    private final RsyncInputSeeker delegate;
+    private final long baseLength;
+    private final int pageSize;
+    private final int maxPages;
+    private final DirectBufferPool pool;
+
+    // page index -> page, in access order, so the first entry is the least recently used page
+    private final LinkedHashMap<Long, ByteBuffer> pages;
+    private ByteBuffer scratch;
+
+    /**
+     * Construct a CachingInputSeeker with the default page size and number of pages
+     * 
+     * @param delegate
+     *            the seeker that reads from the base file
+     * @param baseLength
+     *            the length of the base file
+     * @param stats
+     *            if non-null, seek and cache statistics are written to this object
+     */
+    public CachingInputSeeker(RsyncInputSeeker delegate, long baseLength, RsyncStatistics stats) {
+        this(delegate, baseLength, DEFAULT_PAGE_SIZE, DEFAULT_MAX_PAGES,
+             DirectBufferPool.getDefault(), stats);
+    }
+
+    /**
+     * Construct a CachingInputSeeker
+     * 
+     * @param delegate
+     *            the seeker that reads from the base file
+     * @param baseLength
+     *            the length of the base file
+     * @param pageSize
+     *            the size of a cached page. For pages to be block aligned, this should be a
+     *            multiple of the signature block length.
+     * @param maxPages
+     *            the maximum number of pages to cache
+     * @param pool
+     *            the pool from which page buffers are acquired
+     * @param stats
+     *            if non-null, seek and cache statistics are written to this object
+     */
+    public CachingInputSeeker(RsyncInputSeeker delegate, long baseLength, int pageSize,
+                              int maxPages, DirectBufferPool pool, RsyncStatistics stats) {
+        super(stats);
+        if (baseLength < 0 || pageSize <= 0 || maxPages <= 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid cache parameters: baseLength=%d, pageSize=%d, maxPages=%d",
+                    baseLength, pageSize, maxPages));
+        }
+        this.delegate = delegate;
+        this.baseLength = baseLength;
+        this.pageSize = pageSize;
+        this.maxPages = maxPages;
+        this.pool = pool;
+        this.pages = new LinkedHashMap<Long, ByteBuffer>(Math.min(maxPages, 1024) * 2, 0.75f, true);
+    }
+
+    /**
+     * Returns the requested bytes of the base file, reading any pages that are not cached from the
+     * underlying seeker
+     * 
+     * @param position
+     *            offset in the base file of where to begin reading bytes
+     * @param len
+     *            number of bytes to read starting at position
+     * @return a ByteBuffer containing the data, or null if any error occurred
+     */
+    @Override
+    public ByteBuffer doSeek(long position, int len) {
+        if (position < 0 || len < 0 || position + len > baseLength) {
+            LOGGER.log(Level.WARNING, String.format(
+                    "Seek of %d bytes at position %d is outside of the base file of length %d",
+                    len, position, baseLength));
+            return null;
+        }
+
+        long pageIndex = position / pageSize;
+        int pageOffset = (int) (position % pageSize);
+        if (pageOffset + len <= pageSize) {
+            ByteBuffer page = getPage(pageIndex);
+            if (page == null) {
+                return null;
+            }
+            ByteBuffer view = page.duplicate();
+            view.limit(pageOffset + len);
+            view.position(pageOffset);
+            return view;
+        }
+
+        if (scratch == null || scratch.capacity() < len) {
+            pool.release(scratch);
+            scratch = null;
+            scratch = pool.acquire(len);
+        }
+        scratch.clear();
+        scratch.limit(len);
+        while (scratch.hasRemaining()) {
+            ByteBuffer page = getPage(pageIndex);
+            if (page == null) {
+                return null;
+            }
+            ByteBuffer src = page.duplicate();
+            src.position(pageOffset);
+            src.limit(Math.min(page.limit(), pageOffset + scratch.remaining()));
+            scratch.put(src);
+            pageIndex++;
+            pageOffset = 0;
+        }
+        scratch.flip();
+        return scratch;
+    }
+
+    /**
+     * @return the number of pages currently cached
+     */
+    public int getCachedPages() {
+        return pages.size();
+    }
+
+    /**
+     * Returns all page buffers to the pool, and empties the cache. The underlying seeker is owned
+     * by the caller, and is not closed.
+     */
+    @Override
+    public void close() {
+        for (ByteBuffer page : pages.values()) {
+            pool.release(page);
+        }
+        pages.clear();
+        pool.release(scratch);
+        scratch = null;
+    }
+
+    private ByteBuffer getPage(long pageIndex) {
+        ByteBuffer page = pages.get(pageIndex);
+        if (page != null) {
+            if (stats != null) {
+                stats.cacheHits++;
+            }
+            return page;
+        }
+        if (stats != null) {
+            stats.cacheMisses++;
+        }
+
+        ByteBuffer buf;
+        if (pages.size() >= maxPages) {
+            Iterator<ByteBuffer> eldest = pages.values().iterator();
+            buf = eldest.next();
+            eldest.remove();
+        } else {
+            buf = pool.acquire(pageSize);
+        }
+
+        long pageStart = pageIndex * pageSize;
+        int pageLength = (int) Math.min(pageSize, baseLength - pageStart);
+        buf.clear();
+        buf.limit(pageLength);
+        while (buf.hasRemaining()) {
+            // the underlying seeker may return fewer bytes than requested
+            ByteBuffer src = delegate.seek(pageStart + buf.position(), buf.remaining());
+            if (src == null || !src.hasRemaining()) {
+                LOGGER.log(Level.WARNING, String.format(
+                        "Failed to read %d bytes of page at position %d of the base file",
+                        buf.remaining(), pageStart + buf.position()));
+                pool.release(buf);
+                return null;
+            }
+            if (src.remaining() > buf.remaining()) {
+                src.limit(src.position() + buf.remaining());
+            }
+            buf.put(src);
+        }
+        buf.flip();
+
+        pages.put(pageIndex, buf);
+        return buf;
+    }
+}
@@ -0,0 +1,254 @@
+//
+// The MIT License (MIT)
+//
+// Copyright (c) 2015 Hitachi Data Systems
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+
+package com.hds.aw.commons.librsync;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Statistics about a librsync delta, gathered by reading its commands without applying it. These
+ * can be used to size the output, buffers and base file caches before running an expensive patch.
+ * 
+ * COPY locality is described by two histograms with HISTOGRAM_BUCKETS buckets, of the lengths of
+ * COPY commands, and of the jumps between the end of one COPY command's base file range and the
+ * start of the next. A value v is counted in bucket 0 if it is 0, and otherwise in bucket
+ * 64 - Long.numberOfLeadingZeros(|v|), so bucket b holds values in [2^(b-1), 2^b). A delta whose
+ * jumps are mostly in low buckets reads the base file almost sequentially, and benefits little from
+ * a CachingInputSeeker. Many jumps back to recently copied ranges mean that it does.
+ *
+ * @author Hitachi Data Systems
+ */
+public class DeltaAnalyzer {
+
+    /**
+     * Number of buckets in each histogram
+     */
+    public static final int HISTOGRAM_BUCKETS = 65;
+
+    private long deltaLength;
+    private long outputLength;
+    private long literalBytes;
+    private long literalCommands;
+    private long copiedBytes;
+    private long copyCommands;
+    private long sequentialCopies;
+    private long backwardJumps;
+    private long baseLengthUsed;
+    private final long[] copyJumpHistogram = new long[HISTOGRAM_BUCKETS];
+    private final long[] copyLengthHistogram = new long[HISTOGRAM_BUCKETS];
+
+    private DeltaAnalyzer() {
+    }
+
+    /**
+     * Analyzes the delta read from a channel
+     * 
+     * @param delta
+     *            the delta. It is read to the end of the END command.
+     * @return the statistics of the delta
+     * @throws RsyncException
+     *             if the delta is not in the librsync delta format
+     * @throws IOException
+     *             if thrown by the channel, or the delta ends before the END command
+     */
+    public static DeltaAnalyzer analyze(ReadableByteChannel delta) throws IOException {
+        return analyze(new DeltaReader(delta));
+    }
+
+    /**
+     * Analyzes a delta held in a ByteBuffer
+     * 
+     * @param delta
+     *            the whole delta, between its position and limit. The buffer's position is not
+     *            changed.
+     * @return the statistics of the delta
+     * @throws RsyncException
+     *             if the delta is not in the librsync delta format
+     * @throws IOException
+     *             if the delta ends before the END command
+     */
+    public static DeltaAnalyzer analyze(ByteBuffer delta) throws IOException {
+        return analyze(new DeltaReader(delta));
+    }
+
+    /**
+     * Analyzes the remaining commands of a delta
+     * 
+     * @param reader
+     *            the delta
+     * @return the statistics of the delta
+     * @throws RsyncException
+     *             if the delta is not in the librsync delta format
+     * @throws IOException
+     *             if thrown by the reader, or the delta ends before the END command
+     */
+    public static DeltaAnalyzer analyze(DeltaReader reader) throws IOException {
+        DeltaAnalyzer analyzer = new DeltaAnalyzer();
+        long nextOffset = 0;
+        DeltaParser.Command command = reader.next();
+        while (command != DeltaParser.Command.END) {
+            long length = reader.length();
+            if (command == DeltaParser.Command.LITERAL) {
+                analyzer.literalCommands++;
+                analyzer.literalBytes += length;
+            } else {
+                long offset = reader.offset();
+                long jump = offset - nextOffset;
+                analyzer.copyCommands++;
+                analyzer.copiedBytes += length;
+                analyzer.copyLengthHistogram[bucket(length)]++;
+                analyzer.copyJumpHistogram[bucket(jump)]++;
+                if (jump == 0) {
+                    analyzer.sequentialCopies++;
+                } else if (jump < 0) {
+                    analyzer.backwardJumps++;
+                }
+                nextOffset = offset + length;
+                analyzer.baseLengthUsed = Math.max(analyzer.baseLengthUsed, nextOffset);
+            }
+            analyzer.outputLength += length;
+            command = reader.next();
+        }
+        analyzer.deltaLength = reader.position();
+        return analyzer;
+    }
+
+    /**
+     * @return the histogram bucket that value is counted in
+     */
+    public static int bucket(long value) {
+        if (value == Long.MIN_VALUE) {
+            return HISTOGRAM_BUCKETS - 1;
+        }
+        return 64 - Long.numberOfLeadingZeros(Math.abs(value));
+    }
+
+    /**
+     * @return the length of the delta, up to and including the END command
+     */
+    public long getDeltaLength() {
+        return deltaLength;
+    }
+
+    /**
+     * @return the length of the file the delta produces when applied
+     */
+    public long getOutputLength() {
+        return outputLength;
+    }
+
+    /**
+     * @return the number of bytes of literal data
+     */
+    public long getLiteralBytes() {
+        return literalBytes;
+    }
+
+    /**
+     * @return the number of LITERAL commands
+     */
+    public long getLiteralCommands() {
+        return literalCommands;
+    }
+
+    /**
+     * @return the number of bytes copied from the base file
+     */
+    public long getCopiedBytes() {
+        return copiedBytes;
+    }
+
+    /**
+     * @return the number of COPY commands
+     */
+    public long getCopyCommands() {
+        return copyCommands;
+    }
+
+    /**
+     * @return the number of COPY commands that start where the previous one ended
+     */
+    public long getSequentialCopies() {
+        return sequentialCopies;
+    }
+
+    /**
+     * @return the number of COPY commands that start before the end of the previous one
+     */
+    public long getBackwardJumps() {
+        return backwardJumps;
+    }
+
+    /**
+     * @return the end of the highest base file range copied, which is the shortest base file the
+     *         delta can be applied to
+     */
+    public long getBaseLengthUsed() {
+        return baseLengthUsed;
+    }
+
+    /**
+     * @return a copy of the histogram of the jumps between COPY commands' base file ranges
+     */
+    public long[] getCopyJumpHistogram() {
+        return copyJumpHistogram.clone();
+    }
+
+    /**
+     * @return a copy of the histogram of the lengths of COPY commands
+     */
+    public long[] getCopyLengthHistogram() {
+        return copyLengthHistogram.clone();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{");
+        sb.append("\n  delta length: ").append(deltaLength);
+        sb.append("\n  output length: ").append(outputLength);
+        sb.append("\n  literal commands: ").append(literalCommands);
+        sb.append("\n  literal bytes: ").append(literalBytes);
+        sb.append("\n  copy commands: ").append(copyCommands);
+        sb.append("\n  copied bytes: ").append(copiedBytes);
+        sb.append("\n  sequential copies: ").append(sequentialCopies);
+        sb.append("\n  backward jumps: ").append(backwardJumps);
+        sb.append("\n  base length used: ").append(baseLengthUsed);
+        appendHistogram(sb, "copy jump", copyJumpHistogram);
+        appendHistogram(sb, "copy length", copyLengthHistogram);
+        sb.append("\n}");
+        return sb.toString();
+    }
+
+    private static void appendHistogram(StringBuilder sb, String name, long[] histogram) {
+        for (int i = 0; i < histogram.length; i++) {
+            if (histogram[i] != 0) {
+                sb.append("\n  ").append(name).append(" < 2^").append(i).append(": ")
+                        .append(histogram[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+//
+// The MIT License (MIT)
+//
+// Copyright (c) 2015 Hitachi Data Systems
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+
+package com.hds.aw.commons.librsync;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental parser for the librsync delta format. The delta is fed to next() in pieces of any
+ * size, and the commands are returned one at a time, without allocating. See DeltaReader for a
+ * parser that reads the delta itself, and DeltaAnalyzer for statistics about a delta.
+ * 
+ * A delta is the magic number 0x72730236, followed by commands. Each command is a one byte opcode
+ * followed by big-endian parameters:
+ * <ul>
+ * <li>0x00: END</li>
+ * <li>0x01 - 0x40: LITERAL, of length opcode, followed by the literal data</li>
+ * <li>0x41 - 0x44: LITERAL, with a 1, 2, 4 or 8 byte length, followed by the literal data</li>
+ * <li>0x45 - 0x54: COPY, with a 1, 2, 4 or 8 byte base file offset and a 1, 2, 4 or 8 byte length
+ * </li>
+ * </ul>
+ *
+ * @author Hitachi Data Systems
+ */
+public final class DeltaParser {
+
+    /**
+     * Magic number at the start of a librsync delta
+     */
+    public static final int DELTA_MAGIC = 0x72730236;
+
+    /**
+     * Result of next()
+     */
+    public enum Command {
+        /** More input is needed to parse the next command */
+        NEED_INPUT,
+        /** A literal command. length() is the length of the literal data. */
+        LITERAL,
+        /** A copy command. offset() and length() are the range of the base file to copy. */
+        COPY,
+        /** The end of the delta */
+        END
+    }
+
+    private static final int OP_LITERAL_1 = 0x01;
+    private static final int OP_LITERAL_N1 = 0x41;
+    private static final int OP_COPY_N1_N1 = 0x45;
+    private static final int OP_MAX = 0x54;
+
+    private boolean magicRead = false;
+    private boolean ended = false;
+    private long offset;
+    private long length;
+    private long literalRemaining;
+    private long outputPosition;
+    private long commandPosition;
+    private long inputPosition;
+
+    /**
+     * Construct a DeltaParser for a whole delta, starting with its magic number
+     */
+    public DeltaParser() {
+    }
+
+    /**
+     * Construct a DeltaParser that starts at a command in the middle of a delta, whose position in
+     * the delta and in the output were found by an earlier pass over the delta
+     * 
+     * @param inputPosition
+     *            the position in the delta of the command's opcode
+     * @param outputPosition
+     *            the position in the output of the command's first byte
+     */
+    DeltaParser(long inputPosition, long outputPosition) {
+        this.magicRead = true;
+        this.inputPosition = inputPosition;
+        this.commandPosition = inputPosition;
+        this.outputPosition = outputPosition;
+    }
+
+    /**
+     * Parses the next command from in. Any literal data of the previous command that has not been
+     * skipped is skipped first. A command is consumed from in only when all of its parameters are
+     * available, so when NEED_INPUT is returned, in holds the start of an incomplete command, which
+     * must be kept and followed by more of the delta on the next call.
+     * 
+     * @param in
+     *            the next part of the delta, between its position and limit. The position is
+     *            advanced past the consumed bytes.
+     * @return the command parsed, or NEED_INPUT if in does not contain a complete command
+     * @throws RsyncException
+     *             if the delta is not in the librsync delta format
+     */
+    public Command next(ByteBuffer in) throws RsyncException {
+        if (ended) {
+            return Command.END;
+        }
+        if (skipLiteral(in, literalRemaining) < literalRemaining) {
+            return Command.NEED_INPUT;
+        }
+        if (!magicRead) {
+            if (in.remaining() < 4) {
+                return Command.NEED_INPUT;
+            }
+            int magic = (int) readInt(in, 4);
+            inputPosition += 4;
+            if (magic != DELTA_MAGIC) {
+                throw new RsyncException(String.format("Bad delta magic number 0x%08x", magic),
+                                         LibrsyncWrapper.RsyncResult.RS_BAD_MAGIC.cValue);
+            }
+            magicRead = true;
+        }
+        if (!in.hasRemaining()) {
+            return Command.NEED_INPUT;
+        }
+
+        int start = in.position();
+        int op = in.get(start) & 0xff;
+        int paramLength = parameterLength(op);
+        if (in.remaining() < 1 + paramLength) {
+            return Command.NEED_INPUT;
+        }
+        in.position(start + 1);
+        commandPosition = inputPosition;
+        inputPosition += 1 + paramLength;
+        outputPosition += length;
+        length = 0;
+
+        if (op == 0) {
+            ended = true;
+            return Command.END;
+        } else if (op < OP_LITERAL_N1) {
+            length = op - OP_LITERAL_1 + 1;
+            literalRemaining = length;
+            return Command.LITERAL;
+        } else if (op < OP_COPY_N1_N1) {
+            length = readInt(in, 1 << (op - OP_LITERAL_N1));
+            literalRemaining = length;
+            return Command.LITERAL;
+        } else {
+            int widths = op - OP_COPY_N1_N1;
+            offset = readInt(in, 1 << (widths >> 2));
+            length = readInt(in, 1 << (widths & 3));
+            return Command.COPY;
+        }
+    }
+
+    /**
+     * Skips up to max bytes of the current command's literal data in in
+     * 
+     * @return the number of bytes skipped
+     */
+    public long skipLiteral(ByteBuffer in, long max) {
+        int n = (int) Math.min(in.remaining(), Math.min(max, literalRemaining));
+        in.position(in.position() + n);
+        literalRemaining -= n;
+        inputPosition += n;
+        return n;
+    }
+
+    /**
+     * Marks n bytes of the current command's literal data as consumed by the caller, who has read
+     * them from the delta itself
+     */
+    public void literalConsumed(long n) {
+        if (n > literalRemaining) {
+            throw new IllegalArgumentException(n + " is more than the " + literalRemaining
+                    + " bytes of literal data remaining");
+        }
+        literalRemaining -= n;
+        inputPosition += n;
+    }
+
+    /**
+     * @return the base file offset of the current COPY command
+     */
+    public long offset() {
+        return offset;
+    }
+
+    /**
+     * @return the length of the current LITERAL or COPY command
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @return the number of bytes of the current LITERAL command's data not yet skipped or
+     *         consumed
+     */
+    public long literalRemaining() {
+        return literalRemaining;
+    }
+
+    /**
+     * @return the position in the output (patched) file of the current command's first byte
+     */
+    public long outputPosition() {
+        return outputPosition;
+    }
+
+    /**
+     * @return the position in the delta of the current command's opcode
+     */
+    public long commandPosition() {
+        return commandPosition;
+    }
+
+    /**
+     * @return the number of bytes of the delta parsed so far
+     */
+    public long inputPosition() {
+        return inputPosition;
+    }
+
+    /**
+     * @return true if the END command has been parsed
+     */
+    public boolean isEnded() {
+        return ended;
+    }
+
+    private static int parameterLength(int op) throws RsyncException {
+        if (op == 0 || op < OP_LITERAL_N1) {
+            return 0;
+        } else if (op < OP_COPY_N1_N1) {
+            return 1 << (op - OP_LITERAL_N1);
+        } else if (op <= OP_MAX) {
+            int widths = op - OP_COPY_N1_N1;
+            return (1 << (widths >> 2)) + (1 << (widths & 3));
+        }
+        throw new RsyncException(String.format("Invalid delta command 0x%02x", op),
+                                 LibrsyncWrapper.RsyncResult.RS_CORRUPT.cValue);
+    }
+
+    private static long readInt(ByteBuffer in, int width) throws RsyncException {
+        // parameters are big-endian, whatever the order of the buffer
+        long value = 0;
+        for (int i = 0; i < width; i++) {
+            value = (value << 8) | (in.get() & 0xff);
+        }
+        if (value < 0) {
+            throw new RsyncException("Invalid delta command parameter " + value,
+                                     LibrsyncWrapper.RsyncResult.RS_CORRUPT.cValue);
+        }
+        return value;
+    }
+}
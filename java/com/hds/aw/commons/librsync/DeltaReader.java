@@ -0,0 +1,215 @@
+//
+// The MIT License (MIT)
+//
+// Copyright (c) 2015 Hitachi Data Systems
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+
+package com.hds.aw.commons.librsync;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads the commands of a librsync delta one at a time, from a ReadableByteChannel or a ByteBuffer
+ * holding the whole delta. Once constructed, a DeltaReader does not allocate.
+ * 
+ * <pre>
+ * DeltaReader reader = new DeltaReader(channel);
+ * DeltaParser.Command command = reader.next();
+ * while (command != DeltaParser.Command.END) {
+ *     if (command == DeltaParser.Command.COPY) {
+ *         // copy reader.length() bytes from reader.offset() of the base file
+ *     } else {
+ *         // read the literal data with readLiteral(), or let next() skip it
+ *     }
+ *     command = reader.next();
+ * }
+ * </pre>
+ *
+ * @author Hitachi Data Systems
+ */
+public class DeltaReader {
+
+    /**
+     * Default size of the buffer the delta is read into from a channel
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buf;
+    private final DeltaParser parser = new DeltaParser();
+    private boolean eof;
+
+    /**
+     * Construct a DeltaReader that reads the delta from a channel, through a buffer of the default
+     * size
+     * 
+     * @param channel
+     *            the delta
+     */
+    public DeltaReader(ReadableByteChannel channel) {
+        this(channel, ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE));
+    }
+
+    /**
+     * Construct a DeltaReader that reads the delta from a channel
+     * 
+     * @param channel
+     *            the delta
+     * @param buf
+     *            the buffer the delta is read into. Must be at least 32 bytes.
+     */
+    public DeltaReader(ReadableByteChannel channel, ByteBuffer buf) {
+        if (buf.capacity() < 32) {
+            throw new IllegalArgumentException("Buffer is too small: " + buf.capacity());
+        }
+        this.channel = channel;
+        this.buf = buf;
+        buf.clear();
+        buf.flip();
+    }
+
+    /**
+     * Construct a DeltaReader that reads a delta held in a ByteBuffer
+     * 
+     * @param delta
+     *            the whole delta, between its position and limit. The buffer's position is not
+     *            changed.
+     */
+    public DeltaReader(ByteBuffer delta) {
+        this.channel = null;
+        this.buf = delta.duplicate();
+        this.eof = true;
+    }
+
+    /**
+     * Reads the next command. Any literal data of the previous command that has not been read with
+     * readLiteral() is skipped.
+     * 
+     * @return LITERAL, COPY, or END. Never NEED_INPUT.
+     * @throws EOFException
+     *             if the delta ends before the END command
+     * @throws RsyncException
+     *             if the delta is not in the librsync delta format
+     * @throws IOException
+     *             if thrown by the channel
+     */
+    public DeltaParser.Command next() throws IOException {
+        while (true) {
+            DeltaParser.Command command = parser.next(buf);
+            if (command != DeltaParser.Command.NEED_INPUT) {
+                return command;
+            }
+            if (!fill()) {
+                throw new EOFException(String.format(
+                        "Delta ended at position %d before the END command",
+                        parser.inputPosition()));
+            }
+        }
+    }
+
+    /**
+     * Reads literal data of the current LITERAL command into dst
+     * 
+     * @param dst
+     *            the buffer the data is written to
+     * @return the number of bytes read, or -1 if all of the command's literal data has been read
+     * @throws EOFException
+     *             if the delta ends before the end of the literal data
+     * @throws IOException
+     *             if thrown by the channel
+     */
+    public int readLiteral(ByteBuffer dst) throws IOException {
+        if (parser.literalRemaining() == 0) {
+            return -1;
+        }
+        if (!buf.hasRemaining() && !fill()) {
+            throw new EOFException(String.format("Delta ended at position %d in literal data",
+                                                 parser.inputPosition()));
+        }
+        int n = (int) Math.min(parser.literalRemaining(),
+                               Math.min(buf.remaining(), dst.remaining()));
+        int oldLimit = buf.limit();
+        buf.limit(buf.position() + n);
+        dst.put(buf);
+        buf.limit(oldLimit);
+        parser.literalConsumed(n);
+        return n;
+    }
+
+    /**
+     * @return the base file offset of the current COPY command
+     */
+    public long offset() {
+        return parser.offset();
+    }
+
+    /**
+     * @return the length of the current LITERAL or COPY command
+     */
+    public long length() {
+        return parser.length();
+    }
+
+    /**
+     * @return the position in the output (patched) file of the current command's first byte
+     */
+    public long outputPosition() {
+        return parser.outputPosition();
+    }
+
+    /**
+     * @return the position in the delta of the current command's opcode
+     */
+    public long commandPosition() {
+        return parser.commandPosition();
+    }
+
+    /**
+     * @return the number of bytes of the delta read so far, including skipped literal data
+     */
+    public long position() {
+        return parser.inputPosition();
+    }
+
+    /**
+     * Reads more of the delta from the channel, keeping any unparsed bytes
+     * 
+     * @return false if there is no more of the delta
+     */
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        buf.compact();
+        int cnt = 0;
+        while (cnt == 0 && buf.hasRemaining()) {
+            cnt = channel.read(buf);
+        }
+        buf.flip();
+        if (cnt < 0) {
+            eof = true;
+        }
+        return cnt > 0;
+    }
+}
@@ -0,0 +1,399 @@
+//
+// The MIT License (MIT)
+//
+// Copyright (c) 2015 Hitachi Data Systems
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+
+package com.hds.aw.commons.librsync;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of direct ByteBuffers, so that rsync jobs and seekers don't have to allocate (and wait
+ * for the garbage collector to free) direct memory for every job.
+ * 
+ * Buffers are pooled in power-of-two size classes from MIN_POOLED_SIZE to MAX_POOLED_SIZE; larger
+ * requests are allocated and discarded without pooling. Each thread keeps a small cache of free
+ * buffers of each size class up to MAX_THREAD_CACHED_SIZE, so that a thread that repeatedly
+ * acquires and releases buffers doesn't contend with other threads. Other free buffers are kept in
+ * a shared pool. The free buffers in the shared pool and in every thread's cache together hold at
+ * most the pool's capacity in bytes; buffers released when the pool is full are discarded. The
+ * caches of threads that have exited are moved to the shared pool when the pool is full, or when
+ * another thread starts a cache, at most once per RECLAIM_INTERVAL_NANOS.
+ * 
+ * Usage counters are kept so pool sizing can be checked. This class is thread-safe.
+ *
+ * @author Hitachi Data Systems
+ */
+public class DirectBufferPool {
+
+    /**
+     * The smallest size class. Smaller requests get a buffer of this capacity.
+     */
+    public static final int MIN_POOLED_SIZE = 4 * 1024;
+
+    /**
+     * The largest size class. Larger requests are not pooled.
+     */
+    public static final int MAX_POOLED_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Buffers larger than this are never kept in a thread's cache
+     */
+    public static final int MAX_THREAD_CACHED_SIZE = 1024 * 1024;
+
+    /**
+     * The default capacity of the shared pool, in bytes
+     */
+    public static final long DEFAULT_CAPACITY = 256L * 1024 * 1024;
+
+    /**
+     * The default number of buffers of each size class kept in each thread's cache
+     */
+    public static final int DEFAULT_THREAD_CACHE_SIZE = 2;
+
+    /**
+     * The least time between scans for the caches of threads that have exited
+     */
+    private static final long RECLAIM_INTERVAL_NANOS = 1000L * 1000 * 1000;
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_POOLED_SIZE);
+    private static final int SIZE_CLASSES = Integer.numberOfTrailingZeros(MAX_POOLED_SIZE)
+            - MIN_SHIFT + 1;
+
+    private static final DirectBufferPool DEFAULT = new DirectBufferPool(DEFAULT_CAPACITY,
+                                                                         DEFAULT_THREAD_CACHE_SIZE);
+
+    private final long capacity;
+    private final int threadCacheSize;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] shared;
+    private final ThreadLocal<ThreadCache> threadCaches = new ThreadLocal<>();
+    // the caches of all threads that have cached a buffer, and not yet been found to have exited
+    private final ConcurrentLinkedQueue<ThreadCache> allThreadCaches =
+            new ConcurrentLinkedQueue<>();
+    private final AtomicLong lastReclaimNanos = new AtomicLong(System.nanoTime());
+    // the bytes of free buffers, in the shared pool and the thread caches, counted against the
+    // capacity
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong threadCachedBytes = new AtomicLong();
+    private final AtomicLong inUseBytes = new AtomicLong();
+
+    private final LongAdder acquires = new LongAdder();
+    private final LongAdder threadCacheHits = new LongAdder();
+    private final LongAdder sharedHits = new LongAdder();
+    private final LongAdder allocations = new LongAdder();
+    private final LongAdder allocatedBytes = new LongAdder();
+    private final LongAdder discards = new LongAdder();
+
+    /**
+     * @return the process-wide pool used by default by LibrsyncWrapper and the seekers
+     */
+    public static DirectBufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Construct a DirectBufferPool
+     * 
+     * @param capacity
+     *            the maximum number of bytes of free buffers kept in the shared pool and the
+     *            threads' caches
+     * @param threadCacheSize
+     *            the number of free buffers of each size class kept in each thread's cache
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public DirectBufferPool(long capacity, int threadCacheSize) {
+        if (capacity < 0 || threadCacheSize < 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid pool configuration: capacity=%d, threadCacheSize=%d", capacity,
+                    threadCacheSize));
+        }
+        this.capacity = capacity;
+        this.threadCacheSize = threadCacheSize;
+        this.shared = new ConcurrentLinkedQueue[SIZE_CLASSES];
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            shared[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    /**
+     * Acquires a direct buffer of at least size bytes. The buffer's position is 0 and its limit
+     * is size; its capacity may be larger. It should be returned with release() when no longer
+     * needed.
+     * 
+     * @param size
+     *            the number of bytes needed
+     * @return the buffer
+     */
+    public ByteBuffer acquire(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Invalid buffer size " + size);
+        }
+        acquires.increment();
+
+        ByteBuffer buf = null;
+        int sizeClass = sizeClass(size);
+        if (sizeClass < 0) {
+            buf = allocate(size);
+        } else {
+            ThreadCache cache = threadCaches.get();
+            if (cache != null && cache.buffers[sizeClass] != null) {
+                buf = cache.buffers[sizeClass].pollFirst();
+            }
+            if (buf != null) {
+                threadCachedBytes.addAndGet(-buf.capacity());
+                pooledBytes.addAndGet(-buf.capacity());
+                threadCacheHits.increment();
+            } else {
+                buf = shared[sizeClass].poll();
+                if (buf != null) {
+                    pooledBytes.addAndGet(-buf.capacity());
+                    sharedHits.increment();
+                } else {
+                    buf = allocate(MIN_POOLED_SIZE << sizeClass);
+                }
+            }
+        }
+
+        inUseBytes.addAndGet(buf.capacity());
+        buf.clear();
+        buf.limit(size);
+        return buf;
+    }
+
+    /**
+     * Returns a buffer acquired from this pool. The buffer must not be used after it is released.
+     * 
+     * @param buf
+     *            the buffer, or null, in which case nothing is done
+     */
+    public void release(ByteBuffer buf) {
+        if (buf == null) {
+            return;
+        }
+        inUseBytes.addAndGet(-buf.capacity());
+
+        int sizeClass = sizeClass(buf.capacity());
+        if (!buf.isDirect() || sizeClass < 0 || (MIN_POOLED_SIZE << sizeClass) != buf.capacity()) {
+            discards.increment();
+            return;
+        }
+
+        if (!reserve(buf.capacity())) {
+            discards.increment();
+            return;
+        }
+        if (buf.capacity() <= MAX_THREAD_CACHED_SIZE && threadCacheSize > 0) {
+            ArrayDeque<ByteBuffer> cache = threadCache().buffers[sizeClass];
+            if (cache.size() < threadCacheSize) {
+                cache.addFirst(buf);
+                threadCachedBytes.addAndGet(buf.capacity());
+                return;
+            }
+        }
+        shared[sizeClass].offer(buf);
+    }
+
+    /**
+     * Counts bytes of a free buffer against the capacity, moving the caches of threads that have
+     * exited to the shared pool first if the pool is full
+     * 
+     * @return true if the buffer may be kept
+     */
+    private boolean reserve(int bytes) {
+        if (pooledBytes.addAndGet(bytes) <= capacity) {
+            return true;
+        }
+        pooledBytes.addAndGet(-bytes);
+        if (!reclaimExitedThreadCaches()) {
+            return false;
+        }
+        if (pooledBytes.addAndGet(bytes) <= capacity) {
+            return true;
+        }
+        pooledBytes.addAndGet(-bytes);
+        return false;
+    }
+
+    /**
+     * @return the calling thread's cache, which is created if it has none
+     */
+    private ThreadCache threadCache() {
+        ThreadCache cache = threadCaches.get();
+        if (cache == null) {
+            // bound the number of caches of exited threads kept by a pool used by many
+            // short-lived threads
+            reclaimExitedThreadCaches();
+            cache = new ThreadCache(Thread.currentThread(), threadCacheSize);
+            threadCaches.set(cache);
+            allThreadCaches.add(cache);
+        }
+        return cache;
+    }
+
+    /**
+     * Moves the buffers cached by threads that have exited to the shared pool, unless this was
+     * done less than RECLAIM_INTERVAL_NANOS ago. A cache is only read by its own thread until the
+     * thread has exited, and everything the thread did happens-before isAlive() returns false.
+     * 
+     * @return true if any buffers were moved
+     */
+    private boolean reclaimExitedThreadCaches() {
+        long last = lastReclaimNanos.get();
+        long now = System.nanoTime();
+        if (now - last < RECLAIM_INTERVAL_NANOS || !lastReclaimNanos.compareAndSet(last, now)) {
+            return false;
+        }
+        boolean reclaimed = false;
+        for (Iterator<ThreadCache> it = allThreadCaches.iterator(); it.hasNext();) {
+            ThreadCache cache = it.next();
+            if (cache.owner.isAlive()) {
+                continue;
+            }
+            it.remove();
+            for (int i = 0; i < SIZE_CLASSES; i++) {
+                ByteBuffer buf;
+                while ((buf = cache.buffers[i].pollFirst()) != null) {
+                    // the bytes stay counted against the capacity, in the shared pool
+                    threadCachedBytes.addAndGet(-buf.capacity());
+                    shared[i].offer(buf);
+                    reclaimed = true;
+                }
+            }
+        }
+        return reclaimed;
+    }
+
+    /**
+     * @return the number of calls to acquire()
+     */
+    public long getAcquires() {
+        return acquires.sum();
+    }
+
+    /**
+     * @return the number of acquires served from the calling thread's cache
+     */
+    public long getThreadCacheHits() {
+        return threadCacheHits.sum();
+    }
+
+    /**
+     * @return the number of acquires served from the shared pool
+     */
+    public long getSharedHits() {
+        return sharedHits.sum();
+    }
+
+    /**
+     * @return the number of direct buffers allocated
+     */
+    public long getAllocations() {
+        return allocations.sum();
+    }
+
+    /**
+     * @return the total number of bytes of direct buffers allocated
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes.sum();
+    }
+
+    /**
+     * @return the number of released buffers that were not pooled
+     */
+    public long getDiscards() {
+        return discards.sum();
+    }
+
+    /**
+     * @return the number of bytes of buffers currently acquired and not released
+     */
+    public long getInUseBytes() {
+        return inUseBytes.get();
+    }
+
+    /**
+     * @return the number of bytes of free buffers in the shared pool
+     */
+    public long getSharedBytes() {
+        return pooledBytes.get() - threadCachedBytes.get();
+    }
+
+    /**
+     * @return the number of bytes of free buffers in the threads' caches, including those of
+     *         threads that have exited and whose caches have not yet been moved to the shared pool
+     */
+    public long getThreadCachedBytes() {
+        return threadCachedBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("{acquires: %d, thread cache hits: %d, shared hits: %d, allocations: %d, "
+                + "allocated bytes: %d, discards: %d, in use bytes: %d, shared bytes: %d, "
+                + "thread cached bytes: %d}", getAcquires(), getThreadCacheHits(),
+                             getSharedHits(), getAllocations(), getAllocatedBytes(),
+                             getDiscards(), getInUseBytes(), getSharedBytes(),
+                             getThreadCachedBytes());
+    }
+
+    private ByteBuffer allocate(int size) {
+        allocations.increment();
+        allocatedBytes.add(size);
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    /**
+     * @return the index of the smallest size class holding size bytes, or -1 if size is larger
+     *         than MAX_POOLED_SIZE
+     */
+    private static int sizeClass(int size) {
+        if (size > MAX_POOLED_SIZE) {
+            return -1;
+        } else if (size <= MIN_POOLED_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    /**
+     * The free buffers cached by one thread, in a deque per size class
+     */
+    private static class ThreadCache {
+        final Thread owner;
+        final ArrayDeque<ByteBuffer>[] buffers;
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        ThreadCache(Thread owner, int size) {
+            this.owner = owner;
+            this.buffers = new ArrayDeque[SIZE_CLASSES];
+            for (int i = 0; i < SIZE_CLASSES; i++) {
+                buffers[i] = new ArrayDeque<>(size);
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+//
+// The MIT License (MIT)
+//
+// Copyright (c) 2015 Hitachi Data Systems
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+
+package com.hds.aw.commons.librsync;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Consumes output produced by librsync by writing the job's output buffer directly to a
+ * FileChannel, using positional writes starting at a given position. The channel's own position
+ * is not used or changed, so several consumers may write different ranges of the same channel at
+ * the same time.
+ *
+ * @author Hitachi Data Systems
+ */
+public class FileChannelConsumer implements RsyncOutputConsumer {
+
+    private final FileChannel channel;
+    private long position;
+
+    /**
+     * Construct a FileChannelConsumer that writes from the start of the file
+     * 
+     * @param channel
+     *            the file the output is written to
+     */
+    public FileChannelConsumer(FileChannel channel) {
+        this(channel, 0);
+    }
+
+    /**
+     * Construct a FileChannelConsumer
+     * 
+     * @param channel
+     *            the file the output is written to
+     * @param start
+     *            the position in the file at which to write the first byte of output
+     */
+    public FileChannelConsumer(FileChannel channel, long start) {
+        if (start < 0) {
+            throw new IllegalArgumentException("Invalid start position " + start);
+        }
+        this.channel = channel;
+        this.position = start;
+    }
+
+    /**
+     * Writes all of the output in buf to the file
+     * 
+     * @param buf
+     *            the buffer containing output to consume
+     */
+    public void consumeOutput(ByteBuffer buf) throws IOException {
+        while (buf.remaining() > 0) {
+            position += channel.write(buf, position);
+        }
+    }
+
+    /**
+     * @return the position in the file at which the next byte of output will be written
+     */
+    public long getPosition() {
+        return position;
+    }
+}
@@ -0,0 +1,113 @@
+//
+// The MIT License (MIT)
+//
+// Copyright (c) 2015 Hitachi Data Systems
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+
+package com.hds.aw.commons.librsync;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Implementation of RsyncInputProducer that reads a range of a FileChannel directly into the job's
+ * input buffer, using positional reads. The channel's own position is not used or changed, so
+ * several producers may read different ranges of the same channel at the same time.
+ *
+ * @author Hitachi Data Systems
+ */
+public class FileChannelProducer implements RsyncInputProducer {
+
+    private final FileChannel channel;
+    private long position;
+    private final long end;
+
+    /**
+     * Construct a FileChannelProducer that produces the whole file, as it is when constructed
+     * 
+     * @param channel
+     *            the file to read
+     * @throws IOException
+     */
+    public FileChannelProducer(FileChannel channel) throws IOException {
+        this(channel, 0, channel.size());
+    }
+
+    /**
+     * Construct a FileChannelProducer that produces length bytes of the file, starting at start
+     * 
+     * @param channel
+     *            the file to read
+     * @param start
+     *            the position in the file of the first byte to produce
+     * @param length
+     *            the number of bytes to produce
+     */
+    public FileChannelProducer(FileChannel channel, long start, long length) {
+        if (start < 0 || length < 0) {
+            throw new IllegalArgumentException(String.format("Invalid range: start=%d, length=%d",
+                                                             start, length));
+        }
+        this.channel = channel;
+        this.position = start;
+        this.end = start + length;
+    }
+
+    /**
+     * Reads from the file into buf, until buf is full or the end of the range is reached
+     * 
+     * @param buf
+     *            buffer into which to write data
+     * @return true if the end of the range has been reached, false otherwise
+     * @throws EOFException
+     *             if the file ends before the end of the range
+     * @throws IOException
+     */
+    public boolean produceInput(ByteBuffer buf) throws IOException {
+        while (position < end && buf.remaining() > 0) {
+            int oldLimit = buf.limit();
+            if (end - position < buf.remaining()) {
+                buf.limit(buf.position() + (int) (end - position));
+            }
+            int readCnt;
+            try {
+                readCnt = channel.read(buf, position);
+            } finally {
+                buf.limit(oldLimit);
+            }
+            if (readCnt < 0) {
+                throw new EOFException(String.format(
+                        "Unexpected end of file at position %d, expected %d bytes", position, end));
+            }
+            position += readCnt;
+        }
+        return position >= end;
+    }
+
+    /**
+     * @return the position in the file of the next byte to produce
+     */
+    public long getPosition() {
+        return position;
+    }
+}
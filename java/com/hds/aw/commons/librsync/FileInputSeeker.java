@@ -24,6 +24,7 @@
 
 package com.hds.aw.commons.librsync;
 
+import java.io.Closeable;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
@@ -35,26 +36,44 @@ import java.util.logging.Logger;
 /**
  * Called by a librsync patch job. Reads data from a requested location in a base file. This
  * implmentation of RsyncInputSeeker reads from a provided RandomAccessFile.
+ * 
+ * The buffer that data is read into is acquired from a DirectBufferPool. Call close() when done
+ * with the seeker to return it to the pool.
  *
  * @author Beth Tirado, Hitachi Data Systems
  */
-public class FileInputSeeker implements RsyncInputSeeker {
+public class FileInputSeeker implements RsyncInputSeeker, Closeable {
 
     private static Logger LOGGER = Logger.getLogger(FileInputSeeker.class.getName());
 
     private RandomAccessFile file;
     private FileChannel fileChannel;
     private ByteBuffer byteBuffer;
+    private final DirectBufferPool pool;
 
     /**
-     * Constructs a FileInputSeeker that will read from the provided RandomAccessFile
+     * Constructs a FileInputSeeker that will read from the provided RandomAccessFile, using the
+     * default DirectBufferPool
      * 
      * @param f
      * @throws IOException
      */
     public FileInputSeeker(RandomAccessFile f) throws IOException {
+        this(f, DirectBufferPool.getDefault());
+    }
+
+    /**
+     * Constructs a FileInputSeeker that will read from the provided RandomAccessFile
+     * 
+     * @param f
+     * @param pool
+     *            the pool from which the seek buffer is acquired
+     * @throws IOException
+     */
+    public FileInputSeeker(RandomAccessFile f, DirectBufferPool pool) throws IOException {
         file = f;
         fileChannel = f.getChannel();
+        this.pool = pool;
     }
 
     /**
@@ -70,12 +89,14 @@ public class FileInputSeeker implements RsyncInputSeeker {
         try {
             file.seek(position);
 
-            // @todo - use a byte buffer pool
             if (byteBuffer == null || byteBuffer.capacity() < len) {
-                byteBuffer = ByteBuffer.allocateDirect(len);
+                pool.release(byteBuffer);
+                byteBuffer = null;
+                byteBuffer = pool.acquire(len);
             }
 
             byteBuffer.clear();
+            byteBuffer.limit(len);
             int totalRead = 0;
             while (totalRead < len) {
                 int cnt = fileChannel.read(byteBuffer);
@@ -95,4 +116,13 @@ public class FileInputSeeker implements RsyncInputSeeker {
         }
     }
 
+    /**
+     * Returns the seek buffer to the pool. The RandomAccessFile is owned by the caller, and is not
+     * closed.
+     */
+    @Override
+    public void close() {
+        pool.release(byteBuffer);
+        byteBuffer = null;
+    }
 }
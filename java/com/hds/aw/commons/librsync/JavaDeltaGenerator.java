@@ -0,0 +1,406 @@
+//
+// The MIT License (MIT)
+//
+// Copyright (c) 2015 Hitachi Data Systems
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+
+package com.hds.aw.commons.librsync;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Generates librsync deltas in Java, searching a SignatureIndex in place. The delta is in the
+ * librsync delta format, so it can be applied by librsync or by JavaPatcher, but it is not always
+ * byte for byte the same as librsync's, as the two may choose different blocks when several
+ * match, and split literal data differently.
+ * 
+ * Like librsync, this rolls the weak sum of a block-long window over the new file, one byte at a
+ * time while nothing matches. Each window whose weak sum is in the index has its strong sum
+ * compared with those of the blocks with that weak sum. When several blocks match, the one
+ * following the previous match is preferred, so that consecutive matches merge into a single COPY
+ * command. Only the end of the new file is matched against a short block, which can only be the
+ * base file's last block.
+ * 
+ * The new file is read into a window of at least MIN_WINDOW_LENGTH bytes, so LITERAL commands are
+ * at most that long.
+ *
+ * @author Hitachi Data Systems
+ */
+public final class JavaDeltaGenerator {
+
+    private final static Logger LOGGER = Logger.getLogger(JavaDeltaGenerator.class.getName());
+    private static final RsyncMetrics METRICS = RsyncMetrics.getDefault();
+
+    /**
+     * The least amount of the new file held at once
+     */
+    public static final int MIN_WINDOW_LENGTH = 1024 * 1024;
+
+    /**
+     * The longest command header: a COPY with 8 byte offset and length
+     */
+    private static final int MAX_COMMAND_LENGTH = 17;
+
+    private static final int OP_END = 0x00;
+    private static final int OP_LITERAL_N1 = 0x41;
+    private static final int OP_COPY_N1_N1 = 0x45;
+    private static final int MAX_SHORT_LITERAL = 0x40;
+
+    private final SignatureIndex index;
+    private final int blockLength;
+    private final WeakSum weakSum;
+    private final MD4 md4;
+    private final Blake2b blake2;
+    private final byte[] strongSum = new byte[Blake2b.DIGEST_LENGTH];
+    private final byte[] data;
+    private final RsyncOutputConsumer deltaConsumer;
+    private final ByteBuffer outBuf;
+    private final RsyncStatistics rsyncStats;
+    private long inputConsumed;
+    private long outputProduced;
+
+    // the COPY command not yet written, which grows while consecutive blocks match
+    private long copyOffset;
+    private long copyLength;
+
+    private JavaDeltaGenerator(SignatureIndex index, RsyncOutputConsumer deltaConsumer,
+                               ByteBuffer outBuf, RsyncStatistics rsyncStats) {
+        SignatureOptions options = index.getOptions();
+        this.index = index;
+        this.blockLength = options.getBlockLength();
+        this.weakSum = new WeakSum(options.getType());
+        this.md4 = (options.getType().isBlake2() ? null : new MD4());
+        this.blake2 = (options.getType().isBlake2() ? new Blake2b() : null);
+        this.data = new byte[(int) Math.min(Integer.MAX_VALUE - 8,
+                                            Math.max(MIN_WINDOW_LENGTH, 4L * blockLength))];
+        this.deltaConsumer = deltaConsumer;
+        this.outBuf = outBuf;
+        this.rsyncStats = rsyncStats;
+    }
+
+    /**
+     * Generates an rsync delta from the index of a base file's signature and a changed file.
+     * Takes the same arguments as LibrsyncWrapper.generateDelta(Object, LoadedSignature,
+     * RsyncInputProducer, RsyncOutputConsumer, ByteBuffer, ByteBuffer, RsyncStatistics), with a
+     * SignatureIndex in place of the LoadedSignature, but the buffers need not be direct.
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param index
+     *            the index of the base file's signature
+     * @param newFileProducer
+     *            produces the contents of the new file
+     * @param deltaConsumer
+     *            consumes the delta
+     * @param inBuf
+     *            The buffer that will be passed to the newFileProducer
+     * @param outBuf
+     *            The buffer into which the delta will be written, and that is passed to the
+     *            deltaConsumer. Must hold at least 17 bytes.
+     * @param rsyncStats
+     *            Optional object to hold statistics about the delta. If non-null, then the
+     *            statistics will be gathered and written to this object.
+     * @throws IOException
+     *             if thrown from newFileProducer or deltaConsumer
+     * @throws RsyncException
+     *             if outBuf is too small
+     */
+    public static void generateDelta(Object jobTag, SignatureIndex index,
+                                     RsyncInputProducer newFileProducer,
+                                     RsyncOutputConsumer deltaConsumer, ByteBuffer inBuf,
+                                     ByteBuffer outBuf, RsyncStatistics rsyncStats)
+            throws IOException, RsyncException {
+        if (outBuf.capacity() < MAX_COMMAND_LENGTH) {
+            throw new RsyncException(String.format(
+                    "Output buffer of %d bytes is too small for delta commands",
+                    outBuf.capacity()), LibrsyncWrapper.RsyncResult.RS_PARAM_ERROR.cValue);
+        }
+        if (rsyncStats != null) {
+            rsyncStats.begin();
+        }
+        JavaDeltaGenerator generator = new JavaDeltaGenerator(index, deltaConsumer, outBuf,
+                                                              rsyncStats);
+        long startNanos = System.nanoTime();
+        boolean failed = true;
+        try {
+            generator.run(newFileProducer, inBuf);
+            failed = false;
+        } catch (RsyncException e) {
+            LOGGER.log(Level.WARNING, String.format("Java delta failed with result %d for job %s",
+                                                    e.rsyncResult, jobTag), e);
+            throw e;
+        } finally {
+            METRICS.recordJob(RsyncMetrics.Phase.DELTA, startNanos, generator.inputConsumed,
+                              generator.outputProduced, failed);
+        }
+
+        if (rsyncStats != null) {
+            rsyncStats.end();
+            LOGGER.log(Level.INFO, "Completed Java delta {0} with stats: {1}", new Object[] {
+                    jobTag, rsyncStats });
+        }
+    }
+
+    private void run(RsyncInputProducer newFileProducer, ByteBuffer inBuf) throws IOException {
+        outBuf.clear();
+        putInt(DeltaParser.DELTA_MAGIC, 4);
+
+        // the window is data[pos, pos + blockLength), and data[literalStart, pos) has matched
+        // nothing
+        int literalStart = 0;
+        int pos = 0;
+        int end = 0;
+        boolean doneProducingInput = false;
+        boolean summed = false;
+        while (true) {
+            if (end - pos <= blockLength && !doneProducingInput) {
+                // keep the window, and read more after it, so that it can roll on
+                writeLiteral(literalStart, pos - literalStart);
+                System.arraycopy(data, pos, data, 0, end - pos);
+                end -= pos;
+                pos = 0;
+                literalStart = 0;
+                while (!doneProducingInput && end < data.length) {
+                    inBuf.clear();
+                    inBuf.limit(Math.min(inBuf.capacity(), data.length - end));
+                    long waitNanos = System.nanoTime();
+                    doneProducingInput = newFileProducer.produceInput(inBuf);
+                    METRICS.recordLatency(RsyncMetrics.Phase.PRODUCER_WAIT, waitNanos);
+                    inBuf.flip();
+                    int n = inBuf.remaining();
+                    inBuf.get(data, end, n);
+                    end += n;
+                    inputConsumed += n;
+                    if (rsyncStats != null) {
+                        rsyncStats.iterations++;
+                        rsyncStats.totalInputConsumed += n;
+                        rsyncStats.maxInputConsumed = Math.max(rsyncStats.maxInputConsumed, n);
+                    }
+                }
+                continue;
+            }
+
+            int available = end - pos;
+            if (available < blockLength) {
+                // at the end of the new file, which can only match the base file's last block
+                if (available > 0) {
+                    weakSum.reset();
+                    weakSum.update(data, pos, available);
+                    int block = find(weakSum.digest(), pos, available);
+                    if (block >= 0) {
+                        writeLiteral(literalStart, pos - literalStart);
+                        addCopy(block * (long) blockLength, available);
+                        literalStart = end;
+                    }
+                }
+                break;
+            }
+
+            if (!summed) {
+                weakSum.reset();
+                weakSum.update(data, pos, blockLength);
+                summed = true;
+            }
+            int block = find(weakSum.digest(), pos, blockLength);
+            if (block >= 0) {
+                writeLiteral(literalStart, pos - literalStart);
+                addCopy(block * (long) blockLength, blockLength);
+                pos += blockLength;
+                literalStart = pos;
+                summed = false;
+            } else {
+                if (pos + blockLength < end) {
+                    weakSum.rotate(data[pos], data[pos + blockLength]);
+                } else {
+                    summed = false;
+                }
+                pos++;
+            }
+        }
+
+        writeLiteral(literalStart, end - literalStart);
+        flushCopy();
+        putInt(OP_END, 1);
+        drain();
+    }
+
+    /**
+     * @return the block of the base file matching data[pos, pos + length), preferring the block
+     *         that follows the pending COPY command, or -1 if none matches
+     */
+    private int find(int weak, int pos, int length) {
+        int first = index.bucketStart(weak);
+        int last = index.bucketEnd(weak);
+        boolean strongSummed = false;
+        if (copyLength > 0) {
+            // a bucket's entries are in block order, so the preferred block is found without
+            // scanning the whole bucket, which in repetitive data may hold many matching blocks
+            long next = (copyOffset + copyLength) / blockLength;
+            int low = first;
+            int high = last - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int block = index.block(mid);
+                if (block < next) {
+                    low = mid + 1;
+                } else if (block > next) {
+                    high = mid - 1;
+                } else {
+                    if (index.weakSum(mid) == weak) {
+                        strongSum(pos, length);
+                        strongSummed = true;
+                        if (index.strongSumEquals(mid, strongSum)) {
+                            return block;
+                        }
+                    }
+                    break;
+                }
+            }
+        }
+        for (int entry = first; entry < last; entry++) {
+            if (index.weakSum(entry) != weak) {
+                continue;
+            }
+            if (!strongSummed) {
+                strongSum(pos, length);
+                strongSummed = true;
+            }
+            if (index.strongSumEquals(entry, strongSum)) {
+                return index.block(entry);
+            }
+        }
+        return -1;
+    }
+
+    private void strongSum(int pos, int length) {
+        if (md4 != null) {
+            md4.update(data, pos, length);
+            md4.digest(strongSum, 0);
+        } else {
+            blake2.update(data, pos, length);
+            blake2.digest(strongSum, 0);
+        }
+    }
+
+    /**
+     * Adds a range of the base file to the pending COPY command if it follows on from it, and
+     * otherwise writes the pending command and starts a new one
+     */
+    private void addCopy(long offset, long length) throws IOException {
+        if (copyLength > 0 && copyOffset + copyLength == offset) {
+            copyLength += length;
+            return;
+        }
+        flushCopy();
+        copyOffset = offset;
+        copyLength = length;
+    }
+
+    private void flushCopy() throws IOException {
+        if (copyLength == 0) {
+            return;
+        }
+        int offsetWidth = width(copyOffset);
+        int lengthWidth = width(copyLength);
+        putInt(OP_COPY_N1_N1 + 4 * widthCode(offsetWidth) + widthCode(lengthWidth), 1);
+        putInt(copyOffset, offsetWidth);
+        putInt(copyLength, lengthWidth);
+        copyLength = 0;
+    }
+
+    /**
+     * Writes data[start, start + length) as a LITERAL command, after any pending COPY command
+     */
+    private void writeLiteral(int start, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        flushCopy();
+        if (length <= MAX_SHORT_LITERAL) {
+            putInt(length, 1);
+        } else {
+            int lengthWidth = width(length);
+            putInt(OP_LITERAL_N1 + widthCode(lengthWidth), 1);
+            putInt(length, lengthWidth);
+        }
+        while (length > 0) {
+            if (!outBuf.hasRemaining()) {
+                drain();
+            }
+            int n = Math.min(length, outBuf.remaining());
+            outBuf.put(data, start, n);
+            start += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Writes value big-endian in width bytes, draining the output first if there is no room
+     */
+    private void putInt(long value, int width) throws IOException {
+        if (outBuf.remaining() < width) {
+            drain();
+        }
+        for (int shift = 8 * (width - 1); shift >= 0; shift -= 8) {
+            outBuf.put((byte) (value >>> shift));
+        }
+    }
+
+    /**
+     * @return the number of bytes, 1, 2, 4 or 8, needed to hold value
+     */
+    private static int width(long value) {
+        if (value < (1L << 8)) {
+            return 1;
+        } else if (value < (1L << 16)) {
+            return 2;
+        } else if (value < (1L << 32)) {
+            return 4;
+        }
+        return 8;
+    }
+
+    /**
+     * @return the opcode offset for a parameter of width 1, 2, 4 or 8 bytes
+     */
+    private static int widthCode(int width) {
+        return Integer.numberOfTrailingZeros(width);
+    }
+
+    private void drain() throws IOException {
+        outBuf.flip();
+        int produced = outBuf.remaining();
+        long waitNanos = System.nanoTime();
+        while (outBuf.hasRemaining()) {
+            deltaConsumer.consumeOutput(outBuf);
+        }
+        METRICS.recordLatency(RsyncMetrics.Phase.CONSUMER_WAIT, waitNanos);
+        outBuf.clear();
+        outputProduced += produced;
+        if (rsyncStats != null) {
+            rsyncStats.totalOutputProduced += produced;
+            rsyncStats.maxOutputProduced = Math.max(rsyncStats.maxOutputProduced, produced);
+        }
+    }
+}
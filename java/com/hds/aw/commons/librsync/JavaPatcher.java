@@ -0,0 +1,421 @@
+//
+// The MIT License (MIT)
+//
+// Copyright (c) 2015 Hitachi Data Systems
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+
+package com.hds.aw.commons.librsync;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Applies librsync deltas in Java, without the native library. The output is identical to that of
+ * the librsync patch job.
+ * 
+ * Applying a delta only interprets its LITERAL and COPY commands, so it needs nothing from
+ * librsync, and this avoids a JNI call per iteration and a JNI upcall per COPY command. It is used
+ * by LibrsyncWrapper.generatePatch() when selected by LibrsyncWrapper.setPatchImplementation(), and
+ * can also be called directly.
+ *
+ * @author Hitachi Data Systems
+ */
+public final class JavaPatcher {
+
+    private final static Logger LOGGER = Logger.getLogger(JavaPatcher.class.getName());
+    private static final RsyncMetrics METRICS = RsyncMetrics.getDefault();
+
+    /**
+     * COPY commands at least this long are written with FileChannel.transferTo() by
+     * generatePatch(Object, FileChannel, ReadableByteChannel, WritableByteChannel,
+     * RsyncStatistics), rather than read into the output buffer
+     */
+    public static final int TRANSFER_THRESHOLD = 64 * 1024;
+
+    private JavaPatcher() {
+    }
+
+    /**
+     * Generate an rsync patch (reconstituted changed file) from a base file and a previously
+     * generated librsync delta. Takes the same arguments as LibrsyncWrapper.generatePatch(Object,
+     * RsyncInputSeeker, RsyncInputProducer, RsyncOutputConsumer, ByteBuffer, ByteBuffer,
+     * RsyncStatistics), but the buffers need not be direct.
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param baseFileSeeker
+     *            Provides requested chunks of the base file. Short results are allowed.
+     * @param deltaProducer
+     *            Provides the delta previously generated by librsync
+     * @param patchConsumer
+     *            Consumes the patch
+     * @param inBuf
+     *            The buffer that will be passed to the deltaProducer, and from which the delta will
+     *            be read
+     * @param outBuf
+     *            The buffer into which the patch will be written, and that is passed to the
+     *            patchConsumer
+     * @param rsyncStats
+     *            Optional object to hold statistics about the patch. If non-null, then the
+     *            statistics will be gathered and written to this object.
+     * @throws IOException
+     *             if thrown from deltaProducer or patchConsumer
+     * @throws RsyncException
+     *             if the delta is not a valid librsync delta, or the baseFileSeeker returned null
+     */
+    public static void generatePatch(Object jobTag, RsyncInputSeeker baseFileSeeker,
+                                     RsyncInputProducer deltaProducer,
+                                     RsyncOutputConsumer patchConsumer, ByteBuffer inBuf,
+                                     ByteBuffer outBuf, RsyncStatistics rsyncStats)
+            throws IOException, RsyncException {
+        if (rsyncStats != null) {
+            rsyncStats.begin();
+        }
+        DeltaParser parser = new DeltaParser();
+        inBuf.clear();
+        inBuf.flip();
+        outBuf.clear();
+        boolean doneProducingInput = false;
+        long startNanos = System.nanoTime();
+        boolean failed = true;
+
+        try {
+            while (true) {
+                DeltaParser.Command command = parser.next(inBuf);
+                if (command == DeltaParser.Command.END) {
+                    break;
+                } else if (command == DeltaParser.Command.NEED_INPUT) {
+                    doneProducingInput = produce(deltaProducer, inBuf, doneProducingInput,
+                                                 rsyncStats);
+                } else if (command == DeltaParser.Command.LITERAL) {
+                    while (parser.literalRemaining() > 0) {
+                        if (!inBuf.hasRemaining()) {
+                            doneProducingInput = produce(deltaProducer, inBuf,
+                                                         doneProducingInput, rsyncStats);
+                        }
+                        if (!outBuf.hasRemaining()) {
+                            consume(patchConsumer, outBuf, rsyncStats);
+                        }
+                        int n = (int) Math.min(parser.literalRemaining(),
+                                               Math.min(inBuf.remaining(), outBuf.remaining()));
+                        int oldLimit = inBuf.limit();
+                        inBuf.limit(inBuf.position() + n);
+                        outBuf.put(inBuf);
+                        inBuf.limit(oldLimit);
+                        parser.literalConsumed(n);
+                    }
+                } else {
+                    long position = parser.offset();
+                    long remaining = parser.length();
+                    while (remaining > 0) {
+                        if (!outBuf.hasRemaining()) {
+                            consume(patchConsumer, outBuf, rsyncStats);
+                        }
+                        int len = (int) Math.min(remaining, outBuf.remaining());
+                        ByteBuffer data = baseFileSeeker.seek(position, len);
+                        if (data == null || !data.hasRemaining()) {
+                            throw new RsyncException(String.format(
+                                    "Failed to read %d bytes of the base file at position %d",
+                                    len, position), LibrsyncWrapper.RsyncResult.RS_IO_ERROR.cValue);
+                        }
+                        int n = Math.min(data.remaining(), len);
+                        data.limit(data.position() + n);
+                        outBuf.put(data);
+                        position += n;
+                        remaining -= n;
+                    }
+                }
+            }
+            consume(patchConsumer, outBuf, rsyncStats);
+            failed = false;
+        } catch (RsyncException e) {
+            LOGGER.log(Level.WARNING, String.format("Java patch failed with result %d for job %s",
+                                                    e.rsyncResult, jobTag), e);
+            throw e;
+        } finally {
+            METRICS.recordJob(RsyncMetrics.Phase.PATCH, startNanos, parser.inputPosition(),
+                              parser.outputPosition(), failed);
+        }
+
+        if (rsyncStats != null) {
+            rsyncStats.end();
+            LOGGER.log(Level.INFO, "Completed Java patch {0} with stats: {1}", new Object[] {
+                    jobTag, rsyncStats });
+        }
+    }
+
+    /**
+     * Generate an rsync patch from a base file and a previously generated librsync delta, using
+     * channels. COPY commands of at least TRANSFER_THRESHOLD bytes are written with
+     * FileChannel.transferTo(), which lets the operating system copy from the base file to the
+     * patch without passing the data through Java.
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param baseFile
+     *            the base file. It is read with positional reads, and is not closed.
+     * @param delta
+     *            the delta previously generated by librsync. It is read to the end of the END
+     *            command, and is not closed.
+     * @param patch
+     *            the channel the patch is written to. It is not closed.
+     * @param rsyncStats
+     *            Optional object to hold statistics about the patch. If non-null, then the
+     *            statistics will be gathered and written to this object.
+     * @throws IOException
+     *             if thrown from any of the channels, or the base file is shorter than the delta
+     *             requires
+     * @throws RsyncException
+     *             if the delta is not a valid librsync delta
+     */
+    public static void generatePatch(Object jobTag, FileChannel baseFile,
+                                     ReadableByteChannel delta, WritableByteChannel patch,
+                                     RsyncStatistics rsyncStats) throws IOException,
+            RsyncException {
+        if (rsyncStats != null) {
+            rsyncStats.begin();
+        }
+        DirectBufferPool pool = DirectBufferPool.getDefault();
+        ByteBuffer inBuf = pool.acquire(DeltaReader.DEFAULT_BUFFER_SIZE);
+        ByteBuffer outBuf = pool.acquire(LibrsyncWrapper.DEFAULT_BUFFER_SIZE);
+        WritableByteChannelConsumer patchConsumer = new WritableByteChannelConsumer(patch);
+        DeltaReader reader = new DeltaReader(delta, inBuf);
+        long startNanos = System.nanoTime();
+        boolean failed = true;
+        try {
+            outBuf.clear();
+            DeltaParser.Command command = reader.next();
+            while (command != DeltaParser.Command.END) {
+                if (command == DeltaParser.Command.LITERAL) {
+                    while (true) {
+                        if (!outBuf.hasRemaining()) {
+                            consume(patchConsumer, outBuf, rsyncStats);
+                        }
+                        if (reader.readLiteral(outBuf) < 0) {
+                            break;
+                        }
+                    }
+                } else if (reader.length() >= TRANSFER_THRESHOLD) {
+                    consume(patchConsumer, outBuf, rsyncStats);
+                    transfer(baseFile, reader.offset(), reader.length(), patch, outBuf);
+                    if (rsyncStats != null) {
+                        rsyncStats.totalOutputProduced += reader.length();
+                    }
+                } else {
+                    if (outBuf.remaining() < reader.length()) {
+                        consume(patchConsumer, outBuf, rsyncStats);
+                    }
+                    int oldLimit = outBuf.limit();
+                    outBuf.limit(outBuf.position() + (int) reader.length());
+                    read(baseFile, reader.offset(), outBuf);
+                    outBuf.limit(oldLimit);
+                }
+                command = reader.next();
+            }
+            consume(patchConsumer, outBuf, rsyncStats);
+            if (rsyncStats != null) {
+                rsyncStats.totalInputConsumed = reader.position();
+            }
+            failed = false;
+        } finally {
+            METRICS.recordJob(RsyncMetrics.Phase.PATCH, startNanos, reader.position(),
+                              reader.outputPosition(), failed);
+            pool.release(inBuf);
+            pool.release(outBuf);
+        }
+
+        if (rsyncStats != null) {
+            rsyncStats.end();
+            LOGGER.log(Level.INFO, "Completed Java patch {0} with stats: {1}", new Object[] {
+                    jobTag, rsyncStats });
+        }
+    }
+
+    /**
+     * Generate an rsync patch from a base file and a librsync delta that are both held in memory,
+     * copying each COPY range and literal straight from base and delta into patch.
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param base
+     *            the whole base file, between its position and limit. The buffer's position is not
+     *            changed.
+     * @param delta
+     *            the whole delta, between its position and limit. The buffer's position is not
+     *            changed.
+     * @param patch
+     *            the buffer the patch is written to, from its position. It must have room for the
+     *            whole patch (see DeltaAnalyzer.getOutputLength()).
+     * @param rsyncStats
+     *            Optional object to hold statistics about the patch. If non-null, then the
+     *            statistics will be gathered and written to this object.
+     * @throws IOException
+     *             if the delta ends before its END command
+     * @throws RsyncException
+     *             if the delta is not a valid librsync delta, a COPY command is outside of the
+     *             base file, or patch has no room for the output
+     */
+    public static void generatePatch(Object jobTag, ByteBuffer base, ByteBuffer delta,
+                                     ByteBuffer patch, RsyncStatistics rsyncStats)
+            throws IOException, RsyncException {
+        if (rsyncStats != null) {
+            rsyncStats.begin();
+        }
+        int start = patch.position();
+        DeltaReader reader = new DeltaReader(delta);
+        ByteBuffer range = base.duplicate();
+        long startNanos = System.nanoTime();
+        boolean failed = true;
+        try {
+            DeltaParser.Command command = reader.next();
+            while (command != DeltaParser.Command.END) {
+                if (patch.remaining() < reader.length()) {
+                    throw new RsyncException(String.format(
+                            "No room for %d bytes of output at position %d", reader.length(),
+                            reader.outputPosition()),
+                            LibrsyncWrapper.RsyncResult.RS_PARAM_ERROR.cValue);
+                }
+                if (command == DeltaParser.Command.LITERAL) {
+                    while (reader.readLiteral(patch) >= 0) {
+                        // the whole delta is in memory, so this only fails on a truncated delta
+                    }
+                } else {
+                    if (reader.offset() + reader.length() > base.remaining()) {
+                        throw new RsyncException(String.format(
+                                "COPY of %d bytes at position %d is outside of the %d byte base",
+                                reader.length(), reader.offset(), base.remaining()),
+                                LibrsyncWrapper.RsyncResult.RS_CORRUPT.cValue);
+                    }
+                    int position = base.position() + (int) reader.offset();
+                    range.limit(position + (int) reader.length()).position(position);
+                    patch.put(range);
+                }
+                command = reader.next();
+            }
+            failed = false;
+        } catch (RsyncException e) {
+            LOGGER.log(Level.WARNING, String.format("Java patch failed with result %d for job %s",
+                                                    e.rsyncResult, jobTag), e);
+            throw e;
+        } finally {
+            METRICS.recordJob(RsyncMetrics.Phase.PATCH, startNanos, reader.position(),
+                              reader.outputPosition(), failed);
+        }
+
+        if (rsyncStats != null) {
+            rsyncStats.iterations++;
+            rsyncStats.totalInputConsumed += reader.position();
+            rsyncStats.totalOutputProduced += patch.position() - start;
+            rsyncStats.end();
+            LOGGER.log(Level.FINE, "Completed Java patch {0} with stats: {1}", new Object[] {
+                    jobTag, rsyncStats });
+        }
+    }
+
+    /**
+     * Reads more of the delta into inBuf, keeping any bytes not yet parsed
+     * 
+     * @return true if the deltaProducer has produced all of the delta
+     */
+    private static boolean produce(RsyncInputProducer deltaProducer,
+                                   ByteBuffer inBuf, boolean doneProducingInput,
+                                   RsyncStatistics rsyncStats) throws IOException {
+        if (doneProducingInput) {
+            throw new RsyncException("Delta ended before the END command",
+                                     LibrsyncWrapper.RsyncResult.RS_INPUT_ENDED.cValue);
+        }
+        inBuf.compact();
+        int before = inBuf.position();
+        long waitNanos = System.nanoTime();
+        doneProducingInput = deltaProducer.produceInput(inBuf);
+        METRICS.recordLatency(RsyncMetrics.Phase.PRODUCER_WAIT, waitNanos);
+        inBuf.flip();
+        if (rsyncStats != null) {
+            int produced = inBuf.limit() - before;
+            rsyncStats.iterations++;
+            rsyncStats.totalInputConsumed += produced;
+            rsyncStats.maxInputConsumed = Math.max(rsyncStats.maxInputConsumed, produced);
+        }
+        return doneProducingInput;
+    }
+
+    /**
+     * Passes the patch written to outBuf to the patchConsumer, and clears outBuf
+     */
+    private static void consume(RsyncOutputConsumer patchConsumer, ByteBuffer outBuf,
+                                RsyncStatistics rsyncStats) throws IOException {
+        outBuf.flip();
+        int produced = outBuf.remaining();
+        long waitNanos = System.nanoTime();
+        while (outBuf.remaining() > 0) {
+            patchConsumer.consumeOutput(outBuf);
+        }
+        METRICS.recordLatency(RsyncMetrics.Phase.CONSUMER_WAIT, waitNanos);
+        outBuf.clear();
+        if (rsyncStats != null) {
+            rsyncStats.totalOutputProduced += produced;
+            rsyncStats.maxOutputProduced = Math.max(rsyncStats.maxOutputProduced, produced);
+        }
+    }
+
+    /**
+     * Copies length bytes of the base file at position to the patch with transferTo(). Whenever
+     * transferTo() makes no progress, for example because the patch channel would block, the next
+     * chunk is read into buf and written instead, so the copy never spins on transferTo().
+     */
+    private static void transfer(FileChannel baseFile, long position, long length,
+                                 WritableByteChannel patch, ByteBuffer buf) throws IOException {
+        while (length > 0) {
+            long cnt = baseFile.transferTo(position, length, patch);
+            if (cnt <= 0) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), length));
+                read(baseFile, position, buf);
+                buf.flip();
+                cnt = buf.remaining();
+                while (buf.hasRemaining()) {
+                    patch.write(buf);
+                }
+                buf.clear();
+            }
+            position += cnt;
+            length -= cnt;
+        }
+    }
+
+    private static void read(FileChannel baseFile, long position, ByteBuffer buf)
+            throws IOException {
+        while (buf.hasRemaining()) {
+            int cnt = baseFile.read(buf, position);
+            if (cnt < 0) {
+                throw new EOFException(String.format(
+                        "Base file ends before position %d required by the delta", position));
+            }
+            position += cnt;
+        }
+    }
+}
@@ -0,0 +1,326 @@
+//
+// The MIT License (MIT)
+//
+// Copyright (c) 2015 Hitachi Data Systems
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+
+package com.hds.aw.commons.librsync;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Generates librsync signatures in Java, without the native library. The output is identical to
+ * that of the librsync signature job, for every SignatureType.
+ * 
+ * For small inputs the fixed cost of starting, running and freeing a native job, and of the JNI
+ * calls, is larger than the cost of the hashing itself, so LibrsyncWrapper.generateSignature()
+ * uses this for inputs up to LibrsyncWrapper.getJavaSignatureThreshold() bytes. It can also be
+ * called directly.
+ * 
+ * A signature is a header of the magic number, block length and strong sum length, followed by
+ * the weak sum and truncated strong sum of each block, all big-endian. The last block may be
+ * short. An instance holds the state of one signature being generated, and can be reused with
+ * reset().
+ *
+ * @author Hitachi Data Systems
+ */
+public final class JavaSignatureGenerator {
+
+    private final static Logger LOGGER = Logger.getLogger(JavaSignatureGenerator.class.getName());
+    private static final RsyncMetrics METRICS = RsyncMetrics.getDefault();
+
+    private final SignatureOptions options;
+    private final int blockLength;
+    private final int strongLength;
+    private final WeakSum weakSum;
+    private final MD4 md4;
+    private final Blake2b blake2;
+    private final byte[] block;
+    private final byte[] strongSum = new byte[Blake2b.DIGEST_LENGTH];
+    private int blockFill;
+    private boolean headerWritten;
+
+    /**
+     * Construct a JavaSignatureGenerator
+     * 
+     * @param options
+     *            the signature type, block length and strong sum length
+     */
+    public JavaSignatureGenerator(SignatureOptions options) {
+        this.options = options;
+        this.blockLength = options.getBlockLength();
+        this.strongLength = options.getStrongLength();
+        this.weakSum = new WeakSum(options.getType());
+        this.md4 = (options.getType().isBlake2() ? null : new MD4());
+        this.blake2 = (options.getType().isBlake2() ? new Blake2b() : null);
+        this.block = new byte[blockLength];
+    }
+
+    /**
+     * Generates an rsync signature for a file. Takes the same arguments as
+     * LibrsyncWrapper.generateSignature(Object, RsyncInputProducer, RsyncOutputConsumer,
+     * SignatureOptions, ByteBuffer, ByteBuffer, RsyncStatistics), but the buffers need not be
+     * direct. The outBuf must hold at least one signature header or record.
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param fileProducer
+     *            produces the contents of the file for which the signature is generated
+     * @param signatureConsumer
+     *            consumes the output signature
+     * @param options
+     *            the signature type, block length and strong sum length
+     * @param inBuf
+     *            The buffer into which the fileProducer writes the file
+     * @param outBuf
+     *            The buffer into which the signature will be written, and that is passed to the
+     *            signatureConsumer
+     * @param rsyncStats
+     *            Optional object to hold statistics about the signature. If non-null, then the
+     *            statistics will be gathered and written to this object.
+     * @throws IOException
+     *             if thrown from fileProducer or signatureConsumer
+     */
+    public static void generateSignature(Object jobTag, RsyncInputProducer fileProducer,
+                                         RsyncOutputConsumer signatureConsumer,
+                                         SignatureOptions options, ByteBuffer inBuf,
+                                         ByteBuffer outBuf, RsyncStatistics rsyncStats)
+            throws IOException {
+        inBuf.clear();
+        generateSignature(jobTag, fileProducer, false, signatureConsumer, options, inBuf, outBuf,
+                          rsyncStats);
+    }
+
+    /**
+     * Generates the rsync signature of data held in a ByteBuffer
+     * 
+     * @param data
+     *            the data, between its position and limit. The buffer's position is not changed.
+     * @param options
+     *            the signature type, block length and strong sum length
+     * @return the signature
+     */
+    public static byte[] generateSignature(ByteBuffer data, SignatureOptions options) {
+        long startNanos = System.nanoTime();
+        byte[] signature = new byte[(int) options.getSignatureLength(data.remaining())];
+        ByteBuffer out = ByteBuffer.wrap(signature);
+        JavaSignatureGenerator generator = new JavaSignatureGenerator(options);
+        generator.update(data.duplicate(), out);
+        generator.finish(out);
+        METRICS.recordJob(RsyncMetrics.Phase.SIGNATURE, startNanos, data.remaining(),
+                          signature.length, false);
+        return signature;
+    }
+
+    /**
+     * Generates the signature of the input already in inBuf, followed by the rest of the input
+     * produced by fileProducer unless done is true
+     * 
+     * @param inBuf
+     *            input that has already been produced, between 0 and its position. inBuf is left
+     *            ready to be written to by fileProducer.
+     */
+    static void generateSignature(Object jobTag, RsyncInputProducer fileProducer, boolean done,
+                                  RsyncOutputConsumer signatureConsumer, SignatureOptions options,
+                                  ByteBuffer inBuf, ByteBuffer outBuf, RsyncStatistics rsyncStats)
+            throws IOException {
+        if (rsyncStats != null) {
+            rsyncStats.begin();
+        }
+        long startNanos = System.nanoTime();
+        long totalInput = inBuf.position();
+        long totalOutput = 0;
+        boolean failed = true;
+        try {
+            JavaSignatureGenerator generator = new JavaSignatureGenerator(options);
+            outBuf.clear();
+            while (true) {
+                if (!done && inBuf.hasRemaining()) {
+                    int before = inBuf.position();
+                    long waitNanos = System.nanoTime();
+                    done = fileProducer.produceInput(inBuf);
+                    METRICS.recordLatency(RsyncMetrics.Phase.PRODUCER_WAIT, waitNanos);
+                    int produced = inBuf.position() - before;
+                    totalInput += produced;
+                    if (rsyncStats != null) {
+                        rsyncStats.iterations++;
+                        rsyncStats.totalInputConsumed += produced;
+                        rsyncStats.maxInputConsumed = Math.max(rsyncStats.maxInputConsumed,
+                                                               produced);
+                    }
+                }
+                inBuf.flip();
+                generator.update(inBuf, outBuf);
+                if (done && !inBuf.hasRemaining() && generator.finish(outBuf)) {
+                    break;
+                }
+                if (inBuf.hasRemaining() || done) {
+                    // outBuf is full
+                    totalOutput += consume(signatureConsumer, outBuf, rsyncStats);
+                }
+                inBuf.compact();
+            }
+            totalOutput += consume(signatureConsumer, outBuf, rsyncStats);
+            failed = false;
+        } finally {
+            METRICS.recordJob(RsyncMetrics.Phase.SIGNATURE, startNanos, totalInput, totalOutput,
+                              failed);
+        }
+
+        if (rsyncStats != null) {
+            rsyncStats.end();
+            LOGGER.log(Level.FINE, "Completed Java signature {0} with stats: {1}", new Object[] {
+                    jobTag, rsyncStats });
+        }
+    }
+
+    /**
+     * Starts a new signature
+     */
+    public void reset() {
+        blockFill = 0;
+        headerWritten = false;
+        weakSum.reset();
+        if (md4 != null) {
+            md4.reset();
+        } else {
+            blake2.reset();
+        }
+    }
+
+    /**
+     * @return the options signatures are generated with
+     */
+    public SignatureOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Adds the input in in to the signature, writing the header and the records of any blocks
+     * completed to out. Stops when out has no room for another record, which may leave input in in.
+     * 
+     * @param in
+     *            the next part of the input
+     * @param out
+     *            the buffer the signature is written to
+     */
+    public void update(ByteBuffer in, ByteBuffer out) {
+        if (!headerWritten) {
+            if (out.remaining() < SignatureOptions.HEADER_LENGTH) {
+                return;
+            }
+            putInt(out, options.getType().getMagic());
+            putInt(out, blockLength);
+            putInt(out, strongLength);
+            headerWritten = true;
+        }
+        int recordLength = options.getRecordLength();
+        while (in.hasRemaining() && out.remaining() >= recordLength) {
+            if (blockFill == 0 && in.hasArray() && in.remaining() >= blockLength) {
+                // hash whole blocks in place
+                int pos = in.position();
+                putRecord(in.array(), in.arrayOffset() + pos, blockLength, out);
+                in.position(pos + blockLength);
+                continue;
+            }
+            int n = Math.min(blockLength - blockFill, in.remaining());
+            in.get(block, blockFill, n);
+            blockFill += n;
+            if (blockFill == blockLength) {
+                putRecord(block, 0, blockLength, out);
+                blockFill = 0;
+            }
+        }
+    }
+
+    /**
+     * Writes the record of the last, short block, if any, to out. Must be called after all of the
+     * input has been passed to update(), until it returns true.
+     * 
+     * @param out
+     *            the buffer the signature is written to
+     * @return true if the signature is complete, false if out has no room for the header or the
+     *         last record
+     */
+    public boolean finish(ByteBuffer out) {
+        if (!headerWritten) {
+            update(ByteBuffer.wrap(block, 0, 0), out);
+            if (!headerWritten) {
+                return false;
+            }
+        }
+        if (blockFill > 0) {
+            if (out.remaining() < options.getRecordLength()) {
+                return false;
+            }
+            putRecord(block, 0, blockFill, out);
+            blockFill = 0;
+        }
+        return true;
+    }
+
+    private void putRecord(byte[] b, int off, int len, ByteBuffer out) {
+        weakSum.reset();
+        weakSum.update(b, off, len);
+        putInt(out, weakSum.digest());
+        if (md4 != null) {
+            md4.update(b, off, len);
+            md4.digest(strongSum, 0);
+        } else {
+            blake2.update(b, off, len);
+            blake2.digest(strongSum, 0);
+        }
+        out.put(strongSum, 0, strongLength);
+    }
+
+    /**
+     * Writes value big-endian, whatever the order of the buffer
+     */
+    private static void putInt(ByteBuffer out, int value) {
+        out.put((byte) (value >>> 24));
+        out.put((byte) (value >>> 16));
+        out.put((byte) (value >>> 8));
+        out.put((byte) value);
+    }
+
+    /**
+     * @return the number of bytes consumed
+     */
+    private static int consume(RsyncOutputConsumer signatureConsumer, ByteBuffer outBuf,
+                               RsyncStatistics rsyncStats) throws IOException {
+        outBuf.flip();
+        int produced = outBuf.remaining();
+        long waitNanos = System.nanoTime();
+        while (outBuf.remaining() > 0) {
+            signatureConsumer.consumeOutput(outBuf);
+        }
+        METRICS.recordLatency(RsyncMetrics.Phase.CONSUMER_WAIT, waitNanos);
+        outBuf.clear();
+        if (rsyncStats != null) {
+            rsyncStats.totalOutputProduced += produced;
+            rsyncStats.maxOutputProduced = Math.max(rsyncStats.maxOutputProduced, produced);
+        }
+        return produced;
+    }
+}
@@ -0,0 +1,433 @@
+//
+// The MIT License (MIT)
+//
+// Copyright (c) 2015 Hitachi Data Systems
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+
+package com.hds.aw.commons.librsync;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Overlaps the I/O of a streaming rsync job with its computation. A reader stage fills a ring of
+ * input buffers from the job's RsyncInputProducer, and a writer stage drains a ring of output
+ * buffers to its RsyncOutputConsumer, each on its own thread, while the thread running the job
+ * iterates on the current input buffer into the current output buffer. The stages hand buffers to
+ * and from the job through bounded queues, so the reader never runs more than depth buffers ahead
+ * of the job, and the job never runs more than depth buffers ahead of the writer.
+ * 
+ * The caller's input and output buffers are part of the rings; the other depth buffers of each
+ * ring are acquired from the default DirectBufferPool, with the same capacities, and released by
+ * close(). Input that the job leaves unconsumed at the end of a buffer is carried over into a
+ * buffer of twice that capacity, together with the next buffer's input.
+ * 
+ * Used by LibrsyncWrapper.runJobToCompletion() when LibrsyncWrapper.getPipelineDepth() is not 0.
+ *
+ * @author Hitachi Data Systems
+ */
+class JobPipeline {
+
+    private static final RsyncMetrics METRICS = RsyncMetrics.getDefault();
+
+    /**
+     * Handed over in place of a buffer to stop a stage, or by the reader when it failed
+     */
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private static final ExecutorService STAGES = Executors
+            .newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "rsync-pipeline-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final RsyncInputProducer inputProducer;
+    private final RsyncOutputConsumer outputConsumer;
+    private final DirectBufferPool pool = DirectBufferPool.getDefault();
+
+    // the pooled buffers may be larger, but are only used up to the size of the caller's
+    private final int inputSize;
+    private final int outputSize;
+    private final ByteBuffer[] pooledBuffers;
+    private ByteBuffer carry;
+
+    // input buffers, empty and filled by the reader
+    private final BlockingQueue<ByteBuffer> freeInput;
+    private final BlockingQueue<ByteBuffer> filledInput;
+    // output buffers, filled by the job and drained by the writer
+    private final BlockingQueue<ByteBuffer> freeOutput;
+    private final BlockingQueue<ByteBuffer> filledOutput;
+
+    private final CountDownLatch readerDone;
+    private final CountDownLatch writerDone;
+    private final ByteBuffer firstInput;
+    private final ByteBuffer firstOutput;
+
+    // the filled input buffer holding the end of the input, set by the reader before handing it
+    // over
+    private volatile ByteBuffer lastInput;
+    private volatile boolean cancelled;
+    private volatile Throwable readerFailure;
+    private volatile Throwable writerFailure;
+
+    // whether the job's current input buffer holds the end of the input
+    private boolean currentIsLast;
+
+    /**
+     * @param inputProducer
+     *            produces the job's input
+     * @param outputConsumer
+     *            consumes the job's output, or null if the job has no output
+     * @param inBuf
+     *            the caller's input buffer, the first of the input ring
+     * @param inputPrefilled
+     *            the number of bytes of input already produced into inBuf, starting at 0
+     * @param doneProducingInput
+     *            true if the inputProducer has already produced all of the input
+     * @param outBuf
+     *            the caller's output buffer, the first of the output ring. Not used if
+     *            outputConsumer is null.
+     * @param depth
+     *            the number of buffers added to each ring
+     */
+    JobPipeline(RsyncInputProducer inputProducer, RsyncOutputConsumer outputConsumer,
+                ByteBuffer inBuf, int inputPrefilled, boolean doneProducingInput,
+                ByteBuffer outBuf, int depth) {
+        this.inputProducer = inputProducer;
+        this.outputConsumer = outputConsumer;
+        boolean reading = !doneProducingInput;
+        boolean writing = (outputConsumer != null);
+        int ring = depth + 1;
+        this.inputSize = inBuf.capacity();
+        this.outputSize = (writing ? outBuf.capacity() : 0);
+
+        // room for every buffer and an END, so that handing a buffer over never blocks
+        freeInput = new ArrayBlockingQueue<>(ring + 1);
+        filledInput = new ArrayBlockingQueue<>(ring + 1);
+        freeOutput = new ArrayBlockingQueue<>(ring + 1);
+        filledOutput = new ArrayBlockingQueue<>(ring + 1);
+        pooledBuffers = new ByteBuffer[(reading ? depth : 0) + (writing ? depth : 0)];
+
+        int pooled = 0;
+        if (reading) {
+            for (int i = 0; i < depth; i++) {
+                ByteBuffer buf = pool.acquire(inputSize);
+                pooledBuffers[pooled++] = buf;
+                freeInput.add(buf);
+            }
+        }
+        inBuf.clear();
+        inBuf.position(inputPrefilled);
+        if (inputPrefilled > 0 || doneProducingInput) {
+            inBuf.flip();
+            firstInput = inBuf;
+            if (doneProducingInput) {
+                lastInput = inBuf;
+            }
+        } else {
+            firstInput = null;
+            freeInput.add(inBuf);
+        }
+
+        if (writing) {
+            for (int i = 0; i < depth; i++) {
+                ByteBuffer buf = pool.acquire(outputSize);
+                pooledBuffers[pooled++] = buf;
+                freeOutput.add(buf);
+            }
+            outBuf.clear();
+            firstOutput = outBuf;
+        } else {
+            firstOutput = null;
+        }
+
+        readerDone = new CountDownLatch(reading ? 1 : 0);
+        writerDone = new CountDownLatch(writing ? 1 : 0);
+        if (reading) {
+            STAGES.execute(new Runnable() {
+                @Override
+                public void run() {
+                    read();
+                }
+            });
+        }
+        if (writing) {
+            STAGES.execute(new Runnable() {
+                @Override
+                public void run() {
+                    write();
+                }
+            });
+        }
+    }
+
+    /**
+     * The reader stage: fills each free input buffer and hands it to the job, until the end of
+     * the input
+     */
+    private void read() {
+        try {
+            while (true) {
+                ByteBuffer buf = freeInput.take();
+                if (buf == END || cancelled) {
+                    return;
+                }
+                buf.clear();
+                buf.limit(inputSize);
+                boolean done = false;
+                while (!done && buf.hasRemaining()) {
+                    done = inputProducer.produceInput(buf);
+                }
+                buf.flip();
+                if (done) {
+                    lastInput = buf;
+                }
+                filledInput.add(buf);
+                if (done) {
+                    return;
+                }
+            }
+        } catch (Throwable t) {
+            readerFailure = t;
+            filledInput.add(END);
+        } finally {
+            readerDone.countDown();
+        }
+    }
+
+    /**
+     * The writer stage: drains each filled output buffer and returns it to the job, until the job
+     * hands over END. After a failure, or once cancelled, buffers are returned without being
+     * drained, so that the job is never left waiting.
+     */
+    private void write() {
+        try {
+            while (true) {
+                ByteBuffer buf = filledOutput.take();
+                if (buf == END) {
+                    return;
+                }
+                try {
+                    while (writerFailure == null && !cancelled && buf.hasRemaining()) {
+                        outputConsumer.consumeOutput(buf);
+                    }
+                } catch (Throwable t) {
+                    writerFailure = t;
+                }
+                buf.clear();
+                buf.limit(outputSize);
+                freeOutput.add(buf);
+            }
+        } catch (Throwable t) {
+            writerFailure = t;
+            freeOutput.add(END);
+        } finally {
+            writerDone.countDown();
+        }
+    }
+
+    /**
+     * @return the output buffer the job writes into first, cleared, or null if the job has no
+     *         output
+     */
+    ByteBuffer firstOutput() {
+        return firstOutput;
+    }
+
+    /**
+     * @return whether the job's current input buffer holds the end of the input
+     */
+    boolean isLastInput() {
+        return currentIsLast;
+    }
+
+    /**
+     * Gets the job's next input buffer, waiting for the reader to fill it if necessary. Any input
+     * left in current is carried over in front of the next buffer's input.
+     *
+     * @param current
+     *            the job's current input buffer, or null to get the first one
+     * @return the next input buffer, ready to be read between its position and limit, or null if
+     *         there is no room to carry over the input left in current
+     * @throws IOException
+     *             if the reader failed, or the wait was interrupted
+     */
+    ByteBuffer nextInput(ByteBuffer current) throws IOException {
+        if (current == null && firstInput != null) {
+            currentIsLast = (firstInput == lastInput);
+            return firstInput;
+        }
+        long waitNanos = System.nanoTime();
+        ByteBuffer next = take(filledInput, "input");
+        METRICS.recordLatency(RsyncMetrics.Phase.PRODUCER_WAIT, waitNanos);
+        if (next == END) {
+            rethrow(readerFailure);
+        }
+        currentIsLast = (next == lastInput);
+        if (current == null || !current.hasRemaining()) {
+            if (current != null && current != carry) {
+                freeInput.add(current);
+            }
+            return next;
+        }
+
+        // carry the input left in current over in front of the next buffer's input
+        if (carry == null) {
+            carry = pool.acquire(2 * inputSize);
+        }
+        if (current != carry) {
+            carry.clear();
+            carry.limit(2 * inputSize);
+            carry.put(current);
+            carry.flip();
+            freeInput.add(current);
+        }
+        if (carry.remaining() + next.remaining() > 2 * inputSize) {
+            freeInput.add(next);
+            return null;
+        }
+        carry.compact();
+        carry.limit(2 * inputSize);
+        carry.put(next);
+        carry.flip();
+        freeInput.add(next);
+        return carry;
+    }
+
+    /**
+     * Hands an output buffer to the writer, and gets the next one to write into
+     *
+     * @param full
+     *            the output buffer, with its output between 0 and its position
+     * @return the next output buffer, cleared
+     * @throws IOException
+     *             if the writer failed, or the wait was interrupted
+     */
+    ByteBuffer nextOutput(ByteBuffer full) throws IOException {
+        full.flip();
+        filledOutput.add(full);
+        long waitNanos = System.nanoTime();
+        ByteBuffer next = take(freeOutput, "output");
+        METRICS.recordLatency(RsyncMetrics.Phase.CONSUMER_WAIT, waitNanos);
+        if (next == END || writerFailure != null) {
+            rethrow(writerFailure);
+        }
+        return next;
+    }
+
+    /**
+     * Waits for the writer to drain all of the output handed to it
+     *
+     * @param last
+     *            the last output buffer, with its output between 0 and its position, or null
+     * @throws IOException
+     *             if the writer failed, or the wait was interrupted
+     */
+    void finish(ByteBuffer last) throws IOException {
+        if (last != null) {
+            last.flip();
+            filledOutput.add(last);
+        }
+        if (outputConsumer != null) {
+            filledOutput.add(END);
+            await(writerDone);
+            if (writerFailure != null) {
+                rethrow(writerFailure);
+            }
+        }
+    }
+
+    /**
+     * Stops the stages, waits for them to finish with the buffers, and releases the pooled
+     * buffers. Must be called once the job is done with the pipeline, whether or not it
+     * succeeded.
+     */
+    void close() {
+        cancelled = true;
+        freeInput.offer(END);
+        filledOutput.offer(END);
+        await(readerDone);
+        await(writerDone);
+        for (ByteBuffer buf : pooledBuffers) {
+            pool.release(buf);
+        }
+        pool.release(carry);
+    }
+
+    /**
+     * Waits for a stage to stop, even if interrupted, since it may still be using the buffers
+     */
+    private static void await(CountDownLatch stageDone) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                stageDone.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ByteBuffer take(BlockingQueue<ByteBuffer> queue, String what)
+            throws IOException {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException iioe = new InterruptedIOException(
+                    "Interrupted waiting for rsync job " + what);
+            iioe.initCause(e);
+            throw iioe;
+        }
+    }
+
+    /**
+     * Rethrows a stage's failure from the job's thread
+     */
+    private static void rethrow(Throwable failure) throws IOException {
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        throw new IOException("Rsync pipeline stage failed", failure);
+    }
+}
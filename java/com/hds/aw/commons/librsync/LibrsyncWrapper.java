@@ -24,9 +24,19 @@
 
 package com.hds.aw.commons.librsync;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -44,6 +54,70 @@ import java.util.logging.Logger;
 public class LibrsyncWrapper {
 
     private final static Logger LOGGER = Logger.getLogger(LibrsyncWrapper.class.getName());
+    private static final RsyncMetrics METRICS = RsyncMetrics.getDefault();
+
+    /**
+     * Layout of the value returned by iterateJob(). A negative value is a negated rs_result. Any
+     * other value holds the number of input bytes consumed in the low ITERATE_COUNT_BITS bits, the
+     * number of output bytes produced in the next ITERATE_COUNT_BITS bits, and has
+     * ITERATE_DONE_FLAG set if the job returned RS_DONE rather than RS_BLOCKED. These must match
+     * LibrsyncWrapper.c
+     */
+    private static final int ITERATE_COUNT_BITS = 31;
+    private static final long ITERATE_COUNT_MASK = 0x7fffffffL;
+    private static final long ITERATE_DONE_FLAG = 1L << 62;
+
+    /**
+     * The size of the input and output buffers acquired from the DirectBufferPool by the methods
+     * that are not given buffers
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * The most input, and the most output space, offered to each iterateJobArray() call by the
+     * methods that work on data held in memory, which bounds how long the arrays are held by
+     * native code
+     */
+    private static final int ARRAY_CHUNK_SIZE = 1024 * 1024;
+
+    private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+    /**
+     * System property that selects the initial PatchImplementation: NATIVE, JAVA or AUTO. The
+     * default is AUTO.
+     */
+    public static final String PATCH_IMPLEMENTATION_PROPERTY =
+            "com.hds.aw.commons.librsync.patchImplementation";
+
+    private static volatile PatchImplementation patchImplementation = PatchImplementation
+            .valueOf(System.getProperty(PATCH_IMPLEMENTATION_PROPERTY,
+                                        PatchImplementation.AUTO.name()).toUpperCase());
+
+    // set when AUTO has found that the native library cannot be linked
+    private static volatile boolean nativePatchUnavailable = false;
+
+    /**
+     * System property that sets the initial Java signature threshold. See
+     * setJavaSignatureThreshold().
+     */
+    public static final String JAVA_SIGNATURE_THRESHOLD_PROPERTY =
+            "com.hds.aw.commons.librsync.javaSignatureThreshold";
+
+    /**
+     * Default size of the largest input that generateSignature() signs in Java, 128 KB
+     */
+    public static final long DEFAULT_JAVA_SIGNATURE_THRESHOLD = 128 * 1024;
+
+    private static volatile long javaSignatureThreshold = Long
+            .getLong(JAVA_SIGNATURE_THRESHOLD_PROPERTY, DEFAULT_JAVA_SIGNATURE_THRESHOLD);
+
+    /**
+     * System property that sets the initial pipeline depth. See setPipelineDepth().
+     */
+    public static final String PIPELINE_DEPTH_PROPERTY =
+            "com.hds.aw.commons.librsync.pipelineDepth";
+
+    private static volatile int pipelineDepth = Integer.getInteger(PIPELINE_DEPTH_PROPERTY, 0);
 
     /**
      * Holds the result from loadSignatureBegin()
@@ -77,10 +151,260 @@ public class LibrsyncWrapper {
         }
     }
 
+    /**
+     * Runs a signature job over all of the data produced by another job's input producer, or
+     * consumed by its output consumer, as that job reads or writes it, so that the data only has
+     * to be read once. The signature job reads each chunk of data in place, and its output is given
+     * to the signature consumer as it is produced. The signature job is run by librsync, or by
+     * JavaSignatureGenerator for jobs that run without the native library.
+     */
+    private static class SignatureTee implements RsyncInputProducer, RsyncOutputConsumer {
+        private static final ByteBuffer NO_INPUT = ByteBuffer.allocateDirect(0);
+
+        private final Object jobTag;
+        private final RsyncInputProducer producer;
+        private final RsyncOutputConsumer consumer;
+        private final RsyncOutputConsumer signatureConsumer;
+        private final DirectBufferPool pool = DirectBufferPool.getDefault();
+        // exactly one of these runs the signature
+        private final long job;
+        private final JavaSignatureGenerator javaGenerator;
+        private final ByteBuffer outBuf;
+        // used to pass heap buffers to the native job
+        private ByteBuffer staging;
+        private final long startNanos = System.nanoTime();
+        private long totalInput;
+        private long totalOutput;
+        private boolean done;
+
+        /**
+         * @param producer
+         *            the producer to tee, or null
+         * @param consumer
+         *            the consumer to tee, or null
+         * @param java
+         *            true to generate the signature with JavaSignatureGenerator
+         */
+        SignatureTee(Object jobTag, RsyncInputProducer producer, RsyncOutputConsumer consumer,
+                     SignatureOptions options, RsyncOutputConsumer signatureConsumer,
+                     boolean java) {
+            this.jobTag = jobTag;
+            this.producer = producer;
+            this.consumer = consumer;
+            this.signatureConsumer = signatureConsumer;
+            this.javaGenerator = (java ? new JavaSignatureGenerator(options) : null);
+            this.job = (java ? 0 : signatureBegin(options.getBlockLength(),
+                                                  options.getStrongLength(),
+                                                  options.getType().getMagic()));
+            this.outBuf = pool.acquire(DEFAULT_BUFFER_SIZE);
+        }
+
+        /**
+         * Produces input with the wrapped producer, and runs the signature job over it
+         */
+        @Override
+        public boolean produceInput(ByteBuffer buf) throws IOException {
+            int start = buf.position();
+            boolean last = producer.produceInput(buf);
+            feed(buf, start, buf.position(), last);
+            return last;
+        }
+
+        /**
+         * Consumes output with the wrapped consumer, and runs the signature job over the part of
+         * it that was consumed
+         */
+        @Override
+        public void consumeOutput(ByteBuffer buf) throws IOException {
+            int start = buf.position();
+            consumer.consumeOutput(buf);
+            feed(buf, start, buf.position(), false);
+        }
+
+        /**
+         * Runs the signature job over the bytes of buf between start and end, without changing
+         * buf's position, and to completion if last
+         */
+        void feed(ByteBuffer buf, int start, int end, boolean last) throws IOException {
+            if (javaGenerator != null) {
+                ByteBuffer data = buf.duplicate();
+                data.limit(end);
+                data.position(start);
+                totalInput += data.remaining();
+                while (data.hasRemaining()) {
+                    javaGenerator.update(data, outBuf);
+                    drain();
+                }
+                while (last && !done) {
+                    done = javaGenerator.finish(outBuf);
+                    drain();
+                }
+                return;
+            }
+            if (!buf.isDirect()) {
+                if (staging == null) {
+                    staging = pool.acquire(DEFAULT_BUFFER_SIZE);
+                }
+                ByteBuffer data = buf.duplicate();
+                data.limit(end);
+                data.position(start);
+                do {
+                    staging.clear();
+                    int n = Math.min(staging.remaining(), data.remaining());
+                    ByteBuffer chunk = data.duplicate();
+                    chunk.limit(chunk.position() + n);
+                    staging.put(chunk);
+                    data.position(data.position() + n);
+                    feed(staging, 0, n, last && !data.hasRemaining());
+                } while (data.hasRemaining());
+                return;
+            }
+
+            int position = start;
+            while (!done && (position < end || last)) {
+                int outPosition = outBuf.position();
+                long iterateResult = iterateJob(job, buf, position, end, last, outBuf,
+                                                outPosition, outBuf.limit(), null, 0);
+                if (iterateResult < 0) {
+                    LOGGER.log(Level.WARNING, String.format(
+                            "Rsync tee signature job failed with result %s for job %s",
+                            RsyncResult.fromCvalue(-iterateResult), jobTag));
+                    throw new RsyncException(-iterateResult);
+                }
+                int inConsumed = (int) (iterateResult & ITERATE_COUNT_MASK);
+                int outProduced = (int) ((iterateResult >>> ITERATE_COUNT_BITS)
+                        & ITERATE_COUNT_MASK);
+                position += inConsumed;
+                totalInput += inConsumed;
+                outBuf.position(outPosition + outProduced);
+                done = ((iterateResult & ITERATE_DONE_FLAG) != 0);
+
+                if (outProduced > 0 || done) {
+                    drain();
+                } else if (inConsumed == 0) {
+                    throw new RsyncException(String.format(
+                            "Rsync tee signature job %s is blocked with input available", jobTag),
+                            RsyncResult.RS_INTERNAL_ERROR.cValue);
+                }
+            }
+        }
+
+        /**
+         * Gives the signature output in outBuf to the signature consumer
+         */
+        private void drain() throws IOException {
+            outBuf.flip();
+            totalOutput += outBuf.remaining();
+            while (outBuf.hasRemaining()) {
+                signatureConsumer.consumeOutput(outBuf);
+            }
+            outBuf.clear();
+        }
+
+        /**
+         * Completes the signature job, if the end of the input has not already been fed to it
+         */
+        void finish() throws IOException {
+            if (!done) {
+                feed(NO_INPUT, 0, 0, true);
+            }
+        }
+
+        /**
+         * Frees the signature job and the buffers
+         */
+        void close() {
+            if (job != 0) {
+                try {
+                    freeJob(job);
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Error freeing tee signature job", e);
+                }
+            }
+            pool.release(outBuf);
+            pool.release(staging);
+            METRICS.recordJob(RsyncMetrics.Phase.SIGNATURE, startNanos, totalInput, totalOutput,
+                              !done);
+        }
+    }
+
+    /**
+     * An RsyncInputProducer that produces input already read from another producer, followed by
+     * the rest of that producer's input
+     */
+    private static class PrefetchedProducer implements RsyncInputProducer {
+        private final ByteBuffer prefetched;
+        private final boolean prefetchedAll;
+        private final RsyncInputProducer producer;
+
+        /**
+         * @param prefetched
+         *            the input already read, between its position and limit
+         * @param prefetchedAll
+         *            true if producer had no more input
+         */
+        PrefetchedProducer(ByteBuffer prefetched, boolean prefetchedAll,
+                           RsyncInputProducer producer) {
+            this.prefetched = prefetched;
+            this.prefetchedAll = prefetchedAll;
+            this.producer = producer;
+        }
+
+        public boolean produceInput(ByteBuffer buf) throws IOException {
+            if (prefetched.hasRemaining()) {
+                int limit = prefetched.limit();
+                prefetched.limit(prefetched.position()
+                        + Math.min(prefetched.remaining(), buf.remaining()));
+                buf.put(prefetched);
+                prefetched.limit(limit);
+                if (prefetched.hasRemaining()) {
+                    return false;
+                }
+            }
+            if (prefetchedAll) {
+                return true;
+            }
+            return (buf.hasRemaining() ? producer.produceInput(buf) : false);
+        }
+    }
+
+    /**
+     * An RsyncInputProducer that passes on the input of a signature producer, reading the block
+     * length from the signature's header as it goes by
+     */
+    private static class SignatureHeaderReader implements RsyncInputProducer {
+        private final RsyncInputProducer producer;
+        private int headerBytes;
+        private int blockLength;
+
+        SignatureHeaderReader(RsyncInputProducer producer) {
+            this.producer = producer;
+        }
+
+        public boolean produceInput(ByteBuffer buf) throws IOException {
+            int start = buf.position();
+            boolean done = producer.produceInput(buf);
+            // the block length is the big-endian int after the magic number
+            for (int i = start; i < buf.position() && headerBytes < 8; i++, headerBytes++) {
+                if (headerBytes >= 4) {
+                    blockLength = (blockLength << 8) | (buf.get(i) & 0xff);
+                }
+            }
+            return done;
+        }
+
+        /**
+         * @return the block length, or 1 if the header was not complete or is invalid
+         */
+        int blockLength() {
+            return (headerBytes == 8 ? Math.max(1, blockLength) : 1);
+        }
+    }
+
     /**
      * Java equivalent of librsync's rs_result
      */
-    private enum RsyncResult {
+    enum RsyncResult {
         RS_DONE(0), // Completed successfully.
         RS_BLOCKED(1), // Blocked waiting for more data.
         RS_RUNNING(2), // Not yet finished or blocked. This value should never be returned to the
@@ -98,8 +422,22 @@ public class LibrsyncWrapper {
         RS_INTERNAL_ERROR(107), // Probably a library bug.
         RS_PARAM_ERROR(108); // Bad value passed in to library, probably an application bug.
 
-        private int cValue;
-        private static final HashMap<Integer, RsyncResult> map = new HashMap<>();
+        final int cValue;
+
+        /**
+         * The results indexed by their cValue, so that decoding a result neither boxes nor hashes
+         */
+        private static final RsyncResult[] BY_CVALUE;
+        static {
+            int max = 0;
+            for (RsyncResult rsyncResult : values()) {
+                max = Math.max(max, rsyncResult.cValue);
+            }
+            BY_CVALUE = new RsyncResult[max + 1];
+            for (RsyncResult rsyncResult : values()) {
+                BY_CVALUE[rsyncResult.cValue] = rsyncResult;
+            }
+        }
 
         private RsyncResult(int cValue) {
             this.cValue = cValue;
@@ -111,195 +449,1896 @@ public class LibrsyncWrapper {
          * @param cValue
          *            the value returned from the JNI call
          * 
-         * @return the corresponding RsyncResult
+         * @return the corresponding RsyncResult, or null if cValue is not an rs_result
          */
         private static RsyncResult fromCvalue(long cValue) {
-            if (map.isEmpty()) {
-                synchronized (map) {
-                    if (map.isEmpty()) {
-                        for (RsyncResult rsyncResult : RsyncResult.values()) {
-                            map.put(rsyncResult.cValue, rsyncResult);
-                        }
-                    }
-                }
+            return (cValue >= 0 && cValue < BY_CVALUE.length ? BY_CVALUE[(int) cValue] : null);
+        }
+    }
+
+    /**
+     * Generates an rsync signature for a file, with full length MD4 strong sums.
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param fileProducer
+     *            produces the contents of the file for which the signature is generated
+     * @param signatureConsumer
+     *            consumes the output signature
+     * @param blockSize
+     *            the rsync block size to use when generating the signature
+     * @param inBuf
+     *            The direct byte buffer that will be passed to the fileProducer, and from which the
+     *            input will be read
+     * @param outBuf
+     *            The direct byte buffer into which the signature will be written, and that is
+     *            passed to the signatureConsumer
+     * @param rsyncStats
+     *            Optional object to hold statistics about the rsync job. If non-null, then the
+     *            statistics will be gathered and written to this object.
+     * @throws IOException
+     *             if thrown from fileProducer or signatureConsumer
+     * @throws RsyncException
+     *             if the rsync job returned anything other than RS_DONE
+     */
+    public static void generateSignature(Object jobTag, RsyncInputProducer fileProducer,
+                                         RsyncOutputConsumer signatureConsumer, int blockSize,
+                                         ByteBuffer inBuf, ByteBuffer outBuf,
+                                         RsyncStatistics rsyncStats)
+            throws IOException, RsyncException {
+        generateSignature(jobTag, fileProducer, signatureConsumer,
+                          SignatureOptions.md4(blockSize), inBuf, outBuf, rsyncStats);
+    }
+
+    /**
+     * Generates an rsync signature for a file, of the type and with the block length and strong
+     * sum length given by options. Inputs of at most getJavaSignatureThreshold() bytes that fit in
+     * inBuf are signed by JavaSignatureGenerator, which avoids the fixed cost of a native job;
+     * larger inputs by librsync. Both produce identical signatures.
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param fileProducer
+     *            produces the contents of the file for which the signature is generated
+     * @param signatureConsumer
+     *            consumes the output signature
+     * @param options
+     *            the signature type, block length and strong sum length
+     * @param inBuf
+     *            The direct byte buffer that will be passed to the fileProducer, and from which the
+     *            input will be read
+     * @param outBuf
+     *            The direct byte buffer into which the signature will be written, and that is
+     *            passed to the signatureConsumer
+     * @param rsyncStats
+     *            Optional object to hold statistics about the rsync job. If non-null, then the
+     *            statistics will be gathered and written to this object.
+     * @throws IOException
+     *             if thrown from fileProducer or signatureConsumer
+     * @throws RsyncException
+     *             if the rsync job returned anything other than RS_DONE
+     */
+    public static void generateSignature(Object jobTag, RsyncInputProducer fileProducer,
+                                         RsyncOutputConsumer signatureConsumer,
+                                         SignatureOptions options, ByteBuffer inBuf,
+                                         ByteBuffer outBuf, RsyncStatistics rsyncStats)
+            throws IOException, RsyncException {
+        // read up to one byte more than the threshold, to find out whether the input is small
+        long threshold = javaSignatureThreshold;
+        boolean doneProducingInput = false;
+        inBuf.clear();
+        if (threshold > 0) {
+            inBuf.limit((int) Math.min(inBuf.capacity(), threshold + 1));
+            while (!doneProducingInput && inBuf.hasRemaining()) {
+                doneProducingInput = fileProducer.produceInput(inBuf);
             }
-            return map.get(Integer.valueOf((int) cValue));
+            if (doneProducingInput && inBuf.position() <= threshold) {
+                JavaSignatureGenerator.generateSignature(jobTag, fileProducer, true,
+                                                         signatureConsumer, options, inBuf,
+                                                         outBuf, rsyncStats);
+                return;
+            }
+        }
+
+        long job = signatureBegin(options.getBlockLength(), options.getStrongLength(),
+                                  options.getType().getMagic());
+        try {
+            runJobToCompletion(jobTag, job, fileProducer, signatureConsumer, null, 0, inBuf,
+                               inBuf.position(), doneProducingInput, outBuf,
+                               RsyncMetrics.Phase.SIGNATURE, rsyncStats);
+        } finally {
+            freeJob(job);
+        }
+    }
+
+    /**
+     * Sets the size of the largest input that generateSignature() signs in Java rather than with
+     * librsync. The initial value is taken from the system property
+     * JAVA_SIGNATURE_THRESHOLD_PROPERTY, and defaults to DEFAULT_JAVA_SIGNATURE_THRESHOLD.
+     * LibrsyncWrapperBenchmark's "javasignature" benchmark, run over a range of -sizes, shows where
+     * the Java generator stops being faster on a given host.
+     * 
+     * @param threshold
+     *            the threshold in bytes, or 0 to always use librsync
+     */
+    public static void setJavaSignatureThreshold(long threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Invalid threshold " + threshold);
+        }
+        javaSignatureThreshold = threshold;
+    }
+
+    /**
+     * @return the size of the largest input that generateSignature() signs in Java
+     */
+    public static long getJavaSignatureThreshold() {
+        return javaSignatureThreshold;
+    }
+
+    /**
+     * Sets the number of input and output buffers that the streaming signature, delta and patch
+     * jobs run ahead with. At 0, the default, a job produces its input, runs librsync on it and
+     * consumes its output in turn on the calling thread. Above 0, a reader thread produces input
+     * and a writer thread consumes output while librsync runs, each up to depth buffers ahead, so
+     * that a job over slow storage or a slow network overlaps its I/O with its computation. Each
+     * job then uses up to depth more input buffers and depth more output buffers, the size of the
+     * ones it is given, from the default DirectBufferPool. The initial value is taken from the
+     * system property PIPELINE_DEPTH_PROPERTY.
+     * 
+     * When jobs are pipelined, producers and consumers are called on other threads than the one
+     * that runs librsync and calls the RsyncInputSeeker of a patch job, so they must not share
+     * unsynchronized state with the seeker. A patch job given a PrefetchingInputSeeker, whose delta
+     * producer parses the delta for the seeker, always runs sequentially.
+     * 
+     * @param depth
+     *            the number of buffers to run ahead with, or 0 to run jobs sequentially
+     */
+    public static void setPipelineDepth(int depth) {
+        if (depth < 0) {
+            throw new IllegalArgumentException("Invalid pipeline depth " + depth);
+        }
+        pipelineDepth = depth;
+    }
+
+    /**
+     * @return the number of buffers that jobs run ahead with, 0 if they run sequentially
+     */
+    public static int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /**
+     * Generates an rsync signature for a file, using input and output buffers from the default
+     * DirectBufferPool. See generateSignature(Object, RsyncInputProducer, RsyncOutputConsumer,
+     * SignatureOptions, ByteBuffer, ByteBuffer, RsyncStatistics)
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param fileProducer
+     *            produces the contents of the file for which the signature is generated
+     * @param signatureConsumer
+     *            consumes the output signature
+     * @param options
+     *            the signature type, block length and strong sum length
+     * @param rsyncStats
+     *            Optional object to hold statistics about the rsync job. If non-null, then the
+     *            statistics will be gathered and written to this object.
+     * @throws IOException
+     *             if thrown from fileProducer or signatureConsumer
+     * @throws RsyncException
+     *             if the rsync job returned anything other than RS_DONE
+     */
+    public static void generateSignature(Object jobTag, RsyncInputProducer fileProducer,
+                                         RsyncOutputConsumer signatureConsumer,
+                                         SignatureOptions options, RsyncStatistics rsyncStats)
+            throws IOException, RsyncException {
+        DirectBufferPool pool = DirectBufferPool.getDefault();
+        ByteBuffer inBuf = pool.acquire(DEFAULT_BUFFER_SIZE);
+        ByteBuffer outBuf = pool.acquire(DEFAULT_BUFFER_SIZE);
+        try {
+            generateSignature(jobTag, fileProducer, signatureConsumer, options, inBuf, outBuf,
+                              rsyncStats);
+        } finally {
+            pool.release(inBuf);
+            pool.release(outBuf);
+        }
+    }
+
+    /**
+     * Generates an rsync signature for a file, with the signature type, block length and strong
+     * sum length librsync recommends for the file's size (see SignatureOptions.recommended()).
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param file
+     *            the file for which the signature is generated
+     * @param signatureConsumer
+     *            consumes the output signature
+     * @param inBuf
+     *            The direct byte buffer into which the file will be read
+     * @param outBuf
+     *            The direct byte buffer into which the signature will be written, and that is
+     *            passed to the signatureConsumer
+     * @param rsyncStats
+     *            Optional object to hold statistics about the rsync job. If non-null, then the
+     *            statistics will be gathered and written to this object.
+     * @return the options the signature was generated with
+     * @throws IOException
+     *             if reading the file fails, or if thrown from signatureConsumer
+     * @throws RsyncException
+     *             if the rsync job returned anything other than RS_DONE
+     */
+    public static SignatureOptions generateSignature(Object jobTag, File file,
+                                                     RsyncOutputConsumer signatureConsumer,
+                                                     ByteBuffer inBuf, ByteBuffer outBuf,
+                                                     RsyncStatistics rsyncStats)
+            throws IOException, RsyncException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            SignatureOptions options = SignatureOptions.recommended(channel.size());
+            generateSignature(jobTag, new FileChannelProducer(channel), signatureConsumer,
+                              options, inBuf, outBuf, rsyncStats);
+            return options;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Generates the rsync signatures of a batch of inputs with a single native call, which avoids
+     * the per-job JNI calls, producers and consumers of generateSignature() when signing many small
+     * inputs. The signatures are identical to the ones generateSignature() generates.
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the batch
+     * @param inputs
+     *            the direct byte buffer holding all of the inputs
+     * @param offsets
+     *            the absolute offset of each input in inputs
+     * @param lengths
+     *            the length of each input
+     * @param options
+     *            the signature type, block length and strong sum length used for every input
+     * @param outBuf
+     *            the direct byte buffer into which the signatures are written, packed one after the
+     *            other starting at its position. If null, a direct buffer of exactly the right size
+     *            is allocated. On return its position is after the last signature.
+     * @param rsyncStats
+     *            Optional object to hold statistics about the batch. If non-null, then the
+     *            statistics will be gathered and written to this object.
+     * @return the signatures and the index of where each one is in outBuf
+     * @throws IllegalArgumentException
+     *             if an input is outside of inputs, or outBuf has no room for all of the signatures
+     * @throws RsyncException
+     *             if any signature job returned anything other than RS_DONE
+     */
+    public static SignatureBatch generateSignatures(Object jobTag, ByteBuffer inputs,
+                                                    int[] offsets, int[] lengths,
+                                                    SignatureOptions options, ByteBuffer outBuf,
+                                                    RsyncStatistics rsyncStats)
+            throws RsyncException {
+        if (offsets.length != lengths.length) {
+            throw new IllegalArgumentException("There must be one length for each offset");
+        }
+        int count = offsets.length;
+        int[] outOffsets = new int[count];
+        int[] outLengths = new int[count];
+        long inLength = 0;
+        long outLength = 0;
+        for (int i = 0; i < count; i++) {
+            if (offsets[i] < 0 || lengths[i] < 0
+                    || (long) offsets[i] + lengths[i] > inputs.capacity()) {
+                throw new IllegalArgumentException(String.format(
+                        "Input %d at offset %d with length %d is outside of the inputs", i,
+                        offsets[i], lengths[i]));
+            }
+            outLengths[i] = (int) options.getSignatureLength(lengths[i]);
+            inLength += lengths[i];
+            outLength += outLengths[i];
+        }
+        if (outBuf == null) {
+            if (outLength > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("The signatures do not fit in one buffer");
+            }
+            outBuf = ByteBuffer.allocateDirect((int) outLength);
+        } else if (outBuf.remaining() < outLength) {
+            throw new IllegalArgumentException(String.format(
+                    "The signatures need %d bytes, but outBuf only has %d", outLength,
+                    outBuf.remaining()));
+        }
+        int start = outBuf.position();
+        int position = start;
+        for (int i = 0; i < count; i++) {
+            outOffsets[i] = position;
+            position += outLengths[i];
+        }
+
+        if (rsyncStats != null) {
+            rsyncStats.begin();
+        }
+        long startNanos = System.nanoTime();
+        long result = signatureBatch(inputs, offsets, lengths, count, outBuf, outOffsets,
+                                     outLengths, options.getBlockLength(),
+                                     options.getStrongLength(), options.getType().getMagic());
+        boolean batchFailed = (result != RsyncResult.RS_DONE.cValue);
+        METRICS.recordJob(RsyncMetrics.Phase.SIGNATURE, startNanos, inLength,
+                          (batchFailed ? 0 : outLength), batchFailed);
+        if (batchFailed) {
+            int failed = (int) (result >>> 32);
+            RsyncResult rsyncResult = RsyncResult.fromCvalue(result & 0xffffffffL);
+            LOGGER.log(Level.WARNING, String.format(
+                    "Rsync signature batch failed with result %s on input %d of %d for %s",
+                    rsyncResult, failed, count, jobTag.toString()));
+            throw new RsyncException(String.format("Signature of input %d failed with %s",
+                                                   failed, rsyncResult), result & 0xffffffffL);
+        }
+        outBuf.position(position);
+        if (rsyncStats != null) {
+            rsyncStats.end();
+            rsyncStats.iterations++;
+            for (int i = 0; i < count; i++) {
+                rsyncStats.totalInputConsumed += lengths[i];
+                rsyncStats.maxInputConsumed = Math.max(rsyncStats.maxInputConsumed, lengths[i]);
+            }
+            rsyncStats.totalOutputProduced += position - start;
+            rsyncStats.maxOutputProduced = Math.max(rsyncStats.maxOutputProduced, position
+                    - start);
+        }
+
+        ByteBuffer signatures = outBuf.duplicate();
+        signatures.limit(position).position(start);
+        return new SignatureBatch(signatures, outOffsets, outLengths, options);
+    }
+
+    /**
+     * Generates the rsync signatures of a batch of inputs with a single native call. The inputs are
+     * first copied, one after the other, into a direct buffer from the default DirectBufferPool.
+     * See generateSignatures(Object, ByteBuffer, int[], int[], SignatureOptions, ByteBuffer,
+     * RsyncStatistics)
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the batch
+     * @param inputs
+     *            the inputs, each between its position and limit. Their positions are not changed.
+     * @param options
+     *            the signature type, block length and strong sum length used for every input
+     * @param rsyncStats
+     *            Optional object to hold statistics about the batch
+     * @return the signatures, in a newly allocated direct buffer, and the index of where each one
+     *         is
+     * @throws RsyncException
+     *             if any signature job returned anything other than RS_DONE
+     */
+    public static SignatureBatch generateSignatures(Object jobTag, List<ByteBuffer> inputs,
+                                                    SignatureOptions options,
+                                                    RsyncStatistics rsyncStats)
+            throws RsyncException {
+        int count = inputs.size();
+        int[] offsets = new int[count];
+        int[] lengths = new int[count];
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            offsets[i] = (int) total;
+            lengths[i] = inputs.get(i).remaining();
+            total += lengths[i];
+        }
+        if (total > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The inputs do not fit in one buffer");
+        }
+
+        DirectBufferPool pool = DirectBufferPool.getDefault();
+        ByteBuffer packed = pool.acquire((int) total);
+        try {
+            for (ByteBuffer input : inputs) {
+                packed.put(input.duplicate());
+            }
+            return generateSignatures(jobTag, packed, offsets, lengths, options, null,
+                                      rsyncStats);
+        } finally {
+            pool.release(packed);
+        }
+    }
+
+    /**
+     * Generates an rsync signature for a file using several librsync jobs in parallel, with the
+     * signature type, block length and strong sum length librsync recommends for the file's size
+     * (see SignatureOptions.recommended()). See generateSignatureParallel(Object, FileChannel,
+     * RsyncOutputConsumer, int, ...)
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param source
+     *            the file for which the signature is generated. It is only read with positional
+     *            reads, so its position is not changed.
+     * @param signatureConsumer
+     *            consumes the output signature. Only called from the calling thread.
+     * @param executor
+     *            runs the range jobs. If null, a shared pool of daemon threads, one per
+     *            processor, is used.
+     * @param rsyncStats
+     *            Optional object to hold statistics about the rsync jobs
+     * @return the options the signature was generated with
+     * @throws IOException
+     *             if reading the source fails, or if thrown from signatureConsumer
+     * @throws RsyncException
+     *             if any range job returned anything other than RS_DONE
+     */
+    public static SignatureOptions generateSignatureParallel(Object jobTag, FileChannel source,
+                                                             RsyncOutputConsumer signatureConsumer,
+                                                             Executor executor,
+                                                             RsyncStatistics rsyncStats)
+            throws IOException, RsyncException {
+        SignatureOptions options = SignatureOptions.recommended(source.size());
+        generateSignatureParallel(jobTag, source, signatureConsumer, options, executor,
+                                  rsyncStats);
+        return options;
+    }
+
+    /**
+     * Generates an rsync signature for a file, using several librsync jobs in parallel. The file is
+     * split into block-aligned ranges, the signature of each range is generated separately on the
+     * executor, and the results are stitched together. The signature is exactly the same as the one
+     * generated by generateSignature().
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param source
+     *            the file for which the signature is generated. It is only read with positional
+     *            reads, so its position is not changed.
+     * @param signatureConsumer
+     *            consumes the output signature. Only called from the calling thread.
+     * @param blockSize
+     *            the rsync block size to use when generating the signature
+     * @param executor
+     *            runs the range jobs. If null, a shared pool of daemon threads, one per
+     *            processor, is used. The calling thread blocks waiting for the range jobs, so this
+     *            must not be an executor whose threads the caller is running on.
+     * @param rsyncStats
+     *            Optional object to hold statistics about the rsync jobs. If non-null, then the
+     *            statistics of all of the range jobs will be merged into this object.
+     * @throws IOException
+     *             if reading the source fails, or if thrown from signatureConsumer
+     * @throws RsyncException
+     *             if any range job returned anything other than RS_DONE
+     */
+    public static void generateSignatureParallel(Object jobTag, FileChannel source,
+                                                 RsyncOutputConsumer signatureConsumer,
+                                                 int blockSize, Executor executor,
+                                                 RsyncStatistics rsyncStats)
+            throws IOException, RsyncException {
+        generateSignatureParallel(jobTag, source, signatureConsumer,
+                                  SignatureOptions.md4(blockSize), executor, rsyncStats);
+    }
+
+    /**
+     * Generates an rsync signature for a file, of the type and with the block length and strong
+     * sum length given by options, using several librsync jobs in parallel. See
+     * generateSignatureParallel(Object, FileChannel, RsyncOutputConsumer, int, ...)
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param source
+     *            the file for which the signature is generated. It is only read with positional
+     *            reads, so its position is not changed.
+     * @param signatureConsumer
+     *            consumes the output signature. Only called from the calling thread.
+     * @param options
+     *            the signature type, block length and strong sum length
+     * @param executor
+     *            runs the range jobs. If null, a shared pool of daemon threads, one per
+     *            processor, is used.
+     * @param rsyncStats
+     *            Optional object to hold statistics about the rsync jobs
+     * @throws IOException
+     *             if reading the source fails, or if thrown from signatureConsumer
+     * @throws RsyncException
+     *             if any range job returned anything other than RS_DONE
+     */
+    public static void generateSignatureParallel(Object jobTag, FileChannel source,
+                                                 RsyncOutputConsumer signatureConsumer,
+                                                 SignatureOptions options, Executor executor,
+                                                 RsyncStatistics rsyncStats)
+            throws IOException, RsyncException {
+        new ParallelSignatureGenerator(jobTag, source, options, executor)
+                .generate(signatureConsumer, rsyncStats);
+    }
+
+    /**
+     * Generates an rsync signature for a file, using several librsync jobs in parallel. See
+     * generateSignatureParallel(Object, FileChannel, RsyncOutputConsumer, int, ...)
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param file
+     *            the file for which the signature is generated
+     * @param signatureConsumer
+     *            consumes the output signature. Only called from the calling thread.
+     * @param options
+     *            the signature type, block length and strong sum length
+     * @param executor
+     *            runs the range jobs. If null, a shared pool of daemon threads, one per
+     *            processor, is used.
+     * @param rsyncStats
+     *            Optional object to hold statistics about the rsync jobs
+     * @throws IOException
+     *             if reading the file fails, or if thrown from signatureConsumer
+     * @throws RsyncException
+     *             if any range job returned anything other than RS_DONE
+     */
+    public static void generateSignatureParallel(Object jobTag, File file,
+                                                 RsyncOutputConsumer signatureConsumer,
+                                                 SignatureOptions options, Executor executor,
+                                                 RsyncStatistics rsyncStats)
+            throws IOException, RsyncException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            generateSignatureParallel(jobTag, raf.getChannel(), signatureConsumer, options,
+                                      executor, rsyncStats);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Generates an rsync delta from a base file signature and a changed file
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param signatureProducer
+     *            produces the signature of the base file
+     * @param newFileProducer
+     *            produces the contents of the new file
+     * @param deltaConsumer
+     *            consumes the delta produced by librsync
+     * @param inBuf
+     *            The direct byte buffer that will be passed to the signatureProducer, and from
+     *            which the signature will be read
+     * @param outBuf
+     *            The direct byte buffer into which the delta will be written, and that is passed to
+     *            the deltaConsumer
+     * @param rsyncStats
+     *            Optional object to hold statistics about the rsync job. If non-null, then the
+     *            statistics will be gathered and written to this object.
+     * @throws IOException
+     *             if thrown from signatureProducer or deltaConsumer
+     * @throws RsyncException
+     *             if the rsync job returned anything other than RS_DONE
+     */
+    public static void generateDelta(Object jobTag, RsyncInputProducer signatureProducer,
+                                     RsyncInputProducer newFileProducer,
+                                     RsyncOutputConsumer deltaConsumer,
+                                     ByteBuffer inBuf, ByteBuffer outBuf, RsyncStatistics rsyncStats)
+            throws IOException, RsyncException {
+        LoadedSignature signature = loadSignature(jobTag, signatureProducer, inBuf, outBuf,
+                                                  rsyncStats);
+        try {
+            generateDelta(jobTag, signature, newFileProducer, deltaConsumer, inBuf, outBuf,
+                          rsyncStats);
+        } finally {
+            signature.close();
+        }
+    }
+
+    /**
+     * Generates an rsync delta from a base file signature and a changed file, using input and
+     * output buffers from the default DirectBufferPool. See generateDelta(Object,
+     * RsyncInputProducer, RsyncInputProducer, RsyncOutputConsumer, ByteBuffer, ByteBuffer,
+     * RsyncStatistics)
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param signatureProducer
+     *            produces the signature of the base file
+     * @param newFileProducer
+     *            produces the contents of the new file
+     * @param deltaConsumer
+     *            consumes the delta produced by librsync
+     * @param rsyncStats
+     *            Optional object to hold statistics about the rsync job. If non-null, then the
+     *            statistics will be gathered and written to this object.
+     * @throws IOException
+     *             if thrown from signatureProducer or deltaConsumer
+     * @throws RsyncException
+     *             if the rsync job returned anything other than RS_DONE
+     */
+    public static void generateDelta(Object jobTag, RsyncInputProducer signatureProducer,
+                                     RsyncInputProducer newFileProducer,
+                                     RsyncOutputConsumer deltaConsumer, RsyncStatistics rsyncStats)
+            throws IOException, RsyncException {
+        DirectBufferPool pool = DirectBufferPool.getDefault();
+        ByteBuffer inBuf = pool.acquire(DEFAULT_BUFFER_SIZE);
+        ByteBuffer outBuf = pool.acquire(DEFAULT_BUFFER_SIZE);
+        try {
+            generateDelta(jobTag, signatureProducer, newFileProducer, deltaConsumer, inBuf,
+                          outBuf, rsyncStats);
+        } finally {
+            pool.release(inBuf);
+            pool.release(outBuf);
+        }
+    }
+
+    /**
+     * Generates an rsync delta from a previously loaded base file signature and a changed file,
+     * using input and output buffers from the default DirectBufferPool. See generateDelta(Object,
+     * LoadedSignature, RsyncInputProducer, RsyncOutputConsumer, ByteBuffer, ByteBuffer,
+     * RsyncStatistics)
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param signature
+     *            the loaded signature of the base file. It is not closed by this method.
+     * @param newFileProducer
+     *            produces the contents of the new file
+     * @param deltaConsumer
+     *            consumes the delta produced by librsync
+     * @param rsyncStats
+     *            Optional object to hold statistics about the rsync job. If non-null, then the
+     *            statistics will be gathered and written to this object.
+     * @throws IOException
+     *             if thrown from newFileProducer or deltaConsumer
+     * @throws RsyncException
+     *             if the rsync job returned anything other than RS_DONE
+     */
+    public static void generateDelta(Object jobTag, LoadedSignature signature,
+                                     RsyncInputProducer newFileProducer,
+                                     RsyncOutputConsumer deltaConsumer, RsyncStatistics rsyncStats)
+            throws IOException, RsyncException {
+        DirectBufferPool pool = DirectBufferPool.getDefault();
+        ByteBuffer inBuf = pool.acquire(DEFAULT_BUFFER_SIZE);
+        ByteBuffer outBuf = pool.acquire(DEFAULT_BUFFER_SIZE);
+        try {
+            generateDelta(jobTag, signature, newFileProducer, deltaConsumer, inBuf, outBuf,
+                          rsyncStats);
+        } finally {
+            pool.release(inBuf);
+            pool.release(outBuf);
+        }
+    }
+
+    /**
+     * Generates an rsync delta from a previously loaded base file signature and a changed file.
+     * Several threads may generate deltas against the same LoadedSignature at the same time.
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param signature
+     *            the loaded signature of the base file, as returned by loadSignature() or by a
+     *            SignatureCache. It is not closed by this method.
+     * @param newFileProducer
+     *            produces the contents of the new file
+     * @param deltaConsumer
+     *            consumes the delta produced by librsync
+     * @param inBuf
+     *            The direct byte buffer that will be passed to the newFileProducer
+     * @param outBuf
+     *            The direct byte buffer into which the delta will be written, and that is passed to
+     *            the deltaConsumer
+     * @param rsyncStats
+     *            Optional object to hold statistics about the rsync job. If non-null, then the
+     *            statistics will be gathered and written to this object.
+     * @throws IOException
+     *             if thrown from newFileProducer or deltaConsumer
+     * @throws RsyncException
+     *             if the rsync job returned anything other than RS_DONE
+     * @throws IllegalStateException
+     *             if the signature has already been closed
+     */
+    public static void generateDelta(Object jobTag, LoadedSignature signature,
+                                     RsyncInputProducer newFileProducer,
+                                     RsyncOutputConsumer deltaConsumer,
+                                     ByteBuffer inBuf, ByteBuffer outBuf, RsyncStatistics rsyncStats)
+            throws IOException, RsyncException {
+        // hold a reference so the signature can't be freed (e.g. evicted from a SignatureCache)
+        // while the delta job is using it
+        signature.retain();
+        long deltaJob = 0;
+        try {
+            // compute delta between two files
+            deltaJob = deltaBegin(signature.pointer());
+            runJobToCompletion(jobTag, deltaJob, newFileProducer, deltaConsumer, null, 0, inBuf,
+                               outBuf, RsyncMetrics.Phase.DELTA, rsyncStats);
+        } finally {
+            if (deltaJob != 0) {
+                try {
+                    freeJob(deltaJob);
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Error freeing delta job", e);
+                }
+            }
+
+            signature.close();
+        }
+    }
+
+    /**
+     * Generates an rsync delta from a SignatureIndex of the base file's signature and a changed
+     * file, in Java, using input and output buffers from the default DirectBufferPool. The index
+     * is searched in place, so an index written by SignatureIndex.write() and mapped by
+     * SignatureIndex.open() needs no hash table to be built before the delta starts. See
+     * JavaDeltaGenerator.
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param index
+     *            the index of the base file's signature
+     * @param newFileProducer
+     *            produces the contents of the new file
+     * @param deltaConsumer
+     *            consumes the delta
+     * @param rsyncStats
+     *            Optional object to hold statistics about the rsync job. If non-null, then the
+     *            statistics will be gathered and written to this object.
+     * @throws IOException
+     *             if thrown from newFileProducer or deltaConsumer
+     */
+    public static void generateDelta(Object jobTag, SignatureIndex index,
+                                     RsyncInputProducer newFileProducer,
+                                     RsyncOutputConsumer deltaConsumer, RsyncStatistics rsyncStats)
+            throws IOException, RsyncException {
+        DirectBufferPool pool = DirectBufferPool.getDefault();
+        ByteBuffer inBuf = pool.acquire(DEFAULT_BUFFER_SIZE);
+        ByteBuffer outBuf = pool.acquire(DEFAULT_BUFFER_SIZE);
+        try {
+            JavaDeltaGenerator.generateDelta(jobTag, index, newFileProducer, deltaConsumer, inBuf,
+                                             outBuf, rsyncStats);
+        } finally {
+            pool.release(inBuf);
+            pool.release(outBuf);
+        }
+    }
+
+    /**
+     * Generates an rsync delta between two local files, without a signature file. The base
+     * file's signature is generated in memory and indexed directly, by
+     * SignatureIndex.generate(), and the delta is generated against the index by
+     * JavaDeltaGenerator. The base file is indexed on the executor, while the calling thread
+     * reads the first DEFAULT_BUFFER_SIZE bytes of the new file.
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param baseFile
+     *            the base file. It is only read with positional reads, so its position is not
+     *            changed.
+     * @param newFileProducer
+     *            produces the contents of the new file. Only called from the calling thread.
+     * @param deltaConsumer
+     *            consumes the delta. Only called from the calling thread.
+     * @param options
+     *            the signature type, block length and strong sum length, or null for those
+     *            recommended for the base file's size (see SignatureOptions.recommended())
+     * @param executor
+     *            indexes the base file. If null, the shared pool of daemon threads that runs the
+     *            ranges of parallel signatures and patches is used.
+     * @param rsyncStats
+     *            Optional object to hold statistics about the delta. If non-null, then the
+     *            statistics will be gathered and written to this object.
+     * @throws IOException
+     *             if reading the base file fails, or if thrown from newFileProducer or
+     *             deltaConsumer
+     * @throws RsyncException
+     *             if the base file's signature is too large to index
+     */
+    public static void generateLocalDelta(Object jobTag, final FileChannel baseFile,
+                                          RsyncInputProducer newFileProducer,
+                                          RsyncOutputConsumer deltaConsumer,
+                                          SignatureOptions options, Executor executor,
+                                          RsyncStatistics rsyncStats)
+            throws IOException, RsyncException {
+        final long baseSize = baseFile.size();
+        final SignatureOptions indexOptions = (options != null ? options : SignatureOptions
+                .recommended(baseSize));
+        // set if the delta fails, so that the indexing stops at its next read. It is not
+        // interrupted, as that would close the caller's base file channel.
+        final AtomicBoolean stopped = new AtomicBoolean();
+        FutureTask<SignatureIndex> indexTask = new FutureTask<SignatureIndex>(
+                new Callable<SignatureIndex>() {
+                    @Override
+                    public SignatureIndex call() throws IOException {
+                        RsyncInputProducer baseProducer = new FileChannelProducer(baseFile, 0,
+                                                                                  baseSize) {
+                            @Override
+                            public boolean produceInput(ByteBuffer buf) throws IOException {
+                                if (stopped.get()) {
+                                    throw new IOException("Base file indexing stopped");
+                                }
+                                return super.produceInput(buf);
+                            }
+                        };
+                        return SignatureIndex.generate(baseProducer, baseSize, indexOptions);
+                    }
+                });
+        (executor != null ? executor : RsyncThreads.IO).execute(indexTask);
+
+        DirectBufferPool pool = DirectBufferPool.getDefault();
+        ByteBuffer prefetched = pool.acquire(DEFAULT_BUFFER_SIZE);
+        ByteBuffer inBuf = pool.acquire(DEFAULT_BUFFER_SIZE);
+        ByteBuffer outBuf = pool.acquire(DEFAULT_BUFFER_SIZE);
+        try {
+            prefetched.clear().limit(DEFAULT_BUFFER_SIZE);
+            boolean done = false;
+            while (!done && prefetched.hasRemaining()) {
+                done = newFileProducer.produceInput(prefetched);
+            }
+            prefetched.flip();
+
+            SignatureIndex index = await(indexTask);
+            JavaDeltaGenerator.generateDelta(jobTag, index,
+                                             new PrefetchedProducer(prefetched, done,
+                                                                    newFileProducer),
+                                             deltaConsumer, inBuf, outBuf, rsyncStats);
+        } finally {
+            stopped.set(true);
+            indexTask.cancel(false);
+            pool.release(prefetched);
+            pool.release(inBuf);
+            pool.release(outBuf);
+        }
+    }
+
+    /**
+     * Generates an rsync delta between two local files, without a signature file. See
+     * generateLocalDelta(Object, FileChannel, RsyncInputProducer, RsyncOutputConsumer,
+     * SignatureOptions, Executor, RsyncStatistics)
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param baseFile
+     *            the base file
+     * @param newFile
+     *            the new file
+     * @param deltaConsumer
+     *            consumes the delta. Only called from the calling thread.
+     * @param options
+     *            the signature type, block length and strong sum length, or null for those
+     *            recommended for the base file's size
+     * @param executor
+     *            indexes the base file. If null, the shared pool of daemon threads that runs the
+     *            ranges of parallel signatures and patches is used.
+     * @param rsyncStats
+     *            Optional object to hold statistics about the delta
+     * @throws IOException
+     *             if reading either file fails, or if thrown from deltaConsumer
+     * @throws RsyncException
+     *             if the base file's signature is too large to index
+     */
+    public static void generateLocalDelta(Object jobTag, File baseFile, File newFile,
+                                          RsyncOutputConsumer deltaConsumer,
+                                          SignatureOptions options, Executor executor,
+                                          RsyncStatistics rsyncStats)
+            throws IOException, RsyncException {
+        RandomAccessFile baseRAF = new RandomAccessFile(baseFile, "r");
+        try {
+            RandomAccessFile newRAF = new RandomAccessFile(newFile, "r");
+            try {
+                generateLocalDelta(jobTag, baseRAF.getChannel(),
+                                   new FileChannelProducer(newRAF.getChannel()), deltaConsumer,
+                                   options, executor, rsyncStats);
+            } finally {
+                newRAF.close();
+            }
+        } finally {
+            baseRAF.close();
+        }
+    }
+
+    /**
+     * Waits for a task run on an executor, unwrapping any exception it threw
+     */
+    private static <T> T await(FutureTask<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException iioe = new InterruptedIOException(
+                    "Interrupted waiting for a background task");
+            iioe.initCause(e);
+            throw iioe;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Generates an rsync delta from a base file signature and a changed file, and at the same
+     * time the signature of the changed file, for the next delta against it, reading the changed
+     * file only once. See generateDeltaAndSignature(Object, LoadedSignature, RsyncInputProducer,
+     * RsyncOutputConsumer, SignatureOptions, RsyncOutputConsumer, ByteBuffer, ByteBuffer,
+     * RsyncStatistics)
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param signatureProducer
+     *            produces the signature of the base file
+     * @param newFileProducer
+     *            produces the contents of the new file
+     * @param deltaConsumer
+     *            consumes the delta produced by librsync
+     * @param newSignatureOptions
+     *            the signature type, block length and strong sum length of the new file's
+     *            signature
+     * @param newSignatureConsumer
+     *            consumes the signature of the new file
+     * @param inBuf
+     *            The direct byte buffer that will be passed to the signatureProducer and the
+     *            newFileProducer
+     * @param outBuf
+     *            The direct byte buffer into which the delta will be written, and that is passed to
+     *            the deltaConsumer
+     * @param rsyncStats
+     *            Optional object to hold statistics about the delta job. If non-null, then the
+     *            statistics will be gathered and written to this object.
+     * @throws IOException
+     *             if thrown from a producer or consumer
+     * @throws RsyncException
+     *             if either rsync job returned anything other than RS_DONE
+     */
+    public static void generateDeltaAndSignature(Object jobTag,
+                                                 RsyncInputProducer signatureProducer,
+                                                 RsyncInputProducer newFileProducer,
+                                                 RsyncOutputConsumer deltaConsumer,
+                                                 SignatureOptions newSignatureOptions,
+                                                 RsyncOutputConsumer newSignatureConsumer,
+                                                 ByteBuffer inBuf, ByteBuffer outBuf,
+                                                 RsyncStatistics rsyncStats)
+            throws IOException, RsyncException {
+        LoadedSignature signature = loadSignature(jobTag, signatureProducer, inBuf, outBuf,
+                                                  rsyncStats);
+        try {
+            generateDeltaAndSignature(jobTag, signature, newFileProducer, deltaConsumer,
+                                      newSignatureOptions, newSignatureConsumer, inBuf, outBuf,
+                                      rsyncStats);
+        } finally {
+            signature.close();
+        }
+    }
+
+    /**
+     * Generates an rsync delta from a previously loaded base file signature and a changed file,
+     * and at the same time the signature of the changed file, using input and output buffers from
+     * the default DirectBufferPool. See generateDeltaAndSignature(Object, LoadedSignature,
+     * RsyncInputProducer, RsyncOutputConsumer, SignatureOptions, RsyncOutputConsumer, ByteBuffer,
+     * ByteBuffer, RsyncStatistics)
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param signature
+     *            the loaded signature of the base file. It is not closed by this method.
+     * @param newFileProducer
+     *            produces the contents of the new file
+     * @param deltaConsumer
+     *            consumes the delta produced by librsync
+     * @param newSignatureOptions
+     *            the signature type, block length and strong sum length of the new file's
+     *            signature
+     * @param newSignatureConsumer
+     *            consumes the signature of the new file
+     * @param rsyncStats
+     *            Optional object to hold statistics about the delta job. If non-null, then the
+     *            statistics will be gathered and written to this object.
+     * @throws IOException
+     *             if thrown from newFileProducer or a consumer
+     * @throws RsyncException
+     *             if either rsync job returned anything other than RS_DONE
+     */
+    public static void generateDeltaAndSignature(Object jobTag, LoadedSignature signature,
+                                                 RsyncInputProducer newFileProducer,
+                                                 RsyncOutputConsumer deltaConsumer,
+                                                 SignatureOptions newSignatureOptions,
+                                                 RsyncOutputConsumer newSignatureConsumer,
+                                                 RsyncStatistics rsyncStats)
+            throws IOException, RsyncException {
+        DirectBufferPool pool = DirectBufferPool.getDefault();
+        ByteBuffer inBuf = pool.acquire(DEFAULT_BUFFER_SIZE);
+        ByteBuffer outBuf = pool.acquire(DEFAULT_BUFFER_SIZE);
+        try {
+            generateDeltaAndSignature(jobTag, signature, newFileProducer, deltaConsumer,
+                                      newSignatureOptions, newSignatureConsumer, inBuf, outBuf,
+                                      rsyncStats);
+        } finally {
+            pool.release(inBuf);
+            pool.release(outBuf);
+        }
+    }
+
+    /**
+     * Generates an rsync delta from a previously loaded base file signature and a changed file,
+     * and at the same time the signature of the changed file, for the next delta against it. Each
+     * chunk of the changed file is read once into inBuf, and both the delta job and a signature
+     * job run over it, so the changed file does not have to be read again by generateSignature().
+     * The new signature is identical to the one generateSignature() would produce with the same
+     * options.
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param signature
+     *            the loaded signature of the base file, as returned by loadSignature() or by a
+     *            SignatureCache. It is not closed by this method.
+     * @param newFileProducer
+     *            produces the contents of the new file
+     * @param deltaConsumer
+     *            consumes the delta produced by librsync
+     * @param newSignatureOptions
+     *            the signature type, block length and strong sum length of the new file's
+     *            signature
+     * @param newSignatureConsumer
+     *            consumes the signature of the new file
+     * @param inBuf
+     *            The direct byte buffer that will be passed to the newFileProducer
+     * @param outBuf
+     *            The direct byte buffer into which the delta will be written, and that is passed to
+     *            the deltaConsumer
+     * @param rsyncStats
+     *            Optional object to hold statistics about the delta job. If non-null, then the
+     *            statistics will be gathered and written to this object.
+     * @throws IOException
+     *             if thrown from newFileProducer or a consumer
+     * @throws RsyncException
+     *             if either rsync job returned anything other than RS_DONE
+     * @throws IllegalStateException
+     *             if the signature has already been closed
+     */
+    public static void generateDeltaAndSignature(Object jobTag, LoadedSignature signature,
+                                                 RsyncInputProducer newFileProducer,
+                                                 RsyncOutputConsumer deltaConsumer,
+                                                 SignatureOptions newSignatureOptions,
+                                                 RsyncOutputConsumer newSignatureConsumer,
+                                                 ByteBuffer inBuf, ByteBuffer outBuf,
+                                                 RsyncStatistics rsyncStats)
+            throws IOException, RsyncException {
+        SignatureTee tee = new SignatureTee(jobTag, newFileProducer, null, newSignatureOptions,
+                                            newSignatureConsumer, false);
+        try {
+            generateDelta(jobTag, signature, tee, deltaConsumer, inBuf, outBuf, rsyncStats);
+            tee.finish();
+        } finally {
+            tee.close();
+        }
+    }
+
+    /**
+     * Loads an rsync signature and builds its hash table, so that it can be used to generate any
+     * number of deltas. The returned LoadedSignature must be closed to free the native signature.
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param signatureProducer
+     *            produces the signature of the base file
+     * @param inBuf
+     *            The direct byte buffer that will be passed to the signatureProducer, and from
+     *            which the signature will be read
+     * @param outBuf
+     *            Not used while loading a signature; may be the same buffer later used for deltas
+     * @param rsyncStats
+     *            Optional object to hold statistics about the rsync job. If non-null, then the
+     *            statistics will be gathered and written to this object.
+     * @return the loaded and hashed signature
+     * @throws IOException
+     *             if thrown from signatureProducer
+     * @throws RsyncException
+     *             if the rsync job returned anything other than RS_DONE
+     */
+    public static LoadedSignature loadSignature(Object jobTag,
+                                                RsyncInputProducer signatureProducer,
+                                                ByteBuffer inBuf, ByteBuffer outBuf,
+                                                RsyncStatistics rsyncStats)
+            throws IOException, RsyncException {
+
+        LoadSignatureResult loadSigResult = new LoadSignatureResult();
+        SignatureHeaderReader headerReader = new SignatureHeaderReader(signatureProducer);
+        boolean loaded = false;
+        try {
+            // load the signature
+            validateResult(loadSignatureBegin(loadSigResult), "loadSignatureBegin");
+
+            runJobToCompletion(jobTag, loadSigResult.jobPointer, headerReader, null, null, 0,
+                               inBuf, outBuf, RsyncMetrics.Phase.SIGNATURE_LOAD, rsyncStats);
+
+            freeJob(loadSigResult.jobPointer);
+            loadSigResult.jobPointer = 0; // clear it out so we don't free the job again in finally
+                                          // block
+
+            // hash the signature
+            buildHashTable(loadSigResult.signaturePointer);
+
+            loaded = true;
+            return new LoadedSignature(loadSigResult.signaturePointer, headerReader.blockLength());
+        } finally {
+            if (loadSigResult.jobPointer != 0) {
+                try {
+                    freeJob(loadSigResult.jobPointer);
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Error freeing signature job", e);
+                }
+            }
+
+            if (!loaded && loadSigResult.signaturePointer != 0) {
+                try {
+                    freeLoadedSignature(loadSigResult.signaturePointer);
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Error freeing loaded signature", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Generate an rsync patch (reconstituted changed file) from a base file and a previously
+     * generated librsync delta. The patch is applied by librsync or by JavaPatcher, as selected by
+     * setPatchImplementation(); both produce identical output.
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param baseFileSeeker
+     *            Provides requested chunks of the base file. If this is a MappedFileInputSeeker,
+     *            the native patch job reads the mapped base file directly instead of calling it.
+     * @param deltaProducer
+     *            Provides the delta previously generated by librsync
+     * @param patchConsumer
+     *            Consumes the patch generated by librsync
+     * @param inBuf
+     *            The direct byte buffer that will be passed to the deltaProducer, and from which
+     *            the delta will be read
+     * @param outBuf
+     *            The direct byte buffer into which the patch will be written, and that is passed to
+     *            the patchConsumer
+     * @param rsyncStats
+     *            Optional object to hold statistics about the rsync job. If non-null, then the
+     *            statistics will be gathered and written to this object.
+     * @throws IOException
+     *             if thrown from deltaProducer or patchConsumer
+     * @throws RsyncException
+     *             if the rsync job returned anything other than RS_DONE, including if the
+     *             baseFileSeeker threw an exception or returned null
+     */
+    public static void generatePatch(Object jobTag, RsyncInputSeeker baseFileSeeker,
+                                     RsyncInputProducer deltaProducer,
+                                     RsyncOutputConsumer patchConsumer, ByteBuffer inBuf,
+                                     ByteBuffer outBuf, RsyncStatistics rsyncStats)
+            throws IOException, RsyncException {
+        PatchImplementation implementation = patchImplementation;
+        if (implementation == PatchImplementation.JAVA
+                || (implementation == PatchImplementation.AUTO && nativePatchUnavailable)) {
+            JavaPatcher.generatePatch(jobTag, baseFileSeeker, deltaProducer, patchConsumer, inBuf,
+                                      outBuf, rsyncStats);
+            return;
+        }
+        try {
+            generatePatchNative(jobTag, baseFileSeeker, deltaProducer, patchConsumer, inBuf,
+                                outBuf, rsyncStats);
+        } catch (UnsatisfiedLinkError e) {
+            if (implementation != PatchImplementation.AUTO) {
+                throw e;
+            }
+            // patchBegin() is the first native call, so nothing has been read from deltaProducer
+            LOGGER.log(Level.INFO, "Native patch is unavailable, using JavaPatcher: {0}",
+                       e.getMessage());
+            nativePatchUnavailable = true;
+            JavaPatcher.generatePatch(jobTag, baseFileSeeker, deltaProducer, patchConsumer, inBuf,
+                                      outBuf, rsyncStats);
+        }
+    }
+
+    /**
+     * Selects the implementation used by generatePatch(). The initial value is taken from the
+     * system property PATCH_IMPLEMENTATION_PROPERTY.
+     * 
+     * @param implementation
+     *            NATIVE to always use librsync, JAVA to always use JavaPatcher, or AUTO to use
+     *            librsync unless the native library cannot be linked
+     */
+    public static void setPatchImplementation(PatchImplementation implementation) {
+        if (implementation == null) {
+            throw new IllegalArgumentException("implementation must not be null");
+        }
+        patchImplementation = implementation;
+    }
+
+    /**
+     * @return the implementation used by generatePatch()
+     */
+    public static PatchImplementation getPatchImplementation() {
+        return patchImplementation;
+    }
+
+    /**
+     * Runs a librsync patch job. See generatePatch(Object, RsyncInputSeeker, RsyncInputProducer,
+     * RsyncOutputConsumer, ByteBuffer, ByteBuffer, RsyncStatistics)
+     */
+    private static void generatePatchNative(Object jobTag, RsyncInputSeeker baseFileSeeker,
+                                            RsyncInputProducer deltaProducer,
+                                            RsyncOutputConsumer patchConsumer, ByteBuffer inBuf,
+                                            ByteBuffer outBuf, RsyncStatistics rsyncStats)
+            throws IOException, RsyncException {
+        PatchBeginResult result = new PatchBeginResult();
+        ByteBuffer[] mappedWindows = null;
+        long mappedWindowSize = 0;
+        if (baseFileSeeker instanceof MappedFileInputSeeker) {
+            mappedWindows = ((MappedFileInputSeeker) baseFileSeeker).getWindows();
+            mappedWindowSize = ((MappedFileInputSeeker) baseFileSeeker).getWindowSize();
+        }
+        try {
+            validateResult(patchBegin(baseFileSeeker, mappedWindows, mappedWindowSize, result),
+                           "patchBegin");
+            runJobToCompletion(jobTag, result.jobPointer, deltaProducer, patchConsumer,
+                               baseFileSeeker, result.argPointer, inBuf, outBuf,
+                               RsyncMetrics.Phase.PATCH, rsyncStats);
+        } finally {
+            if (result.jobPointer != 0) {
+                try {
+                    freeJob(result.jobPointer, result.argPointer);
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Error freeing patch job", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Generate an rsync patch from a base file and a previously generated librsync delta, using
+     * input and output buffers from the default DirectBufferPool. See generatePatch(Object,
+     * RsyncInputSeeker, RsyncInputProducer, RsyncOutputConsumer, ByteBuffer, ByteBuffer,
+     * RsyncStatistics)
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param baseFileSeeker
+     *            Provides requested chunks of the base file
+     * @param deltaProducer
+     *            Provides the delta previously generated by librsync
+     * @param patchConsumer
+     *            Consumes the patch generated by librsync
+     * @param rsyncStats
+     *            Optional object to hold statistics about the rsync job. If non-null, then the
+     *            statistics will be gathered and written to this object.
+     * @throws IOException
+     *             if thrown from deltaProducer or patchConsumer
+     * @throws RsyncException
+     *             if the rsync job returned anything other than RS_DONE, including if the
+     *             baseFileSeeker threw an exception or returned null
+     */
+    public static void generatePatch(Object jobTag, RsyncInputSeeker baseFileSeeker,
+                                     RsyncInputProducer deltaProducer,
+                                     RsyncOutputConsumer patchConsumer, RsyncStatistics rsyncStats)
+            throws IOException, RsyncException {
+        DirectBufferPool pool = DirectBufferPool.getDefault();
+        ByteBuffer inBuf = pool.acquire(DEFAULT_BUFFER_SIZE);
+        ByteBuffer outBuf = pool.acquire(DEFAULT_BUFFER_SIZE);
+        try {
+            generatePatch(jobTag, baseFileSeeker, deltaProducer, patchConsumer, inBuf, outBuf,
+                          rsyncStats);
+        } finally {
+            pool.release(inBuf);
+            pool.release(outBuf);
+        }
+    }
+
+    /**
+     * Regenerates a changed file from its base file and a delta, and at the same time generates
+     * the signature of the changed file, for the next delta against it. Each chunk of the patch
+     * output is passed to a signature job once patchConsumer has consumed it, so the new file
+     * does not have to be read again by generateSignature(). The new signature is identical to
+     * the one generateSignature() would produce with the same options. The patch is applied by
+     * librsync or JavaPatcher as for generatePatch(), and the signature by librsync or
+     * JavaSignatureGenerator to match.
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param baseFileSeeker
+     *            used by librsync to retrieve specific parts of the base file
+     * @param deltaProducer
+     *            produces the delta
+     * @param patchConsumer
+     *            consumes the new file produced by the patch
+     * @param newSignatureOptions
+     *            the signature type, block length and strong sum length of the new file's
+     *            signature
+     * @param newSignatureConsumer
+     *            consumes the signature of the new file
+     * @param inBuf
+     *            The direct byte buffer that will be passed to the deltaProducer
+     * @param outBuf
+     *            The direct byte buffer into which the patch will be written, and that is passed to
+     *            the patchConsumer
+     * @param rsyncStats
+     *            Optional object to hold statistics about the patch job. If non-null, then the
+     *            statistics will be gathered and written to this object.
+     * @throws IOException
+     *             if thrown from deltaProducer or a consumer
+     * @throws RsyncException
+     *             if either rsync job returned anything other than RS_DONE, including if the
+     *             baseFileSeeker threw an exception or returned null
+     */
+    public static void generatePatchAndSignature(Object jobTag, RsyncInputSeeker baseFileSeeker,
+                                                 RsyncInputProducer deltaProducer,
+                                                 RsyncOutputConsumer patchConsumer,
+                                                 SignatureOptions newSignatureOptions,
+                                                 RsyncOutputConsumer newSignatureConsumer,
+                                                 ByteBuffer inBuf, ByteBuffer outBuf,
+                                                 RsyncStatistics rsyncStats)
+            throws IOException, RsyncException {
+        PatchImplementation implementation = patchImplementation;
+        boolean java = (implementation == PatchImplementation.JAVA
+                || (implementation == PatchImplementation.AUTO && nativePatchUnavailable));
+        SignatureTee tee;
+        try {
+            tee = new SignatureTee(jobTag, null, patchConsumer, newSignatureOptions,
+                                   newSignatureConsumer, java);
+        } catch (UnsatisfiedLinkError e) {
+            if (implementation != PatchImplementation.AUTO) {
+                throw e;
+            }
+            LOGGER.log(Level.INFO, "Native patch is unavailable, using JavaPatcher: {0}",
+                       e.getMessage());
+            nativePatchUnavailable = true;
+            tee = new SignatureTee(jobTag, null, patchConsumer, newSignatureOptions,
+                                   newSignatureConsumer, true);
+        }
+        try {
+            generatePatch(jobTag, baseFileSeeker, deltaProducer, tee, inBuf, outBuf, rsyncStats);
+            tee.finish();
+        } finally {
+            tee.close();
+        }
+    }
+
+    /**
+     * Regenerates a changed file from its base file and a delta, and at the same time generates
+     * the signature of the changed file, using input and output buffers from the default
+     * DirectBufferPool. See generatePatchAndSignature(Object, RsyncInputSeeker,
+     * RsyncInputProducer, RsyncOutputConsumer, SignatureOptions, RsyncOutputConsumer, ByteBuffer,
+     * ByteBuffer, RsyncStatistics)
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param baseFileSeeker
+     *            used by librsync to retrieve specific parts of the base file
+     * @param deltaProducer
+     *            produces the delta
+     * @param patchConsumer
+     *            consumes the new file produced by the patch
+     * @param newSignatureOptions
+     *            the signature type, block length and strong sum length of the new file's
+     *            signature
+     * @param newSignatureConsumer
+     *            consumes the signature of the new file
+     * @param rsyncStats
+     *            Optional object to hold statistics about the patch job. If non-null, then the
+     *            statistics will be gathered and written to this object.
+     * @throws IOException
+     *             if thrown from deltaProducer or a consumer
+     * @throws RsyncException
+     *             if either rsync job returned anything other than RS_DONE
+     */
+    public static void generatePatchAndSignature(Object jobTag, RsyncInputSeeker baseFileSeeker,
+                                                 RsyncInputProducer deltaProducer,
+                                                 RsyncOutputConsumer patchConsumer,
+                                                 SignatureOptions newSignatureOptions,
+                                                 RsyncOutputConsumer newSignatureConsumer,
+                                                 RsyncStatistics rsyncStats)
+            throws IOException, RsyncException {
+        DirectBufferPool pool = DirectBufferPool.getDefault();
+        ByteBuffer inBuf = pool.acquire(DEFAULT_BUFFER_SIZE);
+        ByteBuffer outBuf = pool.acquire(DEFAULT_BUFFER_SIZE);
+        try {
+            generatePatchAndSignature(jobTag, baseFileSeeker, deltaProducer, patchConsumer,
+                                      newSignatureOptions, newSignatureConsumer, inBuf, outBuf,
+                                      rsyncStats);
+        } finally {
+            pool.release(inBuf);
+            pool.release(outBuf);
+        }
+    }
+
+    /**
+     * Generates the rsync signature of data held in memory. Heap data is read by librsync in place,
+     * without being staged through a direct buffer, and the signature is written straight into a
+     * heap array of exactly the right size. Data of at most getJavaSignatureThreshold() bytes is
+     * signed by JavaSignatureGenerator.
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param data
+     *            the data, between its position and limit. The buffer's position is not changed.
+     *            A direct buffer is first copied to the heap; the producer based methods avoid
+     *            that.
+     * @param options
+     *            the signature type, block length and strong sum length
+     * @param rsyncStats
+     *            Optional object to hold statistics about the rsync job. If non-null, then the
+     *            statistics will be gathered and written to this object.
+     * @return a heap buffer holding the signature, between position 0 and its limit
+     * @throws RsyncException
+     *             if the rsync job returned anything other than RS_DONE
+     */
+    public static ByteBuffer generateSignature(Object jobTag, ByteBuffer data,
+                                               SignatureOptions options,
+                                               RsyncStatistics rsyncStats)
+            throws RsyncException {
+        if (data.remaining() <= javaSignatureThreshold) {
+            return ByteBuffer.wrap(JavaSignatureGenerator.generateSignature(data, options));
+        }
+        ByteBuffer signature = ByteBuffer.allocate((int) options
+                .getSignatureLength(data.remaining()));
+        long job = signatureBegin(options.getBlockLength(), options.getStrongLength(),
+                                  options.getType().getMagic());
+        try {
+            signature = runJobToCompletion(jobTag, job, onHeap(data), signature, null, 0,
+                                           RsyncMetrics.Phase.SIGNATURE, rsyncStats);
+        } finally {
+            freeJob(job);
+        }
+        signature.flip();
+        return signature;
+    }
+
+    /**
+     * Generates the rsync signature of a byte array. See generateSignature(Object, ByteBuffer,
+     * SignatureOptions, RsyncStatistics)
+     *
+     * @return the signature
+     */
+    public static byte[] generateSignature(Object jobTag, byte[] data, SignatureOptions options,
+                                           RsyncStatistics rsyncStats) throws RsyncException {
+        return generateSignature(jobTag, ByteBuffer.wrap(data), options, rsyncStats).array();
+    }
+
+    /**
+     * Loads an rsync signature held in memory and builds its hash table. Heap data is read by
+     * librsync in place. See loadSignature(Object, RsyncInputProducer, ByteBuffer, ByteBuffer,
+     * RsyncStatistics)
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param signature
+     *            the signature, between its position and limit. The buffer's position is not
+     *            changed.
+     * @param rsyncStats
+     *            Optional object to hold statistics about the rsync job
+     * @return the loaded and hashed signature, which must be closed
+     * @throws RsyncException
+     *             if the rsync job returned anything other than RS_DONE
+     */
+    public static LoadedSignature loadSignature(Object jobTag, ByteBuffer signature,
+                                                RsyncStatistics rsyncStats)
+            throws RsyncException {
+        LoadSignatureResult loadSigResult = new LoadSignatureResult();
+        boolean loaded = false;
+        try {
+            validateResult(loadSignatureBegin(loadSigResult), "loadSignatureBegin");
+            runJobToCompletion(jobTag, loadSigResult.jobPointer, onHeap(signature), null, null, 0,
+                               RsyncMetrics.Phase.SIGNATURE_LOAD, rsyncStats);
+            freeJob(loadSigResult.jobPointer);
+            loadSigResult.jobPointer = 0;
+
+            buildHashTable(loadSigResult.signaturePointer);
+            loaded = true;
+            int blockLength = 1;
+            if (signature.remaining() >= SignatureOptions.HEADER_LENGTH) {
+                blockLength = Math.max(1, signature.duplicate().getInt(signature.position() + 4));
+            }
+            return new LoadedSignature(loadSigResult.signaturePointer, blockLength);
+        } finally {
+            if (loadSigResult.jobPointer != 0) {
+                freeJob(loadSigResult.jobPointer);
+            }
+            if (!loaded && loadSigResult.signaturePointer != 0) {
+                freeLoadedSignature(loadSigResult.signaturePointer);
+            }
+        }
+    }
+
+    /**
+     * Generates an rsync delta from a base file signature and new data, all held in memory. Heap
+     * data is read by librsync in place, and the delta is written straight into a heap array sized
+     * for a delta of all literal data, which is only grown if the delta turns out to be larger.
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param signature
+     *            the signature of the base file, between its position and limit. The buffer's
+     *            position is not changed.
+     * @param newData
+     *            the new data, between its position and limit. The buffer's position is not
+     *            changed.
+     * @param rsyncStats
+     *            Optional object to hold statistics about the rsync jobs
+     * @return a heap buffer holding the delta, between position 0 and its limit
+     * @throws RsyncException
+     *             if an rsync job returned anything other than RS_DONE
+     */
+    public static ByteBuffer generateDelta(Object jobTag, ByteBuffer signature,
+                                           ByteBuffer newData, RsyncStatistics rsyncStats)
+            throws RsyncException {
+        LoadedSignature loaded = loadSignature(jobTag, signature, null);
+        try {
+            return generateDelta(jobTag, loaded, newData, rsyncStats);
+        } finally {
+            loaded.close();
+        }
+    }
+
+    /**
+     * Generates an rsync delta from a previously loaded base file signature and new data held in
+     * memory. See generateDelta(Object, ByteBuffer, ByteBuffer, RsyncStatistics)
+     *
+     * @param signature
+     *            the loaded signature of the base file. It is not closed by this method.
+     * @return a heap buffer holding the delta, between position 0 and its limit
+     */
+    public static ByteBuffer generateDelta(Object jobTag, LoadedSignature signature,
+                                           ByteBuffer newData, RsyncStatistics rsyncStats)
+            throws RsyncException {
+        // an all-literal delta is the magic number, a literal command of at most 9 bytes for
+        // each block, the data and the END command
+        long length = newData.remaining();
+        long bound = 4 + length + 9 * (length / signature.blockLength() + 1) + 1;
+        ByteBuffer delta = ByteBuffer.allocate((int) Math.min(bound, MAX_ARRAY_LENGTH));
+
+        signature.retain();
+        long deltaJob = 0;
+        try {
+            deltaJob = deltaBegin(signature.pointer());
+            delta = runJobToCompletion(jobTag, deltaJob, onHeap(newData), delta, null, 0,
+                                       RsyncMetrics.Phase.DELTA, rsyncStats);
+        } finally {
+            if (deltaJob != 0) {
+                freeJob(deltaJob);
+            }
+            signature.close();
+        }
+        delta.flip();
+        return delta;
+    }
+
+    /**
+     * Generates an rsync delta from a base file signature and a byte array. See
+     * generateDelta(Object, ByteBuffer, ByteBuffer, RsyncStatistics)
+     *
+     * @return the delta
+     */
+    public static byte[] generateDelta(Object jobTag, byte[] signature, byte[] newData,
+                                       RsyncStatistics rsyncStats) throws RsyncException {
+        return toArray(generateDelta(jobTag, ByteBuffer.wrap(signature), ByteBuffer.wrap(newData),
+                                     rsyncStats));
+    }
+
+    /**
+     * Generates an rsync patch from a base file and a delta, all held in memory. The output length
+     * is read from the delta's commands first, so the patch is written straight into a heap array
+     * of exactly the right size. The patch is applied by librsync, which reads heap data in place
+     * and serves COPY commands straight from the base, or by JavaPatcher, as selected by
+     * setPatchImplementation(); both produce identical output.
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param base
+     *            the base file, between its position and limit. The buffer's position is not
+     *            changed. It may be a heap or a direct buffer.
+     * @param delta
+     *            the delta, between its position and limit. The buffer's position is not changed.
+     * @param rsyncStats
+     *            Optional object to hold statistics about the rsync job
+     * @return a heap buffer holding the patch, between position 0 and its limit
+     * @throws IOException
+     *             if the delta ends before its END command
+     * @throws RsyncException
+     *             if the delta is invalid, or the rsync job returned anything other than RS_DONE
+     */
+    public static ByteBuffer generatePatch(Object jobTag, ByteBuffer base, ByteBuffer delta,
+                                           RsyncStatistics rsyncStats) throws IOException,
+            RsyncException {
+        long length = DeltaAnalyzer.analyze(delta).getOutputLength();
+        if (length > MAX_ARRAY_LENGTH) {
+            throw new IllegalArgumentException(String.format(
+                    "A %d byte patch does not fit in an array", length));
+        }
+        ByteBuffer patch = ByteBuffer.allocate((int) length);
+
+        PatchImplementation implementation = patchImplementation;
+        if (implementation == PatchImplementation.JAVA
+                || (implementation == PatchImplementation.AUTO && nativePatchUnavailable)) {
+            JavaPatcher.generatePatch(jobTag, base, delta, patch, rsyncStats);
+        } else {
+            try {
+                generatePatchNative(jobTag, base, delta, patch, rsyncStats);
+            } catch (UnsatisfiedLinkError e) {
+                if (implementation != PatchImplementation.AUTO) {
+                    throw e;
+                }
+                LOGGER.log(Level.INFO, "Native patch is unavailable, using JavaPatcher: {0}",
+                           e.getMessage());
+                nativePatchUnavailable = true;
+                JavaPatcher.generatePatch(jobTag, base, delta, patch, rsyncStats);
+            }
+        }
+        patch.flip();
+        return patch;
+    }
+
+    /**
+     * Generates an rsync patch from a base file and a delta held in byte arrays. See
+     * generatePatch(Object, ByteBuffer, ByteBuffer, RsyncStatistics)
+     *
+     * @return the patch
+     */
+    public static byte[] generatePatch(Object jobTag, byte[] base, byte[] delta,
+                                       RsyncStatistics rsyncStats) throws IOException,
+            RsyncException {
+        return generatePatch(jobTag, ByteBuffer.wrap(base), ByteBuffer.wrap(delta), rsyncStats)
+                .array();
+    }
+
+    /**
+     * Runs a librsync patch job over a base file and a delta held in memory. A heap base is read
+     * in place with iterateJobArray(); a direct base is served like a mapped base file.
+     */
+    private static void generatePatchNative(Object jobTag, ByteBuffer base, ByteBuffer delta,
+                                            ByteBuffer patch, RsyncStatistics rsyncStats)
+            throws RsyncException {
+        PatchBeginResult result = new PatchBeginResult();
+        ByteBuffer[] mappedWindows = null;
+        long mappedWindowSize = 0;
+        if (!base.hasArray()) {
+            mappedWindows = new ByteBuffer[] { base.slice() };
+            mappedWindowSize = Math.max(1, base.remaining());
+        }
+        try {
+            validateResult(patchBegin(null, mappedWindows, mappedWindowSize, result),
+                           "patchBegin");
+            runJobToCompletion(jobTag, result.jobPointer, onHeap(delta), patch,
+                               (base.hasArray() ? base : null), result.argPointer,
+                               RsyncMetrics.Phase.PATCH, rsyncStats);
+        } finally {
+            if (result.jobPointer != 0) {
+                freeJob(result.jobPointer, result.argPointer);
+            }
+        }
+    }
+
+    /**
+     * @return buf if it is backed by an accessible array, otherwise a heap copy of it
+     */
+    private static ByteBuffer onHeap(ByteBuffer buf) {
+        if (buf.hasArray()) {
+            return buf;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(buf.remaining());
+        copy.put(buf.duplicate());
+        copy.flip();
+        return copy;
+    }
+
+    /**
+     * @return the contents of buf, between position 0 and its limit, without a copy if they fill
+     *         its whole array
+     */
+    private static byte[] toArray(ByteBuffer buf) {
+        if (buf.arrayOffset() == 0 && buf.limit() == buf.array().length) {
+            return buf.array();
         }
+        return Arrays.copyOfRange(buf.array(), buf.arrayOffset(), buf.arrayOffset()
+                + buf.limit());
     }
 
     /**
-     * Generates an rsync signature for a file.
+     * Generate an rsync patch from a base file and a previously generated librsync delta, reading
+     * the base file ranges of upcoming COPY commands in the background while the patch job runs.
+     * This hides the latency of each base file read when the base file is on slow storage. See
+     * PrefetchingInputSeeker.
      *
      * @param jobTag
      *            the toString() of this is just used in LOGGER messages to identify the job
-     * @param fileProducer
-     *            produces the contents of the file for which the signature is generated
-     * @param signatureConsumer
-     *            consumes the output signature
-     * @param blockSize
-     *            the rsync block size to use when generating the signature
+     * @param baseFile
+     *            the base file. It is read with positional reads, and is not closed.
+     * @param deltaProducer
+     *            Provides the delta previously generated by librsync
+     * @param patchConsumer
+     *            Consumes the patch generated by librsync
      * @param inBuf
-     *            The direct byte buffer that will be passed to the fileProducer, and from which the
-     *            input will be read
+     *            The direct byte buffer that will be passed to the deltaProducer, and from which
+     *            the delta will be read
      * @param outBuf
-     *            The direct byte buffer into which the signature will be written, and that is
-     *            passed to the signatureConsumer
+     *            The direct byte buffer into which the patch will be written, and that is passed to
+     *            the patchConsumer
      * @param rsyncStats
      *            Optional object to hold statistics about the rsync job. If non-null, then the
-     *            statistics will be gathered and written to this object.
+     *            statistics will be gathered and written to this object. Seeks served from
+     *            prefetched data are counted as cache hits.
      * @throws IOException
-     *             if thrown from fileProducer or signatureConsumer
+     *             if thrown from deltaProducer or patchConsumer
      * @throws RsyncException
-     *             if the rsync job returned anything other than RS_DONE
+     *             if the rsync job returned anything other than RS_DONE, or the delta is not in
+     *             the librsync delta format
      */
-    public static void generateSignature(Object jobTag, RsyncInputProducer fileProducer,
-                                         RsyncOutputConsumer signatureConsumer, int blockSize,
-                                         ByteBuffer inBuf, ByteBuffer outBuf,
-                                         RsyncStatistics rsyncStats)
+    public static void generatePatchPrefetching(Object jobTag, FileChannel baseFile,
+                                                RsyncInputProducer deltaProducer,
+                                                RsyncOutputConsumer patchConsumer,
+                                                ByteBuffer inBuf, ByteBuffer outBuf,
+                                                RsyncStatistics rsyncStats)
             throws IOException, RsyncException {
-        long job = signatureBegin(blockSize);
+        PrefetchingInputSeeker seeker = new PrefetchingInputSeeker(baseFile, deltaProducer,
+                                                                   rsyncStats);
         try {
-            runJobToCompletion(jobTag, job, fileProducer, signatureConsumer, null, 0, inBuf,
-                               outBuf, rsyncStats);
+            generatePatch(jobTag, seeker, seeker.getDeltaProducer(), patchConsumer, inBuf,
+                          outBuf, rsyncStats);
         } finally {
-            freeJob(job);
+            seeker.close();
         }
     }
 
     /**
-     * Generates an rsync delta from a base file signature and a changed file
+     * Generate an rsync patch from a base file and a previously generated librsync delta,
+     * prefetching the base file, and using input and output buffers from the default
+     * DirectBufferPool. See generatePatchPrefetching(Object, FileChannel, RsyncInputProducer,
+     * RsyncOutputConsumer, ByteBuffer, ByteBuffer, RsyncStatistics)
      *
      * @param jobTag
      *            the toString() of this is just used in LOGGER messages to identify the job
-     * @param signatureProducer
-     *            produces the signature of the base file
-     * @param newFileProducer
-     *            produces the contents of the new file
-     * @param deltaConsumer
-     *            consumes the delta produced by librsync
-     * @param inBuf
-     *            The direct byte buffer that will be passed to the signatureProducer, and from
-     *            which the signature will be read
-     * @param outBuf
-     *            The direct byte buffer into which the delta will be written, and that is passed to
-     *            the deltaConsumer
+     * @param baseFile
+     *            the base file. It is read with positional reads, and is not closed.
+     * @param deltaProducer
+     *            Provides the delta previously generated by librsync
+     * @param patchConsumer
+     *            Consumes the patch generated by librsync
      * @param rsyncStats
      *            Optional object to hold statistics about the rsync job. If non-null, then the
      *            statistics will be gathered and written to this object.
      * @throws IOException
-     *             if thrown from signatureProducer or deltaConsumer
+     *             if thrown from deltaProducer or patchConsumer
      * @throws RsyncException
-     *             if the rsync job returned anything other than RS_DONE
+     *             if the rsync job returned anything other than RS_DONE, or the delta is not in
+     *             the librsync delta format
      */
-    public static void generateDelta(Object jobTag, RsyncInputProducer signatureProducer,
-                                     RsyncInputProducer newFileProducer,
-                                     RsyncOutputConsumer deltaConsumer,
-                                     ByteBuffer inBuf, ByteBuffer outBuf, RsyncStatistics rsyncStats)
+    public static void generatePatchPrefetching(Object jobTag, FileChannel baseFile,
+                                                RsyncInputProducer deltaProducer,
+                                                RsyncOutputConsumer patchConsumer,
+                                                RsyncStatistics rsyncStats)
             throws IOException, RsyncException {
-
-        LoadSignatureResult loadSigResult = new LoadSignatureResult();
-        long deltaJob = 0;
+        DirectBufferPool pool = DirectBufferPool.getDefault();
+        ByteBuffer inBuf = pool.acquire(DEFAULT_BUFFER_SIZE);
+        ByteBuffer outBuf = pool.acquire(DEFAULT_BUFFER_SIZE);
         try {
-            // load the signature
-            validateResult(loadSignatureBegin(loadSigResult), "loadSignatureBegin");
-
-            runJobToCompletion(jobTag, loadSigResult.jobPointer, signatureProducer, null, null, 0,
-                               inBuf, outBuf, rsyncStats);
-
-            freeJob(loadSigResult.jobPointer);
-            loadSigResult.jobPointer = 0; // clear it out so we don't free the job again in finally
-                                          // block
-
-            // hash the signature
-            validateResult(buildSignatureHashTable(loadSigResult.signaturePointer),
-                           "build signature hash table");
-
-            // compute delta between two files
-            deltaJob = deltaBegin(loadSigResult.signaturePointer);
-            runJobToCompletion("delta - " + jobTag.toString(), deltaJob, newFileProducer,
-                               deltaConsumer, null, 0, inBuf, outBuf, rsyncStats);
+            generatePatchPrefetching(jobTag, baseFile, deltaProducer, patchConsumer, inBuf,
+                                     outBuf, rsyncStats);
         } finally {
-            if (loadSigResult.jobPointer != 0) {
-                try {
-                    freeJob(loadSigResult.jobPointer);
-                } catch (Exception e) {
-                    LOGGER.log(Level.WARNING, "Error freeing signature job", e);
-                }
-            }
-
-            if (deltaJob != 0) {
-                try {
-                    freeJob(deltaJob);
-                } catch (Exception e) {
-                    LOGGER.log(Level.WARNING, "Error freeing delta job", e);
-                }
-            }
+            pool.release(inBuf);
+            pool.release(outBuf);
+        }
+    }
 
-            if (loadSigResult.signaturePointer != 0) {
-                try {
-                    freeLoadedSignature(loadSigResult.signaturePointer);
-                } catch (Exception e) {
-                    LOGGER.log(Level.WARNING, "Error freeing loaded signature", e);
-                }
-            }
+    /**
+     * Generate an rsync patch from a base file and a previously generated librsync delta, applying
+     * ranges of the delta in parallel. The delta is indexed first, to find the output position of
+     * its commands, and then ranges of it are applied concurrently with positional reads of the
+     * base file and delta, and positional writes of the patch. The patch is applied in Java, and
+     * is identical to the one librsync would produce. See ParallelPatcher.
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param baseFile
+     *            the base file. It is read with positional reads, and is not closed.
+     * @param delta
+     *            the delta previously generated by librsync. It is read with positional reads,
+     *            and is not closed.
+     * @param patch
+     *            the file the patch is written to, from position 0. It is truncated to the length
+     *            of the patch, and is not closed.
+     * @param executor
+     *            runs the range jobs. If null, a shared pool of daemon threads, one per
+     *            processor, is used.
+     * @param rsyncStats
+     *            Optional object to hold statistics about the patch. If non-null, then the
+     *            statistics of all of the ranges will be merged into this object.
+     * @throws IOException
+     *             if thrown from any of the channels, or the base file is shorter than the delta
+     *             requires
+     * @throws RsyncException
+     *             if the delta is not in the librsync delta format
+     */
+    public static void generatePatchParallel(Object jobTag, FileChannel baseFile,
+                                             FileChannel delta, FileChannel patch,
+                                             Executor executor, RsyncStatistics rsyncStats)
+            throws IOException, RsyncException {
+        new ParallelPatcher(jobTag, baseFile, delta, executor).patch(patch, rsyncStats);
+        if (rsyncStats != null) {
+            LOGGER.log(Level.INFO, "Completed parallel patch {0} with stats: {1}", new Object[] {
+                    jobTag, rsyncStats });
         }
     }
 
     /**
-     * Generate an rsync patch (reconstituted changed file) from a base file and a previously
-     * generated librsync delta
+     * Generate an rsync patch from a base file and a previously generated librsync delta, applying
+     * ranges of the delta in parallel. See generatePatchParallel(Object, FileChannel, FileChannel,
+     * FileChannel, Executor, RsyncStatistics)
      *
      * @param jobTag
      *            the toString() of this is just used in LOGGER messages to identify the job
-     * @param baseFileSeeker
-     *            Provides requested chunks of the base file
-     * @param deltaProducer
-     *            Provides the delta previously generated by librsync
-     * @param patchConsumer
-     *            Consumes the patch generated by librsync
-     * @param inBuf
-     *            The direct byte buffer that will be passed to the deltaProducer, and from which
-     *            the delta will be read
-     * @param outBuf
-     *            The direct byte buffer into which the patch will be written, and that is passed to
-     *            the patchConsumer
+     * @param baseFile
+     *            the base file
+     * @param delta
+     *            the delta previously generated by librsync
+     * @param patch
+     *            the file the patch is written to. It is created or replaced.
+     * @param executor
+     *            runs the range jobs. If null, a shared pool of daemon threads, one per
+     *            processor, is used.
      * @param rsyncStats
-     *            Optional object to hold statistics about the rsync job. If non-null, then the
-     *            statistics will be gathered and written to this object.
+     *            Optional object to hold statistics about the patch. If non-null, then the
+     *            statistics of all of the ranges will be merged into this object.
      * @throws IOException
-     *             if thrown from deltaProducer or patchConsumer
+     *             if thrown reading or writing any of the files
      * @throws RsyncException
-     *             if the rsync job returned anything other than RS_DONE, including if the
-     *             baseFileSeeker threw an exception or returned null
+     *             if the delta is not in the librsync delta format
      */
-    public static void generatePatch(Object jobTag, RsyncInputSeeker baseFileSeeker,
-                                     RsyncInputProducer deltaProducer,
-                                     RsyncOutputConsumer patchConsumer, ByteBuffer inBuf,
-                                     ByteBuffer outBuf, RsyncStatistics rsyncStats)
+    public static void generatePatchParallel(Object jobTag, File baseFile, File delta,
+                                             File patch, Executor executor,
+                                             RsyncStatistics rsyncStats)
             throws IOException, RsyncException {
-        PatchBeginResult result = new PatchBeginResult();
+        RandomAccessFile baseRAF = new RandomAccessFile(baseFile, "r");
         try {
-            validateResult(patchBegin(baseFileSeeker, result), "patchBegin");
-            runJobToCompletion(jobTag, result.jobPointer, deltaProducer,
-                               patchConsumer,
-                               baseFileSeeker, result.argPointer, inBuf, outBuf, rsyncStats);
-        } finally {
-            if (result.jobPointer != 0) {
+            RandomAccessFile deltaRAF = new RandomAccessFile(delta, "r");
+            try {
+                RandomAccessFile patchRAF = new RandomAccessFile(patch, "rw");
                 try {
-                    freeJob(result.jobPointer, result.argPointer);
-                } catch (Exception e) {
-                    LOGGER.log(Level.WARNING, "Error freeing patch job", e);
+                    generatePatchParallel(jobTag, baseRAF.getChannel(), deltaRAF.getChannel(),
+                                          patchRAF.getChannel(), executor, rsyncStats);
+                } finally {
+                    patchRAF.close();
                 }
+            } finally {
+                deltaRAF.close();
             }
+        } finally {
+            baseRAF.close();
         }
     }
 
     /**
      * Begin signature creation on a file. Calls librsync's rs_sig_begin().
      *
+     * @param blockSize
+     *            the rsync block length
+     * @param strongLength
+     *            the number of bytes of each strong sum to keep
+     * @param magic
+     *            the signature magic number, which selects the signature type
      * @return a long, which is a pointer to the C rs_job_t
      */
-    private static native long signatureBegin(int blockSize);
+    private static native long signatureBegin(int blockSize, int strongLength, int magic);
+
+    /**
+     * Generate the signatures of a batch of inputs. Calls librsync's rs_sig_begin(),
+     * rs_job_iter() and rs_job_free() for each input in turn.
+     *
+     * @param inputs
+     *            the direct buffer holding the inputs
+     * @param offsets
+     *            the offset of each input in inputs
+     * @param lengths
+     *            the length of each input
+     * @param count
+     *            the number of inputs
+     * @param outBuffer
+     *            the direct buffer into which the signatures are written
+     * @param outOffsets
+     *            the offset in outBuffer of each signature
+     * @param outLengths
+     *            the exact length of each signature
+     * @return RS_DONE, or the rs_result of the first input that failed in the low 32 bits and
+     *         its index in the high 32 bits
+     */
+    private static native long signatureBatch(ByteBuffer inputs, int[] offsets, int[] lengths,
+                                              int count, ByteBuffer outBuffer, int[] outOffsets,
+                                              int[] outLengths, int blockSize, int strongLength, int magic);
 
     /**
      * Begin loading a signature. Calls librsync's rs_loadsig_begin()
@@ -327,9 +2366,18 @@ public class LibrsyncWrapper {
     /**
      * Start applying a delta to a basis to recreate the new file. Calls librsync's rs_patch_begin()
      *
-     * @return
+     * @param baseFileSeeker
+     *            provides chunks of the base file, unless mappedWindows is provided
+     * @param mappedWindows
+     *            if non-null, the direct buffers mapping the whole base file, which the job then
+     *            reads directly. They must stay reachable until the job is freed.
+     * @param mappedWindowSize
+     *            the size of every mapped window except possibly the last
+     * @return RsyncStatus value
      */
-    private static native long patchBegin(RsyncInputSeeker baseFileSeeker, PatchBeginResult result);
+    private static native long patchBegin(RsyncInputSeeker baseFileSeeker,
+                                          ByteBuffer[] mappedWindows, long mappedWindowSize,
+                                          PatchBeginResult result);
 
     /**
      * Iterate (once) over a job. Calls librsync's rs_job_iter(). This should be called repeatedly
@@ -355,13 +2403,27 @@ public class LibrsyncWrapper {
      *            Only used by patch job. Provides chunks of the base file
      * @param patchArg
      *            Only used by a patch job. This value must have been returned by patchBegin()
-     * @return an rs_result
+     * @return the input consumed, output produced and RS_DONE flag packed as described at
+     *         ITERATE_COUNT_BITS, or a negated rs_result if the job failed
      */
     private static native long iterateJob(long job, ByteBuffer inBuffer, int inPosition,
                                           int inLimit, boolean isLastInput,
                                           ByteBuffer outBuffer, int outPosition, int outLimit,
                                           RsyncInputSeeker patchBaseFileSeeker, long patchArg);
 
+    /**
+     * Iterate (once) over a job, reading and writing Java byte arrays in place. Takes the same
+     * arguments as iterateJob(), except that a patch job reads its base file from the baseLength
+     * bytes at baseOffset in patchBase instead of from an RsyncInputSeeker.
+     *
+     * @return the input consumed, output produced and RS_DONE flag packed as described at
+     *         ITERATE_COUNT_BITS, or a negated rs_result if the job failed
+     */
+    private static native long iterateJobArray(long job, byte[] in, int inPosition, int inLimit,
+                                               boolean isLastInput, byte[] out, int outPosition,
+                                               int outLimit, byte[] patchBase, int baseOffset,
+                                               int baseLength, long patchArg);
+
     /**
      * Free job resources. Calls librsync's rs_job_free(); This method MUST BE CALLED after a job is
      * completed to free resources associated with the job.
@@ -380,7 +2442,17 @@ public class LibrsyncWrapper {
      *            pointer to the signature that was loaded. Must be the value returned in the result
      *            from signatureBegin()
      */
-    private static native void freeLoadedSignature(long signaturePointer);
+    static native void freeLoadedSignature(long signaturePointer);
+
+    /**
+     * Builds the hash table of a loaded signature, recording the time taken in RsyncMetrics
+     */
+    private static void buildHashTable(long signaturePointer) throws RsyncException {
+        long startNanos = System.nanoTime();
+        long result = buildSignatureHashTable(signaturePointer);
+        METRICS.recordLatency(RsyncMetrics.Phase.HASH_TABLE_BUILD, startNanos);
+        validateResult(result, "build signature hash table");
+    }
 
     /**
      * Throws an IOException if the resultCode is not RS_DONE
@@ -425,6 +2497,8 @@ public class LibrsyncWrapper {
      * @param outBuf
      *            The direct byte buffer into which the output will be written, and that is passed
      *            to the outputConsumer
+     * @param phase
+     *            the kind of job, under which it is recorded in RsyncMetrics
      * @param rsyncStats
      *            Optional object to hold statistics about the rsync job. If non-null, then the
      *            statistics will be gathered and written to this object.
@@ -439,104 +2513,399 @@ public class LibrsyncWrapper {
                                            RsyncOutputConsumer outputConsumer,
                                            RsyncInputSeeker patchBaseFileSeeker,
                                            long patchArg, ByteBuffer inBuf,
-                                           ByteBuffer outBuf, RsyncStatistics jobStats)
+                                           ByteBuffer outBuf, RsyncMetrics.Phase phase,
+                                           RsyncStatistics jobStats)
+            throws IOException, RsyncException {
+        runJobToCompletion(jobTag, job, inputProducer, outputConsumer, patchBaseFileSeeker,
+                           patchArg, inBuf, 0, false, outBuf, phase, jobStats);
+    }
+
+    /**
+     * Run a job until it is complete, starting with input that has already been produced into
+     * inBuf. See runJobToCompletion(Object, long, RsyncInputProducer, RsyncOutputConsumer,
+     * RsyncInputSeeker, long, ByteBuffer, ByteBuffer, RsyncStatistics)
+     *
+     * @param inputPrefilled
+     *            the number of bytes of input already produced into inBuf, starting at 0
+     * @param doneProducingInput
+     *            true if the inputProducer has already produced all of the input
+     */
+    private static void runJobToCompletion(Object jobTag, long job,
+                                           RsyncInputProducer inputProducer,
+                                           RsyncOutputConsumer outputConsumer,
+                                           RsyncInputSeeker patchBaseFileSeeker,
+                                           long patchArg, ByteBuffer inBuf, int inputPrefilled,
+                                           boolean doneProducingInput, ByteBuffer outBuf,
+                                           RsyncMetrics.Phase phase, RsyncStatistics jobStats)
             throws IOException, RsyncException {
+        int depth = pipelineDepth;
+        // the delta producer of a PrefetchingInputSeeker must run on the thread that seeks
+        if (depth > 0 && !(patchBaseFileSeeker instanceof PrefetchingInputSeeker)) {
+            runJobPipelined(jobTag, job, inputProducer, outputConsumer, patchBaseFileSeeker,
+                            patchArg, inBuf, inputPrefilled, doneProducingInput, outBuf, depth,
+                            phase, jobStats);
+            return;
+        }
 
         RsyncResult result;
         inBuf.clear();
+        inBuf.position(inputPrefilled);
         outBuf.clear();
         outBuf = (outputConsumer == null ? null : outBuf);
 
-        boolean doneProducingInput = false;
         int positionOfNextRead = 0;
 
         if (jobStats != null) {
             jobStats.begin();
         }
 
-        do {
-            if (!doneProducingInput && inBuf.remaining() > 0) {
-                doneProducingInput = inputProducer.produceInput(inBuf); // has to set position
-                                                                        // only
-            }
-            inBuf.flip();
-            if (positionOfNextRead > 0) {
-                inBuf.position(positionOfNextRead); // reset the position back to the mark
-                                                    // (where iterateJob left off reading the
-                                                    // input)
-            }
-
-            int inRemainingBeforeIteration = inBuf.remaining();
-            result = RsyncResult.fromCvalue(
-                    iterateJob(job, inBuf, inBuf.position(), inBuf.limit(), doneProducingInput,
-                               outBuf, (outBuf == null ? 0 : outBuf.position()),
-                               (outBuf == null ? 0 : outBuf.limit()),
-                               patchBaseFileSeeker, patchArg)
-                    );
-            if (result != RsyncResult.RS_DONE && result != RsyncResult.RS_BLOCKED) {
-                LOGGER.log(Level.WARNING,
-                           String.format("Rsync job failed with result %s for job %s",
-                                         result,
-                                         jobTag.toString()));
-                throw new RsyncException(result.cValue);
-            }
-            int inConsumed = inRemainingBeforeIteration - inBuf.remaining();
-            int inNotConsumed = inBuf.remaining();
-            if (inBuf.remaining() > 0) { // some available input was not read by iterateJob()
-                positionOfNextRead = inBuf.position();
-                inBuf.position(inBuf.limit()); // We must write more starting where last write
-                                               // left off; not overwrite previously written but
-                                               // not yet read
-                inBuf.limit(inBuf.capacity()); // So we can write all the way to the end of the
-                                               // buffer
-            } else {
-                inBuf.clear();
-                positionOfNextRead = -1;
-            }
-
-            int outProduced = 0;
-            if (outBuf != null) {
-                outBuf.flip();
-                outProduced = outBuf.remaining();
-                while (outBuf.remaining() > 0) {
-                    outputConsumer.consumeOutput(outBuf);
-                }
-                outBuf.clear();
-            }
-
-            if (jobStats != null) {
-                jobStats.iterations++;
-
-                jobStats.totalInputConsumed += inConsumed;
-                jobStats.maxInputConsumed = Math.max(jobStats.maxInputConsumed, inConsumed);
-                jobStats.minInputConsumed = Math.min(jobStats.minInputConsumed, inConsumed);
-
-                jobStats.totalInputNotConsumed += inNotConsumed;
-                jobStats.maxInputNotConsumed =
-                        Math.max(jobStats.maxInputNotConsumed, inNotConsumed);
-                jobStats.minInputNotConsumed =
-                        Math.min(jobStats.minInputNotConsumed, inNotConsumed);
+        long startNanos = System.nanoTime();
+        long totalInput = 0;
+        long totalOutput = 0;
+        boolean failed = true;
+        try {
+            do {
+                if (!doneProducingInput && inBuf.remaining() > 0) {
+                    long waitNanos = System.nanoTime();
+                    // has to set position only
+                    doneProducingInput = inputProducer.produceInput(inBuf);
+                    METRICS.recordLatency(RsyncMetrics.Phase.PRODUCER_WAIT, waitNanos);
+                }
+                inBuf.flip();
+                if (positionOfNextRead > 0) {
+                    inBuf.position(positionOfNextRead); // reset the position back to the mark
+                                                        // (where iterateJob left off reading the
+                                                        // input)
+                }
+
+                int inPosition = inBuf.position();
+                int outPosition = (outBuf == null ? 0 : outBuf.position());
+                long iterateResult = iterateJob(job, inBuf, inPosition, inBuf.limit(),
+                                                doneProducingInput, outBuf, outPosition,
+                                                (outBuf == null ? 0 : outBuf.limit()),
+                                                patchBaseFileSeeker, patchArg);
+                if (iterateResult < 0) {
+                    LOGGER.log(Level.WARNING,
+                               String.format("Rsync %s job failed with result %s for job %s",
+                                             phase, RsyncResult.fromCvalue(-iterateResult),
+                                             jobTag));
+                    throw new RsyncException(-iterateResult);
+                }
+                result = ((iterateResult & ITERATE_DONE_FLAG) != 0 ? RsyncResult.RS_DONE
+                        : RsyncResult.RS_BLOCKED);
+
+                // iterateJob() does not touch the buffers' positions, so move them past the input
+                // it consumed and the output it produced
+                int inConsumed = (int) (iterateResult & ITERATE_COUNT_MASK);
+                totalInput += inConsumed;
+                inBuf.position(inPosition + inConsumed);
+                if (outBuf != null) {
+                    outBuf.position(outPosition
+                            + (int) ((iterateResult >>> ITERATE_COUNT_BITS) & ITERATE_COUNT_MASK));
+                }
+                int inNotConsumed = inBuf.remaining();
+                if (inBuf.remaining() > 0) { // some available input was not read by iterateJob()
+                    positionOfNextRead = inBuf.position();
+                    inBuf.position(inBuf.limit()); // We must write more starting where last write
+                                                   // left off; not overwrite previously written but
+                                                   // not yet read
+                    inBuf.limit(inBuf.capacity()); // So we can write all the way to the end of the
+                                                   // buffer
+                } else {
+                    inBuf.clear();
+                    positionOfNextRead = -1;
+                }
 
+                int outProduced = 0;
                 if (outBuf != null) {
+                    outBuf.flip();
+                    outProduced = outBuf.remaining();
+                    totalOutput += outProduced;
+                    long waitNanos = System.nanoTime();
+                    while (outBuf.remaining() > 0) {
+                        outputConsumer.consumeOutput(outBuf);
+                    }
+                    METRICS.recordLatency(RsyncMetrics.Phase.CONSUMER_WAIT, waitNanos);
+                    outBuf.clear();
+                }
+
+                if (jobStats != null) {
+                    jobStats.iterations++;
+
+                    jobStats.totalInputConsumed += inConsumed;
+                    jobStats.maxInputConsumed = Math.max(jobStats.maxInputConsumed, inConsumed);
+                    jobStats.minInputConsumed = Math.min(jobStats.minInputConsumed, inConsumed);
+
+                    jobStats.totalInputNotConsumed += inNotConsumed;
+                    jobStats.maxInputNotConsumed =
+                            Math.max(jobStats.maxInputNotConsumed, inNotConsumed);
+                    jobStats.minInputNotConsumed =
+                            Math.min(jobStats.minInputNotConsumed, inNotConsumed);
+
+                    if (outBuf != null) {
+                        jobStats.totalOutputProduced += outProduced;
+                        jobStats.maxOutputProduced = Math.max(jobStats.maxOutputProduced,
+                                                              outProduced);
+                        jobStats.minOutputProduced = Math.min(jobStats.minOutputProduced,
+                                                              outProduced);
+                    }
+
+                    if (LOGGER.isLoggable(Level.FINE)) {
+                        LOGGER.log(Level.FINE,
+                                   "Iteration {0} for rsync job <{1}>: input consumed = {2}, input not consumed = {3}, output produced = {4}, total output produced = {5}",
+                                   new Object[] { jobStats.iterations, jobTag, inConsumed,
+                                           inNotConsumed, outProduced,
+                                           jobStats.totalOutputProduced });
+                    }
+                }
+            } while (result != RsyncResult.RS_DONE);
+            failed = false;
+        } finally {
+            METRICS.recordJob(phase, startNanos, totalInput, totalOutput, failed);
+        }
+
+        if (jobStats != null) {
+            jobStats.end();
+            LOGGER.log(Level.INFO, "Job statistics for job <{0}>: {1}",
+                       new Object[] { jobTag, jobStats.toString() });
+        }
+    }
+
+    /**
+     * Run a job until it is complete, with a JobPipeline producing its input and consuming its
+     * output on other threads while iterateJob() runs. See runJobToCompletion(Object, long,
+     * RsyncInputProducer, RsyncOutputConsumer, RsyncInputSeeker, long, ByteBuffer, int, boolean,
+     * ByteBuffer, RsyncMetrics.Phase, RsyncStatistics)
+     *
+     * @param depth
+     *            the number of buffers the reader and writer may run ahead of the job
+     */
+    private static void runJobPipelined(Object jobTag, long job,
+                                        RsyncInputProducer inputProducer,
+                                        RsyncOutputConsumer outputConsumer,
+                                        RsyncInputSeeker patchBaseFileSeeker, long patchArg,
+                                        ByteBuffer inBuf, int inputPrefilled,
+                                        boolean doneProducingInput, ByteBuffer outBuf, int depth,
+                                        RsyncMetrics.Phase phase, RsyncStatistics jobStats)
+            throws IOException, RsyncException {
+        if (jobStats != null) {
+            jobStats.begin();
+        }
+
+        long startNanos = System.nanoTime();
+        long totalInput = 0;
+        long totalOutput = 0;
+        boolean failed = true;
+        JobPipeline pipeline = new JobPipeline(inputProducer, outputConsumer, inBuf,
+                                               inputPrefilled, doneProducingInput, outBuf, depth);
+        try {
+            ByteBuffer in = pipeline.nextInput(null);
+            ByteBuffer out = pipeline.firstOutput();
+            while (true) {
+                int inPosition = in.position();
+                int outPosition = (out == null ? 0 : out.position());
+                long iterateResult = iterateJob(job, in, inPosition, in.limit(),
+                                                pipeline.isLastInput(), out, outPosition,
+                                                (out == null ? 0 : out.limit()),
+                                                patchBaseFileSeeker, patchArg);
+                if (iterateResult < 0) {
+                    LOGGER.log(Level.WARNING,
+                               String.format("Rsync %s job failed with result %s for job %s",
+                                             phase, RsyncResult.fromCvalue(-iterateResult),
+                                             jobTag));
+                    throw new RsyncException(-iterateResult);
+                }
+
+                int inConsumed = (int) (iterateResult & ITERATE_COUNT_MASK);
+                int outProduced = (int) ((iterateResult >>> ITERATE_COUNT_BITS)
+                        & ITERATE_COUNT_MASK);
+                totalInput += inConsumed;
+                totalOutput += outProduced;
+                in.position(inPosition + inConsumed);
+                if (out != null) {
+                    out.position(outPosition + outProduced);
+                }
+
+                if (jobStats != null) {
+                    jobStats.iterations++;
+                    jobStats.totalInputConsumed += inConsumed;
+                    jobStats.maxInputConsumed = Math.max(jobStats.maxInputConsumed, inConsumed);
+                    jobStats.minInputConsumed = Math.min(jobStats.minInputConsumed, inConsumed);
+                    jobStats.totalInputNotConsumed += in.remaining();
+                    jobStats.maxInputNotConsumed = Math.max(jobStats.maxInputNotConsumed,
+                                                            in.remaining());
+                    jobStats.minInputNotConsumed = Math.min(jobStats.minInputNotConsumed,
+                                                            in.remaining());
+                    if (out != null) {
+                        jobStats.totalOutputProduced += outProduced;
+                        jobStats.maxOutputProduced = Math.max(jobStats.maxOutputProduced,
+                                                              outProduced);
+                        jobStats.minOutputProduced = Math.min(jobStats.minOutputProduced,
+                                                              outProduced);
+                    }
+                }
+
+                if ((iterateResult & ITERATE_DONE_FLAG) != 0) {
+                    pipeline.finish(out);
+                    break;
+                }
+                if (outProduced > 0) {
+                    out = pipeline.nextOutput(out);
+                }
+                // move on once the job has read all of this buffer, or is waiting for more input
+                // than it holds
+                boolean blocked = (inConsumed == 0 && outProduced == 0);
+                boolean stuck = (blocked && pipeline.isLastInput());
+                if (!pipeline.isLastInput() && (blocked || !in.hasRemaining())) {
+                    in = pipeline.nextInput(in);
+                    stuck = (in == null);
+                }
+                if (stuck) {
+                    throw new RsyncException(String.format(
+                            "Rsync job %s is blocked with all of its input available", jobTag),
+                            RsyncResult.RS_INTERNAL_ERROR.cValue);
+                }
+            }
+            failed = false;
+        } finally {
+            pipeline.close();
+            METRICS.recordJob(phase, startNanos, totalInput, totalOutput, failed);
+        }
+
+        if (jobStats != null) {
+            jobStats.end();
+            LOGGER.log(Level.INFO, "Job statistics for job <{0}>: {1}",
+                       new Object[] { jobTag, jobStats.toString() });
+        }
+    }
+
+    /**
+     * Run a job until it is complete, with input taken from a heap buffer and output written into
+     * a heap buffer. The job reads and writes the buffers' arrays in place with iterateJobArray(),
+     * offering at most ARRAY_CHUNK_SIZE bytes of input and of output space per call, so that the
+     * arrays are never held for long, even while a long COPY command is written. The job must be
+     * freed by the caller after return.
+     *
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param job
+     *            the job returned by one of the <jobType>Begin() methods
+     * @param in
+     *            the whole input, between its position and limit, in a buffer with an accessible
+     *            array. Its position is not changed.
+     * @param out
+     *            the heap buffer the output is written to from its position, or null if the job
+     *            has no output. If it fills up before the job is done, it is replaced by a larger
+     *            copy.
+     * @param patchBase
+     *            Only used by a patch job. The base file, in a buffer with an accessible array.
+     * @param patchArg
+     *            Only used by a patch job. This value must have been returned by patchBegin()
+     * @param phase
+     *            the kind of job, under which it is recorded in RsyncMetrics
+     * @param jobStats
+     *            Optional object to hold statistics about the rsync job
+     * @return out, or the larger buffer that replaced it, with its position after the output
+     * @throws RsyncException
+     *             if the job returned anything other than RS_DONE
+     */
+    private static ByteBuffer runJobToCompletion(Object jobTag, long job, ByteBuffer in,
+                                                 ByteBuffer out, ByteBuffer patchBase,
+                                                 long patchArg, RsyncMetrics.Phase phase,
+                                                 RsyncStatistics jobStats)
+            throws RsyncException {
+        byte[] inArray = in.array();
+        int inPosition = in.arrayOffset() + in.position();
+        int inEnd = in.arrayOffset() + in.limit();
+        byte[] baseArray = (patchBase == null ? null : patchBase.array());
+        int baseOffset = (patchBase == null ? 0 : patchBase.arrayOffset() + patchBase.position());
+        int baseLength = (patchBase == null ? 0 : patchBase.remaining());
+
+        if (jobStats != null) {
+            jobStats.begin();
+        }
+
+        long startNanos = System.nanoTime();
+        int inStart = inPosition;
+        int outStart = (out == null ? 0 : out.position());
+        boolean failed = true;
+        try {
+            while (true) {
+                int inLimit = (int) Math.min(inEnd, (long) inPosition + ARRAY_CHUNK_SIZE);
+                int outPosition = (out == null ? 0 : out.arrayOffset() + out.position());
+                int outLimit = (out == null ? 0 : out.arrayOffset() + out.limit());
+                outLimit = (int) Math.min(outLimit, (long) outPosition + ARRAY_CHUNK_SIZE);
+                long iterateResult = iterateJobArray(job, inArray, inPosition, inLimit,
+                                                     inLimit == inEnd, (out == null ? null
+                                                             : out.array()), outPosition, outLimit,
+                                                     baseArray, baseOffset, baseLength, patchArg);
+                if (iterateResult < 0) {
+                    LOGGER.log(Level.WARNING,
+                               String.format("Rsync %s job failed with result %s for job %s",
+                                             phase, RsyncResult.fromCvalue(-iterateResult),
+                                             jobTag));
+                    throw new RsyncException(-iterateResult);
+                }
+
+                int inConsumed = (int) (iterateResult & ITERATE_COUNT_MASK);
+                int outProduced = (int) ((iterateResult >>> ITERATE_COUNT_BITS)
+                        & ITERATE_COUNT_MASK);
+                inPosition += inConsumed;
+                if (out != null) {
+                    out.position(out.position() + outProduced);
+                }
+
+                if (jobStats != null) {
+                    jobStats.iterations++;
+                    jobStats.totalInputConsumed += inConsumed;
+                    jobStats.maxInputConsumed = Math.max(jobStats.maxInputConsumed, inConsumed);
                     jobStats.totalOutputProduced += outProduced;
                     jobStats.maxOutputProduced = Math.max(jobStats.maxOutputProduced,
                                                           outProduced);
-                    jobStats.minOutputProduced = Math.min(jobStats.minOutputProduced,
-                                                          outProduced);
                 }
 
-                LOGGER.log(Level.FINE,
-                           "Iteration {0} for rsync job <{1}>: input consumed = {2}, input not consumed = {3}, output produced = {4}, total output produced = {5}",
-                           new Object[] { jobStats.iterations, jobTag, inConsumed, inNotConsumed,
-                                   outProduced, jobStats.totalOutputProduced });
+                if ((iterateResult & ITERATE_DONE_FLAG) != 0) {
+                    break;
+                }
+                if (inConsumed == 0 && outProduced == 0) {
+                    if (out == null || out.hasRemaining()) {
+                        throw new RsyncException(String.format(
+                                "Rsync job %s is blocked with all of its input available", jobTag),
+                                RsyncResult.RS_INTERNAL_ERROR.cValue);
+                    }
+                    out = grow(out);
+                }
             }
-        } while (result != RsyncResult.RS_DONE);
+            failed = false;
+        } finally {
+            METRICS.recordJob(phase, startNanos, inPosition - inStart,
+                              (out == null ? 0 : out.position() - outStart), failed);
+        }
 
         if (jobStats != null) {
             jobStats.end();
-            LOGGER.log(Level.INFO, "Job statistics for job <{0}>: {1}",
-                       new Object[] { jobTag, jobStats.toString() });
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.log(Level.FINE, "Job statistics for job <{0}>: {1}",
+                           new Object[] { jobTag, jobStats });
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @return a heap buffer with twice the capacity of full, holding its contents
+     */
+    private static ByteBuffer grow(ByteBuffer full) throws RsyncException {
+        if (full.capacity() >= MAX_ARRAY_LENGTH) {
+            throw new RsyncException("The output does not fit in an array",
+                                     RsyncResult.RS_MEM_ERROR.cValue);
         }
+        ByteBuffer grown = ByteBuffer.allocate((int) Math.min(MAX_ARRAY_LENGTH,
+                                                              Math.max(2L * full.capacity(),
+                                                                       ARRAY_CHUNK_SIZE)));
+        full.flip();
+        grown.put(full);
+        return grown;
     }
 
     /**
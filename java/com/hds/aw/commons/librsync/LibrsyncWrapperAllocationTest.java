@@ -0,0 +1,197 @@
+//
+// The MIT License (MIT)
+//
+// Copyright (c) 2015 Hitachi Data Systems
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+
+package com.hds.aw.commons.librsync;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Checks that the steady-state iterations of LibrsyncWrapper's job loop allocate nothing on the
+ * Java heap. Signature and delta jobs are run with small buffers over a short and a long input,
+ * and the bytes allocated by this thread are measured for each with
+ * com.sun.management.ThreadMXBean. The fixed cost of a job is the same for both inputs, so the
+ * difference between them, divided by the extra iterations of the long input, is what each
+ * iteration allocates. The process exits with 1 if that is more than MAX_BYTES_PER_ITERATION.
+ *
+ * Like LibrsyncWrapperTest, this needs librsync and the wrapper library on java.library.path.
+ *
+ * @author Hitachi Data Systems
+ */
+public class LibrsyncWrapperAllocationTest {
+
+    /**
+     * Small buffers, so that the jobs run many iterations
+     */
+    private static final int BUFFER_SIZE = 4 * 1024;
+
+    private static final long SHORT_INPUT_LENGTH = 1024 * 1024;
+    private static final long LONG_INPUT_LENGTH = 64 * 1024 * 1024;
+
+    /**
+     * Allows for the odd allocation by the JVM itself, while catching anything allocated by every
+     * iteration, which is at least 16 bytes
+     */
+    private static final double MAX_BYTES_PER_ITERATION = 1.0;
+
+    private static final int WARMUP_RUNS = 10;
+
+    /**
+     * Produces the same block of data over and over, up to a given length, without allocating
+     */
+    private static final class RepeatingProducer implements RsyncInputProducer {
+        private final byte[] block;
+        private long remaining;
+
+        RepeatingProducer(byte[] block) {
+            this.block = block;
+        }
+
+        void reset(long length) {
+            remaining = length;
+        }
+
+        @Override
+        public boolean produceInput(ByteBuffer buf) {
+            while (buf.hasRemaining() && remaining > 0) {
+                int offset = (int) (remaining % block.length);
+                int length = (int) Math.min(Math.min(buf.remaining(), remaining),
+                                            block.length - offset);
+                buf.put(block, offset, length);
+                remaining -= length;
+            }
+            return remaining == 0;
+        }
+    }
+
+    /**
+     * Discards the output
+     */
+    private static final class DiscardingConsumer implements RsyncOutputConsumer {
+        @Override
+        public void consumeOutput(ByteBuffer buf) {
+            buf.position(buf.limit());
+        }
+    }
+
+    /**
+     * A job run over an input of a given length
+     */
+    private interface Job {
+        void run(long inputLength) throws Exception;
+    }
+
+    public static void main(String args[]) {
+        try {
+            System.loadLibrary("rsyncWrapper");
+            System.loadLibrary("rsync");
+
+            java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+            if (!(threadBean instanceof com.sun.management.ThreadMXBean)
+                    || !((com.sun.management.ThreadMXBean) threadBean)
+                            .isThreadAllocatedMemorySupported()) {
+                System.out.println("Thread allocated bytes are not supported by this JVM, skipped");
+                return;
+            }
+            final com.sun.management.ThreadMXBean allocationBean =
+                    (com.sun.management.ThreadMXBean) threadBean;
+            allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+            byte[] block = new byte[1024 * 1024 + 7];
+            new Random(1).nextBytes(block);
+            final RepeatingProducer producer = new RepeatingProducer(block);
+            final DiscardingConsumer consumer = new DiscardingConsumer();
+            final ByteBuffer inBuf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            final ByteBuffer outBuf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+            // always use librsync, however short the input
+            LibrsyncWrapper.setJavaSignatureThreshold(0);
+            final SignatureOptions options = SignatureOptions.recommended(block.length);
+
+            boolean passed = true;
+            passed &= check("signature", allocationBean, new Job() {
+                @Override
+                public void run(long inputLength) throws Exception {
+                    producer.reset(inputLength);
+                    LibrsyncWrapper.generateSignature("allocationSig", producer, consumer,
+                                                      options, inBuf, outBuf, null);
+                }
+            });
+
+            final LoadedSignature signature = LibrsyncWrapper
+                    .loadSignature("allocationLoad", ByteBuffer.wrap(LibrsyncWrapper
+                            .generateSignature("allocationBase", block, options, null)), null);
+            try {
+                passed &= check("delta", allocationBean, new Job() {
+                    @Override
+                    public void run(long inputLength) throws Exception {
+                        producer.reset(inputLength);
+                        LibrsyncWrapper.generateDelta("allocationDelta", signature, producer,
+                                                      consumer, inBuf, outBuf, null);
+                    }
+                });
+            } finally {
+                signature.close();
+            }
+
+            if (!passed) {
+                System.exit(1);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Measures the bytes allocated by each iteration of job, and reports whether it is within
+     * MAX_BYTES_PER_ITERATION
+     */
+    private static boolean check(String name, com.sun.management.ThreadMXBean allocationBean,
+                                 Job job) throws Exception {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            job.run(SHORT_INPUT_LENGTH);
+        }
+        long threadId = Thread.currentThread().getId();
+
+        long before = allocationBean.getThreadAllocatedBytes(threadId);
+        job.run(SHORT_INPUT_LENGTH);
+        long shortAllocated = allocationBean.getThreadAllocatedBytes(threadId) - before;
+
+        before = allocationBean.getThreadAllocatedBytes(threadId);
+        job.run(LONG_INPUT_LENGTH);
+        long longAllocated = allocationBean.getThreadAllocatedBytes(threadId) - before;
+
+        // every iteration consumes at most a buffer of input, so there are at least this many more
+        long extraIterations = (LONG_INPUT_LENGTH - SHORT_INPUT_LENGTH) / BUFFER_SIZE;
+        double perIteration = (double) (longAllocated - shortAllocated) / extraIterations;
+        boolean passed = perIteration <= MAX_BYTES_PER_ITERATION;
+        System.out.println(String.format("%s: %d bytes allocated for %d bytes of input, %d bytes"
+                + " for %d bytes, %.3f bytes per iteration: %s", name, shortAllocated,
+                                         SHORT_INPUT_LENGTH, longAllocated, LONG_INPUT_LENGTH,
+                                         perIteration, (passed ? "passed" : "FAILED")));
+        return passed;
+    }
+}
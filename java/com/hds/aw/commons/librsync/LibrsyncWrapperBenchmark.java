@@ -0,0 +1,695 @@
+//
+// The MIT License (MIT)
+//
+// Copyright (c) 2015 Hitachi Data Systems
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+
+package com.hds.aw.commons.librsync;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A command line benchmark for the LibrsyncWrapper. It measures signature, delta and patch
+ * throughput over every combination of the given data sizes, block sizes, buffer sizes, change
+ * patterns, producers and seekers, with signatures generated both by librsync ("signature") and by
+ * JavaSignatureGenerator ("javasignature"), and patches applied both by librsync ("patch") and by
+ * JavaPatcher ("javapatch"), plus three microbenchmarks:
+ * <ul>
+ * <li>iterate: a signature job with tiny buffers, so the cost of each JNI crossing into
+ * iterateJob() dominates</li>
+ * <li>seek: a patch of a heavily shuffled file with a tiny output buffer, so the cost of each base
+ * file seek dominates</li>
+ * <li>batch: the signatures of the data split into many small inputs, generated with one native
+ * call by generateSignatures(), so the cost of each small signature dominates</li>
+ * </ul>
+ * 
+ * Before an operation is measured, it is run once with its output checked against the expected
+ * output: the librsync signature for the signature benchmarks, the librsync delta for "delta", and
+ * the changed data for the patch benchmarks. A mismatch stops the benchmark with an
+ * IllegalStateException, so a broken build can't report fast results. The measured rounds discard
+ * their output.
+ * 
+ * Results are printed, and can also be written as JSON so they can be compared between releases
+ * of the wrapper.
+ * 
+ * <pre>
+ * Usage: LibrsyncWrapperBenchmark [-sizes 1m,64m] [-blockSizes 0,2048] [-bufferSizes 64k,1m]
+ *                                 [-changes none,edit,insert,shuffle] [-producers stream,channel]
+ *                                 [-seekers file,mapped,cached,prefetch] [-pipelineDepths 0,2]
+ *                                 [-benchmarks signature,javasignature,delta,patch,javapatch,iterate,seek,batch]
+ *                                 [-warmup 2] [-rounds 5] [-json results.json]
+ * </pre>
+ * 
+ * A block size of 0 uses the block size recommended for the data size. The Java signature threshold
+ * is set to 0 while benchmarking, so that "signature" always measures librsync; comparing it with
+ * "javasignature" over a range of sizes shows where to set the threshold. Each pipeline depth is
+ * set with LibrsyncWrapper.setPipelineDepth() for the cases run with it.
+ *
+ * @author Hitachi Data Systems
+ */
+public class LibrsyncWrapperBenchmark {
+
+    /**
+     * Discards all output
+     */
+    private static final RsyncOutputConsumer DISCARD = new RsyncOutputConsumer() {
+        public void consumeOutput(ByteBuffer buf) {
+            buf.position(buf.limit());
+        }
+    };
+
+    private static final int MICRO_BUFFER_SIZE = 64;
+
+    private static final int SMALL_INPUT_SIZE = 4 * 1024;
+
+    private List<Long> sizes = Collections.singletonList(parseSize("16m"));
+    private List<Long> blockSizes = Collections.singletonList(0L);
+    private List<Long> bufferSizes = Collections.singletonList(parseSize("1m"));
+    private List<Long> pipelineDepths = Collections.singletonList(0L);
+    private List<String> changes = split("none,edit,insert,shuffle");
+    private List<String> producers = split("stream,channel");
+    private List<String> seekers = split("file,mapped,cached,prefetch");
+    private final List<Closeable> openFiles = new ArrayList<>();
+    private List<String> benchmarks = split("signature,javasignature,delta,patch,javapatch,iterate,seek,batch");
+    private int warmup = 2;
+    private int rounds = 5;
+    private String jsonFile;
+
+    private final File tempDir;
+    private final List<Map<String, Object>> results = new ArrayList<>();
+
+    /**
+     * Runs the benchmarks
+     * 
+     * @param args
+     */
+    public static void main(String args[]) {
+        try {
+            System.loadLibrary("rsyncWrapper");
+            System.loadLibrary("rsync");
+
+            // the per-job statistics are logged at INFO, which would swamp the results
+            Logger.getLogger(LibrsyncWrapper.class.getName()).setLevel(Level.WARNING);
+
+            LibrsyncWrapperBenchmark benchmark = new LibrsyncWrapperBenchmark();
+            benchmark.parseArgs(args);
+            benchmark.run();
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println("Usage: LibrsyncWrapperBenchmark [-sizes 1m,64m] [-blockSizes 0,2048] [-bufferSizes 64k,1m] "
+                    + "[-changes none,edit,insert,shuffle] [-producers stream,channel] [-seekers file,mapped,cached,prefetch] [-pipelineDepths 0,2] "
+                    + "[-benchmarks signature,javasignature,delta,patch,javapatch,iterate,seek,batch] [-warmup 2] [-rounds 5] [-json results.json]");
+            System.exit(1);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private LibrsyncWrapperBenchmark() throws IOException {
+        tempDir = File.createTempFile("librsyncBenchmark", "");
+        tempDir.delete();
+        tempDir.mkdir();
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            }
+            String value = args[i + 1];
+            switch (args[i]) {
+            case "-sizes":
+                sizes = parseSizes(value);
+                break;
+            case "-blockSizes":
+                blockSizes = parseSizes(value);
+                break;
+            case "-bufferSizes":
+                bufferSizes = parseSizes(value);
+                break;
+            case "-changes":
+                changes = split(value);
+                break;
+            case "-producers":
+                producers = split(value);
+                break;
+            case "-seekers":
+                seekers = split(value);
+                break;
+            case "-pipelineDepths":
+                pipelineDepths = parseSizes(value);
+                break;
+            case "-benchmarks":
+                benchmarks = split(value);
+                break;
+            case "-warmup":
+                warmup = Integer.parseInt(value);
+                break;
+            case "-rounds":
+                rounds = Integer.parseInt(value);
+                break;
+            case "-json":
+                jsonFile = value;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+    }
+
+    private void run() throws IOException {
+        long javaSignatureThreshold = LibrsyncWrapper.getJavaSignatureThreshold();
+        int pipelineDepth = LibrsyncWrapper.getPipelineDepth();
+        LibrsyncWrapper.setJavaSignatureThreshold(0);
+        try {
+            for (long size : sizes) {
+                byte[] base = randomData(size, 1);
+                File baseFile = writeFile("base", base);
+                for (String change : changes) {
+                    byte[] changed = change(base, change);
+                    File changedFile = writeFile("changed", changed);
+                    for (long blockSize : blockSizes) {
+                        SignatureOptions options = SignatureOptions
+                                .md4(blockSize == 0 ? SignatureOptions
+                                        .recommendedBlockLength(size) : (int) blockSize);
+                        for (long bufferSize : bufferSizes) {
+                            for (long depth : pipelineDepths) {
+                                LibrsyncWrapper.setPipelineDepth((int) depth);
+                                Case c = new Case(size, change, options, (int) bufferSize,
+                                                  (int) depth, base, baseFile, changed,
+                                                  changedFile);
+                                runCase(c);
+                            }
+                        }
+                    }
+                    changedFile.delete();
+                }
+                baseFile.delete();
+            }
+
+            if (jsonFile != null) {
+                writeJson(new File(jsonFile));
+            }
+        } finally {
+            LibrsyncWrapper.setJavaSignatureThreshold(javaSignatureThreshold);
+            LibrsyncWrapper.setPipelineDepth(pipelineDepth);
+            tempDir.delete();
+        }
+    }
+
+    /**
+     * One combination of data and options, shared by the benchmarks run for it
+     */
+    private static class Case {
+        final long size;
+        final String change;
+        final SignatureOptions options;
+        final int bufferSize;
+        final int pipelineDepth;
+        final byte[] base;
+        final File baseFile;
+        final byte[] changed;
+        final File changedFile;
+        byte[] signature;
+        byte[] delta;
+
+        Case(long size, String change, SignatureOptions options, int bufferSize,
+             int pipelineDepth, byte[] base, File baseFile, byte[] changed, File changedFile) {
+            this.size = size;
+            this.change = change;
+            this.options = options;
+            this.bufferSize = bufferSize;
+            this.pipelineDepth = pipelineDepth;
+            this.base = base;
+            this.baseFile = baseFile;
+            this.changed = changed;
+            this.changedFile = changedFile;
+        }
+    }
+
+    /**
+     * A benchmarked operation
+     */
+    private interface Operation {
+        void run(RsyncStatistics stats, RsyncOutputConsumer out) throws IOException;
+    }
+
+    /**
+     * Checks that the output of an operation is exactly the expected bytes
+     */
+    private static class VerifyingConsumer implements RsyncOutputConsumer {
+        private final String benchmark;
+        private final byte[] expected;
+        private int position;
+
+        VerifyingConsumer(String benchmark, byte[] expected) {
+            this.benchmark = benchmark;
+            this.expected = expected;
+        }
+
+        public void consumeOutput(ByteBuffer buf) {
+            while (buf.hasRemaining()) {
+                if (position >= expected.length) {
+                    throw new IllegalStateException(String.format(
+                            "%s output is longer than the expected %d bytes", benchmark,
+                            expected.length));
+                }
+                if (buf.get() != expected[position]) {
+                    throw new IllegalStateException(String.format(
+                            "%s output differs from the expected output at byte %d", benchmark,
+                            position));
+                }
+                position++;
+            }
+        }
+
+        void finish() {
+            if (position != expected.length) {
+                throw new IllegalStateException(String.format(
+                        "%s output is %d bytes, expected %d", benchmark, position,
+                        expected.length));
+            }
+        }
+    }
+
+    private void runCase(final Case c) throws IOException {
+        final ByteBuffer inBuf = ByteBuffer.allocateDirect(c.bufferSize);
+        final ByteBuffer outBuf = ByteBuffer.allocateDirect(c.bufferSize);
+
+        ByteArrayOutputStream signature = new ByteArrayOutputStream();
+        LibrsyncWrapper.generateSignature("benchmark", producer("stream", c.base, c.baseFile),
+                                          new OutputStreamConsumer(signature), c.options, inBuf,
+                                          outBuf, null);
+        c.signature = signature.toByteArray();
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        LibrsyncWrapper.generateDelta("benchmark", producer("stream", c.signature, null),
+                                      producer("stream", c.changed, c.changedFile),
+                                      new OutputStreamConsumer(delta), inBuf, outBuf, null);
+        c.delta = delta.toByteArray();
+
+        for (final String producer : producers) {
+            if (benchmarks.contains("signature")) {
+                measure("signature", c, producer, null, c.size, c.signature, new Operation() {
+                    public void run(RsyncStatistics stats, RsyncOutputConsumer out)
+                            throws IOException {
+                        LibrsyncWrapper.generateSignature("benchmark",
+                                                          producer(producer, c.base, c.baseFile),
+                                                          out, c.options, inBuf, outBuf,
+                                                          stats);
+                    }
+                });
+            }
+            if (benchmarks.contains("javasignature")) {
+                measure("javasignature", c, producer, null, c.size, c.signature,
+                        new Operation() {
+                    public void run(RsyncStatistics stats, RsyncOutputConsumer out)
+                            throws IOException {
+                        JavaSignatureGenerator.generateSignature("benchmark",
+                                                                 producer(producer, c.base,
+                                                                          c.baseFile),
+                                                                 out, c.options, inBuf,
+                                                                 outBuf, stats);
+                    }
+                });
+            }
+            if (benchmarks.contains("delta")) {
+                measure("delta", c, producer, null, c.changed.length, c.delta, new Operation() {
+                    public void run(RsyncStatistics stats, RsyncOutputConsumer out)
+                            throws IOException {
+                        LibrsyncWrapper.generateDelta("benchmark",
+                                                      producer("stream", c.signature, null),
+                                                      producer(producer, c.changed,
+                                                               c.changedFile), out, inBuf,
+                                                      outBuf, stats);
+                    }
+                });
+            }
+            for (final String seeker : seekers) {
+                if (benchmarks.contains("patch")) {
+                    measure("patch", c, producer, seeker, c.changed.length, c.changed,
+                            new Operation() {
+                        public void run(RsyncStatistics stats, RsyncOutputConsumer out)
+                                throws IOException {
+                            patch(c, producer, seeker, false, inBuf, outBuf, out, stats);
+                        }
+                    });
+                }
+                if (benchmarks.contains("javapatch")) {
+                    measure("javapatch", c, producer, seeker, c.changed.length, c.changed,
+                            new Operation() {
+                        public void run(RsyncStatistics stats, RsyncOutputConsumer out)
+                                throws IOException {
+                            patch(c, producer, seeker, true, inBuf, outBuf, out, stats);
+                        }
+                    });
+                }
+            }
+        }
+
+        if (benchmarks.contains("iterate")) {
+            final ByteBuffer microIn = ByteBuffer.allocateDirect(MICRO_BUFFER_SIZE);
+            final ByteBuffer microOut = ByteBuffer.allocateDirect(MICRO_BUFFER_SIZE);
+            measure("iterate", c, "stream", null, c.size, c.signature, new Operation() {
+                public void run(RsyncStatistics stats, RsyncOutputConsumer out)
+                        throws IOException {
+                    LibrsyncWrapper.generateSignature("benchmark",
+                                                      producer("stream", c.base, c.baseFile),
+                                                      out, c.options, microIn, microOut,
+                                                      stats);
+                }
+            });
+        }
+        if (benchmarks.contains("seek") && "shuffle".equals(c.change)) {
+            final ByteBuffer microOut = ByteBuffer.allocateDirect(MICRO_BUFFER_SIZE);
+            for (final String seeker : seekers) {
+                measure("seek", c, "stream", seeker, c.changed.length, c.changed,
+                        new Operation() {
+                    public void run(RsyncStatistics stats, RsyncOutputConsumer out)
+                            throws IOException {
+                        patch(c, "stream", seeker, false, inBuf, microOut, out, stats);
+                    }
+                });
+            }
+        }
+        if (benchmarks.contains("batch")) {
+            final ByteBuffer inputs = ByteBuffer.allocateDirect(c.base.length);
+            inputs.put(c.base);
+            int count = (c.base.length + SMALL_INPUT_SIZE - 1) / SMALL_INPUT_SIZE;
+            final int[] offsets = new int[count];
+            final int[] lengths = new int[count];
+            long signaturesLength = 0;
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            for (int i = 0; i < count; i++) {
+                offsets[i] = i * SMALL_INPUT_SIZE;
+                lengths[i] = Math.min(SMALL_INPUT_SIZE, c.base.length - offsets[i]);
+                signaturesLength += c.options.getSignatureLength(lengths[i]);
+                expected.write(JavaSignatureGenerator.generateSignature(
+                        ByteBuffer.wrap(c.base, offsets[i], lengths[i]), c.options));
+            }
+            final ByteBuffer signatures = ByteBuffer.allocateDirect((int) signaturesLength);
+            measure("batch", c, "", null, c.size, expected.toByteArray(), new Operation() {
+                public void run(RsyncStatistics stats, RsyncOutputConsumer out)
+                        throws IOException {
+                    signatures.clear();
+                    LibrsyncWrapper.generateSignatures("benchmark", inputs, offsets, lengths,
+                                                       c.options, signatures, stats);
+                    signatures.flip();
+                    out.consumeOutput(signatures);
+                }
+            });
+        }
+    }
+
+    private void patch(Case c, String producer, String seeker, boolean java, ByteBuffer inBuf,
+                       ByteBuffer outBuf, RsyncOutputConsumer out, RsyncStatistics stats)
+            throws IOException {
+        RandomAccessFile baseRAF = new RandomAccessFile(c.baseFile, "r");
+        FileInputSeeker fileSeeker = null;
+        CachingInputSeeker cachingSeeker = null;
+        PrefetchingInputSeeker prefetchingSeeker = null;
+        try {
+            RsyncInputProducer delta = producer(producer, c.delta, null);
+            RsyncInputSeeker baseSeeker;
+            if ("mapped".equals(seeker)) {
+                baseSeeker = new MappedFileInputSeeker(baseRAF);
+            } else if ("file".equals(seeker)) {
+                fileSeeker = new FileInputSeeker(baseRAF);
+                baseSeeker = countingSeeker(fileSeeker, stats);
+            } else if ("prefetch".equals(seeker)) {
+                prefetchingSeeker = new PrefetchingInputSeeker(baseRAF.getChannel(), delta,
+                                                               stats);
+                baseSeeker = prefetchingSeeker;
+                delta = prefetchingSeeker.getDeltaProducer();
+            } else if ("cached".equals(seeker)) {
+                fileSeeker = new FileInputSeeker(baseRAF);
+                cachingSeeker = new CachingInputSeeker(fileSeeker, baseRAF.length(), stats);
+                baseSeeker = cachingSeeker;
+            } else {
+                throw new IllegalArgumentException("Unknown seeker " + seeker);
+            }
+            if (java) {
+                JavaPatcher.generatePatch("benchmark", baseSeeker, delta, out, inBuf, outBuf,
+                                          stats);
+            } else {
+                LibrsyncWrapper.generatePatch("benchmark", baseSeeker, delta, out, inBuf,
+                                              outBuf, stats);
+            }
+        } finally {
+            if (prefetchingSeeker != null) {
+                prefetchingSeeker.close();
+            }
+            if (cachingSeeker != null) {
+                cachingSeeker.close();
+            }
+            if (fileSeeker != null) {
+                fileSeeker.close();
+            }
+            baseRAF.close();
+        }
+    }
+
+    private void measure(String benchmark, Case c, String producer, String seeker,
+                         long bytes, byte[] expected, Operation op) throws IOException {
+        VerifyingConsumer verifier = new VerifyingConsumer(benchmark, expected);
+        runOperation(op, null, verifier);
+        verifier.finish();
+        for (int i = 0; i < warmup; i++) {
+            runOperation(op, null, DISCARD);
+        }
+
+        long totalNs = 0;
+        long minNs = Long.MAX_VALUE;
+        long iterations = 0;
+        long seeks = 0;
+        for (int i = 0; i < rounds; i++) {
+            RsyncStatistics stats = new RsyncStatistics();
+            long start = System.nanoTime();
+            runOperation(op, stats, DISCARD);
+            long elapsed = System.nanoTime() - start;
+            totalNs += elapsed;
+            minNs = Math.min(minNs, elapsed);
+            iterations += stats.iterations;
+            seeks += stats.totalSeeks;
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("benchmark", benchmark);
+        result.put("size", c.size);
+        result.put("change", c.change);
+        result.put("signatureType", c.options.getType().toString());
+        result.put("blockSize", c.options.getBlockLength());
+        result.put("bufferSize", c.bufferSize);
+        result.put("pipelineDepth", c.pipelineDepth);
+        result.put("producer", producer);
+        result.put("seeker", (seeker == null ? "" : seeker));
+        result.put("rounds", rounds);
+        result.put("meanNs", totalNs / rounds);
+        result.put("minNs", minNs);
+        result.put("mbPerSec", (bytes * rounds / 1048576.0) / (totalNs / 1e9));
+        result.put("nsPerIteration", (iterations == 0 ? 0.0 : (double) totalNs / iterations));
+        result.put("nsPerSeek", (seeks == 0 ? 0.0 : (double) totalNs / seeks));
+        results.add(result);
+
+        System.out.println(String.format(
+                "%-9s size=%-10d change=%-7s block=%-7d buffer=%-8d depth=%-2d producer=%-6s seeker=%-6s %10.3f ms %9.1f MB/s %9.1f ns/iteration %9.1f ns/seek",
+                benchmark, c.size, c.change, c.options.getBlockLength(), c.bufferSize,
+                c.pipelineDepth, producer, result.get("seeker"), totalNs / rounds / 1e6, result.get("mbPerSec"),
+                result.get("nsPerIteration"), result.get("nsPerSeek")));
+    }
+
+    private void runOperation(Operation op, RsyncStatistics stats, RsyncOutputConsumer out)
+            throws IOException {
+        try {
+            op.run(stats, out);
+        } finally {
+            for (Closeable file : openFiles) {
+                file.close();
+            }
+            openFiles.clear();
+        }
+    }
+
+    private void writeJson(File file) throws IOException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write("[\n");
+            for (int i = 0; i < results.size(); i++) {
+                out.write("  {");
+                boolean first = true;
+                for (Map.Entry<String, Object> entry : results.get(i).entrySet()) {
+                    out.write(first ? "" : ", ");
+                    first = false;
+                    out.write("\"" + entry.getKey() + "\": ");
+                    Object value = entry.getValue();
+                    out.write(value instanceof String ? "\"" + value + "\"" : value.toString());
+                }
+                out.write(i + 1 < results.size() ? "},\n" : "}\n");
+            }
+            out.write("]\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    private RsyncInputProducer producer(String producer, byte[] bytes, File file)
+            throws IOException {
+        if ("stream".equals(producer)) {
+            return new InputStreamProducer(new ByteArrayInputStream(bytes));
+        } else if ("channel".equals(producer) && file != null) {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            openFiles.add(raf);
+            return new FileChannelProducer(raf.getChannel());
+        } else if ("channel".equals(producer)) {
+            return new ReadableByteChannelProducer(Channels.newChannel(new ByteArrayInputStream(
+                    bytes)));
+        }
+        throw new IllegalArgumentException("Unknown producer " + producer);
+    }
+
+    private static RsyncInputSeeker countingSeeker(final RsyncInputSeeker seeker,
+                                                   RsyncStatistics stats) {
+        return new AbstractRsyncInputSeeker(stats) {
+            @Override
+            public ByteBuffer doSeek(long position, int len) {
+                return seeker.seek(position, len);
+            }
+        };
+    }
+
+    private File writeFile(String name, byte[] bytes) throws IOException {
+        File file = new File(tempDir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] randomData(long size, long seed) {
+        if (size > Integer.MAX_VALUE - 1024 * 1024) {
+            throw new IllegalArgumentException("Data size too large: " + size);
+        }
+        byte[] bytes = new byte[(int) size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Applies a change pattern to the base data
+     * <ul>
+     * <li>none: no change</li>
+     * <li>edit: overwrites 16 bytes at 100 random places</li>
+     * <li>insert: inserts 1 KB at 10 random places</li>
+     * <li>shuffle: shuffles 4 KB chunks</li>
+     * </ul>
+     */
+    private static byte[] change(byte[] base, String change) {
+        Random random = new Random(2);
+        if ("none".equals(change)) {
+            return base;
+        } else if ("edit".equals(change)) {
+            byte[] changed = base.clone();
+            for (int i = 0; i < 100 && changed.length >= 16; i++) {
+                int pos = random.nextInt(changed.length - 15);
+                for (int j = 0; j < 16; j++) {
+                    changed[pos + j] = (byte) random.nextInt();
+                }
+            }
+            return changed;
+        } else if ("insert".equals(change)) {
+            ByteArrayOutputStream changed = new ByteArrayOutputStream(base.length + 10 * 1024);
+            int[] positions = new int[10];
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = random.nextInt(base.length + 1);
+            }
+            Arrays.sort(positions);
+            int pos = 0;
+            for (int insertAt : positions) {
+                changed.write(base, pos, insertAt - pos);
+                changed.write(randomData(1024, random.nextLong()), 0, 1024);
+                pos = insertAt;
+            }
+            changed.write(base, pos, base.length - pos);
+            return changed.toByteArray();
+        } else if ("shuffle".equals(change)) {
+            int chunk = 4096;
+            List<Integer> chunks = new ArrayList<>();
+            for (int i = 0; i < base.length; i += chunk) {
+                chunks.add(i);
+            }
+            Collections.shuffle(chunks, random);
+            ByteArrayOutputStream changed = new ByteArrayOutputStream(base.length);
+            for (int start : chunks) {
+                changed.write(base, start, Math.min(chunk, base.length - start));
+            }
+            return changed.toByteArray();
+        }
+        throw new IllegalArgumentException("Unknown change pattern " + change);
+    }
+
+    private static List<String> split(String value) {
+        List<String> list = new ArrayList<>();
+        for (String s : value.split(",")) {
+            if (!s.trim().isEmpty()) {
+                list.add(s.trim());
+            }
+        }
+        return list;
+    }
+
+    private static List<Long> parseSizes(String value) {
+        List<Long> list = new ArrayList<>();
+        for (String s : split(value)) {
+            list.add(parseSize(s));
+        }
+        return list;
+    }
+
+    private static long parseSize(String s) {
+        String lower = s.toLowerCase();
+        long multiplier = 1;
+        if (lower.endsWith("k")) {
+            multiplier = 1024;
+        } else if (lower.endsWith("m")) {
+            multiplier = 1024 * 1024;
+        } else if (lower.endsWith("g")) {
+            multiplier = 1024 * 1024 * 1024;
+        }
+        if (multiplier != 1) {
+            lower = lower.substring(0, lower.length() - 1);
+        }
+        return Long.parseLong(lower) * multiplier;
+    }
+}
@@ -26,6 +26,13 @@ package com.hds.aw.commons.librsync;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * This class provides an example of how to use the LibrsyncWrapper to generate rsync signatures,
@@ -68,8 +75,10 @@ public class LibrsyncWrapperTest {
             ByteBuffer outBuf = ByteBuffer.allocateDirect(1024 * 1024);
 
             //
-            // generate the signature of the base file
+            // generate the signature of the base file, always with librsync
             //
+            long javaSignatureThreshold = LibrsyncWrapper.getJavaSignatureThreshold();
+            LibrsyncWrapper.setJavaSignatureThreshold(0);
             InputStream baseIn = new FileInputStream(baseFile);
             OutputStream signatureOut = new FileOutputStream(signatureFile);
             int blockSize = (int) Math.round(Math.sqrt(baseFile.length()) / 8) * 8;
@@ -79,6 +88,120 @@ public class LibrsyncWrapperTest {
                                               blockSize, inBuf, outBuf, new RsyncStatistics());
             baseIn.close();
             signatureOut.close();
+            SignatureOptions signatureOptions = SignatureOptions.md4(blockSize);
+
+            //
+            // generate it again with the block size and strong sum length recommended for the
+            // base file's size, and verify the options and the signature's length
+            //
+            File recommendedSignatureFile = new File(signatureFile.getPath() + ".recommended");
+            signatureOut = new FileOutputStream(recommendedSignatureFile);
+            SignatureOptions recommendedOptions = LibrsyncWrapper
+                    .generateSignature("genRecommendedSig - " + baseFile.getPath(), baseFile,
+                                       new OutputStreamConsumer(signatureOut), inBuf, outBuf,
+                                       new RsyncStatistics());
+            signatureOut.close();
+            LibrsyncWrapper.setJavaSignatureThreshold(javaSignatureThreshold);
+            if (!recommendedOptions.equals(SignatureOptions.recommended(baseFile.length()))
+                    || recommendedSignatureFile.length() != recommendedOptions
+                            .getSignatureLength(baseFile.length())) {
+                System.out.println("Signature with recommended options is wrong: "
+                        + recommendedOptions);
+                System.exit(1);
+            }
+            recommendedSignatureFile.delete();
+
+            //
+            // generate the signature again with JavaSignatureGenerator, and verify that it is
+            // identical to librsync's
+            //
+            File javaSignatureFile = new File(signatureFile.getPath() + ".java");
+            InputStream baseFileIn = new FileInputStream(baseFile);
+            signatureOut = new FileOutputStream(javaSignatureFile);
+            JavaSignatureGenerator.generateSignature("javaSig", new InputStreamProducer(baseFileIn),
+                                                     new OutputStreamConsumer(signatureOut),
+                                                     signatureOptions, inBuf, outBuf,
+                                                     new RsyncStatistics());
+            baseFileIn.close();
+            signatureOut.close();
+            verifyIdentical(signatureFile, javaSignatureFile);
+            javaSignatureFile.delete();
+
+            //
+            // sign the base file in small pieces with one batched native call, and verify each
+            // signature against JavaSignatureGenerator's
+            //
+            byte[] base = Files.readAllBytes(baseFile.toPath());
+            int pieceLength = 4096;
+            List<ByteBuffer> pieces = new ArrayList<>();
+            for (int offset = 0; offset < base.length; offset += pieceLength) {
+                pieces.add(ByteBuffer.wrap(base, offset, Math.min(pieceLength, base.length
+                        - offset)));
+            }
+            SignatureBatch batch = LibrsyncWrapper.generateSignatures("batchSig", pieces,
+                                                                      signatureOptions,
+                                                                      new RsyncStatistics());
+            for (int i = 0; i < batch.size(); i++) {
+                ByteBuffer expected = ByteBuffer.wrap(JavaSignatureGenerator
+                        .generateSignature(pieces.get(i), signatureOptions));
+                if (!expected.equals(batch.getSignature(i))) {
+                    System.out.println(String.format("Batched signature %d differs", i));
+                    System.exit(1);
+                }
+            }
+
+            //
+            // generate signatures with parallel range jobs, of a file spanning several ranges
+            // whose length is not a multiple of the block size and of an empty file, and verify
+            // that each is identical to the signature generated by a single job
+            //
+            byte[] large = new byte[3 * 16 * 1024 * 1024 + 12345];
+            new Random(1).nextBytes(large);
+            LibrsyncWrapper.setJavaSignatureThreshold(0);
+            try {
+                verifyParallelSignature("parallelSig", large, signatureOptions, inBuf, outBuf);
+                verifyParallelSignature("parallelEmptySig", new byte[0], signatureOptions, inBuf,
+                                        outBuf);
+            } finally {
+                LibrsyncWrapper.setJavaSignatureThreshold(javaSignatureThreshold);
+            }
+
+            //
+            // apply a delta whose output spans several 16 MB ranges with parallel range jobs, and
+            // verify the patch
+            //
+            ByteArrayOutputStream largeChanged = new ByteArrayOutputStream();
+            Random random = new Random(2);
+            for (int offset = 0, i = 0; offset < large.length; offset += 1024 * 1024, i++) {
+                // a literal before every megabyte, so that the delta has a command to start a
+                // range at every megabyte of output
+                byte[] inserted = new byte[100 + i];
+                random.nextBytes(inserted);
+                largeChanged.write(inserted);
+                if (i % 7 != 3) {
+                    largeChanged.write(large, offset, Math.min(1024 * 1024, large.length - offset));
+                }
+            }
+            File largeBaseFile = File.createTempFile("largeBase", ".tmp");
+            File largeChangedFile = File.createTempFile("largeChanged", ".tmp");
+            File largeDeltaFile = File.createTempFile("largeDelta", ".tmp");
+            File largePatchFile = File.createTempFile("largePatch", ".tmp");
+            Files.write(largeBaseFile.toPath(), large);
+            Files.write(largeChangedFile.toPath(), largeChanged.toByteArray());
+            largeChanged = null;
+            large = null;
+            try (OutputStream largeDeltaOut = new FileOutputStream(largeDeltaFile)) {
+                LibrsyncWrapper.generateLocalDelta("largeDelta", largeBaseFile, largeChangedFile,
+                                                   new OutputStreamConsumer(largeDeltaOut), null,
+                                                   null, new RsyncStatistics());
+            }
+            LibrsyncWrapper.generatePatchParallel("parallelPatch", largeBaseFile, largeDeltaFile,
+                                                  largePatchFile, null, new RsyncStatistics());
+            verifyIdentical(largeChangedFile, largePatchFile);
+            largeBaseFile.delete();
+            largeChangedFile.delete();
+            largeDeltaFile.delete();
+            largePatchFile.delete();
 
             //
             // generate a delta based on the signature previously generated and the changed file
@@ -95,6 +218,46 @@ public class LibrsyncWrapperTest {
             changedFileIn.close();
             deltaFileOut.close();
 
+            //
+            // describe the delta without applying it
+            //
+            RandomAccessFile deltaRAF = new RandomAccessFile(deltaFile, "r");
+            System.out.println("delta: " + DeltaAnalyzer.analyze(deltaRAF.getChannel()));
+            deltaRAF.close();
+
+            //
+            // load the signature through a cache twice, verify that the second load returns the
+            // cached signature, and verify that a delta generated from it is identical to the one
+            // generated from the signature stream
+            //
+            byte[] signature = Files.readAllBytes(signatureFile.toPath());
+            File loadedDeltaFile = new File(deltaFile.getPath() + ".loaded");
+            SignatureCache signatureCache = new SignatureCache(2);
+            LoadedSignature loadedSignature = signatureCache.acquire("loadSig", signature, inBuf,
+                                                                     outBuf, new RsyncStatistics());
+            LoadedSignature cachedSignature = signatureCache.acquire("cachedSig", signature, inBuf,
+                                                                     outBuf, new RsyncStatistics());
+            if (cachedSignature != loadedSignature || signatureCache.getHits() != 1
+                    || signatureCache.getMisses() != 1 || signatureCache.size() != 1) {
+                System.out.println(String.format(
+                        "Signature cache did not return the cached signature: %d hits, %d misses",
+                        signatureCache.getHits(), signatureCache.getMisses()));
+                System.exit(1);
+            }
+            changedFileIn = new FileInputStream(changedFile);
+            deltaFileOut = new FileOutputStream(loadedDeltaFile);
+            LibrsyncWrapper.generateDelta("loadedDelta", cachedSignature,
+                                          new InputStreamProducer(changedFileIn),
+                                          new OutputStreamConsumer(deltaFileOut), inBuf, outBuf,
+                                          new RsyncStatistics());
+            changedFileIn.close();
+            deltaFileOut.close();
+            loadedSignature.close();
+            cachedSignature.close();
+            signatureCache.close();
+            verifyIdentical(deltaFile, loadedDeltaFile);
+            loadedDeltaFile.delete();
+
             //
             // generate a patch (i.e. regenerate the changed file) based on the base file and the
             // previously generated delta
@@ -106,10 +269,495 @@ public class LibrsyncWrapperTest {
                                           new InputStreamProducer(deltaFileIn),
                                           new OutputStreamConsumer(recomposedFileOut), inBuf,
                                           outBuf, new RsyncStatistics());
+            deltaFileIn.close();
+            recomposedFileOut.close();
+
+            //
+            // apply the delta again with JavaPatcher, through a seeker and through channels, and
+            // verify that the output is identical to librsync's
+            //
+            File javaRecomposedFile = new File(recomposedFile.getPath() + ".java");
+            deltaFileIn = new FileInputStream(deltaFile);
+            recomposedFileOut = new FileOutputStream(javaRecomposedFile);
+            JavaPatcher.generatePatch("javaPatch", new FileInputSeeker(baseRAF),
+                                      new InputStreamProducer(deltaFileIn),
+                                      new OutputStreamConsumer(recomposedFileOut), inBuf, outBuf,
+                                      new RsyncStatistics());
+            deltaFileIn.close();
+            recomposedFileOut.close();
+            verifyIdentical(recomposedFile, javaRecomposedFile);
+
+            RandomAccessFile deltaFileRAF = new RandomAccessFile(deltaFile, "r");
+            FileOutputStream javaRecomposedFileOut = new FileOutputStream(javaRecomposedFile);
+            JavaPatcher.generatePatch("javaChannelPatch", baseRAF.getChannel(),
+                                      deltaFileRAF.getChannel(), javaRecomposedFileOut.getChannel(),
+                                      new RsyncStatistics());
+            deltaFileRAF.close();
+            javaRecomposedFileOut.close();
+            verifyIdentical(recomposedFile, javaRecomposedFile);
+            javaRecomposedFile.delete();
+            baseRAF.close();
+
+            //
+            // apply the delta again, reading the base file ahead of the job from the delta's COPY
+            // commands, and verify the patch and that some seeks were served by the read-ahead
+            //
+            File prefetchedRecomposedFile = new File(recomposedFile.getPath() + ".prefetched");
+            RsyncStatistics prefetchStats = new RsyncStatistics();
+            baseRAF = new RandomAccessFile(baseFile, "r");
+            deltaFileIn = new FileInputStream(deltaFile);
+            recomposedFileOut = new FileOutputStream(prefetchedRecomposedFile);
+            LibrsyncWrapper.generatePatchPrefetching("prefetchedPatch", baseRAF.getChannel(),
+                                                     new InputStreamProducer(deltaFileIn),
+                                                     new OutputStreamConsumer(recomposedFileOut),
+                                                     inBuf, outBuf, prefetchStats);
+            baseRAF.close();
+            deltaFileIn.close();
+            recomposedFileOut.close();
+            verifyIdentical(recomposedFile, prefetchedRecomposedFile);
+            prefetchedRecomposedFile.delete();
+            if (prefetchStats.cacheHits == 0) {
+                System.out.println("No seeks of the prefetching patch were served by read-ahead");
+                System.exit(1);
+            }
+
+            //
+            // apply the delta again, with librsync and with JavaPatcher, from the base file mapped
+            // in three windows, so that COPY commands resolve into each of them and some straddle
+            // two, and verify both patches
+            //
+            File mappedRecomposedFile = new File(recomposedFile.getPath() + ".mapped");
+            baseRAF = new RandomAccessFile(baseFile, "r");
+            MappedFileInputSeeker mappedSeeker = new MappedFileInputSeeker(baseRAF.getChannel(),
+                    Math.max(1, (baseFile.length() + 2) / 3));
+            baseRAF.close();
+            deltaFileIn = new FileInputStream(deltaFile);
+            recomposedFileOut = new FileOutputStream(mappedRecomposedFile);
+            LibrsyncWrapper.generatePatch("mappedPatch", mappedSeeker,
+                                          new InputStreamProducer(deltaFileIn),
+                                          new OutputStreamConsumer(recomposedFileOut), inBuf,
+                                          outBuf, new RsyncStatistics());
+            deltaFileIn.close();
+            recomposedFileOut.close();
+            verifyIdentical(recomposedFile, mappedRecomposedFile);
+            deltaFileIn = new FileInputStream(deltaFile);
+            recomposedFileOut = new FileOutputStream(mappedRecomposedFile);
+            JavaPatcher.generatePatch("javaMappedPatch", mappedSeeker,
+                                      new InputStreamProducer(deltaFileIn),
+                                      new OutputStreamConsumer(recomposedFileOut), inBuf, outBuf,
+                                      new RsyncStatistics());
+            deltaFileIn.close();
+            recomposedFileOut.close();
+            verifyIdentical(recomposedFile, mappedRecomposedFile);
+            mappedRecomposedFile.delete();
+
+            //
+            // apply the delta twice through a page cache big enough for the whole base file, and
+            // verify both patches, that the first patch read each page it used once, and that the
+            // second one read none
+            //
+            File cachedRecomposedFile = new File(recomposedFile.getPath() + ".cached");
+            RsyncStatistics cacheStats = new RsyncStatistics();
+            baseRAF = new RandomAccessFile(baseFile, "r");
+            CachingInputSeeker cachingSeeker = new CachingInputSeeker(
+                    new FileInputSeeker(baseRAF), baseFile.length(), 4096,
+                    (int) (baseFile.length() / 4096) + 1, DirectBufferPool.getDefault(),
+                    cacheStats);
+            long firstMisses = 0;
+            for (int pass = 0; pass < 2; pass++) {
+                deltaFileIn = new FileInputStream(deltaFile);
+                recomposedFileOut = new FileOutputStream(cachedRecomposedFile);
+                LibrsyncWrapper.generatePatch("cachedPatch" + pass, cachingSeeker,
+                                              new InputStreamProducer(deltaFileIn),
+                                              new OutputStreamConsumer(recomposedFileOut), inBuf,
+                                              outBuf, new RsyncStatistics());
+                deltaFileIn.close();
+                recomposedFileOut.close();
+                verifyIdentical(recomposedFile, cachedRecomposedFile);
+                if (pass == 0) {
+                    firstMisses = cacheStats.cacheMisses;
+                    if (firstMisses == 0 || firstMisses != cachingSeeker.getCachedPages()) {
+                        System.out.println(String.format(
+                                "Cached patch read %d pages into %d cached pages", firstMisses,
+                                cachingSeeker.getCachedPages()));
+                        System.exit(1);
+                    }
+                } else if (cacheStats.cacheMisses != firstMisses
+                        || cacheStats.cacheHits < firstMisses) {
+                    System.out.println(String.format(
+                            "Second cached patch had %d misses and %d hits, after %d misses",
+                            cacheStats.cacheMisses, cacheStats.cacheHits, firstMisses));
+                    System.exit(1);
+                }
+            }
+            cachingSeeker.close();
+            baseRAF.close();
+            cachedRecomposedFile.delete();
+
+            //
+            // run the signature, delta and patch again on the files' contents held in memory, and
+            // verify that the patch is the changed file
+            //
+            byte[] changed = Files.readAllBytes(changedFile.toPath());
+            byte[] memorySignature = LibrsyncWrapper.generateSignature("memorySig", base,
+                                                                       signatureOptions,
+                                                                       new RsyncStatistics());
+            byte[] memoryDelta = LibrsyncWrapper.generateDelta("memoryDelta", memorySignature,
+                                                               changed, new RsyncStatistics());
+            byte[] memoryPatch = LibrsyncWrapper.generatePatch("memoryPatch", base, memoryDelta,
+                                                               new RsyncStatistics());
+            if (!Arrays.equals(changed, memoryPatch)) {
+                System.out.println("In-memory patch differs from " + changedFile);
+                System.exit(1);
+            }
+
+            //
+            // run signature and patch jobs concurrently through an RsyncEngine with fewer workers
+            // and job slots than jobs, and verify each signature and patch
+            //
+            byte[] delta = Files.readAllBytes(deltaFile.toPath());
+            RsyncEngine engine = new RsyncEngine(4, 8, 64 * 1024);
+            List<CompletableFuture<Void>> engineJobs = new ArrayList<>();
+            List<ByteArrayOutputStream> engineOutputs = new ArrayList<>();
+            List<RandomAccessFile> engineBases = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                ByteArrayOutputStream engineSignature = new ByteArrayOutputStream();
+                engineJobs.add(engine.signatureAsync("engineSig" + i,
+                        new InputStreamProducer(new ByteArrayInputStream(base)),
+                        new OutputStreamConsumer(engineSignature), signatureOptions,
+                        new RsyncStatistics()));
+                engineOutputs.add(engineSignature);
+
+                RandomAccessFile engineBaseRAF = new RandomAccessFile(baseFile, "r");
+                engineBases.add(engineBaseRAF);
+                ByteArrayOutputStream enginePatch = new ByteArrayOutputStream();
+                engineJobs.add(engine.patchAsync("enginePatch" + i,
+                        new FileInputSeeker(engineBaseRAF),
+                        new InputStreamProducer(new ByteArrayInputStream(delta)),
+                        new OutputStreamConsumer(enginePatch), new RsyncStatistics()));
+                engineOutputs.add(enginePatch);
+            }
+            for (CompletableFuture<Void> engineJob : engineJobs) {
+                engineJob.get();
+            }
+            engine.close();
+            for (RandomAccessFile engineBaseRAF : engineBases) {
+                engineBaseRAF.close();
+            }
+            for (int i = 0; i < engineOutputs.size(); i++) {
+                byte[] expected = (i % 2 == 0 ? signature : changed);
+                if (!Arrays.equals(expected, engineOutputs.get(i).toByteArray())) {
+                    System.out.println(String.format("Output of RsyncEngine job %d differs", i));
+                    System.exit(1);
+                }
+            }
+
+            //
+            // generate the delta again together with the changed file's signature, reading the
+            // changed file once, and verify both
+            //
+            File teeDeltaFile = new File(deltaFile.getPath() + ".tee");
+            ByteArrayOutputStream changedSignature = new ByteArrayOutputStream();
+            signatureIn = new FileInputStream(signatureFile);
+            changedFileIn = new FileInputStream(changedFile);
+            deltaFileOut = new FileOutputStream(teeDeltaFile);
+            LibrsyncWrapper.generateDeltaAndSignature("teeDelta",
+                                                      new InputStreamProducer(signatureIn),
+                                                      new InputStreamProducer(changedFileIn),
+                                                      new OutputStreamConsumer(deltaFileOut),
+                                                      signatureOptions,
+                                                      new OutputStreamConsumer(changedSignature),
+                                                      inBuf, outBuf, new RsyncStatistics());
+            signatureIn.close();
+            changedFileIn.close();
+            deltaFileOut.close();
+            verifyIdentical(deltaFile, teeDeltaFile);
+            teeDeltaFile.delete();
+            if (!Arrays.equals(JavaSignatureGenerator.generateSignature(ByteBuffer.wrap(changed),
+                                                                        signatureOptions),
+                               changedSignature.toByteArray())) {
+                System.out.println("Signature generated with the delta differs");
+                System.exit(1);
+            }
+
+            //
+            // apply the delta again, generating the patched file's signature from the patch
+            // output, and verify both
+            //
+            File teeRecomposedFile = new File(recomposedFile.getPath() + ".tee");
+            ByteArrayOutputStream recomposedSignature = new ByteArrayOutputStream();
+            baseRAF = new RandomAccessFile(baseFile, "r");
+            deltaFileIn = new FileInputStream(deltaFile);
+            recomposedFileOut = new FileOutputStream(teeRecomposedFile);
+            LibrsyncWrapper.generatePatchAndSignature("teePatch", new FileInputSeeker(baseRAF),
+                                                      new InputStreamProducer(deltaFileIn),
+                                                      new OutputStreamConsumer(recomposedFileOut),
+                                                      signatureOptions,
+                                                      new OutputStreamConsumer(recomposedSignature),
+                                                      inBuf, outBuf, new RsyncStatistics());
+            baseRAF.close();
+            deltaFileIn.close();
+            recomposedFileOut.close();
+            verifyIdentical(recomposedFile, teeRecomposedFile);
+            teeRecomposedFile.delete();
+            if (!Arrays.equals(changedSignature.toByteArray(),
+                               recomposedSignature.toByteArray())) {
+                System.out.println("Signature generated with the patch differs");
+                System.exit(1);
+            }
+
+            //
+            // write an index of the signature, generate a delta against it in Java, and verify
+            // that the delta patches the base file into the changed file
+            //
+            File indexFile = new File(signatureFile.getPath() + ".index");
+            SignatureIndex.write(signatureFile, indexFile);
+            ByteArrayOutputStream indexDelta = new ByteArrayOutputStream();
+            changedFileIn = new FileInputStream(changedFile);
+            LibrsyncWrapper.generateDelta("indexDelta", SignatureIndex.open(indexFile),
+                                          new InputStreamProducer(changedFileIn),
+                                          new OutputStreamConsumer(indexDelta),
+                                          new RsyncStatistics());
+            changedFileIn.close();
+            indexFile.delete();
+            ByteBuffer indexPatch = ByteBuffer.allocate(changed.length);
+            JavaPatcher.generatePatch("indexPatch", ByteBuffer.wrap(base),
+                                      ByteBuffer.wrap(indexDelta.toByteArray()), indexPatch,
+                                      new RsyncStatistics());
+            if (indexPatch.hasRemaining() || !Arrays.equals(changed, indexPatch.array())) {
+                System.out.println("Patch of the delta against the signature index differs");
+                System.exit(1);
+            }
+
+            //
+            // diff the base and changed files directly, without a signature file, and verify that
+            // the delta patches the base file into the changed file
+            //
+            ByteArrayOutputStream localDelta = new ByteArrayOutputStream();
+            LibrsyncWrapper.generateLocalDelta("localDelta", baseFile, changedFile,
+                                               new OutputStreamConsumer(localDelta),
+                                               signatureOptions, null, new RsyncStatistics());
+            ByteBuffer localPatch = ByteBuffer.allocate(changed.length);
+            JavaPatcher.generatePatch("localPatch", ByteBuffer.wrap(base),
+                                      ByteBuffer.wrap(localDelta.toByteArray()), localPatch,
+                                      new RsyncStatistics());
+            if (localPatch.hasRemaining() || !Arrays.equals(changed, localPatch.array())) {
+                System.out.println("Patch of the local delta differs");
+                System.exit(1);
+            }
+
+            //
+            // run the signature, delta and patch again through channel producers and consumers:
+            // the changed file is read from the middle of a larger file and the delta is written
+            // to and read from the middle of another, and verify each output
+            //
+            File channelSignatureFile = new File(signatureFile.getPath() + ".channel");
+            File channelDeltaFile = new File(deltaFile.getPath() + ".channel");
+            File channelRecomposedFile = new File(recomposedFile.getPath() + ".channel");
+            File containerFile = new File(changedFile.getPath() + ".container");
+            byte[] padding = new byte[1000];
+            new Random(3).nextBytes(padding);
+            try (OutputStream containerOut = new FileOutputStream(containerFile)) {
+                containerOut.write(padding);
+                containerOut.write(changed);
+                containerOut.write(padding, 0, 500);
+            }
+            baseIn = new FileInputStream(baseFile);
+            FileOutputStream channelSignatureOut = new FileOutputStream(channelSignatureFile);
+            LibrsyncWrapper.generateSignature("channelSig",
+                                              new ReadableByteChannelProducer(
+                                                      Channels.newChannel(baseIn)),
+                                              new WritableByteChannelConsumer(
+                                                      channelSignatureOut.getChannel()),
+                                              signatureOptions, inBuf, outBuf,
+                                              new RsyncStatistics());
+            baseIn.close();
+            channelSignatureOut.close();
+            verifyIdentical(signatureFile, channelSignatureFile);
+            RandomAccessFile signatureRAF = new RandomAccessFile(channelSignatureFile, "r");
+            RandomAccessFile containerRAF = new RandomAccessFile(containerFile, "r");
+            RandomAccessFile channelDeltaRAF = new RandomAccessFile(channelDeltaFile, "rw");
+            FileChannelConsumer channelDeltaConsumer = new FileChannelConsumer(
+                    channelDeltaRAF.getChannel(), padding.length);
+            LibrsyncWrapper.generateDelta("channelDelta",
+                                          new FileChannelProducer(signatureRAF.getChannel()),
+                                          new FileChannelProducer(containerRAF.getChannel(),
+                                                                  padding.length, changed.length),
+                                          channelDeltaConsumer, inBuf, outBuf,
+                                          new RsyncStatistics());
+            signatureRAF.close();
+            containerRAF.close();
+            long channelDeltaLength = channelDeltaConsumer.getPosition() - padding.length;
+            byte[] channelDelta = new byte[(int) channelDeltaLength];
+            channelDeltaRAF.seek(padding.length);
+            channelDeltaRAF.readFully(channelDelta);
+            if (!Arrays.equals(Files.readAllBytes(deltaFile.toPath()), channelDelta)) {
+                System.out.println("Delta generated through channels differs");
+                System.exit(1);
+            }
+            baseRAF = new RandomAccessFile(baseFile, "r");
+            FileOutputStream channelRecomposedOut = new FileOutputStream(channelRecomposedFile);
+            LibrsyncWrapper.generatePatch("channelPatch", new FileInputSeeker(baseRAF),
+                                          new FileChannelProducer(channelDeltaRAF.getChannel(),
+                                                                  padding.length,
+                                                                  channelDeltaLength),
+                                          new FileChannelConsumer(
+                                                  channelRecomposedOut.getChannel()),
+                                          inBuf, outBuf, new RsyncStatistics());
+            baseRAF.close();
+            channelDeltaRAF.close();
+            channelRecomposedOut.close();
+            verifyIdentical(changedFile, channelRecomposedFile);
+            channelSignatureFile.delete();
+            channelDeltaFile.delete();
+            channelRecomposedFile.delete();
+            containerFile.delete();
+
+            //
+            // run the streaming signature, delta and patch jobs with each of the other signature
+            // types, and verify each patch
+            //
+            LibrsyncWrapper.setJavaSignatureThreshold(0);
+            try {
+                for (SignatureType type : new SignatureType[] { SignatureType.BLAKE2,
+                        SignatureType.RK_MD4, SignatureType.RK_BLAKE2 }) {
+                    verifyRoundTrip(type.name().toLowerCase(), baseFile, changedFile,
+                                    new SignatureOptions(type, blockSize, 0), inBuf, outBuf);
+                }
+            } finally {
+                LibrsyncWrapper.setJavaSignatureThreshold(javaSignatureThreshold);
+            }
+
+            //
+            // run the streaming jobs with a reader and a writer thread, on the test files, on
+            // empty files and on files smaller than one buffer, and verify each patch
+            //
+            File emptyFile = File.createTempFile("empty", ".tmp");
+            File smallBaseFile = File.createTempFile("smallBase", ".tmp");
+            File smallChangedFile = File.createTempFile("smallChanged", ".tmp");
+            Files.write(smallBaseFile.toPath(), Arrays.copyOf(base, Math.min(base.length, 3000)));
+            Files.write(smallChangedFile.toPath(),
+                        Arrays.copyOf(changed, Math.min(changed.length, 5000)));
+            LibrsyncWrapper.setJavaSignatureThreshold(0);
+            try {
+                for (int depth : new int[] { 1, 4 }) {
+                    LibrsyncWrapper.setPipelineDepth(depth);
+                    verifyRoundTrip("pipelined" + depth, baseFile, changedFile, signatureOptions,
+                                    inBuf, outBuf);
+                    verifyRoundTrip("pipelinedEmpty" + depth, emptyFile, emptyFile,
+                                    signatureOptions, inBuf, outBuf);
+                    verifyRoundTrip("pipelinedSmall" + depth, smallBaseFile, smallChangedFile,
+                                    signatureOptions, inBuf, outBuf);
+                }
+            } finally {
+                LibrsyncWrapper.setPipelineDepth(0);
+                LibrsyncWrapper.setJavaSignatureThreshold(javaSignatureThreshold);
+            }
+            emptyFile.delete();
+            smallBaseFile.delete();
+            smallChangedFile.delete();
 
         } catch (Exception e) {
             e.printStackTrace();
             System.exit(1);
         }
     }
+
+    /**
+     * Generates the signature of baseFile, the delta from it to changedFile and the patch of
+     * baseFile with the delta, with the streaming jobs, and exits with an error if the patch is
+     * not identical to changedFile
+     */
+    private static void verifyRoundTrip(String jobTag, File baseFile, File changedFile,
+                                        SignatureOptions options, ByteBuffer inBuf,
+                                        ByteBuffer outBuf) throws IOException {
+        File signatureFile = File.createTempFile(jobTag, ".sig");
+        File deltaFile = File.createTempFile(jobTag, ".delta");
+        File patchFile = File.createTempFile(jobTag, ".patch");
+        try {
+            try (InputStream baseIn = new FileInputStream(baseFile);
+                 OutputStream signatureOut = new FileOutputStream(signatureFile)) {
+                LibrsyncWrapper.generateSignature(jobTag + "Sig", new InputStreamProducer(baseIn),
+                                                  new OutputStreamConsumer(signatureOut), options,
+                                                  inBuf, outBuf, new RsyncStatistics());
+            }
+            try (InputStream signatureIn = new FileInputStream(signatureFile);
+                 InputStream changedIn = new FileInputStream(changedFile);
+                 OutputStream deltaOut = new FileOutputStream(deltaFile)) {
+                LibrsyncWrapper.generateDelta(jobTag + "Delta",
+                                              new InputStreamProducer(signatureIn),
+                                              new InputStreamProducer(changedIn),
+                                              new OutputStreamConsumer(deltaOut), inBuf, outBuf,
+                                              new RsyncStatistics());
+            }
+            try (RandomAccessFile baseRAF = new RandomAccessFile(baseFile, "r");
+                 InputStream deltaIn = new FileInputStream(deltaFile);
+                 OutputStream patchOut = new FileOutputStream(patchFile)) {
+                LibrsyncWrapper.generatePatch(jobTag + "Patch", new FileInputSeeker(baseRAF),
+                                              new InputStreamProducer(deltaIn),
+                                              new OutputStreamConsumer(patchOut), inBuf, outBuf,
+                                              new RsyncStatistics());
+            }
+            verifyIdentical(changedFile, patchFile);
+        } finally {
+            signatureFile.delete();
+            deltaFile.delete();
+            patchFile.delete();
+        }
+    }
+
+    /**
+     * Generates the signature of contents with generateSignatureParallel() and with a single
+     * streaming job, and exits with an error if they differ
+     */
+    private static void verifyParallelSignature(String jobTag, byte[] contents,
+                                                SignatureOptions options, ByteBuffer inBuf,
+                                                ByteBuffer outBuf) throws IOException {
+        File file = File.createTempFile(jobTag, ".tmp");
+        try {
+            Files.write(file.toPath(), contents);
+            ByteArrayOutputStream serial = new ByteArrayOutputStream();
+            LibrsyncWrapper.generateSignature(jobTag + "Serial",
+                                              new InputStreamProducer(new ByteArrayInputStream(
+                                                      contents)),
+                                              new OutputStreamConsumer(serial), options, inBuf,
+                                              outBuf, new RsyncStatistics());
+            ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+            LibrsyncWrapper.generateSignatureParallel(jobTag, file,
+                                                      new OutputStreamConsumer(parallel), options,
+                                                      null, new RsyncStatistics());
+            if (!Arrays.equals(serial.toByteArray(), parallel.toByteArray())) {
+                System.out.println(String.format(
+                        "Parallel signature of %d bytes differs from the serial one",
+                        contents.length));
+                System.exit(1);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Exits with an error if the two files are not identical
+     */
+    private static void verifyIdentical(File expected, File actual) throws IOException {
+        InputStream expectedIn = new BufferedInputStream(new FileInputStream(expected));
+        InputStream actualIn = new BufferedInputStream(new FileInputStream(actual));
+        try {
+            long position = 0;
+            int b;
+            do {
+                b = expectedIn.read();
+                if (b != actualIn.read()) {
+                    System.out.println(String.format("%s differs from %s at position %d", actual,
+                                                     expected, position));
+                    System.exit(1);
+                }
+                position++;
+            } while (b != -1);
+        } finally {
+            expectedIn.close();
+            actualIn.close();
+        }
+    }
 }
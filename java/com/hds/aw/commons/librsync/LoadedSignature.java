@@ -0,0 +1,122 @@
+//
+// The MIT License (MIT)
+//
+// Copyright (c) 2015 Hitachi Data Systems
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+
+package com.hds.aw.commons.librsync;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An rsync signature that has been loaded and hashed by librsync, ready to generate deltas. Create
+ * one with LibrsyncWrapper.loadSignature(), or get one from a SignatureCache.
+ * 
+ * Once built, the native signature is only read by delta jobs, so any number of threads may
+ * generate deltas against the same LoadedSignature at the same time.
+ * 
+ * The native signature is reference counted. Whoever loads or acquires a LoadedSignature holds one
+ * reference, which it must release by calling close() exactly once; each running delta job holds
+ * another. The signature is freed when the last reference is released.
+ *
+ * @author Hitachi Data Systems
+ */
+public final class LoadedSignature implements AutoCloseable {
+    private final static Logger LOGGER = Logger.getLogger(LoadedSignature.class.getName());
+
+    private final long signaturePointer;
+    private final int blockLength;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /**
+     * @param signaturePointer
+     *            the loaded and hashed native rs_signature_t. This object takes ownership of it.
+     * @param blockLength
+     *            the block length from the signature's header
+     */
+    LoadedSignature(long signaturePointer, int blockLength) {
+        this.signaturePointer = signaturePointer;
+        this.blockLength = blockLength;
+    }
+
+    /**
+     * Adds a reference to the native signature
+     * 
+     * @return this
+     * @throws IllegalStateException
+     *             if the signature has already been freed
+     */
+    LoadedSignature retain() {
+        while (true) {
+            int count = references.get();
+            if (count <= 0) {
+                throw new IllegalStateException("LoadedSignature has already been closed");
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * @return the native rs_signature_t. Only valid while a reference is held.
+     */
+    long pointer() {
+        return signaturePointer;
+    }
+
+    /**
+     * @return the block length of the signature, which bounds the number of commands in a delta
+     *         generated against it
+     */
+    int blockLength() {
+        return blockLength;
+    }
+
+    /**
+     * @return true if the native signature has not been freed yet
+     */
+    public boolean isOpen() {
+        return references.get() > 0;
+    }
+
+    /**
+     * Releases one reference to the native signature, freeing it if this was the last one
+     */
+    @Override
+    public void close() {
+        while (true) {
+            int count = references.get();
+            if (count <= 0) {
+                LOGGER.log(Level.WARNING, "LoadedSignature closed more times than it was acquired");
+                return;
+            }
+            if (references.compareAndSet(count, count - 1)) {
+                if (count == 1) {
+                    LibrsyncWrapper.freeLoadedSignature(signaturePointer);
+                }
+                return;
+            }
+        }
+    }
+}
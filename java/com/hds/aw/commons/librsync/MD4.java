@@ -0,0 +1,149 @@
+//
+// The MIT License (MIT)
+//
+// Copyright (c) 2015 Hitachi Data Systems
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+
+package com.hds.aw.commons.librsync;
+
+/**
+ * MD4 message digest (RFC 1320), as used by librsync for MD4 strong sums. The JDK does not provide
+ * MD4 through MessageDigest, so it is implemented here. An instance can be reused after digest(),
+ * and does not allocate.
+ *
+ * @author Hitachi Data Systems
+ */
+final class MD4 {
+
+    /**
+     * Length of an MD4 digest, in bytes
+     */
+    static final int DIGEST_LENGTH = 16;
+
+    private final int[] state = new int[4];
+    private final int[] x = new int[16];
+    private final byte[] buffer = new byte[64];
+    private int bufferLength;
+    private long length;
+
+    MD4() {
+        reset();
+    }
+
+    void reset() {
+        state[0] = 0x67452301;
+        state[1] = 0xefcdab89;
+        state[2] = 0x98badcfe;
+        state[3] = 0x10325476;
+        bufferLength = 0;
+        length = 0;
+    }
+
+    void update(byte[] b, int off, int len) {
+        length += len;
+        if (bufferLength > 0) {
+            int n = Math.min(len, 64 - bufferLength);
+            System.arraycopy(b, off, buffer, bufferLength, n);
+            bufferLength += n;
+            off += n;
+            len -= n;
+            if (bufferLength < 64) {
+                return;
+            }
+            transform(buffer, 0);
+            bufferLength = 0;
+        }
+        while (len >= 64) {
+            transform(b, off);
+            off += 64;
+            len -= 64;
+        }
+        System.arraycopy(b, off, buffer, 0, len);
+        bufferLength = len;
+    }
+
+    /**
+     * Writes the digest of the data passed to update() since the last reset() to out, and resets
+     */
+    void digest(byte[] out, int off) {
+        long bits = length << 3;
+        buffer[bufferLength++] = (byte) 0x80;
+        if (bufferLength > 56) {
+            while (bufferLength < 64) {
+                buffer[bufferLength++] = 0;
+            }
+            transform(buffer, 0);
+            bufferLength = 0;
+        }
+        while (bufferLength < 56) {
+            buffer[bufferLength++] = 0;
+        }
+        for (int i = 0; i < 8; i++) {
+            buffer[56 + i] = (byte) (bits >>> (8 * i));
+        }
+        transform(buffer, 0);
+        for (int i = 0; i < 4; i++) {
+            int s = state[i];
+            out[off + 4 * i] = (byte) s;
+            out[off + 4 * i + 1] = (byte) (s >>> 8);
+            out[off + 4 * i + 2] = (byte) (s >>> 16);
+            out[off + 4 * i + 3] = (byte) (s >>> 24);
+        }
+        reset();
+    }
+
+    private void transform(byte[] b, int off) {
+        for (int i = 0; i < 16; i++, off += 4) {
+            x[i] = (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8) | ((b[off + 2] & 0xff) << 16)
+                    | (b[off + 3] << 24);
+        }
+        int a = state[0];
+        int bb = state[1];
+        int c = state[2];
+        int d = state[3];
+
+        for (int i = 0; i < 16; i += 4) {
+            a = Integer.rotateLeft(a + ((bb & c) | (~bb & d)) + x[i], 3);
+            d = Integer.rotateLeft(d + ((a & bb) | (~a & c)) + x[i + 1], 7);
+            c = Integer.rotateLeft(c + ((d & a) | (~d & bb)) + x[i + 2], 11);
+            bb = Integer.rotateLeft(bb + ((c & d) | (~c & a)) + x[i + 3], 19);
+        }
+        for (int i = 0; i < 4; i++) {
+            a = Integer.rotateLeft(a + ((bb & c) | (bb & d) | (c & d)) + x[i] + 0x5a827999, 3);
+            d = Integer.rotateLeft(d + ((a & bb) | (a & c) | (bb & c)) + x[i + 4] + 0x5a827999, 5);
+            c = Integer.rotateLeft(c + ((d & a) | (d & bb) | (a & bb)) + x[i + 8] + 0x5a827999, 9);
+            bb = Integer.rotateLeft(bb + ((c & d) | (c & a) | (d & a)) + x[i + 12] + 0x5a827999,
+                                    13);
+        }
+        for (int i = 0; i < 4; i++) {
+            int k = (i == 1 ? 2 : (i == 2 ? 1 : i));
+            a = Integer.rotateLeft(a + (bb ^ c ^ d) + x[k] + 0x6ed9eba1, 3);
+            d = Integer.rotateLeft(d + (a ^ bb ^ c) + x[k + 8] + 0x6ed9eba1, 9);
+            c = Integer.rotateLeft(c + (d ^ a ^ bb) + x[k + 4] + 0x6ed9eba1, 11);
+            bb = Integer.rotateLeft(bb + (c ^ d ^ a) + x[k + 12] + 0x6ed9eba1, 15);
+        }
+
+        state[0] += a;
+        state[1] += bb;
+        state[2] += c;
+        state[3] += d;
+    }
+}
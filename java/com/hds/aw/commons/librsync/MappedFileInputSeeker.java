@@ -0,0 +1,141 @@
+//
+// The MIT License (MIT)
+//
+// Copyright (c) 2015 Hitachi Data Systems
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+
+package com.hds.aw.commons.librsync;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Called by a librsync patch job. This implementation of RsyncInputSeeker memory maps the whole
+ * base file once, in windows of up to windowSize bytes.
+ * 
+ * When passed to LibrsyncWrapper.generatePatch(), the native patch job resolves each COPY
+ * command directly to a pointer into the mapped windows, so seek() is never called, no data is
+ * copied into an intermediate buffer, and no seek statistics are gathered. seek() is only used
+ * when this seeker is called from Java.
+ *
+ * @author Hitachi Data Systems
+ */
+public class MappedFileInputSeeker implements RsyncInputSeeker {
+
+    private static Logger LOGGER = Logger.getLogger(MappedFileInputSeeker.class.getName());
+
+    /**
+     * The default size of each mapped window: 1 GB
+     */
+    public static final long DEFAULT_WINDOW_SIZE = 1L << 30;
+
+    private final MappedByteBuffer[] windows;
+    private final long windowSize;
+    private final long length;
+
+    /**
+     * Constructs a MappedFileInputSeeker that maps the provided RandomAccessFile in windows of
+     * DEFAULT_WINDOW_SIZE bytes
+     * 
+     * @param f
+     * @throws IOException
+     */
+    public MappedFileInputSeeker(RandomAccessFile f) throws IOException {
+        this(f.getChannel(), DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Constructs a MappedFileInputSeeker that maps the provided FileChannel
+     * 
+     * @param channel
+     *            the base file. The mapping stays valid after the channel is closed.
+     * @param windowSize
+     *            the size of each mapped window; at most Integer.MAX_VALUE
+     * @throws IOException
+     */
+    public MappedFileInputSeeker(FileChannel channel, long windowSize) throws IOException {
+        if (windowSize <= 0 || windowSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid window size " + windowSize);
+        }
+        this.windowSize = windowSize;
+        this.length = channel.size();
+
+        windows = new MappedByteBuffer[(int) ((length + windowSize - 1) / windowSize)];
+        for (int i = 0; i < windows.length; i++) {
+            long start = i * windowSize;
+            windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                                     Math.min(windowSize, length - start));
+        }
+    }
+
+    /**
+     * Returns a view of the mapped base file starting at position. If the requested range crosses
+     * the end of a mapped window, the returned buffer only contains the bytes up to the end of that
+     * window.
+     * 
+     * @param position
+     *            offset in file of where to begin reading bytes
+     * @param len
+     *            number of bytes to read starting at position
+     * @return a ByteBuffer containing the data, or null if the range is outside of the file
+     */
+    public ByteBuffer seek(long position, int len) {
+        if (position < 0 || position >= length || len <= 0) {
+            LOGGER.log(Level.WARNING, String
+                    .format("Cannot seek %d bytes starting at position %d of a %d byte file",
+                            len, position, length));
+            return null;
+        }
+
+        MappedByteBuffer window = windows[(int) (position / windowSize)];
+        int offset = (int) (position % windowSize);
+        ByteBuffer buf = window.duplicate();
+        buf.limit((int) Math.min(window.capacity(), (long) offset + len));
+        buf.position(offset);
+        return buf;
+    }
+
+    /**
+     * @return the length of the mapped base file
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @return the mapped windows, in file order. Passed to the native patch job.
+     */
+    ByteBuffer[] getWindows() {
+        return windows;
+    }
+
+    /**
+     * @return the size of every mapped window except possibly the last
+     */
+    long getWindowSize() {
+        return windowSize;
+    }
+}
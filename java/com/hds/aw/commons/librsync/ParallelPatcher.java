@@ -0,0 +1,418 @@
+//
+// The MIT License (MIT)
+//
+// Copyright (c) 2015 Hitachi Data Systems
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+
+package com.hds.aw.commons.librsync;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Applies a librsync delta by splitting its output into ranges and applying each range in
+ * parallel. Each command's position in the output is the sum of the lengths of the commands before
+ * it, so once the delta has been indexed, any run of commands can be applied on its own, reading
+ * the delta and base file with positional reads and writing the output with positional writes.
+ * 
+ * The delta is indexed in a first, serial pass, which only reads the commands and skips over
+ * literal data. Checkpoints are recorded every CHECKPOINT_INTERVAL bytes of output, and are then
+ * grouped into ranges of at least MIN_RANGE_LENGTH bytes, about four per thread. The ranges are
+ * applied in Java, like JavaPatcher, so the output is identical to that of a librsync patch job.
+ * 
+ * Used by LibrsyncWrapper.generatePatchParallel()
+ *
+ * @author Hitachi Data Systems
+ */
+class ParallelPatcher {
+
+    private static final RsyncMetrics METRICS = RsyncMetrics.getDefault();
+
+    /**
+     * Ranges are never made smaller than this, so the per-range overhead stays negligible
+     */
+    private static final long MIN_RANGE_LENGTH = 16 * 1024 * 1024;
+
+    /**
+     * Output bytes between checkpoints recorded by the index pass
+     */
+    private static final long CHECKPOINT_INTERVAL = 1024 * 1024;
+
+    /**
+     * Size of the input and output buffers used by each range
+     */
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final Object jobTag;
+    private final FileChannel base;
+    private final FileChannel delta;
+    private final Executor executor;
+    private final int parallelism;
+
+    // command positions in the delta, and output positions, of the checkpoints
+    private long[] checkpointCommands = new long[64];
+    private long[] checkpointOutputs = new long[64];
+    private int checkpoints;
+    private long endCommand;
+    private long outputLength;
+    // set when the patch finishes, so that range jobs still running stop at their next read or
+    // write. They are not interrupted, as that would close the caller's channels.
+    private volatile boolean stopped;
+
+    /**
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param base
+     *            the base file. Only read with positional reads, so its position is not changed.
+     * @param delta
+     *            the delta. Only read with positional reads, so its position is not changed.
+     * @param executor
+     *            applies the ranges. If null, RsyncThreads.IO, a pool of daemon threads, one per
+     *            processor, is used.
+     */
+    ParallelPatcher(Object jobTag, FileChannel base, FileChannel delta, Executor executor) {
+        this.jobTag = jobTag;
+        this.base = base;
+        this.delta = delta;
+        this.executor = (executor == null ? RsyncThreads.IO : executor);
+        this.parallelism = RsyncThreads.parallelism(this.executor);
+    }
+
+    /**
+     * Applies the delta, writing the patch to output from position 0. The output is truncated to
+     * the length of the patch.
+     * 
+     * @param output
+     *            the file the patch is written to, with positional writes
+     * @param rsyncStats
+     *            Optional object to hold statistics about the patch. If non-null, then the
+     *            statistics of all of the ranges will be merged into this object.
+     * @throws IOException
+     * @throws RsyncException
+     *             if the delta is not a valid librsync delta
+     */
+    void patch(FileChannel output, RsyncStatistics rsyncStats) throws IOException,
+            RsyncException {
+        long startNanos = System.nanoTime();
+        boolean failed = true;
+        try {
+            patchRanges(output, rsyncStats);
+            failed = false;
+        } finally {
+            METRICS.recordJob(RsyncMetrics.Phase.PATCH, startNanos, endCommand, outputLength,
+                              failed);
+        }
+    }
+
+    /**
+     * Indexes the delta, and applies each range of it on the executor. See patch()
+     */
+    private void patchRanges(FileChannel output, RsyncStatistics rsyncStats) throws IOException,
+            RsyncException {
+        if (rsyncStats != null) {
+            rsyncStats.begin();
+        }
+
+        index();
+
+        long checkpointsPerRange = Math.max(
+                (outputLength / (parallelism * 4) + CHECKPOINT_INTERVAL - 1) / CHECKPOINT_INTERVAL,
+                MIN_RANGE_LENGTH / CHECKPOINT_INTERVAL);
+        int rangeCount = (int) ((checkpoints + checkpointsPerRange - 1) / checkpointsPerRange);
+
+        List<FutureTask<RsyncStatistics>> tasks = new ArrayList<>(rangeCount);
+        try {
+            for (int i = 0; i < rangeCount; i++) {
+                int first = (int) (i * checkpointsPerRange);
+                int next = (int) Math.min(first + checkpointsPerRange, checkpoints);
+                long deltaEnd = (next < checkpoints ? checkpointCommands[next] : endCommand);
+                FutureTask<RsyncStatistics> task = new FutureTask<>(new RangeJob(
+                        checkpointCommands[first], deltaEnd, checkpointOutputs[first], output,
+                        rsyncStats != null));
+                tasks.add(task);
+                executor.execute(task);
+            }
+            for (int i = 0; i < rangeCount; i++) {
+                RsyncStatistics stats = await(tasks.get(i));
+                tasks.set(i, null);
+                if (rsyncStats != null) {
+                    rsyncStats.merge(stats);
+                }
+            }
+        } finally {
+            stopped = true;
+            for (FutureTask<RsyncStatistics> task : tasks) {
+                if (task != null) {
+                    task.cancel(false);
+                }
+            }
+        }
+        output.truncate(outputLength);
+
+        if (rsyncStats != null) {
+            rsyncStats.end();
+        }
+    }
+
+    /**
+     * Reads the commands of the delta, recording a checkpoint at the first command starting at
+     * least CHECKPOINT_INTERVAL bytes of output after the previous one
+     */
+    private void index() throws IOException, RsyncException {
+        DeltaParser parser = new DeltaParser();
+        DirectBufferPool pool = DirectBufferPool.getDefault();
+        ByteBuffer buf = pool.acquire(DeltaReader.DEFAULT_BUFFER_SIZE);
+        try {
+            buf.clear();
+            buf.flip();
+            long readPosition = 0;
+            long nextCheckpoint = 0;
+            while (true) {
+                DeltaParser.Command command = parser.next(buf);
+                if (command == DeltaParser.Command.END) {
+                    break;
+                } else if (command == DeltaParser.Command.NEED_INPUT) {
+                    buf.compact();
+                    int cnt = delta.read(buf, readPosition);
+                    buf.flip();
+                    if (cnt < 0) {
+                        throw new EOFException(String.format(
+                                "Delta ended at position %d before the END command",
+                                readPosition));
+                    }
+                    readPosition += cnt;
+                    continue;
+                }
+
+                if (parser.outputPosition() >= nextCheckpoint) {
+                    addCheckpoint(parser.commandPosition(), parser.outputPosition());
+                    nextCheckpoint = parser.outputPosition() + CHECKPOINT_INTERVAL;
+                }
+                if (command == DeltaParser.Command.LITERAL) {
+                    // skip the literal data without reading it
+                    parser.skipLiteral(buf, parser.literalRemaining());
+                    long rest = parser.literalRemaining();
+                    if (rest > 0) {
+                        parser.literalConsumed(rest);
+                        readPosition += rest;
+                    }
+                }
+            }
+            endCommand = parser.commandPosition();
+            outputLength = parser.outputPosition();
+            if (checkpoints == 0) {
+                addCheckpoint(endCommand, 0);
+            }
+        } finally {
+            pool.release(buf);
+        }
+    }
+
+    private void addCheckpoint(long commandPosition, long outputPosition) {
+        if (checkpoints == checkpointCommands.length) {
+            checkpointCommands = Arrays.copyOf(checkpointCommands, checkpoints * 2);
+            checkpointOutputs = Arrays.copyOf(checkpointOutputs, checkpoints * 2);
+        }
+        checkpointCommands[checkpoints] = commandPosition;
+        checkpointOutputs[checkpoints] = outputPosition;
+        checkpoints++;
+    }
+
+    /**
+     * Waits for a range job, unwrapping any exception it threw
+     */
+    private static RsyncStatistics await(FutureTask<RsyncStatistics> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException iioe = new InterruptedIOException(
+                    "Interrupted waiting for patch range job");
+            iioe.initCause(e);
+            throw iioe;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Applies the commands in one range of the delta
+     */
+    private class RangeJob implements Callable<RsyncStatistics> {
+        private final long deltaStart;
+        private final long deltaEnd;
+        private final long outputStart;
+        private final FileChannel output;
+        private final boolean gatherStats;
+
+        RangeJob(long deltaStart, long deltaEnd, long outputStart, FileChannel output,
+                 boolean gatherStats) {
+            this.deltaStart = deltaStart;
+            this.deltaEnd = deltaEnd;
+            this.outputStart = outputStart;
+            this.output = output;
+            this.gatherStats = gatherStats;
+        }
+
+        public RsyncStatistics call() throws IOException {
+            RsyncStatistics stats = (gatherStats ? new RsyncStatistics() : null);
+            DeltaParser parser = new DeltaParser(deltaStart, outputStart);
+            DirectBufferPool pool = DirectBufferPool.getDefault();
+            ByteBuffer inBuf = pool.acquire(BUFFER_SIZE);
+            ByteBuffer outBuf = pool.acquire(BUFFER_SIZE);
+            try {
+                inBuf.clear();
+                inBuf.flip();
+                outBuf.clear();
+                long readPosition = deltaStart;
+                long writePosition = outputStart;
+                while (parser.inputPosition() < deltaEnd) {
+                    DeltaParser.Command command = parser.next(inBuf);
+                    if (command == DeltaParser.Command.NEED_INPUT) {
+                        readPosition = fill(inBuf, readPosition, stats);
+                    } else if (command == DeltaParser.Command.LITERAL) {
+                        while (parser.literalRemaining() > 0) {
+                            if (!inBuf.hasRemaining()) {
+                                readPosition = fill(inBuf, readPosition, stats);
+                            }
+                            if (!outBuf.hasRemaining()) {
+                                writePosition = flush(outBuf, writePosition, stats);
+                            }
+                            int n = (int) Math.min(parser.literalRemaining(),
+                                                   Math.min(inBuf.remaining(),
+                                                            outBuf.remaining()));
+                            int oldLimit = inBuf.limit();
+                            inBuf.limit(inBuf.position() + n);
+                            outBuf.put(inBuf);
+                            inBuf.limit(oldLimit);
+                            parser.literalConsumed(n);
+                        }
+                    } else if (command == DeltaParser.Command.COPY) {
+                        long position = parser.offset();
+                        long remaining = parser.length();
+                        while (remaining > 0) {
+                            if (!outBuf.hasRemaining()) {
+                                writePosition = flush(outBuf, writePosition, stats);
+                            }
+                            int n = (int) Math.min(remaining, outBuf.remaining());
+                            int oldLimit = outBuf.limit();
+                            outBuf.limit(outBuf.position() + n);
+                            while (outBuf.hasRemaining()) {
+                                checkStopped();
+                                int cnt = base.read(outBuf, position + n - outBuf.remaining());
+                                if (cnt < 0) {
+                                    throw new EOFException(
+                                            "Base file ends before position required by the delta "
+                                                    + (position + n));
+                                }
+                            }
+                            outBuf.limit(oldLimit);
+                            position += n;
+                            remaining -= n;
+                        }
+                    } else {
+                        break;
+                    }
+                }
+                flush(outBuf, writePosition, stats);
+            } finally {
+                pool.release(inBuf);
+                pool.release(outBuf);
+            }
+            return stats;
+        }
+
+        /**
+         * Reads more of this range of the delta into inBuf, keeping any bytes not yet parsed
+         * 
+         * @return the new read position
+         */
+        private long fill(ByteBuffer inBuf, long readPosition, RsyncStatistics stats)
+                throws IOException {
+            inBuf.compact();
+            if (inBuf.remaining() > deltaEnd - readPosition) {
+                inBuf.limit(inBuf.position() + (int) (deltaEnd - readPosition));
+            }
+            checkStopped();
+            int cnt = (inBuf.hasRemaining() ? delta.read(inBuf, readPosition) : -1);
+            inBuf.flip();
+            if (cnt < 0) {
+                throw new EOFException(String.format(
+                        "Delta range ended at position %d before the end of a command, in patch %s",
+                        readPosition, jobTag));
+            }
+            if (stats != null) {
+                stats.iterations++;
+                stats.totalInputConsumed += cnt;
+            }
+            return readPosition + cnt;
+        }
+
+        /**
+         * Writes the patch in outBuf at writePosition of the output, and clears outBuf
+         * 
+         * @return the new write position
+         */
+        private long flush(ByteBuffer outBuf, long writePosition, RsyncStatistics stats)
+                throws IOException {
+            outBuf.flip();
+            int produced = outBuf.remaining();
+            while (outBuf.hasRemaining()) {
+                checkStopped();
+                writePosition += output.write(outBuf, writePosition);
+            }
+            outBuf.clear();
+            if (stats != null) {
+                stats.totalOutputProduced += produced;
+                stats.maxOutputProduced = Math.max(stats.maxOutputProduced, produced);
+            }
+            return writePosition;
+        }
+
+        /**
+         * Stops this range job once the patch has finished, which only happens before every
+         * range is done if another range failed
+         */
+        private void checkStopped() throws IOException {
+            if (stopped) {
+                throw new IOException("Patch range job stopped, in patch " + jobTag);
+            }
+        }
+    }
+}
@@ -0,0 +1,249 @@
+//
+// The MIT License (MIT)
+//
+// Copyright (c) 2015 Hitachi Data Systems
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+
+package com.hds.aw.commons.librsync;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Generates an rsync signature by splitting a file into block-aligned ranges and running a separate
+ * librsync signature job for each range in parallel. Each block's sums only depend on the block
+ * itself, so stitching the ranges' block records together under a single header produces exactly
+ * the same signature as a single serial job.
+ * 
+ * Range signatures are written to the consumer in file order as soon as they and all preceding
+ * ranges are complete. Only a bounded number of ranges run ahead of the one being written, to bound
+ * memory use.
+ * 
+ * Used by LibrsyncWrapper.generateSignatureParallel()
+ *
+ * @author Hitachi Data Systems
+ */
+class ParallelSignatureGenerator {
+
+    /**
+     * Ranges are never made smaller than this, so the per-job overhead stays negligible
+     */
+    private static final long MIN_RANGE_LENGTH = 16 * 1024 * 1024;
+
+    /**
+     * Size of the input and output buffers used by each range job
+     */
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final Object jobTag;
+    private final FileChannel source;
+    private final SignatureOptions options;
+    private final int blockSize;
+    private final Executor executor;
+    private final int parallelism;
+    // set when generate() finishes, so that range jobs still running stop at their next read.
+    // They are not interrupted, as that would close the caller's source channel.
+    private volatile boolean stopped;
+
+    /**
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param source
+     *            the file to generate a signature for. Only read with positional reads, so its
+     *            position is not changed.
+     * @param options
+     *            the signature type, block length and strong sum length
+     * @param executor
+     *            runs the range jobs. If null, RsyncThreads.IO, a pool of daemon threads, one per
+     *            processor, is used.
+     */
+    ParallelSignatureGenerator(Object jobTag, FileChannel source, SignatureOptions options,
+                               Executor executor) {
+        this.jobTag = jobTag;
+        this.source = source;
+        this.options = options;
+        this.blockSize = options.getBlockLength();
+        this.executor = (executor == null ? RsyncThreads.IO : executor);
+        this.parallelism = RsyncThreads.parallelism(this.executor);
+    }
+
+    /**
+     * Generates the signature and writes it to signatureConsumer
+     * 
+     * @param signatureConsumer
+     * @param rsyncStats
+     *            Optional object to hold statistics about the rsync jobs. If non-null, then the
+     *            statistics of all of the range jobs will be merged into this object.
+     * @throws IOException
+     * @throws RsyncException
+     */
+    void generate(RsyncOutputConsumer signatureConsumer, RsyncStatistics rsyncStats)
+            throws IOException, RsyncException {
+        long size = source.size();
+        long blocks = (size + blockSize - 1) / blockSize;
+        long blocksPerRange = Math.max((blocks + parallelism * 4 - 1) / (parallelism * 4),
+                                       (MIN_RANGE_LENGTH + blockSize - 1) / blockSize);
+        // keep each range's signature within a single ByteBuffer
+        blocksPerRange = Math.min(blocksPerRange,
+                                  (Integer.MAX_VALUE - SignatureOptions.HEADER_LENGTH)
+                                          / options.getRecordLength());
+        int rangeCount = (int) Math.max(1, (blocks + blocksPerRange - 1) / blocksPerRange);
+        long rangeLength = blocksPerRange * blockSize;
+
+        if (rsyncStats != null) {
+            rsyncStats.begin();
+        }
+
+        List<FutureTask<RangeResult>> tasks = new ArrayList<>(rangeCount);
+        int window = parallelism * 2;
+        int submitted = 0;
+        try {
+            for (int i = 0; i < rangeCount; i++) {
+                while (submitted < rangeCount && submitted <= i + window) {
+                    long start = submitted * rangeLength;
+                    FutureTask<RangeResult> task = new FutureTask<>(new RangeJob(submitted, start,
+                            Math.min(rangeLength, size - start), rsyncStats != null));
+                    tasks.add(task);
+                    executor.execute(task);
+                    submitted++;
+                }
+
+                RangeResult result = await(tasks.get(i));
+                tasks.set(i, null);
+
+                // every range job writes its own header; only keep the first one
+                ByteBuffer signature = result.signature;
+                signature.flip();
+                if (i > 0) {
+                    signature.position(SignatureOptions.HEADER_LENGTH);
+                }
+                while (signature.remaining() > 0) {
+                    signatureConsumer.consumeOutput(signature);
+                }
+
+                if (rsyncStats != null) {
+                    rsyncStats.merge(result.stats);
+                }
+            }
+        } finally {
+            stopped = true;
+            for (FutureTask<RangeResult> task : tasks) {
+                if (task != null) {
+                    task.cancel(false);
+                }
+            }
+        }
+
+        if (rsyncStats != null) {
+            rsyncStats.end();
+        }
+    }
+
+    /**
+     * Waits for a range job, unwrapping any exception it threw
+     */
+    private static RangeResult await(FutureTask<RangeResult> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException iioe = new InterruptedIOException(
+                    "Interrupted waiting for signature range job");
+            iioe.initCause(e);
+            throw iioe;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * The output of a RangeJob
+     */
+    private static class RangeResult {
+        ByteBuffer signature;
+        RsyncStatistics stats;
+    }
+
+    /**
+     * Generates the signature of one block-aligned range of the source
+     */
+    private class RangeJob implements Callable<RangeResult> {
+        private final int index;
+        private final long start;
+        private final long length;
+        private final boolean gatherStats;
+
+        RangeJob(int index, long start, long length, boolean gatherStats) {
+            this.index = index;
+            this.start = start;
+            this.length = length;
+            this.gatherStats = gatherStats;
+        }
+
+        public RangeResult call() throws IOException {
+            RangeResult result = new RangeResult();
+            result.signature = ByteBuffer.allocate((int) options.getSignatureLength(length));
+            result.stats = (gatherStats ? new RsyncStatistics() : null);
+
+            final ByteBuffer signature = result.signature;
+            RsyncInputProducer producer = new FileChannelProducer(source, start, length) {
+                @Override
+                public boolean produceInput(ByteBuffer buf) throws IOException {
+                    if (stopped) {
+                        throw new IOException("Signature range job stopped");
+                    }
+                    return super.produceInput(buf);
+                }
+            };
+            DirectBufferPool pool = DirectBufferPool.getDefault();
+            ByteBuffer inBuf = pool.acquire(BUFFER_SIZE);
+            ByteBuffer outBuf = pool.acquire(BUFFER_SIZE);
+            try {
+                LibrsyncWrapper.generateSignature(jobTag + " - range " + index, producer,
+                                                  new RsyncOutputConsumer() {
+                                                      public void consumeOutput(ByteBuffer buf) {
+                                                          signature.put(buf);
+                                                      }
+                                                  }, options, inBuf, outBuf, result.stats);
+            } finally {
+                pool.release(inBuf);
+                pool.release(outBuf);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,538 @@
+//
+// The MIT License (MIT)
+//
+// Copyright (c) 2015 Hitachi Data Systems
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+
+package com.hds.aw.commons.librsync;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * RsyncInputSeeker that reads the base file ahead of a patch job, using the COPY commands in the
+ * delta to decide what to read.
+ * 
+ * The delta is passed to the patch job through getDeltaProducer(), which reads ahead of the job
+ * into a lookahead buffer and parses the commands there. The base file range of each COPY
+ * command is read in the background by a small pool of I/O threads, in chunks of at most
+ * PREFETCH_CHUNK_SIZE bytes, up to a limit on the number of bytes read but not yet used. When the
+ * job seeks, the data has usually been read already. Seeks are matched to the prefetched ranges in
+ * delta order, and any seek that does not match, or whose read failed, is read synchronously.
+ * 
+ * Seeks served from prefetched data are counted as cache hits in the RsyncStatistics given to the
+ * constructor, and synchronous reads as cache misses. Buffers are acquired from a DirectBufferPool.
+ * Call close() when done with the seeker to wait for outstanding reads and return the buffers.
+ * The base FileChannel is owned by the caller, and is not closed.
+ * 
+ * The seeker and its delta producer share unsynchronized state, so both must be called from the
+ * thread running the patch job. LibrsyncWrapper runs patch jobs given a PrefetchingInputSeeker
+ * sequentially, whatever its pipeline depth.
+ *
+ * @author Hitachi Data Systems
+ */
+public class PrefetchingInputSeeker extends AbstractRsyncInputSeeker implements Closeable {
+
+    private static Logger LOGGER = Logger.getLogger(PrefetchingInputSeeker.class.getName());
+
+    /**
+     * Default number of I/O threads, when no Executor is provided
+     */
+    public static final int DEFAULT_IO_THREADS = 4;
+
+    /**
+     * Default limit on the number of bytes read ahead but not yet used by the patch job
+     */
+    public static final long DEFAULT_MAX_OUTSTANDING_BYTES = 32L * 1024 * 1024;
+
+    /**
+     * Default size of the buffer in which the delta is read ahead of the patch job
+     */
+    public static final int DEFAULT_LOOKAHEAD_SIZE = 1024 * 1024;
+
+    /**
+     * Largest read issued for one COPY command. Longer COPY commands are read in several chunks.
+     */
+    public static final int PREFETCH_CHUNK_SIZE = 256 * 1024;
+
+    // maximum number of prefetch ranges, issued or not, ahead of the patch job
+    private static final int MAX_RANGES = 1024;
+
+    private static final int STATE_READING = 0;
+    private static final int STATE_DONE = 1;
+    private static final int STATE_FAILED = 2;
+
+    private final FileChannel base;
+    private final RsyncInputProducer upstream;
+    private final Executor executor;
+    private final ExecutorService ownExecutor;
+    private final long maxOutstandingBytes;
+    private final DirectBufferPool pool;
+    private final DeltaParser parser = new DeltaParser();
+    private final RsyncInputProducer deltaProducer;
+
+    // the delta, read ahead of the job. Bytes [0, delivered) have been given to the job, and
+    // [0, scanned) parsed, of the [0, filled) read from upstream.
+    private ByteBuffer lookahead;
+    private ByteBuffer scanView;
+    private int delivered;
+    private int scanned;
+    private int filled;
+    private boolean upstreamDone;
+
+    // FIFO of prefetch ranges: [head, issued) have been issued, [issued, tail) are waiting for
+    // room under maxOutstandingBytes. Indexes are taken modulo MAX_RANGES.
+    private final Range[] ranges = new Range[MAX_RANGES];
+    private int head;
+    private int issued;
+    private int tail;
+    private long outstandingBytes;
+
+    // remainder of the last COPY command not yet added to ranges
+    private long copyOffset;
+    private long copyRemaining;
+
+    private ByteBuffer seekBuf;
+    private ByteBuffer lastServed;
+
+    /**
+     * Construct a PrefetchingInputSeeker with its own I/O threads and the default limits
+     * 
+     * @param base
+     *            the base file
+     * @param deltaProducer
+     *            provides the delta that will be applied to the base file
+     * @param stats
+     *            if non-null, seek and cache statistics are written to this object
+     */
+    public PrefetchingInputSeeker(FileChannel base, RsyncInputProducer deltaProducer,
+                                  RsyncStatistics stats) {
+        this(base, deltaProducer, null, DEFAULT_MAX_OUTSTANDING_BYTES, DEFAULT_LOOKAHEAD_SIZE,
+             DirectBufferPool.getDefault(), stats);
+    }
+
+    /**
+     * Construct a PrefetchingInputSeeker
+     * 
+     * @param base
+     *            the base file
+     * @param deltaProducer
+     *            provides the delta that will be applied to the base file
+     * @param executor
+     *            runs the base file reads. If null, the seeker creates DEFAULT_IO_THREADS threads
+     *            of its own, which are stopped by close().
+     * @param maxOutstandingBytes
+     *            limit on the number of bytes read ahead but not yet used by the patch job
+     * @param lookaheadSize
+     *            size of the buffer in which the delta is read ahead of the patch job
+     * @param pool
+     *            the pool from which buffers are acquired
+     * @param stats
+     *            if non-null, seek and cache statistics are written to this object
+     */
+    public PrefetchingInputSeeker(FileChannel base, RsyncInputProducer deltaProducer,
+                                  Executor executor, long maxOutstandingBytes, int lookaheadSize,
+                                  DirectBufferPool pool, RsyncStatistics stats) {
+        super(stats);
+        if (maxOutstandingBytes <= 0 || lookaheadSize < 64) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid prefetch parameters: maxOutstandingBytes=%d, lookaheadSize=%d",
+                    maxOutstandingBytes, lookaheadSize));
+        }
+        this.base = base;
+        this.upstream = deltaProducer;
+        this.maxOutstandingBytes = maxOutstandingBytes;
+        this.pool = pool;
+        if (executor == null) {
+            ownExecutor = Executors.newFixedThreadPool(DEFAULT_IO_THREADS, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "rsync-prefetch-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            this.executor = ownExecutor;
+        } else {
+            ownExecutor = null;
+            this.executor = executor;
+        }
+        for (int i = 0; i < MAX_RANGES; i++) {
+            ranges[i] = new Range();
+        }
+        lookahead = pool.acquire(lookaheadSize);
+        scanView = lookahead.duplicate();
+        this.deltaProducer = new RsyncInputProducer() {
+            public boolean produceInput(ByteBuffer buf) throws IOException {
+                return produceDelta(buf);
+            }
+        };
+    }
+
+    /**
+     * @return the producer that must be passed to the patch job in place of the delta producer
+     *         given to the constructor
+     */
+    public RsyncInputProducer getDeltaProducer() {
+        return deltaProducer;
+    }
+
+    /**
+     * Returns the requested bytes of the base file, from prefetched data if they have been read
+     * ahead, or by reading them now otherwise. When the data comes from a prefetched range that
+     * ends before position + len, only the bytes up to the end of the range are returned.
+     * 
+     * @param position
+     *            offset in the base file of where to begin reading bytes
+     * @param len
+     *            number of bytes to read starting at position
+     * @return a ByteBuffer containing the data, or null if any error occurred
+     */
+    @Override
+    public ByteBuffer doSeek(long position, int len) {
+        // the buffer returned by the last seek has been used by now
+        if (lastServed != null) {
+            pool.release(lastServed);
+            lastServed = null;
+        }
+
+        ByteBuffer result = null;
+        int match = find(position);
+        if (match >= 0) {
+            while (head != match) {
+                dropHead();
+            }
+            Range range = ranges[head % MAX_RANGES];
+            int start = (int) (position - range.offset);
+            int served = Math.min(len, range.length - start);
+            if (head < issued && range.await() == STATE_DONE) {
+                if (stats != null) {
+                    stats.cacheHits++;
+                }
+                range.buf.limit(start + served);
+                range.buf.position(start);
+                result = range.buf;
+            }
+            if (start + served == range.length) {
+                if (result != null) {
+                    // released on the next seek, when librsync is done with it
+                    lastServed = range.buf;
+                    range.buf = null;
+                }
+                dropHead();
+            }
+            if (result == null) {
+                result = readBase(position, served);
+            }
+            // the job is at a command in the FIFO, so it has not reached the commands that were
+            // left unparsed while the FIFO was full. Parse them now that there is room, even if
+            // the job already holds the rest of the delta and will not ask for more.
+            scanAhead();
+        } else {
+            result = readBase(position, len);
+        }
+        issue();
+        return result;
+    }
+
+    /**
+     * Waits for outstanding reads, and returns all buffers to the pool. Stops the I/O threads if
+     * they were created by this seeker.
+     */
+    @Override
+    public void close() {
+        while (head != tail) {
+            dropHead();
+        }
+        pool.release(lookahead);
+        lookahead = null;
+        scanView = null;
+        pool.release(seekBuf);
+        seekBuf = null;
+        pool.release(lastServed);
+        lastServed = null;
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Gives the job the next part of the delta, after reading and parsing ahead of it
+     */
+    private boolean produceDelta(ByteBuffer buf) throws IOException {
+        fill();
+        scan(false);
+        if (delivered == filled && !upstreamDone) {
+            // the lookahead buffer may be full of bytes that could not be parsed because the FIFO
+            // is full. Parse them without prefetching, to make room for more of the delta.
+            scan(true);
+            fill();
+            scan(false);
+        }
+        issue();
+
+        int n = Math.min(buf.remaining(), filled - delivered);
+        lookahead.limit(delivered + n);
+        lookahead.position(delivered);
+        buf.put(lookahead);
+        delivered += n;
+        return upstreamDone && delivered == filled;
+    }
+
+    /**
+     * Reads more of the delta from upstream into the lookahead buffer, discarding bytes that have
+     * been both delivered and parsed
+     */
+    private void fill() throws IOException {
+        int keep = Math.min(delivered, scanned);
+        lookahead.limit(filled);
+        lookahead.position(keep);
+        lookahead.compact();
+        filled -= keep;
+        delivered -= keep;
+        scanned -= keep;
+        if (!upstreamDone && lookahead.hasRemaining()) {
+            upstreamDone = upstream.produceInput(lookahead);
+            filled = lookahead.position();
+        }
+    }
+
+    /**
+     * Parses the commands in the lookahead buffer, adding the ranges of COPY commands to the FIFO
+     * 
+     * @param force
+     *            if false, parsing stops when the FIFO is full. If true, parsing continues, and the
+     *            COPY commands that don't fit are not prefetched.
+     */
+    private void scan(boolean force) throws RsyncException {
+        scanView.limit(filled);
+        scanView.position(scanned);
+        try {
+            while (addCopyRanges(force)) {
+                DeltaParser.Command command = parser.next(scanView);
+                if (command == DeltaParser.Command.COPY) {
+                    copyOffset = parser.offset();
+                    copyRemaining = parser.length();
+                } else if (command != DeltaParser.Command.LITERAL) {
+                    break;
+                }
+            }
+        } finally {
+            scanned = scanView.position();
+        }
+    }
+
+    /**
+     * Parses more of the delta from a seek. An invalid delta is left for the job to report when
+     * it parses the same commands.
+     */
+    private void scanAhead() {
+        try {
+            scan(false);
+        } catch (RsyncException e) {
+            LOGGER.log(Level.FINE, "Stopped prefetching at an invalid delta command", e);
+        }
+    }
+
+    /**
+     * Adds the remainder of the last COPY command to the FIFO
+     * 
+     * @param force
+     *            if true, the remainder that doesn't fit in the FIFO is discarded
+     * @return false if the FIFO is full and force is false
+     */
+    private boolean addCopyRanges(boolean force) {
+        while (copyRemaining > 0) {
+            if (tail - head == MAX_RANGES) {
+                if (force) {
+                    copyRemaining = 0;
+                    break;
+                }
+                return false;
+            }
+            Range range = ranges[tail % MAX_RANGES];
+            range.offset = copyOffset;
+            range.length = (int) Math.min(copyRemaining, PREFETCH_CHUNK_SIZE);
+            copyOffset += range.length;
+            copyRemaining -= range.length;
+            tail++;
+        }
+        return true;
+    }
+
+    /**
+     * Starts reads of the ranges in the FIFO, while the outstanding bytes are under the limit. If
+     * the executor rejects a read, that range is failed, so that it is read by readBase(), and the
+     * rest are left to be issued by a later seek.
+     */
+    private void issue() {
+        while (issued != tail && outstandingBytes < maxOutstandingBytes) {
+            Range range = ranges[issued % MAX_RANGES];
+            range.buf = pool.acquire(range.length);
+            range.state = STATE_READING;
+            range.outstanding = true;
+            outstandingBytes += range.length;
+            issued++;
+            try {
+                executor.execute(range);
+            } catch (RejectedExecutionException e) {
+                LOGGER.log(Level.FINE, String.format(
+                        "Prefetch of %d bytes at position %d was rejected", range.length,
+                        range.offset), e);
+                range.state = STATE_FAILED;
+                range.outstanding = false;
+                outstandingBytes -= range.length;
+                pool.release(range.buf);
+                range.buf = null;
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return the index of the first range in the FIFO containing position, or -1 if none does
+     */
+    private int find(long position) {
+        for (int i = head; i != tail; i++) {
+            Range range = ranges[i % MAX_RANGES];
+            if (position >= range.offset && position < range.offset + range.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Releases the head range and removes it from the FIFO. A range that has not been issued is
+     * skipped along with it, so that issue() never starts a range that has been dropped.
+     */
+    private void dropHead() {
+        Range range = ranges[head % MAX_RANGES];
+        if (range.outstanding) {
+            range.await();
+            outstandingBytes -= range.length;
+            range.outstanding = false;
+        }
+        pool.release(range.buf);
+        range.buf = null;
+        head++;
+        issued = Math.max(issued, head);
+    }
+
+    private ByteBuffer readBase(long position, int len) {
+        if (stats != null) {
+            stats.cacheMisses++;
+        }
+        try {
+            if (seekBuf == null || seekBuf.capacity() < len) {
+                pool.release(seekBuf);
+                seekBuf = null;
+                seekBuf = pool.acquire(len);
+            }
+            seekBuf.clear();
+            seekBuf.limit(len);
+            read(base, seekBuf, position);
+            seekBuf.flip();
+            return seekBuf;
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, String.format(
+                    "An error occurred seeking %d bytes starting at position %d", len, position),
+                       e);
+            return null;
+        }
+    }
+
+    private static void read(FileChannel channel, ByteBuffer buf, long position)
+            throws IOException {
+        long start = position - buf.position();
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, start + buf.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /**
+     * A range of the base file to prefetch. Instances are reused as the FIFO wraps around.
+     */
+    private class Range implements Runnable {
+        long offset;
+        int length;
+        ByteBuffer buf;
+        // whether the range's read was started and is counted in outstandingBytes; only used by
+        // the patch job's thread
+        boolean outstanding;
+        private int state;
+
+        /**
+         * Reads the range on an I/O thread
+         */
+        public void run() {
+            int result = STATE_FAILED;
+            try {
+                buf.clear();
+                buf.limit(length);
+                read(base, buf, offset);
+                result = STATE_DONE;
+            } catch (Throwable t) {
+                LOGGER.log(Level.FINE, String.format(
+                        "Prefetch of %d bytes at position %d failed", length, offset), t);
+            } finally {
+                synchronized (this) {
+                    state = result;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Waits for the read to finish
+         * 
+         * @return STATE_DONE or STATE_FAILED
+         */
+        synchronized int await() {
+            boolean interrupted = false;
+            while (state == STATE_READING) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return state;
+        }
+    }
+}
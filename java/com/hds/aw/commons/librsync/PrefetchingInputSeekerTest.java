@@ -0,0 +1,112 @@
+//
+// The MIT License (MIT)
+//
+// Copyright (c) 2015 Hitachi Data Systems
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+
+package com.hds.aw.commons.librsync;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that PrefetchingInputSeeker keeps serving COPY commands from prefetched data when a
+ * delta copies the same range of the base file many times over, so that ranges are found and
+ * dropped far behind the ones waiting to be issued. A delta of COPY commands, every tenth of
+ * which copies the start of the base file, is applied with JavaPatcher through the seeker, with
+ * only a couple of ranges allowed to be outstanding at once. The delta has more COPY commands
+ * than the FIFO of ranges holds, and fits in one buffer of the job, so the ranges of the later
+ * commands must be added as the job seeks. The process exits with 1 if the patch is not what the
+ * delta describes, or if any COPY command was not served from prefetched ranges.
+ *
+ * This uses only the pure Java implementation, so it does not need librsync.
+ *
+ * @author Hitachi Data Systems
+ */
+public class PrefetchingInputSeekerTest {
+
+    private static final int COPY_COUNT = 1700;
+    private static final int COPY_LENGTH = 1024;
+
+    /**
+     * Room for two COPY commands, so that most of the ranges wait in the FIFO
+     */
+    private static final long MAX_OUTSTANDING_BYTES = 2 * COPY_LENGTH;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        byte[] base = new byte[COPY_COUNT * COPY_LENGTH];
+        new Random(1).nextBytes(base);
+        File baseFile = File.createTempFile("prefetch", ".base");
+        baseFile.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(baseFile)) {
+            out.write(base);
+        }
+
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        putInt(delta, 0x72730236);
+        for (int i = 0; i < COPY_COUNT; i++) {
+            int offset = (i % 10 == 0 ? 0 : i * COPY_LENGTH);
+            // COPY with 4-byte offset and length
+            delta.write(0x45 + 4 * 2 + 2);
+            putInt(delta, offset);
+            putInt(delta, COPY_LENGTH);
+            expected.write(base, offset, COPY_LENGTH);
+        }
+        delta.write(0);
+
+        RsyncStatistics stats = new RsyncStatistics();
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        try (FileChannel channel = new RandomAccessFile(baseFile, "r").getChannel();
+             PrefetchingInputSeeker seeker = new PrefetchingInputSeeker(channel,
+                     new InputStreamProducer(new ByteArrayInputStream(delta.toByteArray())),
+                     null, MAX_OUTSTANDING_BYTES,
+                     PrefetchingInputSeeker.DEFAULT_LOOKAHEAD_SIZE,
+                     DirectBufferPool.getDefault(), stats)) {
+            JavaPatcher.generatePatch(null, seeker, seeker.getDeltaProducer(),
+                    new WritableByteChannelConsumer(Channels.newChannel(patch)),
+                    ByteBuffer.allocate(BUFFER_SIZE), ByteBuffer.allocate(BUFFER_SIZE), null);
+        }
+
+        System.out.println("cache hits: " + stats.cacheHits + ", misses: " + stats.cacheMisses);
+        if (!Arrays.equals(expected.toByteArray(), patch.toByteArray())) {
+            System.out.println("The patch is not what the delta describes");
+            System.exit(1);
+        }
+        if (stats.cacheMisses != 0) {
+            System.out.println("Some COPY commands were not served from prefetched ranges");
+            System.exit(1);
+        }
+        System.out.println("PrefetchingInputSeeker served repeated COPY ranges");
+    }
+
+    private static void putInt(ByteArrayOutputStream out, int value) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            out.write(value >>> shift);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+//
+// The MIT License (MIT)
+//
+// Copyright (c) 2015 Hitachi Data Systems
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+
+package com.hds.aw.commons.librsync;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Implementation of RsyncInputProducer that reads directly from a ReadableByteChannel into the
+ * job's input buffer, without copying through a byte[].
+ *
+ * @author Hitachi Data Systems
+ */
+public class ReadableByteChannelProducer implements RsyncInputProducer {
+
+    private final ReadableByteChannel channel;
+    private boolean done = false;
+    private long totalBytesRead = 0;
+
+    /**
+     * Construct a ReadableByteChannelProducer
+     * 
+     * @param channel
+     *            the channel that produceInput() will read from
+     */
+    public ReadableByteChannelProducer(ReadableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Reads from the channel provided in the constructor into buf, until buf is full or the end of
+     * the channel is reached. If the channel is non-blocking, this may return before buf is full.
+     * 
+     * @param buf
+     *            buffer into which to write data
+     * @return true if the end of the channel has been reached, false otherwise
+     * @throws IOException
+     */
+    public boolean produceInput(ByteBuffer buf) throws IOException {
+        while (!done && buf.remaining() > 0) {
+            int readCnt = channel.read(buf);
+            if (readCnt < 0) {
+                done = true;
+            } else if (readCnt == 0) {
+                break;
+            } else {
+                totalBytesRead += readCnt;
+            }
+        }
+        return done;
+    }
+
+    /**
+     * @return the number of bytes read from the channel so far
+     */
+    public long getTotalBytesRead() {
+        return totalBytesRead;
+    }
+}
@@ -0,0 +1,334 @@
+//
+// The MIT License (MIT)
+//
+// Copyright (c) 2015 Hitachi Data Systems
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+
+package com.hds.aw.commons.librsync;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs rsync signature, delta and patch jobs asynchronously on a bounded pool of platform threads,
+ * sized to the number of cores by default. Each worker thread takes its own input and output
+ * buffers from the default DirectBufferPool, and returns them when it exits after close(), so
+ * callers don't have to allocate them.
+ * 
+ * All native calls, and all calls to the producers, consumers and seekers of a job, are made from
+ * the worker threads, so callers running on virtual threads never pin their carrier threads.
+ * Admission control bounds the number of jobs that are queued or running: once that many jobs have
+ * been submitted and not yet completed, further submissions block until one completes. This lets
+ * many callers submit jobs without oversubscribing the CPU or queuing without bound.
+ *
+ * @author Hitachi Data Systems
+ */
+public class RsyncEngine implements AutoCloseable {
+
+    /**
+     * The default size of each worker's input and output buffers
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    private final ThreadPoolExecutor executor;
+    private final Semaphore admission;
+    private final int bufferSize;
+
+    /**
+     * A job run by a worker thread, with that worker's buffers
+     */
+    private interface Job {
+        void run(ByteBuffer inBuf, ByteBuffer outBuf) throws IOException;
+    }
+
+    /**
+     * A worker thread, owning the buffers passed to the jobs it runs until it exits
+     */
+    private static class Worker extends Thread {
+        private final int bufferSize;
+        private final DirectBufferPool pool = DirectBufferPool.getDefault();
+        private ByteBuffer inBuf;
+        private ByteBuffer outBuf;
+
+        Worker(Runnable r, String name, int bufferSize) {
+            super(r, name);
+            this.bufferSize = bufferSize;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                super.run();
+            } finally {
+                pool.release(inBuf);
+                inBuf = null;
+                pool.release(outBuf);
+                outBuf = null;
+            }
+        }
+
+        ByteBuffer inBuf() {
+            if (inBuf == null) {
+                inBuf = pool.acquire(bufferSize);
+            }
+            return inBuf;
+        }
+
+        ByteBuffer outBuf() {
+            if (outBuf == null) {
+                outBuf = pool.acquire(bufferSize);
+            }
+            return outBuf;
+        }
+    }
+
+    /**
+     * Construct an RsyncEngine with one worker per core, admitting up to 64 jobs per worker, with
+     * DEFAULT_BUFFER_SIZE buffers
+     */
+    public RsyncEngine() {
+        this(Runtime.getRuntime().availableProcessors(),
+             Runtime.getRuntime().availableProcessors() * 64, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Construct an RsyncEngine
+     * 
+     * @param threads
+     *            the number of worker threads
+     * @param maxJobs
+     *            the maximum number of jobs that may be queued or running at once
+     * @param bufferSize
+     *            the size of each worker's input and output buffers
+     */
+    public RsyncEngine(int threads, int maxJobs, final int bufferSize) {
+        if (threads < 1 || maxJobs < 1 || bufferSize < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid RsyncEngine configuration: threads=%d, maxJobs=%d, bufferSize=%d",
+                    threads, maxJobs, bufferSize));
+        }
+        this.bufferSize = bufferSize;
+        this.admission = new Semaphore(maxJobs);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                                               new LinkedBlockingQueue<Runnable>(),
+                                               new ThreadFactory() {
+                                                   private final AtomicInteger count = new AtomicInteger();
+
+                                                   public Thread newThread(Runnable r) {
+                                                       return new Worker(r, "rsync-engine-"
+                                                               + count.incrementAndGet(),
+                                                                         bufferSize);
+                                                   }
+                                               });
+    }
+
+    /**
+     * Generates an rsync signature asynchronously. See LibrsyncWrapper.generateSignature()
+     * 
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param fileProducer
+     *            produces the contents of the file for which the signature is generated
+     * @param signatureConsumer
+     *            consumes the output signature
+     * @param options
+     *            the signature type, block length and strong sum length
+     * @param rsyncStats
+     *            Optional object to hold statistics about the rsync job
+     * @return a future completed when the signature has been consumed, or completed exceptionally
+     *         if the job fails
+     */
+    public CompletableFuture<Void> signatureAsync(final Object jobTag,
+                                                  final RsyncInputProducer fileProducer,
+                                                  final RsyncOutputConsumer signatureConsumer,
+                                                  final SignatureOptions options,
+                                                  final RsyncStatistics rsyncStats) {
+        return submit(new Job() {
+            public void run(ByteBuffer inBuf, ByteBuffer outBuf) throws IOException {
+                LibrsyncWrapper.generateSignature(jobTag, fileProducer, signatureConsumer,
+                                                  options, inBuf, outBuf, rsyncStats);
+            }
+        });
+    }
+
+    /**
+     * Generates an rsync delta asynchronously. See LibrsyncWrapper.generateDelta()
+     * 
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param signatureProducer
+     *            produces the signature of the base file
+     * @param newFileProducer
+     *            produces the contents of the new file
+     * @param deltaConsumer
+     *            consumes the delta produced by librsync
+     * @param rsyncStats
+     *            Optional object to hold statistics about the rsync job
+     * @return a future completed when the delta has been consumed, or completed exceptionally if
+     *         the job fails
+     */
+    public CompletableFuture<Void> deltaAsync(final Object jobTag,
+                                              final RsyncInputProducer signatureProducer,
+                                              final RsyncInputProducer newFileProducer,
+                                              final RsyncOutputConsumer deltaConsumer,
+                                              final RsyncStatistics rsyncStats) {
+        return submit(new Job() {
+            public void run(ByteBuffer inBuf, ByteBuffer outBuf) throws IOException {
+                LibrsyncWrapper.generateDelta(jobTag, signatureProducer, newFileProducer,
+                                              deltaConsumer, inBuf, outBuf, rsyncStats);
+            }
+        });
+    }
+
+    /**
+     * Generates an rsync delta against a loaded signature asynchronously. See
+     * LibrsyncWrapper.generateDelta()
+     * 
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param signature
+     *            the loaded signature of the base file. It must not be closed until the returned
+     *            future completes.
+     * @param newFileProducer
+     *            produces the contents of the new file
+     * @param deltaConsumer
+     *            consumes the delta produced by librsync
+     * @param rsyncStats
+     *            Optional object to hold statistics about the rsync job
+     * @return a future completed when the delta has been consumed, or completed exceptionally if
+     *         the job fails
+     */
+    public CompletableFuture<Void> deltaAsync(final Object jobTag,
+                                              final LoadedSignature signature,
+                                              final RsyncInputProducer newFileProducer,
+                                              final RsyncOutputConsumer deltaConsumer,
+                                              final RsyncStatistics rsyncStats) {
+        return submit(new Job() {
+            public void run(ByteBuffer inBuf, ByteBuffer outBuf) throws IOException {
+                LibrsyncWrapper.generateDelta(jobTag, signature, newFileProducer, deltaConsumer,
+                                              inBuf, outBuf, rsyncStats);
+            }
+        });
+    }
+
+    /**
+     * Generates an rsync patch asynchronously. See LibrsyncWrapper.generatePatch()
+     * 
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param baseFileSeeker
+     *            Provides requested chunks of the base file
+     * @param deltaProducer
+     *            Provides the delta previously generated by librsync
+     * @param patchConsumer
+     *            Consumes the patch generated by librsync
+     * @param rsyncStats
+     *            Optional object to hold statistics about the rsync job
+     * @return a future completed when the patch has been consumed, or completed exceptionally if
+     *         the job fails
+     */
+    public CompletableFuture<Void> patchAsync(final Object jobTag,
+                                              final RsyncInputSeeker baseFileSeeker,
+                                              final RsyncInputProducer deltaProducer,
+                                              final RsyncOutputConsumer patchConsumer,
+                                              final RsyncStatistics rsyncStats) {
+        return submit(new Job() {
+            public void run(ByteBuffer inBuf, ByteBuffer outBuf) throws IOException {
+                LibrsyncWrapper.generatePatch(jobTag, baseFileSeeker, deltaProducer,
+                                              patchConsumer, inBuf, outBuf, rsyncStats);
+            }
+        });
+    }
+
+    /**
+     * @return the number of jobs that may still be submitted before submission blocks
+     */
+    public int availableJobSlots() {
+        return admission.availablePermits();
+    }
+
+    /**
+     * Stops accepting jobs, and waits for queued and running jobs to complete
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                // keep waiting; jobs can't be safely abandoned while native code is running
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits for a job slot, then queues the job to run on a worker thread
+     */
+    private CompletableFuture<Void> submit(final Job job) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            admission.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (!future.isDone()) {
+                            Worker worker = (Worker) Thread.currentThread();
+                            job.run(worker.inBuf(), worker.outBuf());
+                            future.complete(null);
+                        }
+                    } catch (Throwable t) {
+                        future.completeExceptionally(t);
+                    } finally {
+                        admission.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            admission.release();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * @return the size of each worker's input and output buffers
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
@@ -34,7 +34,9 @@ import java.nio.ByteBuffer;
  */
 public interface RsyncInputSeeker {
     /**
-     * Seek a chunk of the base file, starting at position and containing len bytes.
+     * Seek a chunk of the base file, starting at position and containing len bytes. The returned
+     * buffer may hold fewer than len bytes (but at least one), in which case the patch job will
+     * seek the rest separately.
      * 
      * If an error occurs, null should be returned.
      * 
@@ -0,0 +1,416 @@
+//
+// The MIT License (MIT)
+//
+// Copyright (c) 2015 Hitachi Data Systems
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+
+package com.hds.aw.commons.librsync;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide latency and throughput metrics of all rsync jobs. Unlike RsyncStatistics, which
+ * describes a single job, these are gathered from every thread at once: each phase holds a latency
+ * histogram, timed with System.nanoTime(), and counters of jobs, failures and bytes, all kept in
+ * LongAdders so that recording scales with the number of threads.
+ * 
+ * The metrics can be read directly with getPhase(), exported through JMX with registerMBeans(), or
+ * forwarded to a metrics library with addSink(). Gathering them can be turned off with
+ * setEnabled(), or initially with the system property METRICS_ENABLED_PROPERTY.
+ *
+ * @author Hitachi Data Systems
+ */
+public final class RsyncMetrics {
+
+    /**
+     * What is timed and counted
+     */
+    public enum Phase {
+        SIGNATURE, // a signature job
+        SIGNATURE_LOAD, // a job loading a signature for deltas
+        HASH_TABLE_BUILD, // building the hash table of a loaded signature
+        DELTA, // a delta job
+        PATCH, // a patch job
+        SEEK, // a single RsyncInputSeeker.seek() of a patch base file
+        PRODUCER_WAIT, // a single call to an RsyncInputProducer
+        CONSUMER_WAIT // a single call to an RsyncOutputConsumer
+    }
+
+    /**
+     * System property that sets whether metrics are initially gathered. Defaults to true.
+     */
+    public static final String METRICS_ENABLED_PROPERTY = "com.hds.aw.commons.librsync.metrics";
+
+    /**
+     * The domain of the ObjectNames registered by registerMBeans()
+     */
+    public static final String MBEAN_DOMAIN = "com.hds.aw.commons.librsync";
+
+    private static final int BUCKETS = 65;
+
+    private static final RsyncMetrics DEFAULT = new RsyncMetrics(!"false".equals(System
+            .getProperty(METRICS_ENABLED_PROPERTY)));
+
+    private final PhaseMetrics[] phases;
+    private volatile boolean enabled;
+
+    // copied on write, and iterated by index so that recording does not allocate
+    private volatile RsyncMetricsSink[] sinks = new RsyncMetricsSink[0];
+
+    RsyncMetrics(boolean enabled) {
+        this.enabled = enabled;
+        Phase[] values = Phase.values();
+        phases = new PhaseMetrics[values.length];
+        for (Phase phase : values) {
+            phases[phase.ordinal()] = new PhaseMetrics(phase);
+        }
+    }
+
+    /**
+     * @return the metrics that the library records into
+     */
+    public static RsyncMetrics getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @param enabled
+     *            true to gather metrics, false to make recording do nothing
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return true if metrics are being gathered
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param phase
+     *            the phase
+     * @return the metrics of the phase
+     */
+    public RsyncPhaseMetricsMXBean getPhase(Phase phase) {
+        return phases[phase.ordinal()];
+    }
+
+    /**
+     * Sets all of the metrics back to zero
+     */
+    public void reset() {
+        for (PhaseMetrics phase : phases) {
+            phase.reset();
+        }
+    }
+
+    /**
+     * Adds a sink that receives every measurement recorded from now on
+     * 
+     * @param sink
+     *            the sink
+     */
+    public synchronized void addSink(RsyncMetricsSink sink) {
+        RsyncMetricsSink[] newSinks = new RsyncMetricsSink[sinks.length + 1];
+        System.arraycopy(sinks, 0, newSinks, 0, sinks.length);
+        newSinks[sinks.length] = sink;
+        sinks = newSinks;
+    }
+
+    /**
+     * Removes a sink added with addSink()
+     * 
+     * @param sink
+     *            the sink
+     * @return true if the sink had been added
+     */
+    public synchronized boolean removeSink(RsyncMetricsSink sink) {
+        for (int i = 0; i < sinks.length; i++) {
+            if (sinks[i] == sink) {
+                RsyncMetricsSink[] newSinks = new RsyncMetricsSink[sinks.length - 1];
+                System.arraycopy(sinks, 0, newSinks, 0, i);
+                System.arraycopy(sinks, i + 1, newSinks, i, sinks.length - i - 1);
+                sinks = newSinks;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Registers an MXBean for each phase with the platform MBeanServer, named
+     * com.hds.aw.commons.librsync:type=RsyncMetrics,phase=PHASE. Phases that are already
+     * registered are skipped.
+     * 
+     * @throws JMException
+     *             if an MXBean could not be registered
+     */
+    public void registerMBeans() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (PhaseMetrics phase : phases) {
+            ObjectName name = objectName(phase.phase);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(phase, name);
+            }
+        }
+    }
+
+    /**
+     * Unregisters the MXBeans registered by registerMBeans()
+     * 
+     * @throws JMException
+     *             if an MXBean could not be unregistered
+     */
+    public void unregisterMBeans() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (PhaseMetrics phase : phases) {
+            ObjectName name = objectName(phase.phase);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        }
+    }
+
+    private static ObjectName objectName(Phase phase) throws JMException {
+        return new ObjectName(MBEAN_DOMAIN + ":type=RsyncMetrics,phase=" + phase.name());
+    }
+
+    /**
+     * Records the time taken by one event
+     * 
+     * @param phase
+     *            what was timed
+     * @param startNanos
+     *            the System.nanoTime() when the event started
+     */
+    public void recordLatency(Phase phase, long startNanos) {
+        if (!enabled) {
+            return;
+        }
+        long nanos = System.nanoTime() - startNanos;
+        phases[phase.ordinal()].recordLatency(nanos);
+        RsyncMetricsSink[] sinks = this.sinks;
+        for (int i = 0; i < sinks.length; i++) {
+            sinks[i].recordLatency(phase, nanos);
+        }
+    }
+
+    /**
+     * Records the completion of a job, including its time
+     * 
+     * @param phase
+     *            the kind of job
+     * @param startNanos
+     *            the System.nanoTime() when the job started
+     * @param inputBytes
+     *            the number of bytes of input the job consumed
+     * @param outputBytes
+     *            the number of bytes of output the job produced
+     * @param failed
+     *            true if the job failed
+     */
+    public void recordJob(Phase phase, long startNanos, long inputBytes, long outputBytes,
+                          boolean failed) {
+        if (!enabled) {
+            return;
+        }
+        recordLatency(phase, startNanos);
+        phases[phase.ordinal()].recordJob(inputBytes, outputBytes, failed);
+        RsyncMetricsSink[] sinks = this.sinks;
+        for (int i = 0; i < sinks.length; i++) {
+            sinks[i].recordJob(phase, inputBytes, outputBytes, failed);
+        }
+    }
+
+    /**
+     * @return the histogram bucket of a latency: 64 minus the number of leading zeros, so bucket i
+     *         holds latencies of at least 2^(i-1) and less than 2^i
+     */
+    static int bucket(long nanos) {
+        return 64 - Long.numberOfLeadingZeros(Math.max(0, nanos));
+    }
+
+    /**
+     * The metrics of one phase
+     */
+    private static final class PhaseMetrics implements RsyncPhaseMetricsMXBean {
+        private final Phase phase;
+        private final LongAdder[] histogram = new LongAdder[BUCKETS];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(new LongBinaryOperator() {
+            public long applyAsLong(long left, long right) {
+                return Math.max(left, right);
+            }
+        }, 0);
+        private final LongAdder jobs = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder inputBytes = new LongAdder();
+        private final LongAdder outputBytes = new LongAdder();
+
+        PhaseMetrics(Phase phase) {
+            this.phase = phase;
+            for (int i = 0; i < BUCKETS; i++) {
+                histogram[i] = new LongAdder();
+            }
+        }
+
+        void recordLatency(long nanos) {
+            histogram[bucket(nanos)].increment();
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        void recordJob(long input, long output, boolean failed) {
+            jobs.increment();
+            if (failed) {
+                failures.increment();
+            }
+            inputBytes.add(input);
+            outputBytes.add(output);
+        }
+
+        @Override
+        public long getCount() {
+            return count.sum();
+        }
+
+        @Override
+        public long getTotalNanos() {
+            return totalNanos.sum();
+        }
+
+        @Override
+        public long getMeanNanos() {
+            long n = count.sum();
+            return (n == 0 ? 0 : totalNanos.sum() / n);
+        }
+
+        @Override
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        @Override
+        public long getP50Nanos() {
+            return percentile(0.5);
+        }
+
+        @Override
+        public long getP99Nanos() {
+            return percentile(0.99);
+        }
+
+        @Override
+        public long getP999Nanos() {
+            return percentile(0.999);
+        }
+
+        private long percentile(double fraction) {
+            long[] counts = getHistogram();
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            long rank = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    // the upper bound of the bucket, which is never above the largest value seen
+                    long bound = (i == 0 ? 0 : (i == 64 ? Long.MAX_VALUE : (1L << i) - 1));
+                    return Math.min(bound, maxNanos.get());
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public long[] getHistogram() {
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = histogram[i].sum();
+            }
+            return counts;
+        }
+
+        @Override
+        public long getJobs() {
+            return jobs.sum();
+        }
+
+        @Override
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        @Override
+        public long getInputBytes() {
+            return inputBytes.sum();
+        }
+
+        @Override
+        public long getOutputBytes() {
+            return outputBytes.sum();
+        }
+
+        @Override
+        public void reset() {
+            for (LongAdder bucket : histogram) {
+                bucket.reset();
+            }
+            count.reset();
+            totalNanos.reset();
+            maxNanos.reset();
+            jobs.reset();
+            failures.reset();
+            inputBytes.reset();
+            outputBytes.reset();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: count %d, mean %dns, p50 %dns, p99 %dns, max %dns, "
+                    + "jobs %d, failures %d, input %d, output %d", phase, getCount(),
+                                 getMeanNanos(), getP50Nanos(), getP99Nanos(), getMaxNanos(),
+                                 getJobs(), getFailures(), getInputBytes(), getOutputBytes());
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (PhaseMetrics phase : phases) {
+            sb.append("\n  ").append(phase);
+        }
+        return sb.append("\n}").toString();
+    }
+}
@@ -0,0 +1,61 @@
+//
+// The MIT License (MIT)
+//
+// Copyright (c) 2015 Hitachi Data Systems
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+
+package com.hds.aw.commons.librsync;
+
+/**
+ * Receives every measurement recorded by RsyncMetrics, so they can be forwarded to a metrics
+ * library. Register one with RsyncMetrics.addSink().
+ * 
+ * The methods are called on the threads doing the work, often once per seek or per buffer, so they
+ * must be thread-safe and quick, and must not throw.
+ *
+ * @author Hitachi Data Systems
+ */
+public interface RsyncMetricsSink {
+
+    /**
+     * Called for each timed event, including the completion of each job
+     * 
+     * @param phase
+     *            what was timed
+     * @param nanos
+     *            how long it took, in nanoseconds
+     */
+    void recordLatency(RsyncMetrics.Phase phase, long nanos);
+
+    /**
+     * Called when a job completes, after recordLatency() has been called with its duration
+     * 
+     * @param phase
+     *            the kind of job
+     * @param inputBytes
+     *            the number of bytes of input the job consumed
+     * @param outputBytes
+     *            the number of bytes of output the job produced
+     * @param failed
+     *            true if the job failed
+     */
+    void recordJob(RsyncMetrics.Phase phase, long inputBytes, long outputBytes, boolean failed);
+}
@@ -0,0 +1,103 @@
+//
+// The MIT License (MIT)
+//
+// Copyright (c) 2015 Hitachi Data Systems
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+
+package com.hds.aw.commons.librsync;
+
+/**
+ * The JMX view of the metrics RsyncMetrics holds for one phase. Registered by
+ * RsyncMetrics.registerMBeans() as com.hds.aw.commons.librsync:type=RsyncMetrics,phase=PHASE.
+ * 
+ * Latencies are held in a histogram with one bucket per power of two nanoseconds, so percentiles
+ * are the upper bound of the bucket they fall in.
+ *
+ * @author Hitachi Data Systems
+ */
+public interface RsyncPhaseMetricsMXBean {
+
+    /**
+     * @return the number of timed events
+     */
+    long getCount();
+
+    /**
+     * @return the total time of all of the timed events, in nanoseconds
+     */
+    long getTotalNanos();
+
+    /**
+     * @return the mean time of the timed events, in nanoseconds
+     */
+    long getMeanNanos();
+
+    /**
+     * @return the longest time of any timed event, in nanoseconds
+     */
+    long getMaxNanos();
+
+    /**
+     * @return the median time, in nanoseconds
+     */
+    long getP50Nanos();
+
+    /**
+     * @return the 99th percentile time, in nanoseconds
+     */
+    long getP99Nanos();
+
+    /**
+     * @return the 99.9th percentile time, in nanoseconds
+     */
+    long getP999Nanos();
+
+    /**
+     * @return the number of events in each bucket of the latency histogram. Bucket i holds the
+     *         events that took at least 2^(i-1) and less than 2^i nanoseconds.
+     */
+    long[] getHistogram();
+
+    /**
+     * @return the number of jobs completed, including failed ones
+     */
+    long getJobs();
+
+    /**
+     * @return the number of jobs that failed
+     */
+    long getFailures();
+
+    /**
+     * @return the number of bytes of input consumed by jobs
+     */
+    long getInputBytes();
+
+    /**
+     * @return the number of bytes of output produced by jobs
+     */
+    long getOutputBytes();
+
+    /**
+     * Sets all of the metrics of this phase back to zero
+     */
+    void reset();
+}
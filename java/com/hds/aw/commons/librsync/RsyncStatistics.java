@@ -51,6 +51,9 @@ public class RsyncStatistics {
     public long totalSeekLen;
     public long totalSeeks;
 
+    public long cacheHits;
+    public long cacheMisses;
+
     /**
      * Generate empty statistics. Rysnc jobs will fill in statistics. If seek statistics are desired
      * on a patch job, then the RsyncInputSeeker must gather these statistics. See
@@ -98,10 +101,46 @@ public class RsyncStatistics {
             sb.append("\n  average seek len: ").append(totalSeekLen / totalSeeks);
         }
 
+        if (cacheHits + cacheMisses > 0) {
+            sb.append("\n  cache hits: ").append(cacheHits);
+            sb.append("\n  cache misses: ").append(cacheMisses);
+        }
+
         sb.append("\n}");
         return sb.toString();
     }
 
+    /**
+     * Adds the statistics gathered by another job to these statistics. Used when one operation is
+     * made up of several rsync jobs.
+     * 
+     * @param other
+     *            statistics of the other job
+     */
+    public void merge(RsyncStatistics other) {
+        iterations += other.iterations;
+
+        maxInputConsumed = Math.max(maxInputConsumed, other.maxInputConsumed);
+        minInputConsumed = Math.min(minInputConsumed, other.minInputConsumed);
+        totalInputConsumed += other.totalInputConsumed;
+
+        maxInputNotConsumed = Math.max(maxInputNotConsumed, other.maxInputNotConsumed);
+        minInputNotConsumed = Math.min(minInputNotConsumed, other.minInputNotConsumed);
+        totalInputNotConsumed += other.totalInputNotConsumed;
+
+        maxOutputProduced = Math.max(maxOutputProduced, other.maxOutputProduced);
+        minOutputProduced = Math.min(minOutputProduced, other.minOutputProduced);
+        totalOutputProduced += other.totalOutputProduced;
+
+        maxSeekLen = Math.max(maxSeekLen, other.maxSeekLen);
+        minSeekLen = Math.min(minSeekLen, other.minSeekLen);
+        totalSeekLen += other.totalSeekLen;
+        totalSeeks += other.totalSeeks;
+
+        cacheHits += other.cacheHits;
+        cacheMisses += other.cacheMisses;
+    }
+
     public void begin() {
         startTimeMs = System.currentTimeMillis();
     }
@@ -0,0 +1,109 @@
+//
+// The MIT License (MIT)
+//
+// Copyright (c) 2015 Hitachi Data Systems
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+
+package com.hds.aw.commons.librsync;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The signatures of a batch of inputs, packed one after the other into a single buffer, with an
+ * index of where each one is. Returned by LibrsyncWrapper.generateSignatures().
+ *
+ * @author Hitachi Data Systems
+ */
+public final class SignatureBatch {
+
+    private final ByteBuffer signatures;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final SignatureOptions options;
+
+    /**
+     * @param signatures
+     *            the buffer holding the signatures
+     * @param offsets
+     *            the absolute offset of each signature in signatures
+     * @param lengths
+     *            the length of each signature
+     */
+    SignatureBatch(ByteBuffer signatures, int[] offsets, int[] lengths,
+                   SignatureOptions options) {
+        this.signatures = signatures;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.options = options;
+    }
+
+    /**
+     * @return the number of signatures in the batch
+     */
+    public int size() {
+        return offsets.length;
+    }
+
+    /**
+     * @return the options all of the signatures were generated with
+     */
+    public SignatureOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * @return the buffer holding all of the signatures, with its position at the start of the first
+     *         and its limit at the end of the last
+     */
+    public ByteBuffer getSignatures() {
+        return signatures;
+    }
+
+    /**
+     * @param index
+     *            the index of the input in the batch
+     * @return the absolute offset of the input's signature in getSignatures()
+     */
+    public int getOffset(int index) {
+        return offsets[index];
+    }
+
+    /**
+     * @param index
+     *            the index of the input in the batch
+     * @return the length of the input's signature
+     */
+    public int getLength(int index) {
+        return lengths[index];
+    }
+
+    /**
+     * @param index
+     *            the index of the input in the batch
+     * @return a buffer holding just the input's signature, sharing its content with
+     *         getSignatures()
+     */
+    public ByteBuffer getSignature(int index) {
+        ByteBuffer signature = signatures.duplicate();
+        signature.limit(offsets[index] + lengths[index]).position(offsets[index]);
+        return signature.slice();
+    }
+}
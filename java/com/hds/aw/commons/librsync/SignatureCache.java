@@ -0,0 +1,227 @@
+//
+// The MIT License (MIT)
+//
+// Copyright (c) 2015 Hitachi Data Systems
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+
+package com.hds.aw.commons.librsync;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded cache of LoadedSignatures, keyed by a digest (SHA-256 by default) of the signature's
+ * content, so that hot signatures only have to be loaded and hashed once. When the cache is full,
+ * the least recently used signature is evicted.
+ * 
+ * Every LoadedSignature returned by acquire() holds its own reference, and must be closed by the
+ * caller when it is done with it. An evicted signature is only freed once every caller that
+ * acquired it has closed it. This class is thread-safe.
+ *
+ * @author Hitachi Data Systems
+ */
+public class SignatureCache implements AutoCloseable {
+
+    private final int maxEntries;
+    private final LinkedHashMap<ByteBuffer, LoadedSignature> signatures;
+    private long hits;
+    private long misses;
+
+    /**
+     * Construct a SignatureCache
+     * 
+     * @param maxEntries
+     *            the maximum number of signatures to keep loaded
+     */
+    public SignatureCache(final int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Invalid maximum number of entries " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        this.signatures = new LinkedHashMap<ByteBuffer, LoadedSignature>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, LoadedSignature> eldest) {
+                if (size() > SignatureCache.this.maxEntries) {
+                    eldest.getValue().close();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the loaded signature, loading and caching it if it is not already cached. The
+     * signature is keyed by its SHA-256 digest.
+     * 
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param signature
+     *            the signature, as generated by LibrsyncWrapper.generateSignature()
+     * @param inBuf
+     *            The direct byte buffer used to load the signature if it is not cached
+     * @param outBuf
+     *            The direct byte buffer used to load the signature if it is not cached
+     * @param rsyncStats
+     *            Optional object to hold statistics about the load job, if one is run
+     * @return the loaded signature, which the caller must close
+     * @throws IOException
+     * @throws RsyncException
+     *             if the signature could not be loaded
+     */
+    public LoadedSignature acquire(Object jobTag, byte[] signature, ByteBuffer inBuf,
+                                   ByteBuffer outBuf, RsyncStatistics rsyncStats)
+            throws IOException, RsyncException {
+        return acquire(jobTag, digest(signature),
+                       new InputStreamProducer(new ByteArrayInputStream(signature)), inBuf,
+                       outBuf, rsyncStats);
+    }
+
+    /**
+     * Returns the loaded signature with the given content digest, loading it from the
+     * signatureProducer and caching it if it is not already cached. The signatureProducer is not
+     * used if the signature is cached.
+     * 
+     * @param jobTag
+     *            the toString() of this is just used in LOGGER messages to identify the job
+     * @param contentDigest
+     *            a digest of the signature's content, such as one returned by digest()
+     * @param signatureProducer
+     *            produces the signature if it has to be loaded
+     * @param inBuf
+     *            The direct byte buffer used to load the signature if it is not cached
+     * @param outBuf
+     *            The direct byte buffer used to load the signature if it is not cached
+     * @param rsyncStats
+     *            Optional object to hold statistics about the load job, if one is run
+     * @return the loaded signature, which the caller must close
+     * @throws IOException
+     *             if thrown from signatureProducer
+     * @throws RsyncException
+     *             if the signature could not be loaded
+     */
+    public LoadedSignature acquire(Object jobTag, byte[] contentDigest,
+                                   RsyncInputProducer signatureProducer, ByteBuffer inBuf,
+                                   ByteBuffer outBuf, RsyncStatistics rsyncStats)
+            throws IOException, RsyncException {
+        ByteBuffer key = ByteBuffer.wrap(contentDigest.clone());
+        synchronized (this) {
+            LoadedSignature cached = signatures.get(key);
+            if (cached != null) {
+                hits++;
+                return cached.retain();
+            }
+            misses++;
+        }
+
+        // load outside of the lock; if another thread loads the same signature meanwhile, the
+        // first one to finish wins
+        LoadedSignature loaded = LibrsyncWrapper.loadSignature(jobTag, signatureProducer, inBuf,
+                                                               outBuf, rsyncStats);
+        synchronized (this) {
+            LoadedSignature cached = signatures.get(key);
+            if (cached != null) {
+                loaded.close();
+                return cached.retain();
+            }
+            signatures.put(key, loaded);
+            return loaded.retain();
+        }
+    }
+
+    /**
+     * Removes the signature with the given content digest from the cache. It is freed once every
+     * caller that acquired it has closed it.
+     * 
+     * @param contentDigest
+     * @return true if the signature was cached
+     */
+    public boolean invalidate(byte[] contentDigest) {
+        LoadedSignature removed;
+        synchronized (this) {
+            removed = signatures.remove(ByteBuffer.wrap(contentDigest));
+        }
+        if (removed != null) {
+            removed.close();
+        }
+        return removed != null;
+    }
+
+    /**
+     * @return the number of signatures currently cached
+     */
+    public synchronized int size() {
+        return signatures.size();
+    }
+
+    /**
+     * @return the number of calls to acquire() that found the signature already loaded
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of calls to acquire() that had to load the signature
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Removes every signature from the cache. Each is freed once every caller that acquired it has
+     * closed it.
+     */
+    @Override
+    public void close() {
+        List<LoadedSignature> removed;
+        synchronized (this) {
+            removed = new ArrayList<>(signatures.values());
+            signatures.clear();
+        }
+        for (LoadedSignature signature : removed) {
+            signature.close();
+        }
+    }
+
+    /**
+     * Computes the SHA-256 digest used to key a signature in the cache
+     * 
+     * @param signature
+     * @return the digest
+     */
+    public static byte[] digest(byte[] signature) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(signature);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,430 @@
+//
+// The MIT License (MIT)
+//
+// Copyright (c) 2015 Hitachi Data Systems
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+
+package com.hds.aw.commons.librsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An rsync signature stored with its blocks already in hash table order, so that
+ * JavaDeltaGenerator can search it in place, without parsing the signature or building a hash
+ * table first. An index is built once from a signature with build() or write(), and a persisted
+ * index is opened with open(), which maps it read-only: opening costs nothing however many blocks
+ * it has, and its pages are shared by every process that opens it.
+ * 
+ * An index is a header, a bucket directory, and the block entries, all big-endian:
+ * <ul>
+ * <li>header: INDEX_MAGIC, FORMAT_VERSION, the signature magic, block length, strong sum length,
+ * block count and bucket count, and a reserved int</li>
+ * <li>directory: bucket count + 1 ints. Bucket b's entries are those from directory[b] up to
+ * directory[b + 1].</li>
+ * <li>entries: each block's weak sum, block number and truncated strong sum, grouped by bucket,
+ * and in block order within each bucket</li>
+ * </ul>
+ * The bucket count is a power of 2, at least the block count, and a block's bucket is a hash of
+ * its weak sum.
+ * 
+ * An index holds at most 2 GB, which is tens of millions of blocks. It is immutable, so any
+ * number of threads may search it at the same time.
+ *
+ * @author Hitachi Data Systems
+ */
+public final class SignatureIndex {
+
+    /**
+     * Magic number at the start of a signature index
+     */
+    public static final int INDEX_MAGIC = 0x72734958;
+
+    /**
+     * The version of the format written by this class
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    private static final int HEADER_LENGTH = 32;
+    private static final int MAX_BUCKETS = 1 << 30;
+    private static final long MAX_INDEX_LENGTH = Integer.MAX_VALUE - 8;
+    private static final int READ_LENGTH = 1024 * 1024;
+
+    private static final RsyncMetrics METRICS = RsyncMetrics.getDefault();
+
+    private final ByteBuffer index;
+    private final SignatureOptions options;
+    private final int blockCount;
+    private final int bucketMask;
+    private final int entryLength;
+    private final int entriesOffset;
+
+    private SignatureIndex(ByteBuffer index) throws RsyncException {
+        this.index = index;
+        if (index.remaining() < HEADER_LENGTH || index.getInt(0) != INDEX_MAGIC) {
+            throw new RsyncException("Not a signature index",
+                                     LibrsyncWrapper.RsyncResult.RS_BAD_MAGIC.cValue);
+        }
+        if (index.getInt(4) != FORMAT_VERSION) {
+            throw new RsyncException("Unsupported signature index version " + index.getInt(4),
+                                     LibrsyncWrapper.RsyncResult.RS_UNIMPLEMENTED.cValue);
+        }
+        SignatureType type = SignatureType.fromMagic(index.getInt(8));
+        int blockLength = index.getInt(12);
+        int strongLength = index.getInt(16);
+        blockCount = index.getInt(20);
+        int buckets = index.getInt(24);
+        if (type == null || blockLength <= 0 || strongLength <= 0
+                || strongLength > type.getMaxStrongLength() || blockCount < 0 || buckets <= 0
+                || (buckets & (buckets - 1)) != 0) {
+            throw new RsyncException("Corrupt signature index header",
+                                     LibrsyncWrapper.RsyncResult.RS_CORRUPT.cValue);
+        }
+        options = new SignatureOptions(type, blockLength, strongLength);
+        bucketMask = buckets - 1;
+        entryLength = 8 + strongLength;
+        entriesOffset = HEADER_LENGTH + 4 * (buckets + 1);
+        // only the header and the end of the directory are checked, so that opening an index
+        // does not read it
+        if (index.remaining() != indexLength(blockCount, buckets, strongLength)
+                || index.getInt(entriesOffset - 4) != blockCount) {
+            throw new RsyncException("Corrupt signature index",
+                                     LibrsyncWrapper.RsyncResult.RS_CORRUPT.cValue);
+        }
+    }
+
+    /**
+     * Builds the index of a signature in memory
+     * 
+     * @param signature
+     *            the signature, between its position and limit. Its position is not changed.
+     * @return the index, held in a heap buffer
+     * @throws RsyncException
+     *             if signature is not a valid signature, or too large to index
+     */
+    public static SignatureIndex build(ByteBuffer signature) throws RsyncException {
+        signature = signature.duplicate().order(ByteOrder.BIG_ENDIAN);
+        ByteBuffer index = ByteBuffer.allocate((int) indexLength(signature));
+        build(signature, index);
+        return new SignatureIndex(index);
+    }
+
+    /**
+     * Generates the signature of a file with JavaSignatureGenerator, and builds its index in
+     * memory. The signature is written straight into one heap buffer of its exact length and
+     * indexed from there, without passing through an RsyncOutputConsumer or being parsed by
+     * librsync.
+     * 
+     * @param file
+     *            the file to generate the signature of. It is only read with positional reads, so
+     *            its position is not changed.
+     * @param options
+     *            the signature type, block length and strong sum length
+     * @return the index, held in a heap buffer
+     * @throws IOException
+     *             if the file cannot be read
+     * @throws RsyncException
+     *             if the signature is too large to index
+     */
+    public static SignatureIndex generate(FileChannel file, SignatureOptions options)
+            throws IOException, RsyncException {
+        long size = file.size();
+        return generate(new FileChannelProducer(file, 0, size), size, options);
+    }
+
+    /**
+     * Generates the signature of size bytes produced by producer, and builds its index in memory.
+     * See generate(FileChannel, SignatureOptions)
+     */
+    static SignatureIndex generate(RsyncInputProducer producer, long size,
+                                   SignatureOptions options) throws IOException, RsyncException {
+        long startNanos = System.nanoTime();
+        long signatureLength = options.getSignatureLength(size);
+        if (signatureLength > MAX_INDEX_LENGTH) {
+            throw new RsyncException("Signature is too large to index: " + signatureLength
+                    + " bytes", LibrsyncWrapper.RsyncResult.RS_PARAM_ERROR.cValue);
+        }
+        ByteBuffer signature = ByteBuffer.allocate((int) signatureLength);
+        ByteBuffer in = ByteBuffer.allocate(READ_LENGTH);
+        JavaSignatureGenerator generator = new JavaSignatureGenerator(options);
+        boolean done = (size == 0);
+        while (!done) {
+            in.clear();
+            done = producer.produceInput(in);
+            in.flip();
+            generator.update(in, signature);
+        }
+        generator.finish(signature);
+        signature.flip();
+        METRICS.recordJob(RsyncMetrics.Phase.SIGNATURE, startNanos, size, signatureLength, false);
+
+        startNanos = System.nanoTime();
+        SignatureIndex index = build(signature);
+        METRICS.recordLatency(RsyncMetrics.Phase.HASH_TABLE_BUILD, startNanos);
+        return index;
+    }
+
+    /**
+     * Builds the index of a signature file, and writes it to a file. The signature is mapped
+     * rather than read, and the index is built directly in the mapped index file.
+     * 
+     * @param signatureFile
+     *            the signature
+     * @param indexFile
+     *            the file the index is written to, replacing any existing content
+     * @throws IOException
+     *             if either file cannot be read or written
+     * @throws RsyncException
+     *             if signatureFile is not a valid signature, or too large to index
+     */
+    public static void write(File signatureFile, File indexFile) throws IOException,
+            RsyncException {
+        try (RandomAccessFile signatureRAF = new RandomAccessFile(signatureFile, "r");
+                RandomAccessFile indexRAF = new RandomAccessFile(indexFile, "rw")) {
+            FileChannel signatureChannel = signatureRAF.getChannel();
+            if (signatureChannel.size() > MAX_INDEX_LENGTH) {
+                throw new RsyncException("Signature is too large to index: " + signatureFile,
+                                         LibrsyncWrapper.RsyncResult.RS_PARAM_ERROR.cValue);
+            }
+            ByteBuffer signature = signatureChannel.map(FileChannel.MapMode.READ_ONLY, 0,
+                                                        signatureChannel.size());
+            long length = indexLength(signature);
+            indexRAF.setLength(length);
+            MappedByteBuffer index = indexRAF.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                                                               length);
+            build(signature, index);
+            index.force();
+        }
+    }
+
+    /**
+     * Opens a persisted index by mapping it read-only
+     * 
+     * @param indexFile
+     *            a file written by write()
+     * @return the index
+     * @throws IOException
+     *             if the file cannot be read
+     * @throws RsyncException
+     *             if the file is not a valid index
+     */
+    public static SignatureIndex open(File indexFile) throws IOException, RsyncException {
+        try (RandomAccessFile indexRAF = new RandomAccessFile(indexFile, "r")) {
+            FileChannel channel = indexRAF.getChannel();
+            if (channel.size() > MAX_INDEX_LENGTH) {
+                throw new RsyncException("Not a signature index: " + indexFile,
+                                         LibrsyncWrapper.RsyncResult.RS_CORRUPT.cValue);
+            }
+            // the mapping stays valid after the file is closed
+            return new SignatureIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                                                  channel.size()));
+        }
+    }
+
+    /**
+     * Wraps an index held in a buffer, for example one received over the network
+     * 
+     * @param index
+     *            the index, between its position and limit. Its position is not changed, and it
+     *            must not be modified while the SignatureIndex is in use.
+     * @return the index
+     * @throws RsyncException
+     *             if index is not a valid index
+     */
+    public static SignatureIndex wrap(ByteBuffer index) throws RsyncException {
+        return new SignatureIndex(index.slice().order(ByteOrder.BIG_ENDIAN));
+    }
+
+    /**
+     * @return the signature type, block length and strong sum length of the indexed signature
+     */
+    public SignatureOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * @return the number of blocks in the indexed signature
+     */
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    /**
+     * @return the length of the index in bytes
+     */
+    public int getLength() {
+        return index.capacity();
+    }
+
+    /**
+     * @return the first entry of the bucket holding blocks with this weak sum
+     */
+    int bucketStart(int weakSum) {
+        return index.getInt(HEADER_LENGTH + 4 * bucket(weakSum, bucketMask));
+    }
+
+    /**
+     * @return the entry after the last of the bucket holding blocks with this weak sum
+     */
+    int bucketEnd(int weakSum) {
+        return index.getInt(HEADER_LENGTH + 4 * (bucket(weakSum, bucketMask) + 1));
+    }
+
+    /**
+     * @return the weak sum of an entry
+     */
+    int weakSum(int entry) {
+        return index.getInt(entriesOffset + entry * entryLength);
+    }
+
+    /**
+     * @return the block number of an entry
+     */
+    int block(int entry) {
+        return index.getInt(entriesOffset + entry * entryLength + 4);
+    }
+
+    /**
+     * @return true if the entry's strong sum is the start of strongSum
+     */
+    boolean strongSumEquals(int entry, byte[] strongSum) {
+        int offset = entriesOffset + entry * entryLength + 8;
+        for (int i = 0; i < entryLength - 8; i++) {
+            if (index.get(offset + i) != strongSum[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("{options: %s, blocks: %d, buckets: %d, length: %d}", options,
+                             blockCount, bucketMask + 1, getLength());
+    }
+
+    private static int bucket(int weakSum, int bucketMask) {
+        // spread the weak sum's bits, as the rollsum's low bits are a plain byte sum
+        int h = weakSum * 0x9e3779b1;
+        return (h ^ (h >>> 15)) & bucketMask;
+    }
+
+    /**
+     * @return the number of buckets for an index of blockCount blocks
+     */
+    private static int bucketCount(int blockCount) {
+        return (blockCount <= 1 ? 1 : Math.min(MAX_BUCKETS,
+                                               Integer.highestOneBit(blockCount - 1) << 1));
+    }
+
+    private static long indexLength(int blockCount, int buckets, int strongLength) {
+        return HEADER_LENGTH + 4L * (buckets + 1) + (long) blockCount * (8 + strongLength);
+    }
+
+    /**
+     * Validates a signature's header and length
+     * 
+     * @return the length of the signature's index
+     */
+    private static long indexLength(ByteBuffer signature) throws RsyncException {
+        int start = signature.position();
+        SignatureType type = (signature.remaining() < SignatureOptions.HEADER_LENGTH ? null
+                : SignatureType.fromMagic(signature.getInt(start)));
+        if (type == null) {
+            throw new RsyncException("Not a signature",
+                                     LibrsyncWrapper.RsyncResult.RS_BAD_MAGIC.cValue);
+        }
+        int blockLength = signature.getInt(start + 4);
+        int strongLength = signature.getInt(start + 8);
+        int recordLength = SignatureOptions.WEAK_SUM_LENGTH + strongLength;
+        if (blockLength <= 0 || strongLength <= 0 || strongLength > type.getMaxStrongLength()
+                || (signature.remaining() - SignatureOptions.HEADER_LENGTH) % recordLength != 0) {
+            throw new RsyncException("Corrupt signature",
+                                     LibrsyncWrapper.RsyncResult.RS_CORRUPT.cValue);
+        }
+        int blockCount = (signature.remaining() - SignatureOptions.HEADER_LENGTH) / recordLength;
+        long length = indexLength(blockCount, bucketCount(blockCount), strongLength);
+        if (length > MAX_INDEX_LENGTH) {
+            throw new RsyncException("Signature is too large to index",
+                                     LibrsyncWrapper.RsyncResult.RS_PARAM_ERROR.cValue);
+        }
+        return length;
+    }
+
+    /**
+     * Writes the index of a validated signature to index, from position 0, with a counting sort
+     * of the blocks by bucket
+     */
+    private static void build(ByteBuffer signature, ByteBuffer index) {
+        int start = signature.position();
+        int magic = signature.getInt(start);
+        int blockLength = signature.getInt(start + 4);
+        int strongLength = signature.getInt(start + 8);
+        int recordLength = SignatureOptions.WEAK_SUM_LENGTH + strongLength;
+        int blockCount = (signature.remaining() - SignatureOptions.HEADER_LENGTH) / recordLength;
+        int buckets = bucketCount(blockCount);
+        int entryLength = 8 + strongLength;
+        int entriesOffset = HEADER_LENGTH + 4 * (buckets + 1);
+        int records = start + SignatureOptions.HEADER_LENGTH;
+
+        index.putInt(0, INDEX_MAGIC);
+        index.putInt(4, FORMAT_VERSION);
+        index.putInt(8, magic);
+        index.putInt(12, blockLength);
+        index.putInt(16, strongLength);
+        index.putInt(20, blockCount);
+        index.putInt(24, buckets);
+        index.putInt(28, 0);
+
+        // count the blocks in each bucket, then turn the counts into each bucket's first entry
+        int[] next = new int[buckets];
+        for (int block = 0; block < blockCount; block++) {
+            next[bucket(signature.getInt(records + block * recordLength), buckets - 1)]++;
+        }
+        int entry = 0;
+        for (int b = 0; b < buckets; b++) {
+            int count = next[b];
+            index.putInt(HEADER_LENGTH + 4 * b, entry);
+            next[b] = entry;
+            entry += count;
+        }
+        index.putInt(HEADER_LENGTH + 4 * buckets, entry);
+
+        ByteBuffer strongSums = signature.duplicate();
+        ByteBuffer entries = index.duplicate();
+        for (int block = 0; block < blockCount; block++) {
+            int record = records + block * recordLength;
+            int weakSum = signature.getInt(record);
+            int offset = entriesOffset + next[bucket(weakSum, buckets - 1)]++ * entryLength;
+            index.putInt(offset, weakSum);
+            index.putInt(offset + 4, block);
+            strongSums.limit(record + recordLength);
+            strongSums.position(record + SignatureOptions.WEAK_SUM_LENGTH);
+            entries.position(offset + 8);
+            entries.put(strongSums);
+        }
+    }
+}
@@ -0,0 +1,305 @@
+//
+// The MIT License (MIT)
+//
+// Copyright (c) 2015 Hitachi Data Systems
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+
+package com.hds.aw.commons.librsync;
+
+/**
+ * The parameters of an rsync signature: its type (rolling checksum and strong sum algorithm), the
+ * block length, and the length to which strong sums are truncated. Shorter strong sums make smaller
+ * signatures, at the cost of a higher chance of a false block match.
+ *
+ * @author Hitachi Data Systems
+ */
+public final class SignatureOptions {
+
+    /**
+     * Size of the signature header: magic, block length, strong sum length
+     */
+    static final int HEADER_LENGTH = 12;
+
+    /**
+     * Size of the weak sum in each block record
+     */
+    static final int WEAK_SUM_LENGTH = 4;
+
+    /**
+     * The block length librsync uses when the file size is unknown
+     */
+    public static final int DEFAULT_BLOCK_LENGTH = 2048;
+
+    /**
+     * The minimum strong sum length librsync recommends when the file size is unknown
+     */
+    public static final int DEFAULT_MIN_STRONG_LENGTH = 12;
+
+    /**
+     * The default collision budget: the recommended strong sum length makes the chance of a
+     * corrupt delta about 2^-DEFAULT_COLLISION_BITS
+     */
+    public static final int DEFAULT_COLLISION_BITS = 16;
+
+    /**
+     * The signature type used by recommended(long): MD4, which every supported librsync version
+     * can generate and load. librsync 2.2 and later default to RK_BLAKE2, which can be asked for
+     * with recommended(long, SignatureType, int).
+     */
+    public static final SignatureType DEFAULT_TYPE = SignatureType.MD4;
+
+    private final SignatureType type;
+    private final int blockLength;
+    private final int strongLength;
+
+    /**
+     * Construct SignatureOptions
+     * 
+     * @param type
+     *            the signature type
+     * @param blockLength
+     *            the rsync block length
+     * @param strongLength
+     *            the number of bytes of each strong sum to keep, or 0 to keep the whole strong sum
+     */
+    public SignatureOptions(SignatureType type, int blockLength, int strongLength) {
+        if (type == null) {
+            throw new IllegalArgumentException("A signature type is required");
+        }
+        if (blockLength <= 0) {
+            throw new IllegalArgumentException("Invalid block length " + blockLength);
+        }
+        if (strongLength < 0 || strongLength > type.getMaxStrongLength()) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid strong sum length %d for %s signatures", strongLength, type));
+        }
+        this.type = type;
+        this.blockLength = blockLength;
+        this.strongLength = (strongLength == 0 ? type.getMaxStrongLength() : strongLength);
+    }
+
+    /**
+     * Returns options for a signature with full length MD4 strong sums, which is the kind of
+     * signature generated by generateSignature() when given only a block size
+     * 
+     * @param blockLength
+     *            the rsync block length
+     * @return the options
+     */
+    public static SignatureOptions md4(int blockLength) {
+        return new SignatureOptions(SignatureType.MD4, blockLength, 0);
+    }
+
+    /**
+     * Returns the block length and strong sum length librsync recommends for a file of the given
+     * size, with the default signature type. See recommended(long, SignatureType, int)
+     * 
+     * @param fileSize
+     *            the size of the file the signature is generated for, or -1 if unknown
+     * @return the recommended options
+     */
+    public static SignatureOptions recommended(long fileSize) {
+        return recommended(fileSize, DEFAULT_TYPE, DEFAULT_COLLISION_BITS);
+    }
+
+    /**
+     * Returns the block length and strong sum length recommended for a file of the given size. This
+     * follows librsync's rs_sig_args(): the block length is sqrt(fileSize) rounded down to a
+     * multiple of 128 (at least 256), and the strong sum length is the shortest that keeps the
+     * chance of a corrupt delta below 2^-collisionBits, assuming the new file is up to 16 MB larger
+     * than the old one. With the default of 16 collision bits this is exactly librsync's minimum
+     * strong sum length.
+     * 
+     * @param fileSize
+     *            the size of the file the signature is generated for, or -1 if unknown
+     * @param type
+     *            the signature type
+     * @param collisionBits
+     *            the collision probability budget, as a negative power of 2
+     * @return the recommended options
+     */
+    public static SignatureOptions recommended(long fileSize, SignatureType type,
+                                               int collisionBits) {
+        int blockLength = recommendedBlockLength(fileSize);
+        return new SignatureOptions(type, blockLength, recommendedStrongLength(fileSize,
+                                                                               blockLength, type,
+                                                                               collisionBits));
+    }
+
+    /**
+     * Returns options for a signature of at most maxSignatureLength bytes. The recommended block
+     * length is used if the signature fits; otherwise the block length is increased (in multiples
+     * of 128) until it does. The strong sum length is recommended as by recommended(long,
+     * SignatureType, int).
+     * 
+     * @param fileSize
+     *            the size of the file the signature is generated for
+     * @param maxSignatureLength
+     *            the largest acceptable signature
+     * @param type
+     *            the signature type
+     * @param collisionBits
+     *            the collision probability budget, as a negative power of 2
+     * @return the options
+     * @throws IllegalArgumentException
+     *             if no block length can make the signature small enough
+     */
+    public static SignatureOptions forSignatureLength(long fileSize, long maxSignatureLength,
+                                                      SignatureType type, int collisionBits) {
+        SignatureOptions options = recommended(fileSize, type, collisionBits);
+        while (options.getSignatureLength(fileSize) > maxSignatureLength) {
+            long maxBlocks = (maxSignatureLength - HEADER_LENGTH) / options.getRecordLength();
+            if (maxBlocks < 1 || options.blockLength >= fileSize) {
+                throw new IllegalArgumentException(String.format(
+                        "A signature of a %d byte file cannot fit in %d bytes", fileSize,
+                        maxSignatureLength));
+            }
+            long blockLength = ((fileSize + maxBlocks - 1) / maxBlocks + 127) & ~127L;
+            blockLength = Math.max(blockLength, options.blockLength + 128);
+            if (blockLength > Integer.MAX_VALUE) {
+                blockLength = Integer.MAX_VALUE;
+            }
+            // a longer block length means fewer blocks, so the strong sums can only get shorter
+            options = new SignatureOptions(type, (int) blockLength,
+                                           recommendedStrongLength(fileSize, (int) blockLength,
+                                                                   type, collisionBits));
+        }
+        return options;
+    }
+
+    /**
+     * Returns the block length librsync recommends for a file of the given size
+     * 
+     * @param fileSize
+     *            the file size, or -1 if unknown
+     * @return the recommended block length
+     */
+    public static int recommendedBlockLength(long fileSize) {
+        if (fileSize < 0) {
+            return DEFAULT_BLOCK_LENGTH;
+        } else if (fileSize <= 256 * 256) {
+            return 256;
+        }
+        long blockLength = sqrt(fileSize) & ~127L;
+        return (int) Math.min(blockLength, Integer.MAX_VALUE & ~127);
+    }
+
+    /**
+     * Returns the shortest strong sum length that keeps the chance of a corrupt delta below
+     * 2^-collisionBits, limited to the full strong sum length of the signature type
+     * 
+     * @param fileSize
+     *            the file size, or -1 if unknown
+     * @param blockLength
+     *            the block length
+     * @param type
+     *            the signature type
+     * @param collisionBits
+     *            the collision probability budget, as a negative power of 2
+     * @return the recommended strong sum length
+     */
+    public static int recommendedStrongLength(long fileSize, int blockLength,
+                                              SignatureType type, int collisionBits) {
+        long strongLength;
+        if (fileSize < 0) {
+            strongLength = DEFAULT_MIN_STRONG_LENGTH;
+        } else {
+            strongLength = (log2(fileSize + (1L << 24)) + log2(fileSize / blockLength + 1)
+                    + collisionBits + 7) / 8;
+        }
+        return (int) Math.max(1, Math.min(strongLength, type.getMaxStrongLength()));
+    }
+
+    /**
+     * @return floor(log2(v)) for v > 0
+     */
+    private static int log2(long v) {
+        return 63 - Long.numberOfLeadingZeros(v);
+    }
+
+    /**
+     * @return floor(sqrt(v))
+     */
+    private static long sqrt(long v) {
+        long r = (long) Math.sqrt((double) v);
+        while (r * r > v) {
+            r--;
+        }
+        while ((r + 1) * (r + 1) <= v) {
+            r++;
+        }
+        return r;
+    }
+
+    public SignatureType getType() {
+        return type;
+    }
+
+    public int getBlockLength() {
+        return blockLength;
+    }
+
+    /**
+     * @return the number of bytes of each strong sum kept in the signature
+     */
+    public int getStrongLength() {
+        return strongLength;
+    }
+
+    /**
+     * @return the length of each block record in the signature
+     */
+    public int getRecordLength() {
+        return WEAK_SUM_LENGTH + strongLength;
+    }
+
+    /**
+     * Computes the exact length of the signature of an input
+     * 
+     * @param inputLength
+     *            the length of the input the signature is generated for
+     * @return the length of the signature
+     */
+    public long getSignatureLength(long inputLength) {
+        return HEADER_LENGTH + ((inputLength + blockLength - 1) / blockLength) * getRecordLength();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof SignatureOptions)) {
+            return false;
+        }
+        SignatureOptions other = (SignatureOptions) o;
+        return type == other.type && blockLength == other.blockLength
+                && strongLength == other.strongLength;
+    }
+
+    @Override
+    public int hashCode() {
+        return (type.hashCode() * 31 + blockLength) * 31 + strongLength;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("{type: %s, block length: %d, strong length: %d}", type, blockLength,
+                             strongLength);
+    }
+}
@@ -0,0 +1,92 @@
+//
+// The MIT License (MIT)
+//
+// Copyright (c) 2015 Hitachi Data Systems
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+
+package com.hds.aw.commons.librsync;
+
+/**
+ * The kinds of rsync signature librsync can generate: the rolling checksum used to find candidate
+ * blocks, and the strong sum used to confirm them. Each is identified in the signature by its magic
+ * number. Java equivalent of librsync's signature rs_magic_number values.
+ *
+ * @author Hitachi Data Systems
+ */
+public enum SignatureType {
+    MD4(0x72730136, 16), // rsync rollsum with MD4 strong sums. The only type understood by
+                         // librsync versions before 1.0.
+    BLAKE2(0x72730137, 32), // rsync rollsum with BLAKE2b strong sums
+    RK_MD4(0x72730146, 16), // RabinKarp rollsum with MD4 strong sums. Requires librsync 2.2+
+    RK_BLAKE2(0x72730147, 32); // RabinKarp rollsum with BLAKE2b strong sums. Requires librsync
+                               // 2.2+
+
+    private final int magic;
+    private final int maxStrongLength;
+
+    private SignatureType(int magic, int maxStrongLength) {
+        this.magic = magic;
+        this.maxStrongLength = maxStrongLength;
+    }
+
+    /**
+     * @return the magic number that starts a signature of this type
+     */
+    public int getMagic() {
+        return magic;
+    }
+
+    /**
+     * @return the length of a full strong sum of this type
+     */
+    public int getMaxStrongLength() {
+        return maxStrongLength;
+    }
+
+    /**
+     * @return true if this type uses the RabinKarp rolling checksum, false if it uses the rsync
+     *         rollsum
+     */
+    public boolean isRabinKarp() {
+        return this == RK_MD4 || this == RK_BLAKE2;
+    }
+
+    /**
+     * @return true if this type uses BLAKE2b strong sums, false if it uses MD4
+     */
+    public boolean isBlake2() {
+        return this == BLAKE2 || this == RK_BLAKE2;
+    }
+
+    /**
+     * @param magic
+     *            the magic number at the start of a signature
+     * @return the corresponding SignatureType, or null if magic is not a signature magic number
+     */
+    public static SignatureType fromMagic(int magic) {
+        for (SignatureType type : values()) {
+            if (type.magic == magic) {
+                return type;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,183 @@
+//
+// The MIT License (MIT)
+//
+// Copyright (c) 2015 Hitachi Data Systems
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+
+package com.hds.aw.commons.librsync;
+
+/**
+ * The rolling weak checksum librsync stores for each block of a signature: Rollsum for the MD4
+ * and BLAKE2 signature types, and RabinKarp for the RK_ types. The checksum covers a window of
+ * bytes, which can be extended with rollIn(), shortened with rollOut(), or slid along by one byte
+ * with rotate(), each in constant time. An instance does not allocate.
+ *
+ * @author Hitachi Data Systems
+ */
+final class WeakSum {
+
+    /**
+     * Offset librsync adds to every byte in Rollsum, so that runs of zeros still change the sum
+     */
+    static final int ROLLSUM_CHAR_OFFSET = 31;
+
+    static final int RABINKARP_SEED = 1;
+    static final int RABINKARP_MULT = 0x08104225;
+
+    /**
+     * RABINKARP_MULT - 1, the adjustment needed to remove a byte along with the seed's share of
+     * the hash
+     */
+    private static final int RABINKARP_ADJ = RABINKARP_MULT - 1;
+
+    /**
+     * Multiplicative inverse of RABINKARP_MULT, modulo 2^32
+     */
+    private static final int RABINKARP_INVM = inverse(RABINKARP_MULT);
+
+    private final boolean rabinKarp;
+    private int count;
+    // Rollsum
+    private int s1;
+    private int s2;
+    // RabinKarp. mult is RABINKARP_MULT^count.
+    private int hash;
+    private int mult;
+
+    /**
+     * @param type
+     *            the signature type, which selects Rollsum or RabinKarp
+     */
+    WeakSum(SignatureType type) {
+        this.rabinKarp = type.isRabinKarp();
+        reset();
+    }
+
+    /**
+     * Empties the window
+     */
+    void reset() {
+        count = 0;
+        s1 = 0;
+        s2 = 0;
+        hash = RABINKARP_SEED;
+        mult = 1;
+    }
+
+    /**
+     * Adds len bytes to the end of the window
+     */
+    void update(byte[] b, int off, int len) {
+        if (rabinKarp) {
+            int h = hash;
+            int m = mult;
+            for (int end = off + len; off < end; off++) {
+                h = h * RABINKARP_MULT + (b[off] & 0xff);
+                m *= RABINKARP_MULT;
+            }
+            hash = h;
+            mult = m;
+        } else {
+            int a = s1;
+            int c = s2;
+            for (int end = off + len; off < end; off++) {
+                a += (b[off] & 0xff) + ROLLSUM_CHAR_OFFSET;
+                c += a;
+            }
+            s1 = a;
+            s2 = c;
+        }
+        count += len;
+    }
+
+    /**
+     * Slides the window by one byte, removing out from the start and adding in at the end
+     */
+    void rotate(byte out, byte in) {
+        int o = out & 0xff;
+        int i = in & 0xff;
+        if (rabinKarp) {
+            hash = hash * RABINKARP_MULT + i - mult * (o + RABINKARP_ADJ);
+        } else {
+            s1 += i - o;
+            s2 += s1 - count * (o + ROLLSUM_CHAR_OFFSET);
+        }
+    }
+
+    /**
+     * Adds one byte to the end of the window
+     */
+    void rollIn(byte in) {
+        int i = in & 0xff;
+        if (rabinKarp) {
+            hash = hash * RABINKARP_MULT + i;
+            mult *= RABINKARP_MULT;
+        } else {
+            s1 += i + ROLLSUM_CHAR_OFFSET;
+            s2 += s1;
+        }
+        count++;
+    }
+
+    /**
+     * Removes one byte from the start of the window
+     */
+    void rollOut(byte out) {
+        int o = out & 0xff;
+        if (rabinKarp) {
+            mult *= RABINKARP_INVM;
+            hash -= mult * (o + RABINKARP_ADJ);
+        } else {
+            s1 -= o + ROLLSUM_CHAR_OFFSET;
+            s2 -= count * (o + ROLLSUM_CHAR_OFFSET);
+        }
+        count--;
+    }
+
+    /**
+     * @return the number of bytes in the window
+     */
+    int count() {
+        return count;
+    }
+
+    /**
+     * @return the weak sum of the window, as stored in a signature
+     */
+    int digest() {
+        if (rabinKarp) {
+            return hash;
+        }
+        return (s2 << 16) | (s1 & 0xffff);
+    }
+
+    /**
+     * @return the multiplicative inverse of the odd number a, modulo 2^32
+     */
+    private static int inverse(int a) {
+        // Newton's iteration doubles the number of correct low bits each time
+        int x = a;
+        for (int i = 0; i < 5; i++) {
+            x *= 2 - a * x;
+        }
+        return x;
+    }
+}
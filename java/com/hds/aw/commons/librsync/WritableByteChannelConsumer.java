@@ -0,0 +1,75 @@
+//
+// The MIT License (MIT)
+//
+// Copyright (c) 2015 Hitachi Data Systems
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+//
+
+package com.hds.aw.commons.librsync;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Consumes output produced by librsync by writing the job's output buffer directly to a
+ * WritableByteChannel, without copying through a byte[].
+ *
+ * @author Hitachi Data Systems
+ */
+public class WritableByteChannelConsumer implements RsyncOutputConsumer {
+
+    private final WritableByteChannel channel;
+    private long totalBytesWritten = 0;
+
+    /**
+     * Construct a WritableByteChannelConsumer
+     * 
+     * @param channel
+     *            the channel the output is written to
+     */
+    public WritableByteChannelConsumer(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Writes all of the output in buf to the channel. If the channel is non-blocking, this may
+     * return before all of the output is written, and will be called again.
+     * 
+     * @param buf
+     *            the buffer containing output to consume
+     */
+    public void consumeOutput(ByteBuffer buf) throws IOException {
+        while (buf.remaining() > 0) {
+            int cnt = channel.write(buf);
+            if (cnt == 0) {
+                break;
+            }
+            totalBytesWritten += cnt;
+        }
+    }
+
+    /**
+     * @return the number of bytes written to the channel so far
+     */
+    public long getTotalBytesWritten() {
+        return totalBytesWritten;
+    }
+}